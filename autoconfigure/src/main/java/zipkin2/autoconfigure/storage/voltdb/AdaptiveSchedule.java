@@ -0,0 +1,122 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.autoconfigure.storage.voltdb;
+
+import java.util.Date;
+import org.springframework.scheduling.Trigger;
+import org.springframework.scheduling.TriggerContext;
+
+/**
+ * Controls how many traces a background procedure processes per partition, and how often it is
+ * invoked, based on the results of the last invocation.
+ *
+ * <ul>
+ *   <li>When any partition returned a full batch, there is likely a backlog, so we invoke more
+ *   often. If latency is well under {@code maxLatencyMillis}, we also double the batch size.</li>
+ *   <li>When latency exceeds {@code maxLatencyMillis}, we halve the batch size, as large batches
+ *   hold the partition longer, delaying ingest.</li>
+ *   <li>When no partition had work or the invocation failed, we back off the interval.</li>
+ * </ul>
+ *
+ * <p>Only one invocation is outstanding at a time: the scheduler skips a turn when the last
+ * invocation hasn't returned yet.
+ */
+final class AdaptiveSchedule implements Trigger {
+  final int minPerPartition, maxPerPartition;
+  final long minIntervalMillis, maxIntervalMillis, maxLatencyMillis;
+
+  // guarded by this
+  int perPartition;
+  long intervalMillis;
+  boolean inFlight;
+
+  AdaptiveSchedule(ZipkinVoltDBStorageProperties.Scheduling scheduling) {
+    this(scheduling.getMinPerPartition(), scheduling.getMaxPerPartition(),
+        scheduling.getMinIntervalMillis(), scheduling.getMaxIntervalMillis(),
+        scheduling.getMaxLatencyMillis());
+  }
+
+  AdaptiveSchedule(int minPerPartition, int maxPerPartition, long minIntervalMillis,
+      long maxIntervalMillis, long maxLatencyMillis) {
+    if (minPerPartition < 1) throw new IllegalArgumentException("minPerPartition < 1");
+    if (maxPerPartition < minPerPartition) {
+      throw new IllegalArgumentException("maxPerPartition < minPerPartition");
+    }
+    if (minIntervalMillis < 1) throw new IllegalArgumentException("minIntervalMillis < 1");
+    if (maxIntervalMillis < minIntervalMillis) {
+      throw new IllegalArgumentException("maxIntervalMillis < minIntervalMillis");
+    }
+    if (maxLatencyMillis < 1) throw new IllegalArgumentException("maxLatencyMillis < 1");
+    this.minPerPartition = minPerPartition;
+    this.maxPerPartition = maxPerPartition;
+    this.minIntervalMillis = minIntervalMillis;
+    this.maxIntervalMillis = maxIntervalMillis;
+    this.maxLatencyMillis = maxLatencyMillis;
+    // start small and fast, growing only when there's a backlog
+    this.perPartition = minPerPartition;
+    this.intervalMillis = minIntervalMillis;
+  }
+
+  /**
+   * Returns the count of traces to process per partition, or zero if the last invocation is still
+   * outstanding. When positive, the caller must call {@link #onResult} or {@link #onError}.
+   */
+  synchronized int tryStart() {
+    if (inFlight) return 0;
+    inFlight = true;
+    return perPartition;
+  }
+
+  /**
+   * @param maxRows the highest count of traces processed by any partition
+   * @param latencyMillis time from invocation until all partitions responded
+   */
+  synchronized void onResult(int maxRows, long latencyMillis) {
+    inFlight = false;
+    if (latencyMillis > maxLatencyMillis) {
+      perPartition = Math.max(minPerPartition, perPartition / 2);
+    } else if (maxRows >= perPartition) { // a partition is likely backlogged
+      if (latencyMillis * 2 <= maxLatencyMillis) {
+        perPartition = (int) Math.min(maxPerPartition, perPartition * 2L);
+      }
+      intervalMillis = Math.max(minIntervalMillis, intervalMillis / 2);
+    } else if (maxRows == 0) { // idle
+      intervalMillis = Math.min(maxIntervalMillis, intervalMillis * 2);
+    }
+  }
+
+  synchronized void onError() {
+    inFlight = false;
+    intervalMillis = Math.min(maxIntervalMillis, intervalMillis * 2);
+  }
+
+  synchronized int perPartition() {
+    return perPartition;
+  }
+
+  synchronized long intervalMillis() {
+    return intervalMillis;
+  }
+
+  @Override public Date nextExecutionTime(TriggerContext triggerContext) {
+    Date lastCompletion = triggerContext.lastCompletionTime();
+    long from = lastCompletion != null ? lastCompletion.getTime() : System.currentTimeMillis();
+    return new Date(from + intervalMillis());
+  }
+
+  @Override public synchronized String toString() {
+    return "AdaptiveSchedule{perPartition=" + perPartition + ", intervalMillis=" + intervalMillis
+        + "}";
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.autoconfigure.storage.voltdb;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import zipkin2.internal.Nullable;
+import zipkin2.storage.voltdb.IngestListener;
+
+import static zipkin2.autoconfigure.storage.voltdb.SchedulerMetrics.PREFIX;
+
+/**
+ * Counts spans admitted or dropped by the ingest rate limit as "zipkin_voltdb.ingest.admitted" and
+ * "zipkin_voltdb.ingest.dropped", tagged by "service". Spans without a service are tagged
+ * "unknown".
+ *
+ * <p>Like the buckets of the rate limit, only the first {@link #MAX_SERVICES} services seen are
+ * tagged by name. Later ones are tagged "other", so that a producer sending random service names
+ * can't grow the registry without bound.
+ */
+final class MicrometerIngestListener extends IngestListener {
+  static final int MAX_SERVICES = 1000;
+
+  final MeterRegistry registry;
+  final int maxServices;
+  final Set<String> services = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  final ConcurrentMap<String, Counter> admitted = new ConcurrentHashMap<>();
+  final ConcurrentMap<String, Counter> dropped = new ConcurrentHashMap<>();
+
+  MicrometerIngestListener(MeterRegistry registry, int maxServices) {
+    this.registry = registry;
+    this.maxServices = maxServices;
+  }
+
+  @Override public void onAdmitted(@Nullable String serviceName) {
+    counter(admitted, "ingest.admitted", "Spans stored under the ingest rate limit", serviceName)
+        .increment();
+  }
+
+  @Override public void onDropped(@Nullable String serviceName) {
+    counter(dropped, "ingest.dropped", "Spans dropped over the ingest rate limit", serviceName)
+        .increment();
+  }
+
+  Counter counter(ConcurrentMap<String, Counter> counters, String name, String description,
+      @Nullable String serviceName) {
+    String service = tag(serviceName);
+    Counter result = counters.get(service);
+    if (result != null) return result;
+    return counters.computeIfAbsent(service, s -> Counter.builder(PREFIX + name)
+        .description(description)
+        .tag("service", s)
+        .register(registry));
+  }
+
+  String tag(@Nullable String serviceName) {
+    String result = serviceName != null ? serviceName : "unknown";
+    if (services.contains(result)) return result;
+    // racing callers may exceed the limit slightly, which is fine as it only bounds growth
+    if (services.size() >= maxServices) return "other";
+    services.add(result);
+    return result;
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.autoconfigure.storage.voltdb;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.voltdb.client.ClientResponse;
+import zipkin2.storage.voltdb.ProcedureListener;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static zipkin2.autoconfigure.storage.voltdb.SchedulerMetrics.PREFIX;
+import static zipkin2.storage.voltdb.Schema.APP_STATUS_SPAN_DROPPED;
+import static zipkin2.storage.voltdb.Schema.APP_STATUS_TRACE_CAPPED;
+
+/**
+ * Records timers tagged by "procedure" and "outcome", splitting the latency of a call into where
+ * it was spent:
+ *
+ * <ul>
+ *   <li>"zipkin_voltdb.procedure.queue": waiting in the client or in transit</li>
+ *   <li>"zipkin_voltdb.procedure.round_trip": executing in the cluster</li>
+ *   <li>"zipkin_voltdb.procedure.convert": decoding the results, ex. span json</li>
+ * </ul>
+ *
+ * <p>Calls that timed out or were canceled in flight are also counted, tagged by "procedure".
+ * Spans dropped as their trace is over the span cap are counted as "zipkin_voltdb.spans.dropped",
+ * and the traces they were dropped from as "zipkin_voltdb.traces.capped".
+ */
+final class MicrometerProcedureListener extends ProcedureListener {
+  final MeterRegistry registry;
+  // procedure -> outcome -> timers
+  final ConcurrentMap<String, ConcurrentMap<String, Timers>> procedureTimers =
+      new ConcurrentHashMap<>();
+
+  MicrometerProcedureListener(MeterRegistry registry) {
+    this.registry = registry;
+  }
+
+  @Override public void onResponse(String procedure, Object[] parameters, ClientResponse response,
+      long convertNanos) {
+    Timers timers = timers(procedure, outcome(response.getStatus()));
+    long roundTripNanos = MILLISECONDS.toNanos(response.getClusterRoundtrip());
+    // The cluster round-trip has millisecond precision, so this may be slightly negative
+    long queueNanos = Math.max(0L, response.getClientRoundtripNanos() - roundTripNanos);
+    timers.queue.record(queueNanos, NANOSECONDS);
+    timers.roundTrip.record(roundTripNanos, NANOSECONDS);
+    if (convertNanos > 0L) timers.convert.record(convertNanos, NANOSECONDS);
+    if (response.getStatus() == ClientResponse.CONNECTION_TIMEOUT) {
+      registry.counter(PREFIX + "procedure.timeouts", "procedure", procedure).increment();
+    }
+    if (response.getStatus() != ClientResponse.SUCCESS) return;
+    byte appStatus = response.getAppStatus();
+    if (appStatus == APP_STATUS_TRACE_CAPPED) {
+      registry.counter(PREFIX + "traces.capped").increment();
+    }
+    if (appStatus == APP_STATUS_TRACE_CAPPED || appStatus == APP_STATUS_SPAN_DROPPED) {
+      registry.counter(PREFIX + "spans.dropped").increment();
+    }
+  }
+
+  @Override public void onCanceled(String procedure, Object[] parameters,
+      ClientResponse response) {
+    registry.counter(PREFIX + "procedure.canceled", "procedure", procedure).increment();
+  }
+
+  Timers timers(String procedure, String outcome) {
+    ConcurrentMap<String, Timers> outcomeTimers = procedureTimers.get(procedure);
+    if (outcomeTimers == null) {
+      outcomeTimers = procedureTimers.computeIfAbsent(procedure, p -> new ConcurrentHashMap<>());
+    }
+    Timers result = outcomeTimers.get(outcome);
+    if (result == null) {
+      result = outcomeTimers.computeIfAbsent(outcome, o -> new Timers(registry, procedure, o));
+    }
+    return result;
+  }
+
+  /** Converts the status into a tag value of bounded cardinality */
+  static String outcome(byte status) {
+    switch (status) {
+      case ClientResponse.SUCCESS:
+        return "success";
+      case ClientResponse.USER_ABORT:
+        return "user_abort";
+      case ClientResponse.GRACEFUL_FAILURE:
+        return "graceful_failure";
+      case ClientResponse.CONNECTION_LOST:
+        return "connection_lost";
+      case ClientResponse.SERVER_UNAVAILABLE:
+        return "server_unavailable";
+      case ClientResponse.CONNECTION_TIMEOUT:
+        return "connection_timeout";
+      default:
+        return "unexpected_failure";
+    }
+  }
+
+  static final class Timers {
+    final Timer queue, roundTrip, convert;
+
+    Timers(MeterRegistry registry, String procedure, String outcome) {
+      queue = Timer.builder(PREFIX + "procedure.queue")
+          .description("Time a procedure call waited in the client or in transit")
+          .tags("procedure", procedure, "outcome", outcome)
+          .register(registry);
+      roundTrip = Timer.builder(PREFIX + "procedure.round_trip")
+          .description("Time a procedure call took in the cluster")
+          .tags("procedure", procedure, "outcome", outcome)
+          .register(registry);
+      convert = Timer.builder(PREFIX + "procedure.convert")
+          .description("Time to decode the results of a procedure call")
+          .tags("procedure", procedure, "outcome", outcome)
+          .register(registry);
+    }
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.autoconfigure.storage.voltdb;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.client.ProcedureCallback;
+
+import static zipkin2.storage.voltdb.Schema.PROCEDURE_ACQUIRE_LEASE;
+import static zipkin2.storage.voltdb.Schema.PROCEDURE_RELEASE_LEASE;
+
+/**
+ * Elects one zipkin server to invoke background procedures, so that replicas don't repeat the same
+ * all-partition transactions. The holder renews the lease at a third of its timeout. If it stops,
+ * another server takes over once the lease expires.
+ *
+ * <p>The holder considers the lease lost at its timeout, measured from when it sent the last
+ * successful renewal. This is never later than the database considers the lease expired.
+ */
+final class SchedulerLease implements ProcedureCallback {
+  static final String NAME = "scheduler";
+
+  final Logger logger = Logger.getLogger(SchedulerLease.class.getName());
+  final String holder;
+  final long timeoutMillis;
+  final AtomicBoolean inFlight = new AtomicBoolean();
+
+  volatile long requestNanos, heldUntilNanos;
+  volatile boolean held;
+
+  SchedulerLease(long timeoutMillis) {
+    this(ManagementFactory.getRuntimeMXBean().getName(), timeoutMillis); // ex. 1234@hostname
+  }
+
+  SchedulerLease(String holder, long timeoutMillis) {
+    if (timeoutMillis < 3) throw new IllegalArgumentException("timeoutMillis < 3");
+    this.holder = holder;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  long renewIntervalMillis() {
+    return timeoutMillis / 3;
+  }
+
+  boolean isHeld() {
+    return held && System.nanoTime() - heldUntilNanos < 0;
+  }
+
+  /** Acquires or renews the lease, unless a previous attempt is still outstanding. */
+  void renew(Client client) {
+    if (!inFlight.compareAndSet(false, true)) return;
+    requestNanos = System.nanoTime();
+    try {
+      if (!client.callProcedure(this, PROCEDURE_ACQUIRE_LEASE, NAME, holder, timeoutMillis)) {
+        inFlight.set(false);
+      }
+    } catch (Exception | Error e) {
+      inFlight.set(false);
+      logger.log(Level.WARNING, "failed to renew scheduler lease: " + e.getMessage(), e);
+    }
+  }
+
+  @Override public void clientCallback(ClientResponse response) {
+    long startNanos = requestNanos;
+    inFlight.set(false);
+    if (response.getStatus() != ClientResponse.SUCCESS) {
+      logger.log(Level.WARNING, "failed to renew scheduler lease: {0} {1}",
+          new Object[] {response.getStatusString(), response.getAppStatusString()});
+      return; // keep what we had until it times out
+    }
+
+    String currentHolder = response.getResults()[0].fetchRow(0).getString(0);
+    boolean wasHeld = isHeld();
+    if (holder.equals(currentHolder)) {
+      heldUntilNanos = startNanos + timeoutMillis * 1_000_000L;
+      held = true;
+      if (!wasHeld) logger.info(holder + " acquired the scheduler lease");
+    } else {
+      held = false;
+      if (wasHeld) logger.info(holder + " lost the scheduler lease to " + currentHolder);
+    }
+  }
+
+  /** Releases the lease if held, so that another server can take over immediately. */
+  void release(Client client) {
+    if (!held) return;
+    held = false;
+    try {
+      client.callProcedure(PROCEDURE_RELEASE_LEASE, NAME, holder);
+    } catch (Exception e) {
+      logger.log(Level.FINE, "failed to release scheduler lease: " + e.getMessage(), e);
+    }
+  }
+
+  @Override public String toString() {
+    return "SchedulerLease{holder=" + holder + ", held=" + isHeld() + "}";
+  }
+}
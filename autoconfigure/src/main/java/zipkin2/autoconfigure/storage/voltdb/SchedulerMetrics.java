@@ -0,0 +1,103 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.autoconfigure.storage.voltdb;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records how fast background procedures process traces, and how many are left per partition.
+ *
+ * <p>Meters are named "zipkin_voltdb.*" and tagged with "procedure" and "partition" as relevant.
+ * For example, when "zipkin_voltdb.backlog.pending" grows while "zipkin_voltdb.scheduled.traces"
+ * for "CompletePendingTraces" is flat, completion is falling behind ingest.
+ */
+final class SchedulerMetrics {
+  static final String PREFIX = "zipkin_voltdb.";
+
+  final MeterRegistry registry;
+  final ConcurrentMap<String, Timer> latencies = new ConcurrentHashMap<>();
+  final ConcurrentMap<String, Counter> traces = new ConcurrentHashMap<>();
+  final ConcurrentMap<String, PartitionBacklog> backlogs = new ConcurrentHashMap<>();
+
+  SchedulerMetrics(MeterRegistry registry) {
+    this.registry = registry;
+  }
+
+  /** Records the time from invoking a procedure until all partitions responded. */
+  void recordLatency(String procedure, long latencyNanos) {
+    latencies.computeIfAbsent(procedure, p -> Timer.builder(PREFIX + "scheduled.latency")
+        .description("Time until all partitions responded to a background procedure")
+        .tag("procedure", p)
+        .publishPercentileHistogram()
+        .register(registry)
+    ).record(latencyNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /** Records the count of traces a procedure completed or linked on a partition. */
+  void recordTraces(String procedure, Object partitionKey, int traceCount) {
+    String partition = String.valueOf(partitionKey);
+    traces.computeIfAbsent(procedure + '/' + partition,
+        k -> Counter.builder(PREFIX + "scheduled.traces")
+            .description("Traces processed by a background procedure")
+            .tag("procedure", procedure)
+            .tag("partition", partition)
+            .register(registry)
+    ).increment(traceCount);
+  }
+
+  void recordBacklog(Object partitionKey, long pendingTraces, long oldestPendingAgeMillis,
+      long unlinkedTraces) {
+    String partition = String.valueOf(partitionKey);
+    PartitionBacklog backlog = backlogs.computeIfAbsent(partition, this::newPartitionBacklog);
+    backlog.pendingTraces = pendingTraces;
+    backlog.oldestPendingAgeSeconds = oldestPendingAgeMillis / 1000d;
+    backlog.unlinkedTraces = unlinkedTraces;
+  }
+
+  /** Zeros backlog values, such as when another server records them. */
+  void clearBacklog() {
+    for (PartitionBacklog backlog : backlogs.values()) {
+      backlog.pendingTraces = backlog.oldestPendingAgeSeconds = backlog.unlinkedTraces = 0d;
+    }
+  }
+
+  PartitionBacklog newPartitionBacklog(String partition) {
+    PartitionBacklog backlog = new PartitionBacklog();
+    Gauge.builder(PREFIX + "backlog.pending", backlog, b -> b.pendingTraces)
+        .description("Traces waiting for CompletePendingTraces")
+        .tag("partition", partition)
+        .register(registry);
+    Gauge.builder(PREFIX + "backlog.oldest_pending_age", backlog, b -> b.oldestPendingAgeSeconds)
+        .description("Seconds since the least recently updated pending trace was updated")
+        .tag("partition", partition)
+        .baseUnit("seconds")
+        .register(registry);
+    Gauge.builder(PREFIX + "backlog.unlinked", backlog, b -> b.unlinkedTraces)
+        .description("Complete traces waiting for LinkCompleteTraces")
+        .tag("partition", partition)
+        .register(registry);
+    return backlog;
+  }
+
+  /** Values of the last {@link #recordBacklog} call for a partition. */
+  static final class PartitionBacklog {
+    volatile double pendingTraces, oldestPendingAgeSeconds, unlinkedTraces;
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.autoconfigure.storage.voltdb;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientStats;
+import org.voltdb.client.ClientStatsContext;
+import zipkin2.storage.voltdb.VoltDBStorage;
+
+/**
+ * Exposes the VoltDB client's own statistics per procedure, since the endpoint was first read.
+ * Unlike metrics, this includes procedures invoked by anything sharing the client, such as
+ * background procedures.
+ *
+ * <p>When there are multiple clients in the pool, statistics are summed across them. Latency
+ * averages are weighted by invocations, and the 99th percentile is the highest of any client.
+ * Append the index of a client to the path, for example "/actuator/voltdb/0", to read one client.
+ *
+ * <p>To expose over http, add "voltdb" to "management.endpoints.web.exposure.include".
+ */
+@Endpoint(id = "voltdb")
+final class VoltDBClientStatsEndpoint {
+  final VoltDBStorage storage;
+  List<ClientStatsContext> contexts; // guarded by this
+
+  VoltDBClientStatsEndpoint(VoltDBStorage storage) {
+    this.storage = storage;
+  }
+
+  @ReadOperation public Map<String, Map<String, Object>> procedures() {
+    Map<String, Map<String, Object>> result = new TreeMap<>();
+    for (Map<String, ClientStats> statsByProc : fetch()) {
+      for (Map.Entry<String, ClientStats> entry : statsByProc.entrySet()) {
+        Map<String, Object> procedure = result.get(entry.getKey());
+        if (procedure == null) {
+          result.put(entry.getKey(), toMap(entry.getValue()));
+        } else {
+          add(procedure, entry.getValue());
+        }
+      }
+    }
+    return result;
+  }
+
+  @ReadOperation public Map<String, Map<String, Object>> client(@Selector int index) {
+    List<Map<String, ClientStats>> statsByClient = fetch();
+    if (index < 0 || index >= statsByClient.size()) return null; // results in 404
+
+    Map<String, Map<String, Object>> result = new TreeMap<>();
+    for (Map.Entry<String, ClientStats> entry : statsByClient.get(index).entrySet()) {
+      result.put(entry.getKey(), toMap(entry.getValue()));
+    }
+    return result;
+  }
+
+  synchronized List<Map<String, ClientStats>> fetch() {
+    if (contexts == null) {
+      contexts = new ArrayList<>();
+      for (Client client : storage.clients()) contexts.add(client.createStatsContext());
+    }
+    List<Map<String, ClientStats>> result = new ArrayList<>();
+    for (ClientStatsContext context : contexts) result.add(context.fetch().getStatsByProc());
+    return result;
+  }
+
+  static Map<String, Object> toMap(ClientStats stats) {
+    Map<String, Object> procedure = new LinkedHashMap<>();
+    procedure.put("invocationsCompleted", stats.getInvocationsCompleted());
+    procedure.put("invocationAborts", stats.getInvocationAborts());
+    procedure.put("invocationErrors", stats.getInvocationErrors());
+    procedure.put("invocationTimeouts", stats.getInvocationTimeouts());
+    procedure.put("averageLatencyMillis", stats.getAverageLatency());
+    procedure.put("averageInternalLatencyMillis", stats.getAverageInternalLatency());
+    procedure.put("p99LatencyMillis", stats.kPercentileLatencyAsDouble(0.99));
+    procedure.put("bytesWritten", stats.getBytesWritten());
+    procedure.put("bytesRead", stats.getBytesRead());
+    return procedure;
+  }
+
+  /** Adds the statistics of another client to those already in the map. */
+  static void add(Map<String, Object> procedure, ClientStats stats) {
+    long completed = (Long) procedure.get("invocationsCompleted");
+    long total = completed + stats.getInvocationsCompleted();
+    procedure.put("invocationsCompleted", total);
+    procedure.put("invocationAborts",
+        (Long) procedure.get("invocationAborts") + stats.getInvocationAborts());
+    procedure.put("invocationErrors",
+        (Long) procedure.get("invocationErrors") + stats.getInvocationErrors());
+    procedure.put("invocationTimeouts",
+        (Long) procedure.get("invocationTimeouts") + stats.getInvocationTimeouts());
+    procedure.put("averageLatencyMillis", weightedAverage(
+        (Double) procedure.get("averageLatencyMillis"), completed,
+        stats.getAverageLatency(), stats.getInvocationsCompleted()));
+    procedure.put("averageInternalLatencyMillis", weightedAverage(
+        (Double) procedure.get("averageInternalLatencyMillis"), completed,
+        stats.getAverageInternalLatency(), stats.getInvocationsCompleted()));
+    procedure.put("p99LatencyMillis", Math.max(
+        (Double) procedure.get("p99LatencyMillis"), stats.kPercentileLatencyAsDouble(0.99)));
+    procedure.put("bytesWritten", (Long) procedure.get("bytesWritten") + stats.getBytesWritten());
+    procedure.put("bytesRead", (Long) procedure.get("bytesRead") + stats.getBytesRead());
+  }
+
+  static double weightedAverage(double average1, long count1, double average2, long count2) {
+    long count = count1 + count2;
+    return count == 0 ? 0d : (average1 * count1 + average2 * count2) / count;
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.autoconfigure.storage.voltdb;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.actuate.health.Status;
+import org.voltdb.VoltTable;
+import org.voltdb.client.ClientResponse;
+import zipkin2.CheckResult;
+import zipkin2.internal.Nullable;
+import zipkin2.storage.voltdb.VoltDBStorage;
+
+/**
+ * Reports {@link #DEGRADED} when the cluster is up, but at risk: trace completion is falling
+ * behind, or a host is short on memory. Otherwise, this reports the result of {@link
+ * VoltDBStorage#check()}.
+ *
+ * <p>Health probes are frequent, so this avoids querying data. Backlog is read from the last
+ * values recorded by the scheduled tasks, and memory statistics are cached.
+ */
+final class VoltDBHealthIndicator implements HealthIndicator {
+  static final Status DEGRADED = new Status("DEGRADED");
+  static final double MAX_MEMORY_RATIO = 0.9;
+  static final long MEMORY_CACHE_MILLIS = 30_000L;
+
+  final Logger logger = Logger.getLogger(VoltDBHealthIndicator.class.getName());
+  final VoltDBStorage storage;
+  @Nullable final SchedulerMetrics metrics;
+  final double maxPendingAgeSeconds;
+
+  // guarded by this
+  long memoryTimestamp;
+  Map<String, Double> memoryRatioByHost = new LinkedHashMap<>();
+
+  /**
+   * @param metrics null when this server doesn't schedule procedures
+   * @param maxAgeSeconds pending traces are completed at this age, so anything much older is late
+   */
+  VoltDBHealthIndicator(VoltDBStorage storage, @Nullable SchedulerMetrics metrics,
+      int maxAgeSeconds) {
+    this.storage = storage;
+    this.metrics = metrics;
+    this.maxPendingAgeSeconds = maxAgeSeconds * 2d;
+  }
+
+  @Override public Health health() {
+    return health(storage.check());
+  }
+
+  /** When degraded for several reasons, the "reason" detail lists all of them. */
+  Health health(CheckResult check) {
+    if (!check.ok()) {
+      return Health.down().withDetail("error", String.valueOf(check.error())).build();
+    }
+
+    Health.Builder builder = Health.up();
+    List<String> reasons = new ArrayList<>();
+    if (metrics != null) {
+      double oldestPendingAgeSeconds = 0d;
+      for (SchedulerMetrics.PartitionBacklog backlog : metrics.backlogs.values()) {
+        oldestPendingAgeSeconds =
+            Math.max(oldestPendingAgeSeconds, backlog.oldestPendingAgeSeconds);
+      }
+      builder.withDetail("oldestPendingAgeSeconds", oldestPendingAgeSeconds);
+      if (oldestPendingAgeSeconds > maxPendingAgeSeconds) {
+        reasons.add("trace completion is falling behind");
+      }
+    }
+
+    for (Map.Entry<String, Double> entry : memoryRatioByHost().entrySet()) {
+      builder.withDetail("memoryRatio." + entry.getKey(), entry.getValue());
+      if (entry.getValue() >= MAX_MEMORY_RATIO) reasons.add(entry.getKey() + " is low on memory");
+    }
+    if (!reasons.isEmpty()) {
+      builder.status(DEGRADED).withDetail("reason", String.join("; ", reasons));
+    }
+    return builder.build();
+  }
+
+  /** Returns the ratio of resident to physical memory per host, refreshing if stale. */
+  synchronized Map<String, Double> memoryRatioByHost() {
+    long now = System.currentTimeMillis();
+    if (now - memoryTimestamp < MEMORY_CACHE_MILLIS) return memoryRatioByHost;
+    memoryTimestamp = now;
+
+    Map<String, Double> result = new LinkedHashMap<>();
+    try {
+      // The trailing zero means totals since startup, as opposed to since the last call
+      ClientResponse response = storage.client().callProcedure("@Statistics", "MEMORY", 0);
+      VoltTable table = response.getResults()[0];
+      while (table.advanceRow()) {
+        long physicalKb = table.getLong("PHYSICALMEMORY");
+        if (physicalKb <= 0) continue;
+        result.put(table.getString("HOSTNAME"), table.getLong("RSS") / (double) physicalKb);
+      }
+    } catch (Exception e) {
+      logger.log(Level.FINE, "couldn't read memory statistics: " + e.getMessage(), e);
+    }
+    return memoryRatioByHost = result;
+  }
+}
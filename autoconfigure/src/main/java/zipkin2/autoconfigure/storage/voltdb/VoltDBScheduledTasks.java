@@ -13,46 +13,199 @@
  */
 package zipkin2.autoconfigure.storage.voltdb;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.annotation.SchedulingConfigurer;
+import org.springframework.scheduling.config.ScheduledTaskRegistrar;
 import org.voltdb.VoltTable;
 import org.voltdb.client.AllPartitionProcedureCallback;
 import org.voltdb.client.Client;
 import org.voltdb.client.ClientResponse;
 import org.voltdb.client.ClientResponseWithPartitionKey;
 import zipkin2.internal.Nullable;
+import zipkin2.storage.voltdb.Schema;
 import zipkin2.storage.voltdb.VoltDBStorage;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static zipkin2.storage.voltdb.Schema.MAX_DOWNSAMPLE_KEEP_SERVICES;
+import static zipkin2.storage.voltdb.Schema.PROCEDURE_COMPACT_TRACES;
 import static zipkin2.storage.voltdb.Schema.PROCEDURE_COMPLETE_PENDING_TRACES;
+import static zipkin2.storage.voltdb.Schema.PROCEDURE_DOWNSAMPLE_COMPLETE_TRACES;
+import static zipkin2.storage.voltdb.Schema.PROCEDURE_GET_BACKLOG;
 import static zipkin2.storage.voltdb.Schema.PROCEDURE_LINK_COMPLETE_TRACES;
 
-final class VoltDBScheduledTasks {
+/**
+ * Invokes background procedures on all partitions. Each has an {@link AdaptiveSchedule}, which
+ * grows or shrinks the batch size and invocation interval based on backlog and latency.
+ *
+ * <p>Throughput, latency and backlog per partition are recorded in {@link SchedulerMetrics}.
+ *
+ * <p>When downsampling is enabled, complete traces are linked by {@code DownsampleCompleteTraces}
+ * instead of {@code LinkCompleteTraces}, which also drops the spans of uninteresting traces.
+ *
+ * <p>When the storage has a cold tier, old compacted traces are moved to it at a fixed delay.
+ *
+ * <p>When there are multiple zipkin servers, a {@link SchedulerLease} can elect only one of them
+ * to invoke procedures.
+ */
+final class VoltDBScheduledTasks implements SchedulingConfigurer, Closeable {
   final Logger logger = Logger.getLogger(VoltDBScheduledTasks.class.getName());
   final VoltDBStorage storage;
-  int maxPerPartition = 250;
+  final SchedulerMetrics metrics;
+  final int minAgeSeconds, maxAgeSeconds;
+  final int maxPerPartition;
+  final long backlogIntervalMillis, coldTierIntervalMillis;
+  final boolean coldTierEnabled;
+  @Nullable final ZipkinVoltDBStorageProperties.Downsampling downsampling;
+  final AdaptiveSchedule completePendingTracesSchedule, linkCompleteTracesSchedule,
+      compactTracesSchedule;
+  @Nullable final SchedulerLease lease;
 
-  VoltDBScheduledTasks(VoltDBStorage storage) {
+  VoltDBScheduledTasks(VoltDBStorage storage, ZipkinVoltDBStorageProperties.Scheduling scheduling,
+      ZipkinVoltDBStorageProperties.Downsampling downsampling, SchedulerMetrics metrics,
+      boolean coldTierEnabled) {
     this.storage = storage;
+    this.metrics = metrics;
+    this.maxPerPartition = scheduling.getMaxPerPartition();
+    this.backlogIntervalMillis = scheduling.getBacklogIntervalMillis();
+    this.coldTierIntervalMillis = scheduling.getColdTierIntervalMillis();
+    this.coldTierEnabled = coldTierEnabled;
+    this.downsampling = downsampling.isEnabled() ? checkDownsampling(downsampling) : null;
+    this.minAgeSeconds = scheduling.getMinAgeSeconds();
+    this.maxAgeSeconds = scheduling.getMaxAgeSeconds();
+    this.completePendingTracesSchedule = new AdaptiveSchedule(scheduling);
+    this.linkCompleteTracesSchedule = new AdaptiveSchedule(scheduling);
+    this.compactTracesSchedule = new AdaptiveSchedule(scheduling);
+    this.lease = scheduling.isLeaseEnabled()
+        ? new SchedulerLease(scheduling.getLeaseTimeoutMillis())
+        : null;
+  }
+
+  /** Fails on settings that would abort every pass of {@code DownsampleCompleteTraces}. */
+  static ZipkinVoltDBStorageProperties.Downsampling checkDownsampling(
+      ZipkinVoltDBStorageProperties.Downsampling downsampling) {
+    if (downsampling.getRate() < 0.0) throw new IllegalArgumentException("downsampling.rate < 0");
+    if (downsampling.getKeepDurationMillis() < 0L) {
+      throw new IllegalArgumentException("downsampling.keepDurationMillis < 0");
+    }
+    if (downsampling.getKeepServices().size() > MAX_DOWNSAMPLE_KEEP_SERVICES) {
+      throw new IllegalArgumentException(
+          "downsampling.keepServices > " + MAX_DOWNSAMPLE_KEEP_SERVICES);
+    }
+    return downsampling;
   }
 
-  @Scheduled(fixedRate = 250) // 4 times a second * maxPerPartition * partition count
-  public void completePendingTraces() throws Exception {
+  @Override public void configureTasks(ScheduledTaskRegistrar registrar) {
+    if (lease != null) registrar.addFixedDelayTask(this::renewLease, lease.renewIntervalMillis());
+    registrar.addTriggerTask(this::completePendingTraces, completePendingTracesSchedule);
+    registrar.addTriggerTask(this::linkCompleteTraces, linkCompleteTracesSchedule);
+    registrar.addTriggerTask(this::compactTraces, compactTracesSchedule);
+    registrar.addFixedDelayTask(this::getBacklog, backlogIntervalMillis);
+    if (coldTierEnabled) registrar.addFixedDelayTask(this::spillColdTraces, coldTierIntervalMillis);
+  }
+
+  void renewLease() {
+    Client client = tryClient();
+    if (client != null) lease.renew(client);
+  }
+
+  void completePendingTraces() {
+    invokeAllPartitions(completePendingTracesSchedule, PROCEDURE_COMPLETE_PENDING_TRACES,
+        minAgeSeconds, maxAgeSeconds);
+  }
+
+  void linkCompleteTraces() {
+    if (downsampling == null) {
+      invokeAllPartitions(linkCompleteTracesSchedule, PROCEDURE_LINK_COMPLETE_TRACES);
+      return;
+    }
+    invokeAllPartitions(linkCompleteTracesSchedule, PROCEDURE_DOWNSAMPLE_COMPLETE_TRACES,
+        downsampling.getRate(), MILLISECONDS.toMicros(downsampling.getKeepDurationMillis()),
+        downsampling.getKeepServices().toArray(new String[0]));
+  }
+
+  void compactTraces() {
+    invokeAllPartitions(compactTracesSchedule, PROCEDURE_COMPACT_TRACES);
+  }
+
+  /** Moves compacted traces past their minimum age from VoltDB to the cold tier. */
+  void spillColdTraces() {
+    if (lease != null && !lease.isHeld()) return; // another server is invoking procedures
+
+    try {
+      int count = storage.spillColdTraces(maxPerPartition);
+      if (count > 0) logger.log(Level.FINE, "moved {0} traces to the cold tier", count);
+    } catch (IOException | RuntimeException e) {
+      logger.log(Level.WARNING, "failed to move traces to the cold tier: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Records the backlog from the server holding the lease, so that servers don't repeat the same
+   * scans. Other servers report none, so that summing a metric across servers counts it once.
+   */
+  void getBacklog() {
+    if (lease != null && !lease.isHeld()) {
+      metrics.clearBacklog();
+      return;
+    }
+
     Client client = tryClient();
     if (client == null) return;
 
-    int minAgeSeconds = 3, maxAgeSeconds = 30;
-    client.callAllPartitionProcedure(new LoggingCallback(PROCEDURE_COMPLETE_PENDING_TRACES),
-        PROCEDURE_COMPLETE_PENDING_TRACES, maxPerPartition, minAgeSeconds, maxAgeSeconds);
+    try {
+      client.callAllPartitionProcedure(this::onBacklog,
+          Schema.procedure(PROCEDURE_GET_BACKLOG, storage.binaryIds()));
+    } catch (Exception | Error e) {
+      logger.log(Level.WARNING, PROCEDURE_GET_BACKLOG + " failed to invoke: " + e.getMessage(), e);
+    }
+  }
+
+  void onBacklog(ClientResponseWithPartitionKey[] responses) {
+    for (ClientResponseWithPartitionKey resp : responses) {
+      ClientResponse response = resp.response;
+      if (response.getStatus() != ClientResponse.SUCCESS) continue; // leave the last value
+
+      VoltTable table = response.getResults()[0];
+      if (!table.advanceRow()) continue;
+      metrics.recordBacklog(resp.partitionKey, table.getLong(0), table.getLong(1),
+          table.getLong(2));
+    }
   }
 
-  @Scheduled(fixedRate = 250) // 4 times a second * maxPerPartition * partition count
-  public void linkCompleteTraces() throws Exception {
+  /**
+   * Invokes the procedure with the current batch size followed by any other parameters. Metrics
+   * are named the same regardless of the variant invoked for binary IDs.
+   */
+  void invokeAllPartitions(AdaptiveSchedule schedule, String procedure, Object... parameters) {
+    if (lease != null && !lease.isHeld()) return; // another server is invoking procedures
+
     Client client = tryClient();
     if (client == null) return;
 
-    client.callAllPartitionProcedure(new LoggingCallback(PROCEDURE_LINK_COMPLETE_TRACES),
-        PROCEDURE_LINK_COMPLETE_TRACES, maxPerPartition);
+    int maxPerPartition = schedule.tryStart();
+    if (maxPerPartition == 0) return; // the last invocation is still outstanding
+
+    Object[] args = new Object[parameters.length + 1];
+    args[0] = maxPerPartition;
+    System.arraycopy(parameters, 0, args, 1, parameters.length);
+    try {
+      if (!client.callAllPartitionProcedure(
+          new LoggingCallback(procedure, schedule, System.nanoTime()),
+          Schema.procedure(procedure, storage.binaryIds()), args)) {
+        schedule.onError();
+      }
+    } catch (Exception | Error e) {
+      schedule.onError();
+      logger.log(Level.WARNING, procedure + " failed to invoke: " + e.getMessage(), e);
+    }
+  }
+
+  @Override public void close() {
+    Client client = tryClient();
+    if (lease != null && client != null) lease.release(client);
   }
 
   // the client might fail for reasons such as not started yet or shutting down.
@@ -66,13 +219,20 @@ final class VoltDBScheduledTasks {
 
   final class LoggingCallback implements AllPartitionProcedureCallback {
     final String procedure;
+    final AdaptiveSchedule schedule;
+    final long startNanos;
 
-    LoggingCallback(String procedure) {
+    LoggingCallback(String procedure, AdaptiveSchedule schedule, long startNanos) {
       this.procedure = procedure;
+      this.schedule = schedule;
+      this.startNanos = startNanos;
     }
 
     @Override public void clientCallback(ClientResponseWithPartitionKey[] responses) {
-      boolean shouldLogFine = logger.isLoggable(Level.FINE);
+      long latencyNanos = System.nanoTime() - startNanos, latencyMillis = latencyNanos / 1_000_000L;
+      metrics.recordLatency(procedure, latencyNanos);
+      boolean shouldLogFine = logger.isLoggable(Level.FINE), failed = false;
+      int maxRows = 0;
 
       for (ClientResponseWithPartitionKey resp : responses) {
         ClientResponse response = resp.response;
@@ -82,16 +242,30 @@ final class VoltDBScheduledTasks {
               procedure, resp.partitionKey, response.getStatusString(),
               response.getAppStatusString()
           });
+          failed = true;
+          continue;
         }
 
         VoltTable table = response.getResults()[0];
         int traceCount = table.getRowCount();
+        maxRows = Math.max(maxRows, traceCount);
+        metrics.recordTraces(procedure, resp.partitionKey, traceCount);
         if (!shouldLogFine || traceCount == 0) continue;
 
         logger.log(Level.FINE, "{0} on partition {1} processed {2} trace IDs",
             new Object[] {procedure, resp.partitionKey, traceCount}
         );
       }
+
+      if (failed) {
+        schedule.onError();
+      } else {
+        schedule.onResult(maxRows, latencyMillis);
+      }
+      if (shouldLogFine) {
+        logger.log(Level.FINE, "{0} took {1}ms, next {2}",
+            new Object[] {procedure, latencyMillis, schedule});
+      }
     }
   }
 }
@@ -13,6 +13,13 @@
  */
 package zipkin2.autoconfigure.storage.voltdb;
 
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
@@ -33,16 +40,73 @@ class ZipkinVoltDBStorageAutoConfiguration {
 
   @Bean
   @ConditionalOnMissingBean
-  StorageComponent storage(ZipkinVoltDBStorageProperties properties) {
-    return properties.toBuilder().build();
+  StorageComponent storage(ZipkinVoltDBStorageProperties properties,
+      @Value("${zipkin.storage.strict-trace-id:true}") boolean strictTraceId,
+      ObjectProvider<MeterRegistry> registry) {
+    VoltDBStorage.Builder builder = properties.toBuilder().strictTraceId(strictTraceId);
+    MeterRegistry meterRegistry = registry.getIfAvailable();
+    boolean metricsEnabled = properties.isProcedureMetricsEnabled() && meterRegistry != null;
+    if (metricsEnabled) {
+      builder.procedureListener(new MicrometerProcedureListener(meterRegistry));
+      builder.ingestListener(
+          new MicrometerIngestListener(meterRegistry, MicrometerIngestListener.MAX_SERVICES));
+    }
+    VoltDBStorage result = builder.build();
+    if (metricsEnabled) {
+      registerLaneGauge(meterRegistry, result, "write");
+      registerLaneGauge(meterRegistry, result, "read");
+      if (result.ingestDecisionWindowMillis() > 0L) {
+        registerIngestWindowGauge(meterRegistry, result);
+      }
+    }
+    return result;
+  }
+
+  static void registerIngestWindowGauge(MeterRegistry registry, VoltDBStorage storage) {
+    Gauge.builder(SchedulerMetrics.PREFIX + "ingest.decision_window", storage,
+        s -> s.ingestDecisionWindowMillis() / 1000.0)
+        .description("Seconds the ingest rate limit last remembered trace decisions for")
+        .register(registry);
+  }
+
+  static void registerLaneGauge(MeterRegistry registry, VoltDBStorage storage, String lane) {
+    Gauge.builder(SchedulerMetrics.PREFIX + "lane.outstanding", storage,
+        "read".equals(lane) ? VoltDBStorage::outstandingReads : VoltDBStorage::outstandingWrites)
+        .description("Procedure calls sent through a lane that haven't yet completed")
+        .tag("lane", lane)
+        .register(registry);
   }
 
   @Bean
   @ConditionalOnProperty(
       value = "zipkin.storage.voltdb.scheduling.enabled", havingValue = "true", matchIfMissing = true
   )
-  VoltDBScheduledTasks scheduledTasks(VoltDBStorage storage) {
-    return new VoltDBScheduledTasks(storage);
+  VoltDBScheduledTasks scheduledTasks(VoltDBStorage storage,
+      ZipkinVoltDBStorageProperties properties, ObjectProvider<MeterRegistry> registry) {
+    // zipkin-server has a registry. Otherwise, metrics are recorded nowhere.
+    SchedulerMetrics metrics =
+        new SchedulerMetrics(registry.getIfAvailable(CompositeMeterRegistry::new));
+    return new VoltDBScheduledTasks(storage, properties.getScheduling(),
+        properties.getDownsampling(), metrics, properties.getColdTierDirectory() != null);
   }
 
+  @Configuration
+  @ConditionalOnClass(Endpoint.class)
+  static class ActuatorConfiguration {
+    @Bean
+    @ConditionalOnMissingBean
+    VoltDBClientStatsEndpoint voltDBClientStatsEndpoint(StorageComponent storage) {
+      return new VoltDBClientStatsEndpoint((VoltDBStorage) storage);
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    VoltDBHealthIndicator voltDBHealthIndicator(StorageComponent storage,
+        ZipkinVoltDBStorageProperties properties, ObjectProvider<VoltDBScheduledTasks> tasks) {
+      VoltDBScheduledTasks scheduledTasks = tasks.getIfAvailable();
+      return new VoltDBHealthIndicator((VoltDBStorage) storage,
+          scheduledTasks != null ? scheduledTasks.metrics : null,
+          properties.getScheduling().getMaxAgeSeconds());
+    }
+  }
 }
@@ -14,6 +14,10 @@
 package zipkin2.autoconfigure.storage.voltdb;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import zipkin2.storage.voltdb.VoltDBStorage;
 
@@ -25,6 +29,25 @@ class ZipkinVoltDBStorageProperties implements Serializable { // for Spark jobs
 
   private String host = "localhost";
   private boolean ensureSchema = true;
+  private boolean binaryIds;
+  private boolean procedureMetricsEnabled = true;
+  private long slowProcedureThresholdMillis = 1000;
+  private int clientPoolSize = 1;
+  private int maxOutstandingTxns = 3000;
+  private int writeTimeoutMillis = 120_000;
+  private int readClientPoolSize = 1;
+  private int readMaxOutstandingTxns = 1000;
+  private int readTimeoutMillis = 30_000;
+  private int maxSpansPerTrace = 0;
+  private long ingestSpansPerSecond = 0;
+  private Map<String, Long> serviceIngestSpansPerSecond = new LinkedHashMap<>();
+  private Map<String, Integer> procedureTimeoutMillis = new LinkedHashMap<>();
+  private String coldTierDirectory;
+  private long coldTierMinAgeMillis = 86_400_000L;
+  private long coldTierSegmentBytes = 64 * 1024 * 1024;
+  private long coldTierRetentionMillis = 7 * 86_400_000L;
+  private Scheduling scheduling = new Scheduling();
+  private Downsampling downsampling = new Downsampling();
 
   public String getHost() {
     return host;
@@ -42,7 +65,342 @@ class ZipkinVoltDBStorageProperties implements Serializable { // for Spark jobs
     this.ensureSchema = ensureSchema;
   }
 
+  public boolean isBinaryIds() {
+    return binaryIds;
+  }
+
+  public void setBinaryIds(boolean binaryIds) {
+    this.binaryIds = binaryIds;
+  }
+
+  public boolean isProcedureMetricsEnabled() {
+    return procedureMetricsEnabled;
+  }
+
+  public void setProcedureMetricsEnabled(boolean procedureMetricsEnabled) {
+    this.procedureMetricsEnabled = procedureMetricsEnabled;
+  }
+
+  public long getSlowProcedureThresholdMillis() {
+    return slowProcedureThresholdMillis;
+  }
+
+  public void setSlowProcedureThresholdMillis(long slowProcedureThresholdMillis) {
+    this.slowProcedureThresholdMillis = slowProcedureThresholdMillis;
+  }
+
+  public int getClientPoolSize() {
+    return clientPoolSize;
+  }
+
+  public void setClientPoolSize(int clientPoolSize) {
+    this.clientPoolSize = clientPoolSize;
+  }
+
+  public int getMaxOutstandingTxns() {
+    return maxOutstandingTxns;
+  }
+
+  public void setMaxOutstandingTxns(int maxOutstandingTxns) {
+    this.maxOutstandingTxns = maxOutstandingTxns;
+  }
+
+  public int getWriteTimeoutMillis() {
+    return writeTimeoutMillis;
+  }
+
+  public void setWriteTimeoutMillis(int writeTimeoutMillis) {
+    this.writeTimeoutMillis = writeTimeoutMillis;
+  }
+
+  public int getReadClientPoolSize() {
+    return readClientPoolSize;
+  }
+
+  public void setReadClientPoolSize(int readClientPoolSize) {
+    this.readClientPoolSize = readClientPoolSize;
+  }
+
+  public int getReadMaxOutstandingTxns() {
+    return readMaxOutstandingTxns;
+  }
+
+  public void setReadMaxOutstandingTxns(int readMaxOutstandingTxns) {
+    this.readMaxOutstandingTxns = readMaxOutstandingTxns;
+  }
+
+  public int getReadTimeoutMillis() {
+    return readTimeoutMillis;
+  }
+
+  public void setReadTimeoutMillis(int readTimeoutMillis) {
+    this.readTimeoutMillis = readTimeoutMillis;
+  }
+
+  public int getMaxSpansPerTrace() {
+    return maxSpansPerTrace;
+  }
+
+  public void setMaxSpansPerTrace(int maxSpansPerTrace) {
+    this.maxSpansPerTrace = maxSpansPerTrace;
+  }
+
+  public long getIngestSpansPerSecond() {
+    return ingestSpansPerSecond;
+  }
+
+  public void setIngestSpansPerSecond(long ingestSpansPerSecond) {
+    this.ingestSpansPerSecond = ingestSpansPerSecond;
+  }
+
+  /** Overrides the ingest rate limit by service name, ex. "batch-job" */
+  public Map<String, Long> getServiceIngestSpansPerSecond() {
+    return serviceIngestSpansPerSecond;
+  }
+
+  public void setServiceIngestSpansPerSecond(Map<String, Long> serviceIngestSpansPerSecond) {
+    this.serviceIngestSpansPerSecond = serviceIngestSpansPerSecond;
+  }
+
+  /** Overrides the read or write timeout by procedure name, ex. "GetDependencyLinks" */
+  public Map<String, Integer> getProcedureTimeoutMillis() {
+    return procedureTimeoutMillis;
+  }
+
+  public void setProcedureTimeoutMillis(Map<String, Integer> procedureTimeoutMillis) {
+    this.procedureTimeoutMillis = procedureTimeoutMillis;
+  }
+
+  public String getColdTierDirectory() {
+    return coldTierDirectory;
+  }
+
+  public void setColdTierDirectory(String coldTierDirectory) {
+    this.coldTierDirectory = "".equals(coldTierDirectory) ? null : coldTierDirectory;
+  }
+
+  public long getColdTierMinAgeMillis() {
+    return coldTierMinAgeMillis;
+  }
+
+  public void setColdTierMinAgeMillis(long coldTierMinAgeMillis) {
+    this.coldTierMinAgeMillis = coldTierMinAgeMillis;
+  }
+
+  public long getColdTierSegmentBytes() {
+    return coldTierSegmentBytes;
+  }
+
+  public void setColdTierSegmentBytes(long coldTierSegmentBytes) {
+    this.coldTierSegmentBytes = coldTierSegmentBytes;
+  }
+
+  public long getColdTierRetentionMillis() {
+    return coldTierRetentionMillis;
+  }
+
+  public void setColdTierRetentionMillis(long coldTierRetentionMillis) {
+    this.coldTierRetentionMillis = coldTierRetentionMillis;
+  }
+
+  public Scheduling getScheduling() {
+    return scheduling;
+  }
+
+  public void setScheduling(Scheduling scheduling) {
+    this.scheduling = scheduling;
+  }
+
+  public Downsampling getDownsampling() {
+    return downsampling;
+  }
+
+  public void setDownsampling(Downsampling downsampling) {
+    this.downsampling = downsampling;
+  }
+
   public Builder toBuilder() {
-    return VoltDBStorage.newBuilder().host(host).ensureSchema(ensureSchema);
+    Builder result = VoltDBStorage.newBuilder();
+    for (Map.Entry<String, Integer> entry : procedureTimeoutMillis.entrySet()) {
+      result.procedureTimeoutMillis(entry.getKey(), entry.getValue());
+    }
+    for (Map.Entry<String, Long> entry : serviceIngestSpansPerSecond.entrySet()) {
+      result.ingestSpansPerSecond(entry.getKey(), entry.getValue());
+    }
+    return result
+        .host(host)
+        .ensureSchema(ensureSchema)
+        .binaryIds(binaryIds)
+        .slowProcedureThresholdMillis(slowProcedureThresholdMillis)
+        .clientPoolSize(clientPoolSize)
+        .maxOutstandingTxns(maxOutstandingTxns)
+        .writeTimeoutMillis(writeTimeoutMillis)
+        .readClientPoolSize(readClientPoolSize)
+        .readMaxOutstandingTxns(readMaxOutstandingTxns)
+        .readTimeoutMillis(readTimeoutMillis)
+        .maxSpansPerTrace(maxSpansPerTrace)
+        .ingestSpansPerSecond(ingestSpansPerSecond)
+        .coldTierDirectory(coldTierDirectory)
+        .coldTierMinAgeMillis(coldTierMinAgeMillis)
+        .coldTierSegmentBytes(coldTierSegmentBytes)
+        .coldTierRetentionMillis(coldTierRetentionMillis);
+  }
+
+  /** Settings for the background procedures that complete and link traces. */
+  public static class Scheduling implements Serializable {
+    private static final long serialVersionUID = 0L;
+
+    private boolean enabled = true;
+    private int minAgeSeconds = 3;
+    private int maxAgeSeconds = 30;
+    private int minPerPartition = 10;
+    private int maxPerPartition = 1000;
+    private long minIntervalMillis = 100;
+    private long maxIntervalMillis = 2000;
+    private long maxLatencyMillis = 200;
+    private boolean leaseEnabled = false;
+    private long leaseTimeoutMillis = 10_000;
+    private long backlogIntervalMillis = 10_000;
+    private long coldTierIntervalMillis = 1_000;
+
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public int getMinAgeSeconds() {
+      return minAgeSeconds;
+    }
+
+    public void setMinAgeSeconds(int minAgeSeconds) {
+      this.minAgeSeconds = minAgeSeconds;
+    }
+
+    public int getMaxAgeSeconds() {
+      return maxAgeSeconds;
+    }
+
+    public void setMaxAgeSeconds(int maxAgeSeconds) {
+      this.maxAgeSeconds = maxAgeSeconds;
+    }
+
+    public int getMinPerPartition() {
+      return minPerPartition;
+    }
+
+    public void setMinPerPartition(int minPerPartition) {
+      this.minPerPartition = minPerPartition;
+    }
+
+    public int getMaxPerPartition() {
+      return maxPerPartition;
+    }
+
+    public void setMaxPerPartition(int maxPerPartition) {
+      this.maxPerPartition = maxPerPartition;
+    }
+
+    public long getMinIntervalMillis() {
+      return minIntervalMillis;
+    }
+
+    public void setMinIntervalMillis(long minIntervalMillis) {
+      this.minIntervalMillis = minIntervalMillis;
+    }
+
+    public long getMaxIntervalMillis() {
+      return maxIntervalMillis;
+    }
+
+    public void setMaxIntervalMillis(long maxIntervalMillis) {
+      this.maxIntervalMillis = maxIntervalMillis;
+    }
+
+    public long getMaxLatencyMillis() {
+      return maxLatencyMillis;
+    }
+
+    public void setMaxLatencyMillis(long maxLatencyMillis) {
+      this.maxLatencyMillis = maxLatencyMillis;
+    }
+
+    public boolean isLeaseEnabled() {
+      return leaseEnabled;
+    }
+
+    public void setLeaseEnabled(boolean leaseEnabled) {
+      this.leaseEnabled = leaseEnabled;
+    }
+
+    public long getLeaseTimeoutMillis() {
+      return leaseTimeoutMillis;
+    }
+
+    public void setLeaseTimeoutMillis(long leaseTimeoutMillis) {
+      this.leaseTimeoutMillis = leaseTimeoutMillis;
+    }
+
+    public long getBacklogIntervalMillis() {
+      return backlogIntervalMillis;
+    }
+
+    public void setBacklogIntervalMillis(long backlogIntervalMillis) {
+      this.backlogIntervalMillis = backlogIntervalMillis;
+    }
+
+    public long getColdTierIntervalMillis() {
+      return coldTierIntervalMillis;
+    }
+
+    public void setColdTierIntervalMillis(long coldTierIntervalMillis) {
+      this.coldTierIntervalMillis = coldTierIntervalMillis;
+    }
+  }
+
+  /**
+   * Settings for dropping spans of uninteresting traces once they are linked. Traces with an
+   * error are always kept.
+   */
+  public static class Downsampling implements Serializable {
+    private static final long serialVersionUID = 0L;
+
+    private double rate = 1.0;
+    private long keepDurationMillis;
+    private List<String> keepServices = new ArrayList<>();
+
+    /** Returns true unless all traces are kept. */
+    public boolean isEnabled() {
+      return rate < 1.0;
+    }
+
+    /** Fraction of traces kept regardless of whether they are interesting. */
+    public double getRate() {
+      return rate;
+    }
+
+    public void setRate(double rate) {
+      this.rate = rate;
+    }
+
+    /** Traces with a span at least this long are kept. Zero disables. */
+    public long getKeepDurationMillis() {
+      return keepDurationMillis;
+    }
+
+    public void setKeepDurationMillis(long keepDurationMillis) {
+      this.keepDurationMillis = keepDurationMillis;
+    }
+
+    /** Traces with a span from any of these services are kept. */
+    public List<String> getKeepServices() {
+      return keepServices;
+    }
+
+    public void setKeepServices(List<String> keepServices) {
+      this.keepServices = keepServices;
+    }
   }
 }
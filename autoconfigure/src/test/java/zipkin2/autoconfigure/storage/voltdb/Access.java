@@ -13,6 +13,7 @@
  */
 package zipkin2.autoconfigure.storage.voltdb;
 
+import java.util.List;
 import org.springframework.boot.autoconfigure.context.PropertyPlaceholderAutoConfiguration;
 import org.springframework.context.annotation.AnnotationConfigApplicationContext;
 
@@ -23,4 +24,13 @@ public final class Access {
     context.register(
       PropertyPlaceholderAutoConfiguration.class, ZipkinVoltDBStorageAutoConfiguration.class);
   }
+
+  public static boolean isDownsamplingEnabled(AnnotationConfigApplicationContext context) {
+    return context.getBean(ZipkinVoltDBStorageProperties.class).getDownsampling().isEnabled();
+  }
+
+  public static List<String> downsamplingKeepServices(AnnotationConfigApplicationContext context) {
+    return context.getBean(ZipkinVoltDBStorageProperties.class).getDownsampling()
+        .getKeepServices();
+  }
 }
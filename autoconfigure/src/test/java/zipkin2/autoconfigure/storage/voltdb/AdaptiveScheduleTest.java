@@ -0,0 +1,113 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.autoconfigure.storage.voltdb;
+
+import java.util.Date;
+import org.junit.Test;
+import org.springframework.scheduling.support.SimpleTriggerContext;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AdaptiveScheduleTest {
+  AdaptiveSchedule schedule = new AdaptiveSchedule(10, 1000, 100, 2000, 200);
+
+  @Test public void defaults() {
+    assertThat(new AdaptiveSchedule(new ZipkinVoltDBStorageProperties.Scheduling()))
+        .hasToString("AdaptiveSchedule{perPartition=10, intervalMillis=100}");
+  }
+
+  @Test public void tryStart_onlyOneOutstanding() {
+    assertThat(schedule.tryStart()).isEqualTo(10);
+    assertThat(schedule.tryStart()).isZero();
+
+    schedule.onResult(0, 1);
+
+    assertThat(schedule.tryStart()).isEqualTo(10);
+    assertThat(schedule.tryStart()).isZero();
+
+    schedule.onError();
+
+    assertThat(schedule.tryStart()).isEqualTo(10);
+  }
+
+  @Test public void backlog_growsBatchUpToMax() {
+    for (int i = 0; i < 10; i++) {
+      schedule.onResult(schedule.tryStart(), 10);
+    }
+
+    assertThat(schedule.perPartition()).isEqualTo(1000);
+    assertThat(schedule.intervalMillis()).isEqualTo(100);
+  }
+
+  @Test public void backlog_doesntGrowBatchWithoutLatencyHeadroom() {
+    schedule.onResult(schedule.tryStart(), 150);
+
+    assertThat(schedule.perPartition()).isEqualTo(10);
+  }
+
+  @Test public void backlog_shortensIntervalDownToMin() {
+    idle(10);
+    assertThat(schedule.intervalMillis()).isEqualTo(2000);
+
+    for (int i = 0; i < 10; i++) {
+      schedule.onResult(schedule.tryStart(), 10);
+    }
+
+    assertThat(schedule.intervalMillis()).isEqualTo(100);
+  }
+
+  @Test public void slow_shrinksBatchDownToMin() {
+    for (int i = 0; i < 10; i++) {
+      schedule.onResult(schedule.tryStart(), 10);
+    }
+
+    schedule.onResult(schedule.tryStart(), 201);
+    assertThat(schedule.perPartition()).isEqualTo(500);
+
+    for (int i = 0; i < 10; i++) {
+      schedule.onResult(schedule.tryStart(), 201);
+    }
+    assertThat(schedule.perPartition()).isEqualTo(10);
+  }
+
+  @Test public void idle_backsOffIntervalUpToMax() {
+    idle(1);
+    assertThat(schedule.intervalMillis()).isEqualTo(200);
+
+    idle(10);
+    assertThat(schedule.intervalMillis()).isEqualTo(2000);
+    assertThat(schedule.perPartition()).isEqualTo(10);
+  }
+
+  @Test public void partialBatch_keepsSchedule() {
+    schedule.onResult(schedule.tryStart() - 1, 10);
+
+    assertThat(schedule)
+        .hasToString("AdaptiveSchedule{perPartition=10, intervalMillis=100}");
+  }
+
+  @Test public void nextExecutionTime_afterLastCompletion() {
+    SimpleTriggerContext context = new SimpleTriggerContext();
+    context.update(new Date(1000L), new Date(1000L), new Date(1010L));
+
+    assertThat(schedule.nextExecutionTime(context)).isEqualTo(new Date(1110L));
+  }
+
+  void idle(int times) {
+    for (int i = 0; i < times; i++) {
+      schedule.tryStart();
+      schedule.onResult(0, 1);
+    }
+  }
+}
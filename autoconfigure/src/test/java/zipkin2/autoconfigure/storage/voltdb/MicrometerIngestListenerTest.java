@@ -0,0 +1,49 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.autoconfigure.storage.voltdb;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MicrometerIngestListenerTest {
+  SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  MicrometerIngestListener listener = new MicrometerIngestListener(registry, 2);
+
+  @Test public void tagsByService() {
+    listener.onAdmitted("frontend");
+    listener.onDropped(null);
+
+    assertThat(count("ingest.admitted", "frontend")).isEqualTo(1.0);
+    assertThat(count("ingest.dropped", "unknown")).isEqualTo(1.0);
+  }
+
+  @Test public void servicesOverMaxTaggedOther() {
+    listener.onAdmitted("frontend");
+    listener.onDropped("backend");
+    listener.onAdmitted("db");
+    listener.onDropped("cache");
+    listener.onDropped("frontend");
+
+    assertThat(registry.find("zipkin_voltdb.ingest.admitted").counters()).hasSize(2);
+    assertThat(count("ingest.admitted", "other")).isEqualTo(1.0);
+    assertThat(count("ingest.dropped", "other")).isEqualTo(1.0);
+    assertThat(count("ingest.dropped", "frontend")).isEqualTo(1.0);
+  }
+
+  double count(String name, String service) {
+    return registry.get("zipkin_voltdb." + name).tag("service", service).counter().count();
+  }
+}
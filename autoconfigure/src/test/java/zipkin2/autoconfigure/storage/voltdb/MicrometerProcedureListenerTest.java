@@ -0,0 +1,116 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.autoconfigure.storage.voltdb;
+
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+import org.voltdb.ClientResponseImpl;
+import org.voltdb.VoltTable;
+import org.voltdb.client.ClientResponse;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin2.storage.voltdb.Schema.APP_STATUS_SPAN_DROPPED;
+import static zipkin2.storage.voltdb.Schema.APP_STATUS_TRACE_CAPPED;
+
+public class MicrometerProcedureListenerTest {
+  static final Object[] NO_PARAMETERS = new Object[0];
+
+  SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  MicrometerProcedureListener listener = new MicrometerProcedureListener(registry);
+
+  @Test public void splitsLatency() {
+    listener.onResponse("GetSpansJson", NO_PARAMETERS,
+        response(ClientResponse.SUCCESS, 10, 3), 2_000_000L);
+
+    assertThat(timer("queue", "GetSpansJson", "success").totalTime(MILLISECONDS))
+        .isEqualTo(7.0);
+    assertThat(timer("round_trip", "GetSpansJson", "success").totalTime(MILLISECONDS))
+        .isEqualTo(3.0);
+    assertThat(timer("convert", "GetSpansJson", "success").totalTime(MILLISECONDS))
+        .isEqualTo(2.0);
+  }
+
+  @Test public void tagsOutcome() {
+    listener.onResponse("StoreSpansJson", NO_PARAMETERS,
+        response(ClientResponse.USER_ABORT, 1, 1), 0L);
+
+    assertThat(timer("round_trip", "StoreSpansJson", "user_abort").count()).isEqualTo(1L);
+    assertThat(timer("convert", "StoreSpansJson", "user_abort").count()).isZero();
+  }
+
+  @Test public void queueTimeNeverNegative() {
+    // cluster time is rounded to millis, so can exceed client time
+    listener.onResponse("GetSpanJson", NO_PARAMETERS,
+        response(ClientResponse.SUCCESS, 1, 2), 0L);
+
+    assertThat(timer("queue", "GetSpanJson", "success").totalTime(MILLISECONDS)).isZero();
+  }
+
+  @Test public void countsTimeouts() {
+    listener.onResponse("GetSpansJson", NO_PARAMETERS,
+        response(ClientResponse.CONNECTION_TIMEOUT, 30_000, 0), 0L);
+
+    assertThat(registry.get("zipkin_voltdb.procedure.timeouts")
+        .tags("procedure", "GetSpansJson").counter().count()).isEqualTo(1.0);
+  }
+
+  @Test public void countsCanceled() {
+    ClientResponse response = response(ClientResponse.SUCCESS, 10, 3);
+    listener.onResponse("GetSpansJson", NO_PARAMETERS, response, 0L);
+    listener.onCanceled("GetSpansJson", NO_PARAMETERS, response);
+
+    assertThat(registry.get("zipkin_voltdb.procedure.canceled")
+        .tags("procedure", "GetSpansJson").counter().count()).isEqualTo(1.0);
+    assertThat(timer("convert", "GetSpansJson", "success").count()).isZero();
+  }
+
+  @Test public void countsCappedTracesAndDroppedSpans() {
+    listener.onResponse("StoreSpansJson", NO_PARAMETERS,
+        response(ClientResponse.SUCCESS, APP_STATUS_TRACE_CAPPED), 0L);
+    listener.onResponse("StoreSpansJson", NO_PARAMETERS,
+        response(ClientResponse.SUCCESS, APP_STATUS_SPAN_DROPPED), 0L);
+    listener.onResponse("StoreSpansJson", NO_PARAMETERS,
+        response(ClientResponse.SUCCESS, 1, 1), 0L);
+
+    assertThat(registry.get("zipkin_voltdb.traces.capped").counter().count()).isEqualTo(1.0);
+    assertThat(registry.get("zipkin_voltdb.spans.dropped").counter().count()).isEqualTo(2.0);
+  }
+
+  @Test public void outcome_boundedCardinality() {
+    assertThat(MicrometerProcedureListener.outcome(ClientResponse.TXN_RESTART))
+        .isEqualTo("unexpected_failure");
+  }
+
+  Timer timer(String name, String procedure, String outcome) {
+    return registry.get("zipkin_voltdb.procedure." + name)
+        .tags("procedure", procedure, "outcome", outcome).timer();
+  }
+
+  static ClientResponse response(byte status, long clientMillis, int clusterMillis) {
+    ClientResponseImpl response = new ClientResponseImpl(status, new VoltTable[0], null);
+    response.setClientRoundtrip(MILLISECONDS.toNanos(clientMillis));
+    response.setClusterRoundtrip(clusterMillis);
+    return response;
+  }
+
+  static ClientResponse response(byte status, byte appStatus) {
+    ClientResponseImpl response =
+        new ClientResponseImpl(status, appStatus, null, new VoltTable[0], null);
+    response.setClientRoundtrip(MILLISECONDS.toNanos(1));
+    response.setClusterRoundtrip(1);
+    return response;
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.autoconfigure.storage.voltdb;
+
+import org.junit.Test;
+import org.voltdb.ClientResponseImpl;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.types.TimestampType;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SchedulerLeaseTest {
+  SchedulerLease lease = new SchedulerLease("zipkin1", 10_000L);
+
+  @Test public void notHeldInitially() {
+    assertThat(lease.isHeld()).isFalse();
+  }
+
+  @Test public void renewIntervalMillis_thirdOfTimeout() {
+    assertThat(lease.renewIntervalMillis()).isEqualTo(3333L);
+  }
+
+  @Test public void heldWhenHolder() {
+    lease.requestNanos = System.nanoTime();
+    lease.clientCallback(holder("zipkin1"));
+
+    assertThat(lease.isHeld()).isTrue();
+  }
+
+  @Test public void notHeldWhenOtherHolder() {
+    lease.requestNanos = System.nanoTime();
+    lease.clientCallback(holder("zipkin1"));
+    lease.clientCallback(holder("zipkin2"));
+
+    assertThat(lease.isHeld()).isFalse();
+  }
+
+  @Test public void notHeldAfterTimeout() {
+    lease.requestNanos = System.nanoTime() - 10_000_000_000L;
+    lease.clientCallback(holder("zipkin1"));
+
+    assertThat(lease.isHeld()).isFalse();
+  }
+
+  @Test public void keepsLeaseOnFailureUntilTimeout() {
+    lease.requestNanos = System.nanoTime();
+    lease.clientCallback(holder("zipkin1"));
+    lease.clientCallback(
+        new ClientResponseImpl(ClientResponse.CONNECTION_LOST, new VoltTable[0], "lost"));
+
+    assertThat(lease.isHeld()).isTrue();
+  }
+
+  static ClientResponse holder(String holder) {
+    VoltTable table = new VoltTable(
+        new VoltTable.ColumnInfo("holder", VoltType.STRING),
+        new VoltTable.ColumnInfo("expire_ts", VoltType.TIMESTAMP));
+    table.addRow(holder, new TimestampType());
+    return new ClientResponseImpl(ClientResponse.SUCCESS, new VoltTable[] {table}, null);
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.autoconfigure.storage.voltdb;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SchedulerMetricsTest {
+  SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  SchedulerMetrics metrics = new SchedulerMetrics(registry);
+
+  @Test public void recordLatency() {
+    metrics.recordLatency("CompletePendingTraces", 2_000_000L);
+    metrics.recordLatency("CompletePendingTraces", 4_000_000L);
+
+    assertThat(registry.get("zipkin_voltdb.scheduled.latency")
+        .tag("procedure", "CompletePendingTraces").timer().totalTime(TimeUnit.MILLISECONDS))
+        .isEqualTo(6.0);
+  }
+
+  @Test public void recordTraces_perPartition() {
+    metrics.recordTraces("LinkCompleteTraces", 0, 3);
+    metrics.recordTraces("LinkCompleteTraces", 0, 2);
+    metrics.recordTraces("LinkCompleteTraces", 1, 1);
+
+    assertThat(registry.get("zipkin_voltdb.scheduled.traces")
+        .tags("procedure", "LinkCompleteTraces", "partition", "0").counter().count())
+        .isEqualTo(5.0);
+    assertThat(registry.get("zipkin_voltdb.scheduled.traces")
+        .tags("procedure", "LinkCompleteTraces", "partition", "1").counter().count())
+        .isEqualTo(1.0);
+  }
+
+  @Test public void recordBacklog_replacesLastValue() {
+    metrics.recordBacklog(0, 10, 1500, 3);
+    metrics.recordBacklog(0, 7, 500, 2);
+
+    assertThat(registry.get("zipkin_voltdb.backlog.pending").tag("partition", "0").gauge().value())
+        .isEqualTo(7.0);
+    assertThat(registry.get("zipkin_voltdb.backlog.oldest_pending_age").tag("partition", "0")
+        .gauge().value())
+        .isEqualTo(0.5);
+    assertThat(registry.get("zipkin_voltdb.backlog.unlinked").tag("partition", "0").gauge().value())
+        .isEqualTo(2.0);
+  }
+  @Test public void clearBacklog() {
+    metrics.recordBacklog(0, 10, 1500, 3);
+
+    metrics.clearBacklog();
+
+    assertThat(registry.get("zipkin_voltdb.backlog.pending").tag("partition", "0").gauge().value())
+        .isZero();
+    assertThat(metrics.backlogs.get("0").oldestPendingAgeSeconds).isZero();
+  }
+
+}
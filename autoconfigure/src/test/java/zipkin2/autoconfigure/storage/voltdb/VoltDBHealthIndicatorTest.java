@@ -0,0 +1,96 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.autoconfigure.storage.voltdb;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.Status;
+import zipkin2.CheckResult;
+import zipkin2.storage.voltdb.VoltDBStorage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class VoltDBHealthIndicatorTest {
+  // nothing listens on port 1
+  VoltDBStorage storage = VoltDBStorage.newBuilder().host("127.0.0.1:1").build();
+  SchedulerMetrics metrics = new SchedulerMetrics(new SimpleMeterRegistry());
+
+  @After public void close() {
+    storage.close();
+  }
+
+  VoltDBHealthIndicator indicator = new VoltDBHealthIndicator(storage, metrics, 30);
+
+  @Test public void downWhenUnreachable() {
+    assertThat(indicator.health().getStatus()).isEqualTo(Status.DOWN);
+  }
+
+  @Test public void up() {
+    metrics.recordBacklog(0, 10, 59_000, 0);
+    memoryRatios("voltdb1", 0.5);
+
+    Health health = indicator.health(CheckResult.OK);
+
+    assertThat(health.getStatus()).isEqualTo(Status.UP);
+    assertThat(health.getDetails()).doesNotContainKey("reason");
+  }
+
+  @Test public void degradedWhenCompletionFallsBehind() {
+    metrics.recordBacklog(0, 10, 61_000, 0);
+    memoryRatios("voltdb1", 0.5);
+
+    Health health = indicator.health(CheckResult.OK);
+
+    assertThat(health.getStatus()).isEqualTo(VoltDBHealthIndicator.DEGRADED);
+    assertThat(health.getDetails())
+        .containsEntry("oldestPendingAgeSeconds", 61.0)
+        .containsEntry("reason", "trace completion is falling behind");
+  }
+
+  @Test public void degradedWhenLowOnMemory() {
+    memoryRatios("voltdb1", 0.5, "voltdb2", 0.95);
+
+    Health health = indicator.health(CheckResult.OK);
+
+    assertThat(health.getStatus()).isEqualTo(VoltDBHealthIndicator.DEGRADED);
+    assertThat(health.getDetails()).containsEntry("reason", "voltdb2 is low on memory");
+  }
+
+  @Test public void degraded_reportsAllReasons() {
+    metrics.recordBacklog(0, 10, 61_000, 0);
+    memoryRatios("voltdb1", 0.95);
+
+    Health health = indicator.health(CheckResult.OK);
+
+    assertThat(health.getStatus()).isEqualTo(VoltDBHealthIndicator.DEGRADED);
+    assertThat(health.getDetails()).containsEntry("reason",
+        "trace completion is falling behind; voltdb1 is low on memory");
+  }
+
+  /** Caches memory statistics, so that they aren't read from the cluster. */
+  void memoryRatios(Object... hostsAndRatios) {
+    Map<String, Double> ratios = new LinkedHashMap<>();
+    for (int i = 0; i < hostsAndRatios.length; i += 2) {
+      ratios.put((String) hostsAndRatios[i], (Double) hostsAndRatios[i + 1]);
+    }
+    synchronized (indicator) {
+      indicator.memoryRatioByHost = ratios;
+      indicator.memoryTimestamp = System.currentTimeMillis();
+    }
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.autoconfigure.storage.voltdb;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static zipkin2.autoconfigure.storage.voltdb.VoltDBScheduledTasks.checkDownsampling;
+
+public class VoltDBScheduledTasksTest {
+  ZipkinVoltDBStorageProperties.Downsampling downsampling =
+      new ZipkinVoltDBStorageProperties.Downsampling();
+
+  @Test public void checkDownsampling_valid() {
+    downsampling.setRate(0.0);
+    downsampling.setKeepServices(asList("frontend"));
+
+    assertThat(checkDownsampling(downsampling)).isSameAs(downsampling);
+  }
+
+  @Test public void checkDownsampling_negativeRate() {
+    downsampling.setRate(-0.1);
+
+    assertThatThrownBy(() -> checkDownsampling(downsampling))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("downsampling.rate < 0");
+  }
+
+  @Test public void checkDownsampling_negativeKeepDuration() {
+    downsampling.setKeepDurationMillis(-1L);
+
+    assertThatThrownBy(() -> checkDownsampling(downsampling))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("downsampling.keepDurationMillis < 0");
+  }
+
+  @Test public void checkDownsampling_tooManyKeepServices() {
+    List<String> keepServices = new ArrayList<>();
+    for (int i = 0; i <= 200; i++) keepServices.add("service" + i);
+    downsampling.setKeepServices(keepServices);
+
+    assertThatThrownBy(() -> checkDownsampling(downsampling))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("downsampling.keepServices > 200");
+  }
+}
@@ -13,10 +13,12 @@
  */
 package zipkin2.storage.voltdb;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.After;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
 import org.springframework.beans.factory.NoSuchBeanDefinitionException;
 import org.springframework.boot.test.util.TestPropertyValues;
 import org.springframework.context.annotation.AnnotationConfigApplicationContext;
@@ -27,6 +29,7 @@ import static org.assertj.core.api.Assertions.assertThat;
 public class ZipkinVoltDBStorageAutoConfigurationTest {
 
   @Rule public ExpectedException thrown = ExpectedException.none();
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
 
   AnnotationConfigApplicationContext context;
 
@@ -70,4 +73,218 @@ public class ZipkinVoltDBStorageAutoConfigurationTest {
 
     assertThat(context.getBean(VoltDBStorage.class).host).isEqualTo("host1:21212");
   }
+
+  @Test public void procedureListener_noopWithoutMeterRegistry() {
+    context = new AnnotationConfigApplicationContext();
+    TestPropertyValues.of(
+        "zipkin.storage.type:voltdb",
+        "zipkin.storage.voltdb.scheduling.enabled:false",
+        "zipkin.storage.voltdb.slow-procedure-threshold-millis:0"
+    ).applyTo(context);
+    Access.registerVoltDB(context);
+    context.refresh();
+
+    assertThat(context.getBean(VoltDBStorage.class).procedureListener)
+        .isSameAs(ProcedureListener.NOOP);
+  }
+
+  @Test public void procedureListener_metricsWithMeterRegistry() {
+    context = new AnnotationConfigApplicationContext();
+    TestPropertyValues.of(
+        "zipkin.storage.type:voltdb",
+        "zipkin.storage.voltdb.scheduling.enabled:false",
+        "zipkin.storage.voltdb.slow-procedure-threshold-millis:0"
+    ).applyTo(context);
+    context.registerBean(SimpleMeterRegistry.class);
+    Access.registerVoltDB(context);
+    context.refresh();
+
+    assertThat(context.getBean(VoltDBStorage.class).procedureListener)
+        .isNotSameAs(ProcedureListener.NOOP);
+    assertThat(context.getBean(SimpleMeterRegistry.class)
+        .get("zipkin_voltdb.lane.outstanding").tag("lane", "read").gauge().value())
+        .isZero();
+  }
+
+  @Test public void procedureListener_disabled() {
+    context = new AnnotationConfigApplicationContext();
+    TestPropertyValues.of(
+        "zipkin.storage.type:voltdb",
+        "zipkin.storage.voltdb.scheduling.enabled:false",
+        "zipkin.storage.voltdb.procedure-metrics-enabled:false",
+        "zipkin.storage.voltdb.slow-procedure-threshold-millis:0"
+    ).applyTo(context);
+    context.registerBean(SimpleMeterRegistry.class);
+    Access.registerVoltDB(context);
+    context.refresh();
+
+    assertThat(context.getBean(VoltDBStorage.class).procedureListener)
+        .isSameAs(ProcedureListener.NOOP);
+  }
+
+  @Test public void slowProcedureLog_byDefault() {
+    context = new AnnotationConfigApplicationContext();
+    TestPropertyValues.of(
+        "zipkin.storage.type:voltdb",
+        "zipkin.storage.voltdb.scheduling.enabled:false"
+    ).applyTo(context);
+    Access.registerVoltDB(context);
+    context.refresh();
+
+    ProcedureListener listener = context.getBean(VoltDBStorage.class).procedureListener;
+    assertThat(listener).isInstanceOf(SlowProcedureLog.class);
+    assertThat(((SlowProcedureLog) listener).thresholdNanos).isEqualTo(1_000_000_000L);
+  }
+
+  @Test public void canOverridesProperty_clientPoolSize() {
+    context = new AnnotationConfigApplicationContext();
+    TestPropertyValues.of(
+        "zipkin.storage.type:voltdb",
+        "zipkin.storage.voltdb.scheduling.enabled:false",
+        "zipkin.storage.voltdb.client-pool-size:3"
+    ).applyTo(context);
+    Access.registerVoltDB(context);
+    context.refresh();
+
+    assertThat(context.getBean(VoltDBStorage.class).writes.clients).hasSize(3);
+  }
+
+  @Test public void canOverridesProperty_readClientPoolSize() {
+    context = new AnnotationConfigApplicationContext();
+    TestPropertyValues.of(
+        "zipkin.storage.type:voltdb",
+        "zipkin.storage.voltdb.scheduling.enabled:false",
+        "zipkin.storage.voltdb.read-client-pool-size:2"
+    ).applyTo(context);
+    Access.registerVoltDB(context);
+    context.refresh();
+
+    VoltDBStorage storage = context.getBean(VoltDBStorage.class);
+    assertThat(storage.reads.clients).hasSize(2);
+    assertThat(storage.writes.clients).hasSize(1);
+  }
+
+  @Test public void canOverridesProperty_binaryIds() {
+    context = new AnnotationConfigApplicationContext();
+    TestPropertyValues.of(
+        "zipkin.storage.type:voltdb",
+        "zipkin.storage.voltdb.scheduling.enabled:false",
+        "zipkin.storage.voltdb.binary-ids:true"
+    ).applyTo(context);
+    Access.registerVoltDB(context);
+    context.refresh();
+
+    assertThat(context.getBean(VoltDBStorage.class).binaryIds()).isTrue();
+  }
+
+  @Test public void strictTraceId_byDefault() {
+    context = new AnnotationConfigApplicationContext();
+    TestPropertyValues.of(
+        "zipkin.storage.type:voltdb",
+        "zipkin.storage.voltdb.scheduling.enabled:false"
+    ).applyTo(context);
+    Access.registerVoltDB(context);
+    context.refresh();
+
+    assertThat(context.getBean(VoltDBStorage.class).strictTraceId).isTrue();
+  }
+
+  @Test public void strictTraceId_canSetToFalse() {
+    context = new AnnotationConfigApplicationContext();
+    TestPropertyValues.of(
+        "zipkin.storage.type:voltdb",
+        "zipkin.storage.voltdb.scheduling.enabled:false",
+        "zipkin.storage.strict-trace-id:false"
+    ).applyTo(context);
+    Access.registerVoltDB(context);
+    context.refresh();
+
+    assertThat(context.getBean(VoltDBStorage.class).strictTraceId).isFalse();
+  }
+
+  @Test public void coldTier_disabledByDefault() {
+    context = new AnnotationConfigApplicationContext();
+    TestPropertyValues.of(
+        "zipkin.storage.type:voltdb",
+        "zipkin.storage.voltdb.scheduling.enabled:false",
+        "zipkin.storage.voltdb.cold-tier-directory:"
+    ).applyTo(context);
+    Access.registerVoltDB(context);
+    context.refresh();
+
+    assertThat(context.getBean(VoltDBStorage.class).coldTier).isNull();
+  }
+
+  @Test public void canOverridesProperty_coldTierDirectory() throws Exception {
+    context = new AnnotationConfigApplicationContext();
+    TestPropertyValues.of(
+        "zipkin.storage.type:voltdb",
+        "zipkin.storage.voltdb.scheduling.enabled:false",
+        "zipkin.storage.voltdb.cold-tier-directory:" + folder.newFolder().getPath()
+    ).applyTo(context);
+    Access.registerVoltDB(context);
+    context.refresh();
+
+    assertThat(context.getBean(VoltDBStorage.class).coldTier).isNotNull();
+  }
+
+  @Test public void downsampling_disabledByDefault() {
+    context = new AnnotationConfigApplicationContext();
+    TestPropertyValues.of(
+        "zipkin.storage.type:voltdb",
+        "zipkin.storage.voltdb.scheduling.enabled:false",
+        "zipkin.storage.voltdb.downsampling.keep-services:"
+    ).applyTo(context);
+    Access.registerVoltDB(context);
+    context.refresh();
+
+    assertThat(Access.isDownsamplingEnabled(context)).isFalse();
+    assertThat(Access.downsamplingKeepServices(context)).isEmpty();
+  }
+
+  @Test public void canOverridesProperty_downsampling() {
+    context = new AnnotationConfigApplicationContext();
+    TestPropertyValues.of(
+        "zipkin.storage.type:voltdb",
+        "zipkin.storage.voltdb.scheduling.enabled:false",
+        "zipkin.storage.voltdb.downsampling.rate:0.1",
+        "zipkin.storage.voltdb.downsampling.keep-services:frontend,backend"
+    ).applyTo(context);
+    Access.registerVoltDB(context);
+    context.refresh();
+
+    assertThat(Access.isDownsamplingEnabled(context)).isTrue();
+    assertThat(Access.downsamplingKeepServices(context))
+        .containsExactly("frontend", "backend");
+  }
+
+  @Test public void ingestRateLimit_disabledByDefault() {
+    context = new AnnotationConfigApplicationContext();
+    TestPropertyValues.of(
+        "zipkin.storage.type:voltdb",
+        "zipkin.storage.voltdb.scheduling.enabled:false"
+    ).applyTo(context);
+    Access.registerVoltDB(context);
+    context.refresh();
+
+    assertThat(context.getBean(VoltDBStorage.class).ingestRateLimiter).isNull();
+  }
+
+  @Test public void canOverridesProperty_ingestSpansPerSecond() {
+    context = new AnnotationConfigApplicationContext();
+    TestPropertyValues.of(
+        "zipkin.storage.type:voltdb",
+        "zipkin.storage.voltdb.scheduling.enabled:false",
+        "zipkin.storage.voltdb.ingest-spans-per-second:1000",
+        "zipkin.storage.voltdb.service-ingest-spans-per-second.Batch-Job:10"
+    ).applyTo(context);
+    context.registerBean(SimpleMeterRegistry.class);
+    Access.registerVoltDB(context);
+    context.refresh();
+
+    VoltDBStorage storage = context.getBean(VoltDBStorage.class);
+    assertThat(storage.ingestRateLimiter.defaultSpansPerSecond).isEqualTo(1000L);
+    assertThat(storage.ingestRateLimiter.spansPerSecond).containsEntry("batch-job", 10L);
+    assertThat(storage.ingestListener).isNotSameAs(IngestListener.NOOP);
+  }
 }
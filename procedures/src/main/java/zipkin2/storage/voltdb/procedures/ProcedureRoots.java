@@ -0,0 +1,94 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb.procedures;
+
+import zipkin2.storage.voltdb.procedure.AcquireLease;
+import zipkin2.storage.voltdb.procedure.BackfillNameDictionary;
+import zipkin2.storage.voltdb.procedure.BackfillNameIds;
+import zipkin2.storage.voltdb.procedure.BackfillNameIdsBinary;
+import zipkin2.storage.voltdb.procedure.BackfillTraceIdLow;
+import zipkin2.storage.voltdb.procedure.BackfillTraceIdLowBinary;
+import zipkin2.storage.voltdb.procedure.CompactTraces;
+import zipkin2.storage.voltdb.procedure.CompactTracesBinary;
+import zipkin2.storage.voltdb.procedure.CompletePendingTraces;
+import zipkin2.storage.voltdb.procedure.CompletePendingTracesBinary;
+import zipkin2.storage.voltdb.procedure.DeleteSpilledTraces;
+import zipkin2.storage.voltdb.procedure.DeleteSpilledTracesBinary;
+import zipkin2.storage.voltdb.procedure.DownsampleCompleteTraces;
+import zipkin2.storage.voltdb.procedure.DownsampleCompleteTracesBinary;
+import zipkin2.storage.voltdb.procedure.GetBacklog;
+import zipkin2.storage.voltdb.procedure.GetBacklogBinary;
+import zipkin2.storage.voltdb.procedure.GetColdTraces;
+import zipkin2.storage.voltdb.procedure.GetColdTracesBinary;
+import zipkin2.storage.voltdb.procedure.GetServiceNames;
+import zipkin2.storage.voltdb.procedure.GetSpansJson;
+import zipkin2.storage.voltdb.procedure.GetTrace;
+import zipkin2.storage.voltdb.procedure.GetTraceBinary;
+import zipkin2.storage.voltdb.procedure.GetTraceByTraceIdLow;
+import zipkin2.storage.voltdb.procedure.GetTraceByTraceIdLowBinary;
+import zipkin2.storage.voltdb.procedure.LinkCompleteTraces;
+import zipkin2.storage.voltdb.procedure.LinkCompleteTracesBinary;
+import zipkin2.storage.voltdb.procedure.LinkTrace;
+import zipkin2.storage.voltdb.procedure.LinkTraceBinary;
+import zipkin2.storage.voltdb.procedure.ResolveName;
+import zipkin2.storage.voltdb.procedure.StoreSpansJson;
+import zipkin2.storage.voltdb.procedure.StoreSpansJsonBinary;
+import zipkin2.storage.voltdb.procedure.StoreSpansJsonCapped;
+import zipkin2.storage.voltdb.procedure.StoreSpansJsonCappedBinary;
+
+/**
+ * The shade plugin only keeps classes reachable from this module's own classes. Referencing each
+ * procedure here keeps them, their support types and the zipkin classes they use, such as
+ * {@code zipkin2.internal.SpanNode}. This type itself is excluded from the jar.
+ */
+final class ProcedureRoots {
+  static final Class<?>[] ROOTS = {
+      AcquireLease.class,
+      BackfillNameDictionary.class,
+      BackfillNameIds.class,
+      BackfillNameIdsBinary.class,
+      BackfillTraceIdLow.class,
+      BackfillTraceIdLowBinary.class,
+      CompactTraces.class,
+      CompactTracesBinary.class,
+      CompletePendingTraces.class,
+      CompletePendingTracesBinary.class,
+      DeleteSpilledTraces.class,
+      DeleteSpilledTracesBinary.class,
+      DownsampleCompleteTraces.class,
+      DownsampleCompleteTracesBinary.class,
+      GetBacklog.class,
+      GetBacklogBinary.class,
+      GetColdTraces.class,
+      GetColdTracesBinary.class,
+      GetServiceNames.class,
+      GetSpansJson.class,
+      GetTrace.class,
+      GetTraceBinary.class,
+      GetTraceByTraceIdLow.class,
+      GetTraceByTraceIdLowBinary.class,
+      LinkCompleteTraces.class,
+      LinkCompleteTracesBinary.class,
+      LinkTrace.class,
+      LinkTraceBinary.class,
+      ResolveName.class,
+      StoreSpansJson.class,
+      StoreSpansJsonBinary.class,
+      StoreSpansJsonCapped.class,
+      StoreSpansJsonCappedBinary.class
+  };
+
+  ProcedureRoots() {
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientConfig;
+import org.voltdb.client.ClientFactory;
+
+import static zipkin2.storage.voltdb.VoltDBStorage.INITIAL_RECONNECT_BACKOFF_MILLIS;
+import static zipkin2.storage.voltdb.VoltDBStorage.LOG;
+import static zipkin2.storage.voltdb.VoltDBStorage.MAX_RECONNECT_BACKOFF_MILLIS;
+
+/**
+ * Stripes calls across clients, each with its own network thread and limit of outstanding
+ * transactions. Calls for the same trace ID always use the same client, so they are sent in the
+ * order they were made.
+ *
+ * <p>Reads and writes use separate pools, or lanes, so that a burst of one doesn't delay the
+ * other. Each lane has its own limits, timeout and policy for when the limit is reached.
+ */
+final class ClientPool {
+  final Client[] clients;
+  final Reconnector[] reconnectors;
+  final AtomicInteger nextIndex = new AtomicInteger();
+  /** Calls made through this lane that haven't yet completed. */
+  final AtomicInteger outstanding = new AtomicInteger();
+  /** Like {@link #outstanding}, but by the index of the client the calls were made with. */
+  final AtomicInteger[] outstandingByClient;
+  /** When not blocking, calls fail instead of exceeding this count on any client. */
+  final int maxOutstandingTxns;
+  final boolean blocking;
+  final int timeoutMillis;
+  final Map<String, Integer> procedureTimeouts;
+
+  /**
+   * @param timeoutMillis how long until a procedure call fails with a timeout
+   * @param procedureTimeouts overrides {@code timeoutMillis} by procedure name
+   * @param blocking when false, calls fail in {@link #tryAcquire(Client)} instead of waiting when
+   * a client has {@code maxOutstandingTxns} outstanding. The client itself would wait for up to
+   * the procedure timeout, as it only stops waiting early on backpressure from the cluster.
+   */
+  ClientPool(VoltDBStorage storage, int size, int maxOutstandingTxns, int timeoutMillis,
+      Map<String, Integer> procedureTimeouts, boolean blocking) {
+    this.maxOutstandingTxns = maxOutstandingTxns;
+    this.blocking = blocking;
+    this.timeoutMillis = timeoutMillis;
+    this.procedureTimeouts = procedureTimeouts;
+    clients = new Client[size];
+    reconnectors = new Reconnector[size];
+    outstandingByClient = new AtomicInteger[size];
+    for (int i = 0; i < size; i++) {
+      outstandingByClient[i] = new AtomicInteger();
+      reconnectors[i] = new Reconnector(storage, INITIAL_RECONNECT_BACKOFF_MILLIS,
+          MAX_RECONNECT_BACKOFF_MILLIS);
+      ClientConfig config = new ClientConfig("", "", reconnectors[i]);
+      // Connect to all cluster members and send partitioned procedures to the partition leader
+      config.setTopologyChangeAware(true);
+      config.setClientAffinity(true);
+      config.setMaxOutstandingTxns(maxOutstandingTxns);
+      config.setProcedureCallTimeout(timeoutMillis);
+      clients[i] = ClientFactory.createClient(config);
+      // This only stops waiting on backpressure from the cluster: tryAcquire enforces the limit
+      clients[i].configureBlocking(blocking);
+    }
+  }
+
+  /**
+   * Counts a call about to be made with the client, returning false if that would exceed {@link
+   * #maxOutstandingTxns} in a lane that doesn't block. Calls that return true must {@link
+   * #release(Client)} once complete.
+   */
+  boolean tryAcquire(Client client) {
+    AtomicInteger forClient = outstandingByClient[indexOf(client)];
+    if (forClient.incrementAndGet() > maxOutstandingTxns && !blocking) {
+      forClient.decrementAndGet();
+      return false;
+    }
+    outstanding.incrementAndGet();
+    return true;
+  }
+
+  void release(Client client) {
+    outstandingByClient[indexOf(client)].decrementAndGet();
+    outstanding.decrementAndGet();
+  }
+
+  int indexOf(Client client) {
+    for (int i = 0; i < clients.length; i++) {
+      if (clients[i] == client) return i;
+    }
+    throw new IllegalArgumentException(client + " is not in this lane");
+  }
+
+  int timeoutMillis(String procedure) {
+    Integer result = procedureTimeouts.get(procedure);
+    return result != null ? result : timeoutMillis;
+  }
+
+  /** Used for administrative calls, such as schema installation and health checks. */
+  Client first() {
+    return clients[0];
+  }
+
+  Client forTraceId(String traceId) {
+    if (clients.length == 1) return clients[0];
+    return clients[(traceId.hashCode() & Integer.MAX_VALUE) % clients.length];
+  }
+
+  /** Used for calls not scoped to a trace, such as queries. */
+  Client next() {
+    if (clients.length == 1) return clients[0];
+    return clients[(nextIndex.getAndIncrement() & Integer.MAX_VALUE) % clients.length];
+  }
+
+  /** Returns true if any client of this lane has a connection. */
+  boolean anyConnected() {
+    for (Reconnector reconnector : reconnectors) {
+      if (reconnector.clientConnected) return true;
+    }
+    return false;
+  }
+
+  List<Client> asList() {
+    return Collections.unmodifiableList(Arrays.asList(clients));
+  }
+
+  void connect(List<String> hosts) { // guarded by storage
+    for (int i = 0; i < clients.length; i++) {
+      reconnectors[i].connect(clients[i], hosts);
+    }
+  }
+
+  void close() { // guarded by storage
+    for (Reconnector reconnector : reconnectors) reconnector.close();
+    // drain all clients before closing any, as outstanding calls may be in any of them
+    for (Client client : clients) {
+      try {
+        client.drain();
+      } catch (Exception | Error e) {
+        LOG.log(Level.WARNING, "error draining client " + e.getMessage(), e);
+      }
+    }
+    for (Client client : clients) {
+      try {
+        client.close();
+      } catch (Exception | Error e) {
+        LOG.log(Level.WARNING, "error closing client " + e.getMessage(), e);
+      }
+    }
+  }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import zipkin2.Span;
+import zipkin2.internal.HexCodec;
+import zipkin2.internal.Nullable;
+import zipkin2.storage.voltdb.procedure.TraceBlob;
+
+/**
+ * One segment of the {@link ColdTier}: files that share a sequence number.
+ *
+ * <ul>
+ *   <li>{@code .traces} holds the {@link TraceBlob} of each trace, as compacted in the cluster</li>
+ *   <li>{@code .names} has an entry per service and span names of a trace, which search scans</li>
+ *   <li>{@code .log} has an entry per trace locating its blob, in the order appended</li>
+ *   <li>{@code .index} replaces the log once the segment is sealed, with entries sorted by trace
+ *   ID after a header of the minimum and maximum timestamp</li>
+ * </ul>
+ *
+ * <p>Entries are fixed size and start with the lower then upper 64 bits of the trace ID, so a
+ * sealed index is binary searched by the lower 64 bits, whether or not trace IDs are strict.
+ * Files of a sealed segment are memory-mapped once, as they no longer change. Those of the
+ * segment being appended are read on each query, up to the last whole entry.
+ */
+final class ColdSegment {
+  static final int INDEX_ENTRY_BYTES = 36, NAMES_ENTRY_BYTES = 36, INDEX_HEADER_BYTES = 16;
+  static final String TRACES = ".traces", NAMES = ".names", LOG = ".log", INDEX = ".index";
+
+  final long sequence;
+  final File traces, names, log, index;
+  volatile Mapped mapped;
+
+  ColdSegment(File directory, long sequence) {
+    this.sequence = sequence;
+    String name = fileName(sequence);
+    traces = new File(directory, name + TRACES);
+    names = new File(directory, name + NAMES);
+    log = new File(directory, name + LOG);
+    index = new File(directory, name + INDEX);
+  }
+
+  static String fileName(long sequence) {
+    String result = Long.toString(sequence);
+    StringBuilder padded = new StringBuilder(20);
+    for (int i = result.length(); i < 20; i++) padded.append('0');
+    return padded.append(result).toString();
+  }
+
+  boolean isSealed() {
+    return index.exists();
+  }
+
+  /**
+   * Adds spans of the traces to the lists they map to, which are keyed by {@link #traceKey(long,
+   * long, boolean)}. When not strict, only the lower 64 bits of trace IDs match.
+   */
+  void getTraces(Map<String, List<Span>> traces, boolean strict) throws IOException {
+    Mapped mapped = mapped();
+    if (mapped == null) {
+      ByteBuffer entries = readEntries(log, INDEX_ENTRY_BYTES);
+      if (entries != null) {
+        RandomAccessFile file = new RandomAccessFile(this.traces, "r");
+        try {
+          for (int i = 0; i < entries.limit(); i += INDEX_ENTRY_BYTES) {
+            String key = traceKey(entries.getLong(i + 8), entries.getLong(i), strict);
+            List<Span> out = traces.get(key);
+            if (out == null) continue;
+            byte[] blob = new byte[entries.getInt(i + 32)];
+            file.seek(entries.getLong(i + 24));
+            file.readFully(blob);
+            TraceBlob.decode(blob, out);
+          }
+        } finally {
+          file.close();
+        }
+        return;
+      }
+      mapped = mapped(); // the log is deleted once the segment is sealed
+      if (mapped == null) return; // deleted past retention
+    }
+
+    ByteBuffer index = mapped.index, blobs = mapped.traces.duplicate();
+    for (Map.Entry<String, List<Span>> trace : traces.entrySet()) {
+      long high = high(trace.getKey()), low = low(trace.getKey());
+      for (int i = lowerBound(index, low); i < index.limit() && index.getLong(i) == low;
+          i += INDEX_ENTRY_BYTES) {
+        if (strict && index.getLong(i + 8) != high) continue;
+        byte[] blob = new byte[index.getInt(i + 32)];
+        blobs.position((int) index.getLong(i + 24));
+        blobs.get(blob);
+        TraceBlob.decode(blob, trace.getValue());
+      }
+    }
+  }
+
+  /**
+   * Adds keys of traces that have the names within the timestamp range, newest first, until there
+   * are limit keys. See {@link #traceKey(long, long, boolean)}.
+   *
+   * @param serviceNameId dictionary ID of the service name, or zero for any
+   * @param spanNameId dictionary ID of the span name, or zero for any
+   * @param minTs epoch microseconds of the earliest trace to include
+   * @param maxTs epoch microseconds of the latest trace to include
+   */
+  void search(int serviceNameId, int spanNameId, long minTs, long maxTs, boolean strict,
+      Collection<String> out, int limit) throws IOException {
+    Mapped mapped = mapped();
+    ByteBuffer entries;
+    if (mapped != null) {
+      if (mapped.maxTs < minTs || mapped.minTs > maxTs) return;
+      entries = mapped.names;
+    } else {
+      entries = readEntries(names, NAMES_ENTRY_BYTES);
+      if (entries == null) return; // deleted past retention
+    }
+    int last = entries.limit() - entries.limit() % NAMES_ENTRY_BYTES;
+    for (int i = last - NAMES_ENTRY_BYTES; i >= 0 && out.size() < limit;
+        i -= NAMES_ENTRY_BYTES) {
+      long ts = entries.getLong(i + 16);
+      if (ts < minTs || ts > maxTs) continue;
+      if (serviceNameId != 0 && entries.getInt(i + 24) != serviceNameId) continue;
+      if (spanNameId != 0 && entries.getInt(i + 32) != spanNameId) continue;
+      String key = traceKey(entries.getLong(i + 8), entries.getLong(i), strict);
+      if (!out.contains(key)) out.add(key);
+    }
+  }
+
+  /** Returns the latest timestamp in the segment, or {@link Long#MIN_VALUE} if it is empty. */
+  long maxTs() throws IOException {
+    Mapped mapped = mapped();
+    if (mapped != null) return mapped.maxTs;
+    ByteBuffer entries = readEntries(log, INDEX_ENTRY_BYTES);
+    if (entries == null) { // sealed meanwhile
+      mapped = mapped();
+      return mapped != null ? mapped.maxTs : Long.MIN_VALUE;
+    }
+    long result = Long.MIN_VALUE;
+    for (int i = 0; i < entries.limit(); i += INDEX_ENTRY_BYTES) {
+      result = Math.max(result, entries.getLong(i + 16));
+    }
+    return result;
+  }
+
+  /** Returns the files of a sealed segment, mapping them on first use, or null if not sealed. */
+  @Nullable Mapped mapped() throws IOException {
+    Mapped result = mapped;
+    if (result != null) return result;
+    synchronized (this) {
+      if (mapped != null) return mapped;
+      if (!index.exists()) return null;
+      try {
+        return mapped = new Mapped(map(traces), map(names), map(index));
+      } catch (FileNotFoundException e) {
+        return null; // deleted past retention
+      }
+    }
+  }
+
+  /**
+   * Deletes the files of this segment, the traces file last as it is how segments are listed.
+   * Readers that mapped them can still read them.
+   */
+  void delete() {
+    index.delete();
+    log.delete();
+    names.delete();
+    traces.delete();
+  }
+
+  /** Returns the byte offset of the first sealed entry whose lower 64 bits are at least low. */
+  static int lowerBound(ByteBuffer index, long low) {
+    int lo = 0, hi = (index.limit() - INDEX_HEADER_BYTES) / INDEX_ENTRY_BYTES;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (index.getLong(INDEX_HEADER_BYTES + mid * INDEX_ENTRY_BYTES) < low) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return INDEX_HEADER_BYTES + lo * INDEX_ENTRY_BYTES;
+  }
+
+  /**
+   * Returns the lower-hex trace ID that traces are grouped by: the lower 64 bits unless strict.
+   */
+  static String traceKey(long high, long low, boolean strict) {
+    char[] result = new char[strict && high != 0L ? 32 : 16];
+    int pos = 0;
+    if (result.length == 32) pos = writeHex(high, result, pos);
+    writeHex(low, result, pos);
+    return new String(result);
+  }
+
+  static int writeHex(long value, char[] out, int pos) {
+    for (int shift = 60; shift >= 0; shift -= 4) {
+      out[pos++] = Character.forDigit((int) (value >>> shift) & 0xf, 16);
+    }
+    return pos;
+  }
+
+  /** Returns the upper 64 bits of a lower-hex trace ID, which are zero unless it is 128-bit. */
+  static long high(String traceId) {
+    return traceId.length() == 32 ? HexCodec.lowerHexToUnsignedLong(traceId, 0) : 0L;
+  }
+
+  /** Returns the lower 64 bits of a lower-hex trace ID. */
+  static long low(String traceId) {
+    return HexCodec.lowerHexToUnsignedLong(traceId);
+  }
+
+  /** Reads whole entries of a file being appended, or returns null if it no longer exists. */
+  @Nullable static ByteBuffer readEntries(File file, int entryBytes) throws IOException {
+    RandomAccessFile raf;
+    try {
+      raf = new RandomAccessFile(file, "r");
+    } catch (FileNotFoundException e) {
+      return null;
+    }
+    try {
+      long length = raf.length();
+      byte[] bytes = new byte[(int) (length - length % entryBytes)];
+      raf.readFully(bytes);
+      return ByteBuffer.wrap(bytes);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /** The mapping remains valid once the file is closed or deleted. */
+  static ByteBuffer map(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      return raf.getChannel().map(MapMode.READ_ONLY, 0L, raf.length());
+    } finally {
+      raf.close();
+    }
+  }
+
+  static final class Mapped {
+    final ByteBuffer traces, names, index;
+    final long minTs, maxTs;
+
+    Mapped(ByteBuffer traces, ByteBuffer names, ByteBuffer index) {
+      this.traces = traces;
+      this.names = names;
+      this.index = index;
+      this.minTs = index.getLong(0);
+      this.maxTs = index.getLong(8);
+    }
+  }
+
+  @Override public String toString() {
+    return fileName(sequence);
+  }
+}
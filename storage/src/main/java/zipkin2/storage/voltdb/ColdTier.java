@@ -0,0 +1,477 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.logging.Logger;
+import org.voltdb.VoltTable;
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.client.ClientResponseWithPartitionKey;
+import org.voltdb.client.ProcCallException;
+import zipkin2.Span;
+import zipkin2.storage.voltdb.procedure.Ids;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static zipkin2.storage.voltdb.ColdSegment.INDEX_ENTRY_BYTES;
+import static zipkin2.storage.voltdb.ColdSegment.INDEX_HEADER_BYTES;
+import static zipkin2.storage.voltdb.ColdSegment.NAMES_ENTRY_BYTES;
+import static zipkin2.storage.voltdb.Schema.PROCEDURE_DELETE_SPILLED_TRACES;
+import static zipkin2.storage.voltdb.Schema.PROCEDURE_GET_COLD_TRACES;
+
+/**
+ * Compacted traces moved out of the cluster to {@link ColdSegment segment files} in a local
+ * directory, so that traces kept for days don't all need memory. See {@link
+ * VoltDBStorage.Builder#coldTierDirectory(String)}.
+ *
+ * <p>Only the process holding a lock on the directory appends. It writes traces to the newest
+ * segment, then deletes them from the cluster once they are synced to disk. When the traces file
+ * reaches the segment size, the segment is sealed and a new one started. Segments whose newest
+ * trace is older than retention are deleted whole.
+ *
+ * <p>Any process can read the directory, for example servers sharing a network mount. Segments
+ * are listed on each query, so those sealed or deleted by the writer are noticed.
+ */
+final class ColdTier implements Closeable {
+  static final Logger LOG = Logger.getLogger(ColdTier.class.getName());
+  static final String LOCK_FILE = "writer.lock", TMP = ".tmp";
+  static final int READ_THREADS = 4;
+
+  final File directory;
+  final long segmentBytes, minAgeMillis, retentionMillis;
+  final ConcurrentMap<Long, ColdSegment> segments = new ConcurrentHashMap<>();
+  /** Reads files for queries, as enqueued calls complete on the VoltDB client's network thread. */
+  final ExecutorService readExecutor;
+
+  // state of the writer, guarded by this
+  RandomAccessFile lockFile;
+  FileLock lock;
+  ColdSegment active;
+  FileChannel tracesOut, namesOut, logOut;
+  long activeMaxTs = Long.MIN_VALUE;
+  boolean closed;
+
+  /**
+   * @param segmentBytes size of the traces file at which a segment is sealed
+   * @param minAgeMillis age of traces before they are moved to this tier
+   * @param retentionMillis age of the newest trace in a segment before it is deleted
+   */
+  ColdTier(File directory, long segmentBytes, long minAgeMillis, long retentionMillis) {
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    this.minAgeMillis = minAgeMillis;
+    this.retentionMillis = retentionMillis;
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(READ_THREADS, READ_THREADS, 60L, SECONDS,
+        new LinkedBlockingQueue<Runnable>(), r -> {
+      Thread thread = new Thread(r, "zipkin-voltdb-cold-tier");
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.allowCoreThreadTimeOut(true);
+    this.readExecutor = executor;
+  }
+
+  /** Returns spans of the trace, or an empty list if none were moved to this tier. */
+  List<Span> getTrace(String traceId, boolean strict) throws IOException {
+    Map<String, List<Span>> traces = new LinkedHashMap<>();
+    String key = ColdSegment.traceKey(ColdSegment.high(traceId), ColdSegment.low(traceId), strict);
+    traces.put(key, new ArrayList<Span>());
+    getTraces(traces, strict);
+    return traces.get(key);
+  }
+
+  /**
+   * Returns up to limit traces that have the service and span names within the time range,
+   * newest first.
+   *
+   * @param serviceNameId dictionary ID of the service name, or zero for any
+   * @param spanNameId dictionary ID of the span name, or zero for any
+   * @param endTs epoch milliseconds of the end of the range
+   * @param lookback milliseconds before the end of the range that it starts
+   */
+  List<List<Span>> getTraces(int serviceNameId, int spanNameId, long endTs, long lookback,
+      int limit, boolean strict) throws IOException {
+    List<ColdSegment> segments = segments();
+    Set<String> keys = new LinkedHashSet<>();
+    long minTs = (endTs - lookback) * 1000L, maxTs = endTs * 1000L;
+    for (ColdSegment segment : segments) {
+      if (keys.size() >= limit) break;
+      segment.search(serviceNameId, spanNameId, minTs, maxTs, strict, keys, limit);
+    }
+
+    Map<String, List<Span>> traces = new LinkedHashMap<>();
+    for (String key : keys) traces.put(key, new ArrayList<Span>());
+    getTraces(traces, strict);
+    List<List<Span>> result = new ArrayList<>();
+    for (List<Span> trace : traces.values()) {
+      if (!trace.isEmpty()) result.add(trace); // names written before a crash lost the trace
+    }
+    return result;
+  }
+
+  /**
+   * A trace is appended again when a spill fails to delete it from the cluster, so spans appended
+   * more than once are only returned once.
+   */
+  void getTraces(Map<String, List<Span>> traces, boolean strict) throws IOException {
+    for (ColdSegment segment : segments()) segment.getTraces(traces, strict);
+    for (Map.Entry<String, List<Span>> trace : traces.entrySet()) {
+      if (trace.getValue().size() < 2) continue;
+      trace.setValue(new ArrayList<>(new LinkedHashSet<>(trace.getValue())));
+    }
+  }
+
+  /** Returns the segments in the directory, newest first. */
+  List<ColdSegment> segments() {
+    String[] files = directory.list();
+    Set<Long> sequences = new LinkedHashSet<>();
+    if (files != null) {
+      for (String file : files) {
+        if (!file.endsWith(ColdSegment.TRACES)) continue;
+        try {
+          sequences.add(Long.parseLong(file.substring(0, file.indexOf('.'))));
+        } catch (NumberFormatException ignored) {
+          // not a segment
+        }
+      }
+    }
+    segments.keySet().retainAll(sequences);
+    List<ColdSegment> result = new ArrayList<>();
+    for (Long sequence : sequences) {
+      ColdSegment segment = segments.get(sequence);
+      if (segment == null) {
+        segment = new ColdSegment(directory, sequence);
+        ColdSegment existing = segments.putIfAbsent(sequence, segment);
+        if (existing != null) segment = existing;
+      }
+      result.add(segment);
+    }
+    Collections.sort(result, new Comparator<ColdSegment>() {
+      @Override public int compare(ColdSegment left, ColdSegment right) {
+        return left.sequence < right.sequence ? 1 : left.sequence == right.sequence ? 0 : -1;
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Moves compacted traces older than {@link #minAgeMillis} from all partitions to this tier.
+   * Returns the count of traces deleted from the cluster, or zero if another process is writing.
+   */
+  int spill(Client client, boolean binaryIds, int maxPerPartition, long nowMillis)
+      throws IOException {
+    if (!tryLock()) return 0;
+    List<SpilledTrace> spilled = new ArrayList<>();
+    for (ClientResponseWithPartitionKey response : callAllPartitions(client,
+        Schema.procedure(PROCEDURE_GET_COLD_TRACES, binaryIds), maxPerPartition,
+        (nowMillis - minAgeMillis) * 1000L)) {
+      VoltTable[] tables = response.response.getResults();
+      SpilledTrace.read(tables[0], tables[1], spilled);
+    }
+    if (spilled.isEmpty()) return 0;
+
+    append(spilled);
+
+    String[] traceIds = new String[spilled.size()], md5s = new String[spilled.size()];
+    MessageDigest md5 = md5();
+    for (int i = 0; i < traceIds.length; i++) {
+      traceIds[i] = spilled.get(i).traceId;
+      md5s[i] = Ids.hex(md5.digest(spilled.get(i).spans));
+    }
+    int result = 0;
+    for (ClientResponseWithPartitionKey response : callAllPartitions(client,
+        Schema.procedure(PROCEDURE_DELETE_SPILLED_TRACES, binaryIds), traceIds, md5s)) {
+      result += response.response.getResults()[0].getRowCount();
+    }
+    return result;
+  }
+
+  /** Logs partitions that failed, so that the others' results are still used. */
+  static List<ClientResponseWithPartitionKey> callAllPartitions(Client client, String procedure,
+      Object... parameters) throws IOException {
+    ClientResponseWithPartitionKey[] responses;
+    try {
+      responses = client.callAllPartitionProcedure(procedure, parameters);
+    } catch (ProcCallException e) {
+      throw new IOException(procedure + " failed: " + e.getMessage(), e);
+    }
+    List<ClientResponseWithPartitionKey> result = new ArrayList<>();
+    for (ClientResponseWithPartitionKey response : responses) {
+      if (response.response.getStatus() == ClientResponse.SUCCESS) {
+        result.add(response);
+      } else {
+        LOG.warning(procedure + " on partition " + response.partitionKey + " failed with "
+            + response.response.getStatusString());
+      }
+    }
+    return result;
+  }
+
+  /** Appends the traces to the newest segment, returning once they are synced to disk. */
+  synchronized void append(List<SpilledTrace> spilled) throws IOException {
+    openActive();
+    int nameCount = 0;
+    for (SpilledTrace trace : spilled) nameCount += Math.max(1, trace.names.size());
+    ByteBuffer names = ByteBuffer.allocate(nameCount * NAMES_ENTRY_BYTES);
+    ByteBuffer log = ByteBuffer.allocate(spilled.size() * INDEX_ENTRY_BYTES);
+
+    long offset = tracesOut.size();
+    for (SpilledTrace trace : spilled) {
+      long high = ColdSegment.high(trace.traceId), low = ColdSegment.low(trace.traceId);
+      writeFully(tracesOut, ByteBuffer.wrap(trace.spans), offset);
+      log.putLong(low).putLong(high).putLong(trace.ts).putLong(offset).putInt(trace.spans.length);
+      offset += trace.spans.length;
+      // a trace without names is still found by searches for any name
+      List<int[]> traceNames =
+          trace.names.isEmpty() ? Collections.singletonList(new int[3]) : trace.names;
+      for (int[] name : traceNames) {
+        names.putLong(low).putLong(high).putLong(trace.ts)
+            .putInt(name[0]).putInt(name[1]).putInt(name[2]);
+      }
+      activeMaxTs = Math.max(activeMaxTs, trace.ts);
+    }
+    // blobs are synced before the entries that point to them
+    tracesOut.force(false);
+    names.flip();
+    writeFully(namesOut, names, namesOut.size());
+    namesOut.force(false);
+    log.flip();
+    writeFully(logOut, log, logOut.size());
+    logOut.force(false);
+
+    if (offset >= segmentBytes) sealActive();
+  }
+
+  /**
+   * Opens the newest segment for appending, starting a new one if it is sealed. Segments left
+   * unsealed by a process that stopped are sealed first.
+   */
+  void openActive() throws IOException { // guarded by this
+    if (active != null) return;
+    List<ColdSegment> segments = segments();
+    ColdSegment newest = segments.isEmpty() ? null : segments.get(0);
+    for (ColdSegment segment : segments) {
+      if (segment != newest && !segment.isSealed()) seal(segment);
+    }
+    if (newest == null || newest.isSealed()) {
+      newest = new ColdSegment(directory, newest == null ? 0L : newest.sequence + 1);
+      this.segments.put(newest.sequence, newest);
+    }
+    // entries cut short by a stopped process are truncated, so appends start at an entry
+    tracesOut = new RandomAccessFile(newest.traces, "rw").getChannel();
+    namesOut = new RandomAccessFile(newest.names, "rw").getChannel();
+    namesOut.truncate(namesOut.size() - namesOut.size() % NAMES_ENTRY_BYTES);
+    logOut = new RandomAccessFile(newest.log, "rw").getChannel();
+    logOut.truncate(logOut.size() - logOut.size() % INDEX_ENTRY_BYTES);
+    active = newest;
+    activeMaxTs = newest.maxTs();
+  }
+
+  void sealActive() throws IOException { // guarded by this
+    closeActive();
+    ColdSegment sealed = active;
+    active = null;
+    activeMaxTs = Long.MIN_VALUE;
+    seal(sealed);
+  }
+
+  /** Writes the log of the segment sorted by trace ID as its index, then deletes the log. */
+  static void seal(ColdSegment segment) throws IOException {
+    final ByteBuffer log = ColdSegment.readEntries(segment.log, INDEX_ENTRY_BYTES);
+    if (log == null) return; // already sealed
+    int count = log.limit() / INDEX_ENTRY_BYTES;
+    Integer[] order = new Integer[count];
+    long minTs = Long.MAX_VALUE, maxTs = Long.MIN_VALUE;
+    for (int i = 0; i < count; i++) {
+      order[i] = i * INDEX_ENTRY_BYTES;
+      long ts = log.getLong(order[i] + 16);
+      minTs = Math.min(minTs, ts);
+      maxTs = Math.max(maxTs, ts);
+    }
+    Arrays.sort(order, new Comparator<Integer>() { // by lower 64 bits, then upper, then offset
+      @Override public int compare(Integer left, Integer right) {
+        for (int field : new int[] {0, 8, 24}) {
+          long l = log.getLong(left + field), r = log.getLong(right + field);
+          if (l != r) return l < r ? -1 : 1;
+        }
+        return 0;
+      }
+    });
+
+    ByteBuffer index = ByteBuffer.allocate(INDEX_HEADER_BYTES + log.limit());
+    index.putLong(minTs).putLong(maxTs);
+    for (Integer offset : order) {
+      ByteBuffer entry = log.duplicate();
+      entry.limit(offset + INDEX_ENTRY_BYTES);
+      entry.position(offset);
+      index.put(entry);
+    }
+    index.flip();
+
+    File tmp = new File(segment.index.getPath() + TMP);
+    RandomAccessFile file = new RandomAccessFile(tmp, "rw");
+    try {
+      file.setLength(0L);
+      writeFully(file.getChannel(), index, 0L);
+      file.getChannel().force(false);
+    } finally {
+      file.close();
+    }
+    // readers switch from the log to the index once it exists
+    if (!tmp.renameTo(segment.index)) throw new IOException("couldn't rename " + tmp);
+    segment.log.delete();
+  }
+
+  /**
+   * Deletes segments whose newest trace is older than retention, including the one being
+   * appended. Returns the count of segments deleted, or zero if another process is writing.
+   */
+  synchronized int deleteExpired(long nowMillis) throws IOException {
+    if (!tryLock()) return 0;
+    long cutoff = (nowMillis - retentionMillis) * 1000L;
+    int result = 0;
+    for (ColdSegment segment : segments()) {
+      if (segment == active) {
+        if (activeMaxTs == Long.MIN_VALUE || activeMaxTs >= cutoff) continue;
+        sealActive();
+      } else if (!segment.isSealed()) {
+        continue; // sealed when next appending
+      }
+      long maxTs = segment.maxTs();
+      if (maxTs == Long.MIN_VALUE || maxTs >= cutoff) continue;
+      LOG.info("Deleting cold tier segment " + segment + " past retention");
+      segment.delete();
+      segments.remove(segment.sequence);
+      result++;
+    }
+    return result;
+  }
+
+  /** Returns true if this process holds the lock to write the directory. */
+  synchronized boolean tryLock() throws IOException {
+    if (closed) return false;
+    if (lock != null) return true;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("couldn't create " + directory);
+    }
+    RandomAccessFile file = new RandomAccessFile(new File(directory, LOCK_FILE), "rw");
+    FileLock result;
+    try {
+      result = file.getChannel().tryLock();
+    } catch (OverlappingFileLockException e) {
+      result = null; // another storage component in this process
+    }
+    if (result == null) {
+      file.close();
+      LOG.fine("Another process is writing the cold tier in " + directory);
+      return false;
+    }
+    lockFile = file;
+    lock = result;
+    LOG.info("Writing the cold tier in " + directory);
+    return true;
+  }
+
+  void closeActive() throws IOException { // guarded by this
+    if (active == null) return;
+    tracesOut.close();
+    namesOut.close();
+    logOut.close();
+  }
+
+  @Override public synchronized void close() throws IOException {
+    if (closed) return;
+    closed = true;
+    readExecutor.shutdownNow();
+    closeActive();
+    active = null;
+    if (lockFile != null) lockFile.close(); // releases the lock
+  }
+
+  static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+  }
+
+  static MessageDigest md5() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e); // all JREs support MD5
+    }
+  }
+
+  /** A compacted trace read from the cluster, to be appended to a segment. */
+  static final class SpilledTrace {
+    final String traceId;
+    final long ts;
+    final byte[] spans;
+    final List<int[]> names = new ArrayList<>();
+
+    SpilledTrace(String traceId, long ts, byte[] spans) {
+      this.traceId = traceId;
+      this.ts = ts;
+      this.spans = spans;
+    }
+
+    /**
+     * Adds the traces of a {@link Schema#PROCEDURE_GET_COLD_TRACES} response. Null name IDs are
+     * recorded as zero, which matches no query by name.
+     */
+    static void read(VoltTable traces, VoltTable names, List<SpilledTrace> out) {
+      Map<String, SpilledTrace> byTraceId = new LinkedHashMap<>();
+      while (traces.advanceRow()) {
+        SpilledTrace trace =
+            new SpilledTrace(traces.getString(0), traces.getLong(1), traces.getVarbinary(2));
+        byTraceId.put(trace.traceId, trace);
+      }
+      while (names.advanceRow()) {
+        SpilledTrace trace = byTraceId.get(names.getString(0));
+        if (trace == null) continue;
+        int[] name = new int[3];
+        for (int i = 0; i < 3; i++) {
+          name[i] = (int) names.getLong(i + 1);
+          if (names.wasNull()) name[i] = 0;
+        }
+        trace.names.add(name);
+      }
+      out.addAll(byTraceId.values());
+    }
+  }
+}
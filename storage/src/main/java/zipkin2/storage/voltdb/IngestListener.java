@@ -0,0 +1,45 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb;
+
+import zipkin2.internal.Nullable;
+
+/**
+ * Receives whether each span accepted by the consumer was admitted or dropped by the ingest rate
+ * limit of its local service, for example to record per-service counters. This is only invoked
+ * when there is a rate limit.
+ *
+ * <p>This is invoked on the caller's thread before spans are encoded, so implementations should
+ * be cheap and must be thread-safe.
+ */
+public abstract class IngestListener {
+  /** The default, which records nothing. */
+  public static final IngestListener NOOP = new IngestListener() {
+    @Override public void onAdmitted(String serviceName) {
+    }
+
+    @Override public void onDropped(String serviceName) {
+    }
+
+    @Override public String toString() {
+      return "NoopIngestListener";
+    }
+  };
+
+  /** @param serviceName the span's local service name, or null if it has none */
+  public abstract void onAdmitted(@Nullable String serviceName);
+
+  /** @param serviceName the span's local service name, or null if it has none */
+  public abstract void onDropped(@Nullable String serviceName);
+}
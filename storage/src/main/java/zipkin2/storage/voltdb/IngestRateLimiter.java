@@ -0,0 +1,178 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import zipkin2.internal.Nullable;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Limits spans stored per second by each local service name, so that one service sampling at 100%
+ * can't push the cluster into backpressure. Each service has a token bucket that refills at its
+ * rate, and holds up to one second of spans.
+ *
+ * <p>Decisions are per trace: the first span of a trace decides whether it and later spans of the
+ * trace are stored, regardless of their service. Later spans admitted still take tokens, so a
+ * service's rate holds on average. Decisions are remembered until the window after the one they
+ * were made in ends, and only by this process, so a trace whose spans are collected by several
+ * servers, or over a longer period, may be stored partially.
+ *
+ * <p>A window lasts {@link #windowNanos}, unless {@link #maxTraces} traces arrive sooner, which
+ * rotates it early to bound memory. Under that load, a decision may be forgotten after less than
+ * {@link #windowNanos}. {@link #lastWindowNanos} is how long the last window lasted.
+ */
+final class IngestRateLimiter {
+  final long defaultSpansPerSecond;
+  final Map<String, Long> spansPerSecond;
+  final int maxServices, maxTraces;
+  final long windowNanos;
+  final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+  final Bucket overflow;
+  // decisions of the current window, and the last, which expire on the next rotation
+  volatile Decisions current, previous;
+  /** How long the last window lasted, which is less than windowNanos when rotated early. */
+  volatile long lastWindowNanos;
+
+  /**
+   * @param defaultSpansPerSecond rate of services not in spansPerSecond. Zero is unlimited.
+   * @param spansPerSecond rate by service name. Zero is unlimited.
+   * @param maxServices services with their own bucket at the default rate. Others share one.
+   * @param maxTraces decisions remembered per window, which rotates early when reached
+   */
+  IngestRateLimiter(long defaultSpansPerSecond, Map<String, Long> spansPerSecond,
+      int maxServices, int maxTraces, long windowNanos, long nowNanos) {
+    this.defaultSpansPerSecond = defaultSpansPerSecond;
+    this.spansPerSecond = spansPerSecond;
+    this.maxServices = maxServices;
+    this.maxTraces = maxTraces;
+    this.windowNanos = windowNanos;
+    this.lastWindowNanos = windowNanos;
+    this.overflow = new Bucket(defaultSpansPerSecond, nowNanos);
+    this.current = new Decisions(nowNanos);
+    this.previous = new Decisions(nowNanos);
+  }
+
+  /** Returns null when no service has a limit, so that spans aren't checked at all. */
+  @Nullable static IngestRateLimiter create(long defaultSpansPerSecond,
+      Map<String, Long> spansPerSecond, int maxServices) {
+    boolean limited = defaultSpansPerSecond > 0L;
+    for (Long rate : spansPerSecond.values()) limited |= rate > 0L;
+    if (!limited) return null;
+    return new IngestRateLimiter(defaultSpansPerSecond, spansPerSecond, maxServices, 100_000,
+        SECONDS.toNanos(30), System.nanoTime());
+  }
+
+  /** Returns true if the span should be stored. */
+  boolean tryAdmit(String traceId, @Nullable String serviceName, long nowNanos) {
+    // the lower 64 bits, so that spans agree when instrumentation disagrees on the ID width
+    String key = traceId.length() > 16 ? traceId.substring(traceId.length() - 16) : traceId;
+    Bucket bucket = bucket(serviceName, nowNanos);
+    Decisions decisions = decisions(nowNanos);
+    Boolean decision = decisions.get(key);
+    if (decision == null) {
+      decision = previous.get(key);
+      if (decision != null) decisions.putIfAbsent(key, decision); // keep it for another window
+    }
+    if (decision == null) {
+      boolean admit = bucket.tryAcquire(nowNanos, false);
+      decision = decisions.putIfAbsent(key, admit);
+      if (decision == null) return admit;
+    }
+    if (decision) bucket.tryAcquire(nowNanos, true);
+    return decision;
+  }
+
+  Bucket bucket(@Nullable String serviceName, long nowNanos) {
+    String key = serviceName != null ? serviceName : "";
+    Bucket result = buckets.get(key);
+    if (result != null) return result;
+    Long rate = spansPerSecond.get(key);
+    // Services with their own rate are configured, so don't count towards maxServices
+    if (rate == null && buckets.size() >= maxServices) return overflow;
+    result = new Bucket(rate != null ? rate : defaultSpansPerSecond, nowNanos);
+    Bucket existing = buckets.putIfAbsent(key, result);
+    return existing != null ? existing : result;
+  }
+
+  Decisions decisions(long nowNanos) {
+    Decisions result = current;
+    if (nowNanos - result.startNanos < windowNanos && result.count.get() < maxTraces) {
+      return result;
+    }
+    synchronized (this) {
+      if (current == result) {
+        lastWindowNanos = nowNanos - result.startNanos;
+        previous = result;
+        current = new Decisions(nowNanos);
+      }
+      return current;
+    }
+  }
+
+  static final class Decisions {
+    final long startNanos;
+    final ConcurrentMap<String, Boolean> traces = new ConcurrentHashMap<>();
+    final AtomicInteger count = new AtomicInteger();
+
+    Decisions(long startNanos) {
+      this.startNanos = startNanos;
+    }
+
+    @Nullable Boolean get(String key) {
+      return traces.get(key);
+    }
+
+    /** Returns the existing decision, or null if this one was recorded. */
+    @Nullable Boolean putIfAbsent(String key, boolean admit) {
+      Boolean result = traces.putIfAbsent(key, admit);
+      if (result == null) count.incrementAndGet();
+      return result;
+    }
+  }
+
+  /** Holds up to one second of spans at the rate. A rate of zero is unlimited. */
+  static final class Bucket {
+    final double capacity, spansPerNano;
+    double tokens;
+    long lastNanos;
+
+    Bucket(long spansPerSecond, long nowNanos) {
+      capacity = spansPerSecond;
+      spansPerNano = spansPerSecond / 1e9;
+      tokens = capacity;
+      lastNanos = nowNanos;
+    }
+
+    /**
+     * Takes a token if available. When forced, such as for a trace already admitted, this takes
+     * one regardless, down to a debt of one second of spans.
+     */
+    synchronized boolean tryAcquire(long nowNanos, boolean force) {
+      if (capacity == 0) return true;
+      tokens = Math.min(capacity, tokens + (nowNanos - lastNanos) * spansPerNano);
+      lastNanos = nowNanos;
+      if (tokens >= 1) {
+        tokens--;
+        return true;
+      }
+      if (!force) return false;
+      tokens = Math.max(-capacity, tokens - 1);
+      return true;
+    }
+  }
+}
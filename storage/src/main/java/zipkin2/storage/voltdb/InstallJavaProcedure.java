@@ -17,19 +17,25 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.jar.JarEntry;
 import java.util.jar.JarInputStream;
 import java.util.jar.JarOutputStream;
 import java.util.zip.ZipEntry;
 import org.voltdb.client.Client;
 import org.voltdb.client.ClientResponse;
+import zipkin2.internal.Nullable;
 
 import static zipkin2.storage.voltdb.VoltDBStorage.executeAdHoc;
 
 final class InstallJavaProcedure {
   final Client client;
   final String typeName;
-  String superTypeName;
+  final List<String> supportTypeNames = new ArrayList<>();
   String partition;
   boolean addZipkin;
 
@@ -39,7 +45,12 @@ final class InstallJavaProcedure {
   }
 
   InstallJavaProcedure withSuperType(String simpleSuperTypeName) {
-    this.superTypeName = "zipkin2.storage.voltdb.procedure." + simpleSuperTypeName;
+    return withSupportType(simpleSuperTypeName);
+  }
+
+  /** Adds a type in the same package the procedure depends on, such as a helper class. */
+  InstallJavaProcedure withSupportType(String simpleTypeName) {
+    supportTypeNames.add("zipkin2.storage.voltdb.procedure." + simpleTypeName);
     return this;
   }
 
@@ -55,6 +66,64 @@ final class InstallJavaProcedure {
 
   /** This installs a procedure that has no dependencies apart from VoltDB */
   void install() throws Exception {
+    installAll(client, Collections.singletonList(this), "", null);
+  }
+
+  /** Returns the statement that creates this procedure from its class, once it is installed. */
+  String createStatement() {
+    return "CREATE PROCEDURE " + (partition != null ? (" PARTITION ON " + partition) : "")
+        + " FROM CLASS " + typeName + ";";
+  }
+
+  /** Returns the name of the procedure, which is its simple type name. */
+  String name() {
+    return typeName.substring(typeName.lastIndexOf('.') + 1);
+  }
+
+  /** Returns the statement that drops this procedure, if it exists. */
+  String dropStatement() {
+    return "DROP PROCEDURE " + name() + " IF EXISTS;";
+  }
+
+  /**
+   * Installs all procedures with one {@code @UpdateClasses} call, then applies the DDL along with
+   * statements that drop and re-create them as one {@code @AdHoc} batch. Calls in flight complete
+   * against any previous version of a procedure.
+   *
+   * <p>Each of these calls results in a catalog update, which VoltDB propagates to all hosts.
+   * Installing procedures one at a time would mean a catalog update for each jar and statement.
+   *
+   * @param ddl statements to execute before creating the procedures, such as tables they use
+   * @param jar when present, a jar that includes all procedure types, built ahead of time
+   */
+  static void installAll(Client client, List<InstallJavaProcedure> procedures, String ddl,
+      @Nullable byte[] jar) throws Exception {
+    boolean addZipkin = false;
+    Set<String> typeNames = new LinkedHashSet<>();
+    StringBuilder statements = new StringBuilder(ddl);
+    for (InstallJavaProcedure procedure : procedures) {
+      addZipkin |= procedure.addZipkin;
+      // Allow subclassing or helpers in the same package
+      typeNames.addAll(procedure.supportTypeNames);
+      typeNames.add(procedure.typeName);
+      statements.append('\n').append(procedure.dropStatement())
+          .append('\n').append(procedure.createStatement());
+    }
+
+    if (jar == null) jar = jar(addZipkin, typeNames);
+    updateClasses(client, jar, typeNames.toString());
+    executeAdHoc(client, statements.toString());
+  }
+
+  static void updateClasses(Client client, byte[] jar, String description) throws Exception {
+    ClientResponse response = client.callProcedure("@UpdateClasses", jar, null);
+    if (response.getStatus() != ClientResponse.SUCCESS) {
+      throw new RuntimeException(
+          "@UpdateClasses for " + description + " resulted in " + response.getStatus());
+    }
+  }
+
+  static byte[] jar(boolean addZipkin, Set<String> typeNames) throws IOException {
     ByteArrayOutputStream bout = new ByteArrayOutputStream();
     JarOutputStream jarOut = new JarOutputStream(bout);
 
@@ -72,36 +141,32 @@ final class InstallJavaProcedure {
     // Jar format requires that you have an entry for each part of a directory path.
     // For example, to put a class under zipkin2/storage/voltdb, you need the path entries:
     // zipkin2/, zipkin2/storage/ and zipkin2/storage/voltdb/
-    String[] paths = typeName.substring(0, typeName.lastIndexOf('.')).split("\\.");
-    StringBuilder currentDir = new StringBuilder();
-    for (int i = addZipkin ? /* skip zipkin/storage/ */ 2 : 0; i < paths.length; i++) {
-      currentDir.append(paths[i]).append('/');
-
-      jarOut.putNextEntry(new ZipEntry(currentDir.toString()));
+    Set<String> directories = new LinkedHashSet<>();
+    for (String typeName : typeNames) {
+      String[] paths = typeName.substring(0, typeName.lastIndexOf('.')).split("\\.");
+      StringBuilder currentDir = new StringBuilder();
+      for (int i = 0; i < paths.length; i++) {
+        currentDir.append(paths[i]).append('/');
+        // skip zipkin2/ and zipkin2/storage/ when they came with the zipkin jar
+        if (addZipkin && i < 2) continue;
+        if (directories.add(currentDir.toString())) {
+          jarOut.putNextEntry(new ZipEntry(currentDir.toString()));
+        }
+      }
     }
 
-    // Allow subclassing in the same package
-    if (superTypeName != null) {
-      addClass(superTypeName, jarOut);
+    for (String typeName : typeNames) {
+      addClass(typeName, jarOut);
     }
-    addClass(typeName, jarOut);
     jarOut.close();
-
-    ClientResponse response =
-        client.callProcedure("@UpdateClasses", bout.toByteArray(), null);
-    if (response.getStatus() != ClientResponse.SUCCESS) {
-      throw new RuntimeException(
-          "@UpdateClasses for " + typeName + " resulted in " + response.getStatus());
-    }
-    executeAdHoc(client, "CREATE PROCEDURE " + (partition != null ?
-        (" PARTITION ON " + partition) : "") + " FROM CLASS " + typeName + ";");
+    return bout.toByteArray();
   }
 
   /** Adds the path of the class itself, followed by the bytecode of the class */
-  void addClass(String typeName, JarOutputStream out) throws IOException {
+  static void addClass(String typeName, JarOutputStream out) throws IOException {
     String path = typeName.replace('.', '/') + ".class";
     out.putNextEntry(new ZipEntry(path));
-    ClassLoader classLoader = getClass().getClassLoader();
+    ClassLoader classLoader = InstallJavaProcedure.class.getClassLoader();
     if (classLoader == null) classLoader = ClassLoader.getSystemClassLoader();
     try (InputStream classBytes = classLoader.getResourceAsStream(path)) {
       copy(classBytes, out); // this copies the bytecode of the type we want into the jar
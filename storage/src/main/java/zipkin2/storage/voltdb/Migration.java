@@ -0,0 +1,228 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.voltdb.VoltTable;
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.client.ClientResponseWithPartitionKey;
+import org.voltdb.client.ProcCallException;
+
+import static zipkin2.storage.voltdb.VoltDBStorage.executeAdHoc;
+
+/**
+ * One step of upgrading the schema of a running cluster. Steps are applied by {@link
+ * SchemaMigrator}, which records the version after each succeeds.
+ *
+ * <p>Steps must not interrupt service: each catalog change is one {@code @AdHoc} batch, and
+ * backfills change a bounded count of rows per transaction.
+ *
+ * <p>Java procedures are always installed from their current classes, which may use anything any
+ * step adds. So steps that {@link #expands() only add} to the schema are applied before all
+ * others, and procedures are replaced once, by the first pending {@link #procedures(int, String)
+ * procedures step}. Steps that remove from the schema are {@link #cleanup(int, String, String)
+ * cleanup} steps, ordered after the procedures step that stops using what they remove.
+ */
+abstract class Migration {
+  final int version;
+  final String description;
+
+  Migration(int version, String description) {
+    this.version = version;
+    this.description = description;
+  }
+
+  /** Applies this step, renewing the migrator's lease before anything long-running. */
+  abstract void apply(Client client, SchemaMigrator migrator) throws Exception;
+
+  /**
+   * Returns false when a new install can skip this step, and only record its version. A new
+   * install creates all procedures from their current classes once migrations are applied, and
+   * has no rows to backfill. Installing a current class earlier could fail, as its statements may
+   * use columns that later steps add.
+   */
+  boolean appliesToNewInstall() {
+    return true;
+  }
+
+  /**
+   * Returns true when this step only adds to the schema, so that procedures installed before or
+   * after it are unaffected. These steps are applied ahead of earlier steps that aren't.
+   */
+  boolean expands() {
+    return false;
+  }
+
+  /**
+   * Returns true when this step creates the lease that {@link SchemaMigrator} holds while applying
+   * the others. Such a step is applied before taking the lease, possibly by several servers at
+   * once, so it must tolerate finding its changes already made.
+   */
+  boolean precedesLease() {
+    return false;
+  }
+
+  /** Returns true when this step replaces all procedures with their current classes. */
+  boolean replacesProcedures() {
+    return false;
+  }
+
+  /**
+   * Applies statements that only add to the schema, such as those that add a table, a nullable
+   * column or an index, as one catalog update. ID columns are declared as hex, and rewritten when
+   * the schema has binary IDs.
+   */
+  static Migration ddl(int version, String description, String statements) {
+    return new Migration(version, description) {
+      @Override void apply(Client client, SchemaMigrator migrator) throws Exception {
+        executeAdHoc(client, migrator.binaryIds ? Schema.binaryIds(statements) : statements);
+      }
+
+      @Override boolean expands() {
+        return true;
+      }
+    };
+  }
+
+  /**
+   * Applies statements that create the lease table, along with {@link
+   * Schema#PROCEDURE_ACQUIRE_LEASE}, as one catalog update. Does nothing when another server
+   * created them first.
+   */
+  static Migration lease(int version, String description, String statements) {
+    return new Migration(version, description) {
+      @Override void apply(Client client, SchemaMigrator migrator) throws Exception {
+        try {
+          migrator.installAll(Collections.singletonList(
+              new InstallJavaProcedure(client, Schema.PROCEDURE_ACQUIRE_LEASE)), statements);
+        } catch (ProcCallException e) {
+          if (!e.getMessage().contains("already exists")) throw e;
+        }
+      }
+
+      @Override boolean precedesLease() {
+        return true;
+      }
+    };
+  }
+
+  /**
+   * Applies statements that remove from the schema, such as those that drop a procedure, as one
+   * catalog update. This must follow the procedures step that stops using what it removes. Don't
+   * drop columns of large tables here, as VoltDB rewrites every row while blocking the cluster.
+   */
+  static Migration cleanup(int version, String description, String statements) {
+    return new Migration(version, description) {
+      @Override void apply(Client client, SchemaMigrator migrator) throws Exception {
+        executeAdHoc(client, migrator.binaryIds ? Schema.binaryIds(statements) : statements);
+      }
+    };
+  }
+
+  /**
+   * Replaces the classes of all procedures in {@link Schema#procedures(Client, boolean)}, then
+   * drops and re-creates them in one catalog update. Calls in flight complete against the previous
+   * version. As current classes are installed, only the first pending step of this kind applies.
+   * When installed from the packaged jar, its stamp is recorded, so that it isn't installed again.
+   */
+  static Migration procedures(int version, String description) {
+    return new Migration(version, description) {
+      @Override void apply(Client client, SchemaMigrator migrator) throws Exception {
+        migrator.installAll(Schema.procedures(client, migrator.binaryIds), "");
+        if (migrator.jar != null) Schema.recordStamp(client, migrator.jar.stamp);
+      }
+
+      @Override boolean replacesProcedures() {
+        return true;
+      }
+
+      @Override boolean appliesToNewInstall() {
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Installs the procedure from its current class, then invokes it on all partitions until none
+   * report changed rows. The procedure accepts a batch size, such as the maximum traces to change,
+   * and returns the count of rows changed as a scalar.
+   */
+  static Migration backfill(int version, String description, String procedure, int batchSize) {
+    return backfill(version, description, procedure, batchSize, true);
+  }
+
+  /**
+   * Like {@link #backfill(int, String, String, int)}, except that a procedure that isn't
+   * partitioned, such as one that writes replicated tables, is invoked once per batch.
+   */
+  static Migration backfill(int version, String description, String procedure, int batchSize,
+      boolean partitioned) {
+    if (batchSize < 1) throw new IllegalArgumentException("batchSize < 1");
+    return new Migration(version, description) {
+      @Override void apply(Client client, SchemaMigrator migrator) throws Exception {
+        String name = Schema.procedure(procedure, migrator.binaryIds);
+        install(client, migrator, name);
+        long changed;
+        do {
+          migrator.renew();
+          changed = 0L;
+          List<ClientResponse> results = new ArrayList<>();
+          if (partitioned) {
+            for (ClientResponseWithPartitionKey response :
+                client.callAllPartitionProcedure(name, batchSize)) {
+              results.add(response.response);
+            }
+          } else {
+            results.add(client.callProcedure(name, batchSize));
+          }
+          for (ClientResponse result : results) {
+            if (result.getStatus() != ClientResponse.SUCCESS) {
+              throw new RuntimeException(name + " resulted in " + result.getStatusString());
+            }
+            VoltTable[] tables = result.getResults();
+            if (tables.length > 0) changed += tables[0].asScalarLong();
+          }
+        } while (changed > 0L);
+      }
+
+      @Override boolean appliesToNewInstall() {
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Installs the named procedure, which may be one only used while migrating. Its class is
+   * current, so it may only use what steps before the backfill added.
+   */
+  static void install(Client client, SchemaMigrator migrator, String name) throws Exception {
+    List<InstallJavaProcedure> candidates = new ArrayList<>();
+    candidates.addAll(Schema.procedures(client, migrator.binaryIds));
+    candidates.addAll(Schema.migrationProcedures(client, migrator.binaryIds));
+    for (InstallJavaProcedure procedure : candidates) {
+      if (procedure.name().equals(name)) {
+        migrator.installAll(Collections.singletonList(procedure), "");
+        return;
+      }
+    }
+    throw new IllegalStateException("unknown procedure " + name);
+  }
+
+  @Override public String toString() {
+    return version + ": " + description;
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.voltdb.VoltTable;
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.client.ProcCallException;
+import org.voltdb.client.ProcedureCallback;
+import zipkin2.Callback;
+import zipkin2.internal.Nullable;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static zipkin2.storage.voltdb.Schema.PROCEDURE_GET_NAME_ID;
+import static zipkin2.storage.voltdb.Schema.PROCEDURE_RESOLVE_NAME;
+
+/**
+ * Caches the IDs spans store instead of service and span names. IDs never change once assigned,
+ * so entries don't expire. There are typically few hundred service names, but span names can be
+ * many: past {@link #maxSize} entries, the least recently used name is evicted.
+ *
+ * <p>{@link Schema#PROCEDURE_RESOLVE_NAME} writes a replicated table, so is a multi-partition
+ * transaction. Storing spans {@link #resolveAll resolves} missing names without blocking the
+ * caller, as waiting on each would serialize ingest.
+ */
+final class NameDictionary implements Closeable {
+  /** Query parameter for a name that isn't in the dictionary, so matches no spans. */
+  static final int UNKNOWN_ID = -1;
+  /** Stores waiting on {@link #storeExecutor}, past which they fail instead of queueing. */
+  static final int MAX_PENDING_STORES = 10_000;
+
+  final Map<String, Integer> ids; // guarded by itself
+  final int maxSize;
+  /** Stores spans once their names resolve, as that completes on the client's network thread. */
+  final ExecutorService storeExecutor;
+
+  NameDictionary(int maxSize) {
+    this.maxSize = maxSize;
+    this.ids = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+      @Override protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+        return size() > NameDictionary.this.maxSize;
+      }
+    };
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60L, SECONDS,
+        new LinkedBlockingQueue<Runnable>(MAX_PENDING_STORES), r -> {
+      Thread thread = new Thread(r, "zipkin-voltdb-names");
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.allowCoreThreadTimeOut(true);
+    this.storeExecutor = executor;
+  }
+
+  /** Returns the cached ID of the name, or null if it is null or not cached. */
+  @Nullable Integer get(@Nullable String name) {
+    if (name == null) return null;
+    synchronized (ids) {
+      return ids.get(name);
+    }
+  }
+
+  /** Returns the ID of the name, adding it to the dictionary if absent, or null if it is null. */
+  @Nullable Integer resolve(Client client, @Nullable String name) throws IOException {
+    if (name == null) return null;
+    Integer result = get(name);
+    if (result != null) return result;
+    result = (int) call(client, PROCEDURE_RESOLVE_NAME, name).asScalarLong();
+    cache(name, result);
+    return result;
+  }
+
+  /**
+   * Resolves the names with one call each, made without waiting on the others. The callback
+   * receives their IDs once all complete, or the first error. It is invoked on the client's network
+   * thread, so must not block.
+   */
+  void resolveAll(Client client, int timeoutMillis, Collection<String> names,
+      Callback<Map<String, Integer>> callback) {
+    if (names.isEmpty()) {
+      callback.onSuccess(Collections.<String, Integer>emptyMap());
+      return;
+    }
+    Map<String, Integer> result = new ConcurrentHashMap<>();
+    AtomicInteger remaining = new AtomicInteger(names.size());
+    AtomicBoolean failed = new AtomicBoolean();
+    for (String name : names) {
+      ProcedureCallback resolved = response -> {
+        if (response.getStatus() != ClientResponse.SUCCESS) {
+          if (failed.compareAndSet(false, true)) {
+            callback.onError(new IOException(PROCEDURE_RESOLVE_NAME + "(" + name + ") returned "
+                + response.getStatusString()));
+          }
+          return;
+        }
+        int id = (int) response.getResults()[0].asScalarLong();
+        cache(name, id);
+        result.put(name, id);
+        if (remaining.decrementAndGet() == 0 && !failed.get()) callback.onSuccess(result);
+      };
+      boolean queued;
+      try {
+        queued =
+            client.callProcedureWithTimeout(resolved, timeoutMillis, PROCEDURE_RESOLVE_NAME, name);
+      } catch (IOException e) {
+        if (failed.compareAndSet(false, true)) callback.onError(e);
+        return;
+      }
+      if (!queued) {
+        if (failed.compareAndSet(false, true)) {
+          callback.onError(new IOException(PROCEDURE_RESOLVE_NAME + " not queued"));
+        }
+        return;
+      }
+    }
+  }
+
+  /**
+   * Returns the ID of the name to query by, zero when it is null, or {@link #UNKNOWN_ID} if no span
+   * has it. Unknown names aren't cached, as spans may be stored with them later.
+   */
+  int find(Client client, @Nullable String name) throws IOException {
+    if (name == null) return 0;
+    Integer result = get(name);
+    if (result != null) return result;
+    VoltTable table = call(client, PROCEDURE_GET_NAME_ID, name);
+    if (!table.advanceRow()) return UNKNOWN_ID;
+    result = (int) table.getLong(0);
+    cache(name, result);
+    return result;
+  }
+
+  void cache(String name, Integer id) {
+    synchronized (ids) {
+      ids.put(name, id);
+    }
+  }
+
+  static VoltTable call(Client client, String procedure, String name) throws IOException {
+    ClientResponse response;
+    try {
+      response = client.callProcedure(procedure, name);
+    } catch (ProcCallException e) {
+      throw new IOException(procedure + "(" + name + ") failed: " + e.getMessage(), e);
+    }
+    return response.getResults()[0];
+  }
+
+  /** Lets stores already waiting enqueue, so that closing the clients drains them. */
+  @Override public void close() {
+    storeExecutor.shutdown();
+    try {
+      storeExecutor.awaitTermination(1, SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
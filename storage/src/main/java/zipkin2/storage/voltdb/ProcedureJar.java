@@ -0,0 +1,110 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
+import java.util.jar.Manifest;
+import zipkin2.internal.Nullable;
+import zipkin2.storage.voltdb.procedure.Ids;
+
+/**
+ * The procedure jar built by the {@code zipkin-storage-voltdb-procedures} module, when it is on the
+ * classpath. Servers that package it install it as-is, instead of assembling one at runtime.
+ *
+ * <p>The {@link #stamp} identifies the contents of the jar, so that a schema update can be skipped
+ * when the cluster already has it. It doesn't change when the same classes are built again.
+ */
+final class ProcedureJar {
+  static final String RESOURCE = "/zipkin2/storage/voltdb/procedures.jar";
+
+  /** Returns null when the resource isn't packaged, such as in tests of this module. */
+  @Nullable static ProcedureJar load() throws IOException {
+    return load(ProcedureJar.class.getResourceAsStream(RESOURCE));
+  }
+
+  @Nullable static ProcedureJar load(@Nullable InputStream stream) throws IOException {
+    if (stream == null) return null;
+    byte[] bytes;
+    try {
+      bytes = readAll(stream);
+    } finally {
+      stream.close();
+    }
+    return new ProcedureJar(bytes, stamp(bytes));
+  }
+
+  /**
+   * Returns the version and a SHA-256 of the entries in the jar, ex "2.12.8@9f86d0...". Entries
+   * are hashed by name and contents, in name order, so timestamps in the jar don't affect it.
+   */
+  static String stamp(byte[] jar) throws IOException {
+    JarInputStream in = new JarInputStream(new ByteArrayInputStream(jar));
+    try {
+      Manifest manifest = in.getManifest();
+      String version = manifest != null
+          ? manifest.getMainAttributes().getValue(Attributes.Name.IMPLEMENTATION_VERSION) : null;
+      if (version == null) {
+        throw new IOException(RESOURCE + " is missing version attributes in its manifest");
+      }
+      SortedMap<String, byte[]> entries = new TreeMap<>();
+      for (JarEntry entry; (entry = in.getNextJarEntry()) != null; ) {
+        if (!entry.isDirectory()) entries.put(entry.getName(), readAll(in));
+      }
+      MessageDigest sha256 = sha256();
+      for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+        sha256.update(entry.getKey().getBytes("UTF-8"));
+        sha256.update((byte) 0);
+        sha256.update(entry.getValue());
+      }
+      return version + "@" + Ids.hex(sha256.digest());
+    } finally {
+      in.close();
+    }
+  }
+
+  /** Reads until the end of the stream, or of the current entry of a jar. */
+  static byte[] readAll(InputStream stream) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    for (int read; (read = stream.read(buffer)) != -1; ) out.write(buffer, 0, read);
+    return out.toByteArray();
+  }
+
+  static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e); // all JREs support SHA-256
+    }
+  }
+
+  final byte[] bytes;
+  final String stamp;
+
+  ProcedureJar(byte[] bytes, String stamp) {
+    this.bytes = bytes;
+    this.stamp = stamp;
+  }
+}
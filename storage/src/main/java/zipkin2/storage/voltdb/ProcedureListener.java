@@ -0,0 +1,60 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb;
+
+import org.voltdb.client.ClientResponse;
+
+/**
+ * Receives the response of each procedure invoked by the span store or consumer, for example to
+ * record latency metrics.
+ *
+ * <p>This is invoked on the VoltDB client's network thread for asynchronous calls, so
+ * implementations should be cheap and must be thread-safe.
+ */
+public abstract class ProcedureListener {
+  /** The default, which skips any timing overhead. */
+  public static final ProcedureListener NOOP = new ProcedureListener() {
+    @Override public void onResponse(String procedure, Object[] parameters,
+        ClientResponse response, long convertNanos) {
+    }
+
+    @Override public String toString() {
+      return "NoopProcedureListener";
+    }
+  };
+
+  /**
+   * Called after a procedure responded and its results were converted, even if the procedure
+   * failed.
+   *
+   * <p>{@link ClientResponse#getClientRoundtripNanos()} less {@link
+   * ClientResponse#getClusterRoundtrip()} is the time the request spent queued in the client or in
+   * transit.
+   *
+   * @param procedure the name of the stored procedure
+   * @param parameters the procedure's parameters, which must not be modified
+   * @param response includes status and round-trip times
+   * @param convertNanos duration of converting results into the call's type, or zero when the
+   * response was not successful.
+   */
+  public abstract void onResponse(String procedure, Object[] parameters, ClientResponse response,
+      long convertNanos);
+
+  /**
+   * Called after {@link #onResponse} when the call was canceled while in flight. Its results were
+   * not converted, so {@code convertNanos} was zero. Does nothing by default.
+   */
+  public void onCanceled(String procedure, Object[] parameters, ClientResponse response) {
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientStatusListenerExt;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Re-establishes connections to configured hosts, doubling the delay between attempts up to a
+ * maximum. Hosts discovered through topology awareness are left to the client, which connects to
+ * them again when they rejoin the cluster.
+ *
+ * <p>All connection attempts, including those of {@link VoltDBStorage#connect()}, are guarded by
+ * the storage component, so a host is never connected twice.
+ */
+final class Reconnector extends ClientStatusListenerExt {
+  static final Logger LOG = Logger.getLogger(Reconnector.class.getName());
+
+  final VoltDBStorage storage;
+  final long initialBackoffMillis, maxBackoffMillis;
+  volatile Client client; // assigned on connect, as the client is created with this listener
+  /** False until the client connects to any host, and again once it has no connections left. */
+  volatile boolean clientConnected;
+  final Set<String> connectedHosts =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  final Set<String> retryingHosts =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  /** The next reconnect of each retrying host, so that {@link #close()} can cancel it. */
+  final ConcurrentMap<String, ScheduledFuture<?>> scheduled = new ConcurrentHashMap<>();
+  final ScheduledExecutorService executor = new ScheduledThreadPoolExecutor(1, r -> {
+    Thread thread = new Thread(r, "zipkin-voltdb-reconnect");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  Reconnector(VoltDBStorage storage, long initialBackoffMillis, long maxBackoffMillis) {
+    this.storage = storage;
+    this.initialBackoffMillis = initialBackoffMillis;
+    this.maxBackoffMillis = maxBackoffMillis;
+  }
+
+  /**
+   * Connects to any of the hosts not already connected, and schedules a retry of those that fail.
+   * This only throws when there are no connections at all.
+   */
+  void connect(Client client, List<String> hosts) { // guarded by storage
+    this.client = client;
+    Exception lastError = null;
+    for (String host : hosts) {
+      if (connectedHosts.contains(host)) continue;
+      try {
+        client.createConnection(host);
+        connected(host);
+      } catch (Exception e) {
+        lastError = e;
+        LOG.log(Level.FINE, "Unable to connect to " + host + ": " + e.getMessage(), e);
+        retry(host);
+      }
+    }
+    if (connectedHosts.isEmpty() && lastError != null) {
+      throw new RuntimeException("Unable to establish connection to VoltDB server", lastError);
+    }
+  }
+
+  @Override public void connectionLost(String hostname, int port, int connectionsLeft,
+      DisconnectCause cause) {
+    if (storage.closeCalled) return;
+    String host = VoltDBStorage.hostAndPort(hostname, port);
+    LOG.warning("Lost connection to " + host + " (" + cause + "), "
+        + connectionsLeft + " connections left");
+    if (connectionsLeft == 0) {
+      clientConnected = false;
+      // Once no client has a connection, the next caller re-runs initialization, such as schema
+      // checks. Until then, calls can still succeed with other clients of the pool.
+      if (!storage.anyClientConnected()) storage.connected = false;
+    }
+    if (connectedHosts.remove(host)) retry(host);
+  }
+
+  /** Notices hosts the client connected to itself, such as those discovered by topology. */
+  @Override public void connectionCreated(String hostname, int port,
+      AutoConnectionStatus status) {
+    if (status == AutoConnectionStatus.SUCCESS) clientConnected = true;
+  }
+
+  void connected(String host) {
+    clientConnected = true;
+    connectedHosts.add(host);
+    retryingHosts.remove(host);
+    scheduled.remove(host);
+  }
+
+  /** Schedules a reconnect unless one is already pending for this host. */
+  void retry(String host) {
+    if (retryingHosts.add(host)) schedule(host, initialBackoffMillis);
+  }
+
+  void schedule(String host, long backoffMillis) {
+    if (storage.closeCalled) return;
+    try {
+      scheduled.put(host,
+          executor.schedule(() -> reconnect(host, backoffMillis), backoffMillis, MILLISECONDS));
+    } catch (RejectedExecutionException e) {
+      // closed concurrently
+    }
+  }
+
+  void reconnect(String host, long backoffMillis) {
+    synchronized (storage) {
+      if (storage.closeCalled || !retryingHosts.contains(host)) return;
+      try {
+        client.createConnection(host);
+        connected(host);
+        LOG.info("Reconnected to " + host);
+        return;
+      } catch (Exception e) {
+        LOG.log(Level.FINE, "Unable to reconnect to " + host + ": " + e.getMessage(), e);
+      }
+    }
+    schedule(host, Math.min(backoffMillis * 2, maxBackoffMillis));
+  }
+
+  void close() {
+    for (ScheduledFuture<?> reconnect : scheduled.values()) reconnect.cancel(true);
+    scheduled.clear();
+    executor.shutdownNow();
+  }
+}
@@ -13,76 +13,398 @@
  */
 package zipkin2.storage.voltdb;
 
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Scanner;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
 import org.voltdb.client.Client;
 import org.voltdb.client.ProcCallException;
+import zipkin2.internal.Nullable;
+import zipkin2.storage.voltdb.procedure.Ids;
 
 import static zipkin2.storage.voltdb.VoltDBStorage.executeAdHoc;
 
 public final class Schema {
   static final Logger LOG = Logger.getLogger(Schema.class.getName());
   static final String SCHEMA_RESOURCE = "/ddl.sql";
+  static final String PROCEDURE_JAR_NAME = "zipkin";
+  static final Pattern ID_COLUMN =
+      Pattern.compile("\\b((?:trace_|parent_)?id(?:_low)?) VARCHAR\\((16|32)\\)");
+
+  /**
+   * {@link org.voltdb.client.ClientResponse#getAppStatus() App status} of {@link
+   * #PROCEDURE_STORE_SPAN} when the span was dropped, as its trace is over the span cap. The first
+   * span dropped from a pending trace has {@link #APP_STATUS_TRACE_CAPPED} instead.
+   */
+  public static final byte APP_STATUS_SPAN_DROPPED = 1, APP_STATUS_TRACE_CAPPED = 2;
+  /**
+   * Most service names {@link #PROCEDURE_DOWNSAMPLE_COMPLETE_TRACES} keeps traces of, as it looks
+   * them up in one batch. It aborts when passed more.
+   */
+  public static final int MAX_DOWNSAMPLE_KEEP_SERVICES = Ids.MAX_BATCH_SIZE;
   public static final String
       TABLE_SPAN = "Span",
       TABLE_PENDING_TRACE = "PendingTrace",
       TABLE_COMPLETE_TRACE = "CompleteTrace",
       TABLE_DEPENDENCY_LINK = "DependencyLink",
-      PROCEDURE_STORE_SPAN = "StoreSpansJson",
+      TABLE_SCHEDULER_LEASE = "SchedulerLease",
+      TABLE_PROCEDURE_JAR = "ProcedureJar",
+      TABLE_SCHEMA_VERSION = "SchemaVersion",
+      TABLE_NAME_DICTIONARY = "NameDictionary",
+      TABLE_PENDING_COMPACTION = "PendingCompaction",
+      TABLE_COMPACTED_TRACE = "CompactedTrace",
+      TABLE_COMPACTED_SPAN_NAME = "CompactedSpanName",
+      PROCEDURE_STORE_SPAN = "StoreSpansJsonCapped",
+      PROCEDURE_STORE_SPAN_UNCAPPED = "StoreSpansJson",
       PROCEDURE_GET_SPAN = "GetSpanJson",
+      PROCEDURE_GET_TRACE = "GetTrace",
+      PROCEDURE_GET_TRACE_LOW = "GetTraceByTraceIdLow",
       PROCEDURE_GET_SERVICE_NAMES = "GetServiceNames",
       PROCEDURE_GET_SPAN_NAMES = "GetSpanNames",
       PROCEDURE_GET_SPANS = "GetSpansJson",
       PROCEDURE_GET_DEPENDENCY_LINKS = "GetDependencyLinks",
       PROCEDURE_LINK_TRACE = "LinkTrace",
       PROCEDURE_COMPLETE_PENDING_TRACES = "CompletePendingTraces",
-      PROCEDURE_LINK_COMPLETE_TRACES = "LinkCompleteTraces";
+      PROCEDURE_LINK_COMPLETE_TRACES = "LinkCompleteTraces",
+      PROCEDURE_DOWNSAMPLE_COMPLETE_TRACES = "DownsampleCompleteTraces",
+      PROCEDURE_COMPACT_TRACES = "CompactTraces",
+      PROCEDURE_GET_COLD_TRACES = "GetColdTraces",
+      PROCEDURE_DELETE_SPILLED_TRACES = "DeleteSpilledTraces",
+      PROCEDURE_GET_BACKLOG = "GetBacklog",
+      PROCEDURE_BACKFILL_TRACE_ID_LOW = "BackfillTraceIdLow",
+      PROCEDURE_RESOLVE_NAME = "ResolveName",
+      PROCEDURE_GET_NAME_ID = "GetNameId",
+      PROCEDURE_BACKFILL_NAME_DICTIONARY = "BackfillNameDictionary",
+      PROCEDURE_BACKFILL_NAME_IDS = "BackfillNameIds",
+      PROCEDURE_ACQUIRE_LEASE = "AcquireLease",
+      PROCEDURE_RELEASE_LEASE = "ReleaseLease";
+
+  /**
+   * Steps that upgrade clusters installed from an earlier {@link #SCHEMA_RESOURCE}, which is
+   * version zero. New installs apply these, too, so that there is one path to the latest schema.
+   *
+   * <p>Steps that add to the schema come first, as the procedures step installs current classes,
+   * which use all of it. Backfills follow, then cleanup of what current classes no longer use.
+   * Servers that haven't been upgraded keep working until the procedures step. After it, those
+   * that predate name IDs fail to store spans, as {@link #PROCEDURE_STORE_SPAN_UNCAPPED} takes
+   * name IDs instead of names. Stop such servers before starting upgraded ones. Otherwise, a
+   * procedure whose parameters change gets a new name, and the old one is kept for servers that
+   * haven't been upgraded.
+   */
+  static final List<Migration> MIGRATIONS = Arrays.asList(
+      // Elects which zipkin server migrates the schema, or invokes scheduled procedures.
+      // Replicated, as it is tiny and read by all servers.
+      Migration.lease(1, "Add leases that elect one server for background work", "CREATE TABLE "
+          + TABLE_SCHEDULER_LEASE + " (name VARCHAR(64) NOT NULL, holder VARCHAR(255) NOT NULL,"
+          + " expire_ts TIMESTAMP NOT NULL, PRIMARY KEY (name));\n"
+          + "CREATE PROCEDURE " + PROCEDURE_RELEASE_LEASE + " AS DELETE FROM "
+          + TABLE_SCHEDULER_LEASE + " WHERE name = ? AND holder = ?;"),
+      // StoreSpansJson flags a trace when its root span finishes, so that CompletePendingTraces
+      // checks it first. The index lets it read flagged traces, then the oldest, without a sort.
+      Migration.ddl(2, "Flag pending traces whose root span finished", "ALTER TABLE "
+          + TABLE_PENDING_TRACE + " ADD COLUMN root_finished TINYINT DEFAULT 0 NOT NULL;\n"
+          + "CREATE INDEX " + TABLE_PENDING_TRACE + "_root_finished_update_ts ON "
+          + TABLE_PENDING_TRACE + " (root_finished, update_ts);"),
+      Migration.ddl(3, "Record the installed procedure jar", "CREATE TABLE " + TABLE_PROCEDURE_JAR
+          + " (name VARCHAR(64) NOT NULL, stamp VARCHAR(255) NOT NULL, PRIMARY KEY (name));"),
+      // Spans are partitioned on the full trace ID, so the lower 64 bits are looked up across
+      // partitions, using an index instead of a scan.
+      Migration.ddl(4, "Index the lower 64 bits of trace IDs",
+          "ALTER TABLE " + TABLE_SPAN + " ADD COLUMN trace_id_low VARCHAR(16);\n"
+              + "CREATE INDEX Span_trace_id_low ON " + TABLE_SPAN + " (trace_id_low);"),
+      // Service and span names repeat on every span, so spans store their ID in a replicated
+      // dictionary instead. The backfill clears names of existing spans as it sets their IDs.
+      Migration.ddl(5, "Add a dictionary of service and span names", "CREATE TABLE "
+          + TABLE_NAME_DICTIONARY + " (id INTEGER NOT NULL, name VARCHAR(255) NOT NULL,"
+          + " PRIMARY KEY (id));\n"
+          + "CREATE UNIQUE INDEX " + TABLE_NAME_DICTIONARY + "_name ON " + TABLE_NAME_DICTIONARY
+          + " (name);\n"
+          + "CREATE PROCEDURE " + PROCEDURE_GET_NAME_ID + " AS SELECT id FROM "
+          + TABLE_NAME_DICTIONARY + " WHERE name = ?;\n"
+          + "ALTER TABLE " + TABLE_SPAN + " ADD COLUMN service_name_id INTEGER;\n"
+          + "ALTER TABLE " + TABLE_SPAN + " ADD COLUMN remote_service_name_id INTEGER;\n"
+          + "ALTER TABLE " + TABLE_SPAN + " ADD COLUMN name_id INTEGER;"),
+      // Once linked, a trace is rarely updated, so its spans are merged into one compressed row.
+      // Span names of compacted traces are kept in a table of their own, so they can be searched.
+      Migration.ddl(6, "Add tables for compacted traces", "CREATE TABLE "
+          + TABLE_PENDING_COMPACTION + " (trace_id VARCHAR(32) NOT NULL, PRIMARY KEY (trace_id));\n"
+          + "PARTITION TABLE " + TABLE_PENDING_COMPACTION + " ON COLUMN trace_id;\n"
+          + "CREATE TABLE " + TABLE_COMPACTED_TRACE + " (trace_id VARCHAR(32) NOT NULL,"
+          + " trace_id_low VARCHAR(16), ts TIMESTAMP, spans VARBINARY(1048576) NOT NULL,"
+          + " PRIMARY KEY (trace_id));\n"
+          + "PARTITION TABLE " + TABLE_COMPACTED_TRACE + " ON COLUMN trace_id;\n"
+          + "CREATE INDEX " + TABLE_COMPACTED_TRACE + "_trace_id_low ON " + TABLE_COMPACTED_TRACE
+          + " (trace_id_low);\n"
+          + "CREATE TABLE " + TABLE_COMPACTED_SPAN_NAME + " (trace_id VARCHAR(32) NOT NULL,"
+          + " service_name_id INTEGER, remote_service_name_id INTEGER, name_id INTEGER,"
+          + " ts TIMESTAMP);\n"
+          + "PARTITION TABLE " + TABLE_COMPACTED_SPAN_NAME + " ON COLUMN trace_id;\n"
+          + "CREATE INDEX " + TABLE_COMPACTED_SPAN_NAME + "_trace_id ON "
+          + TABLE_COMPACTED_SPAN_NAME + " (trace_id);"),
+      // The oldest compacted traces are read in timestamp order when moving them to the cold tier
+      Migration.ddl(7, "Index timestamps of compacted traces", "CREATE INDEX "
+          + TABLE_COMPACTED_TRACE + "_ts ON " + TABLE_COMPACTED_TRACE + " (ts);"),
+      Migration.ddl(8, "Count spans of pending traces", "ALTER TABLE " + TABLE_PENDING_TRACE
+          + " ADD COLUMN span_count INTEGER DEFAULT 0 NOT NULL;\n"
+          + "ALTER TABLE " + TABLE_PENDING_TRACE
+          + " ADD COLUMN dropped_span_count INTEGER DEFAULT 0 NOT NULL;"),
+      Migration.procedures(9, "Replace procedures with those that use the above"),
+      Migration.backfill(10, "Backfill the lower 64 bits of trace IDs",
+          PROCEDURE_BACKFILL_TRACE_ID_LOW, 1000),
+      Migration.backfill(11, "Add names of existing spans to the dictionary",
+          PROCEDURE_BACKFILL_NAME_DICTIONARY, 1000, false),
+      Migration.backfill(12, "Backfill name IDs of existing spans",
+          PROCEDURE_BACKFILL_NAME_IDS, 1000, true),
+      // The name columns are left in place, holding nulls, as dropping a column of the span
+      // table blocks the cluster while every row is rewritten. See the README to drop them offline.
+      Migration.cleanup(13, "Drop procedures that read name columns", "DROP PROCEDURE "
+          + PROCEDURE_GET_SPAN_NAMES + ";\n"
+          + "CREATE PROCEDURE " + PROCEDURE_GET_SPAN_NAMES + " AS " + spanNames(TABLE_SPAN)
+          + " UNION " + spanNames(TABLE_COMPACTED_SPAN_NAME) + ";\n"
+          + "DROP PROCEDURE " + PROCEDURE_GET_SPAN + ";\n"
+          + "DROP PROCEDURE " + PROCEDURE_BACKFILL_NAME_DICTIONARY + " IF EXISTS;\n"
+          + "DROP PROCEDURE " + PROCEDURE_BACKFILL_NAME_IDS + " IF EXISTS;\n"
+          + "DROP PROCEDURE " + procedure(PROCEDURE_BACKFILL_NAME_IDS, true) + " IF EXISTS;"),
+      Migration.procedures(14, "Store spans with a span cap under a new name"),
+      // Complete traces not yet linked are counted by GetBacklog and read in trace ID order by
+      // LinkCompleteTraces. Once linked, a trace leaves the index, which stays small.
+      Migration.ddl(15, "Index complete traces not yet linked", "CREATE INDEX "
+          + TABLE_COMPLETE_TRACE + "_unlinked ON " + TABLE_COMPLETE_TRACE
+          + " (trace_id) WHERE process_ts IS NULL;")
+  );
 
-  static void ensureExists(Client client, String host) {
+  /** Returns a query for span names of a service, where names in the table are dictionary IDs. */
+  static String spanNames(String table) {
+    return "SELECT d.name FROM " + table + " s INNER JOIN " + TABLE_NAME_DICTIONARY
+        + " d ON d.id = s.name_id WHERE s.service_name_id = ? OR s.remote_service_name_id = ?";
+  }
+
+  /**
+   * Installs {@link #SCHEMA_RESOURCE} if needed, then applies {@link #MIGRATIONS}. Java procedures
+   * are created after migrations on a new install, as their statements may use columns that
+   * migrations add. {@link #PROCEDURE_ACQUIRE_LEASE} is the exception: the first migration creates
+   * it, as the others are applied under a lease.
+   */
+  static void ensureExists(Client client, String host, boolean binaryIds) {
+    ProcedureJar jar = null;
     try {
-      executeAdHoc(client, "Select count(*) from " + Schema.TABLE_SPAN);
+      jar = ProcedureJar.load();
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Ignoring " + ProcedureJar.RESOURCE + ": " + e.getMessage(), e);
+    }
+    SchemaMigrator migrator = new SchemaMigrator(client, MIGRATIONS, binaryIds, jar);
+    boolean install = false;
+    long startMillis = System.currentTimeMillis();
+    try {
+      VoltTable traceIds =
+          executeAdHoc(client, "Select trace_id from " + Schema.TABLE_SPAN + " LIMIT 1")
+              .getResults()[0];
+      if ((traceIds.getColumnType(0) == VoltType.VARBINARY) != binaryIds) {
+        LOG.severe("Schema on host " + host + " was installed with binaryIds="
+            + !binaryIds + ", but this server has binaryIds=" + binaryIds);
+        return;
+      }
     } catch (ProcCallException e) {
-      if (e.getMessage().contains("object not found")) {
-        LOG.info("Installing schema " + SCHEMA_RESOURCE + " on host " + host);
-        try {
-          applySqlFile(client, SCHEMA_RESOURCE);
-
-          // Install Java procedures. Note: we intentionally don't reference the types
-          // If we did, we'd depend on the very large voltdb server jar at runtime.
-          new InstallJavaProcedure(client, PROCEDURE_GET_SERVICE_NAMES).install();
-          new InstallJavaProcedure(client, PROCEDURE_GET_SPANS).install();
-          new InstallJavaProcedure(client, PROCEDURE_STORE_SPAN)
-              .withPartition("TABLE " + Schema.TABLE_SPAN + " COLUMN trace_id")
-              .install();
-          new InstallJavaProcedure(client, PROCEDURE_LINK_TRACE)
-              .withPartition("TABLE " + Schema.TABLE_DEPENDENCY_LINK + " COLUMN trace_id")
-              .withSuperType("BaseLinkTrace")
-              .addZipkin()
-              .install();
-          new InstallJavaProcedure(client, PROCEDURE_COMPLETE_PENDING_TRACES)
-              .withPartition("TABLE " + Schema.TABLE_PENDING_TRACE + " COLUMN trace_id")
-              .install();
-          new InstallJavaProcedure(client, PROCEDURE_LINK_COMPLETE_TRACES)
-              .withPartition("TABLE " + Schema.TABLE_COMPLETE_TRACE + " COLUMN trace_id")
-              .withSuperType("BaseLinkTrace")
-              .addZipkin()
-              .install();
-        } catch (Exception e1) {
-          LOG.log(Level.SEVERE, e.getMessage(), e1);
-        }
+      if (!e.getMessage().contains("object not found")) {
+        LOG.log(Level.SEVERE, e.getMessage(), e);
+        return;
+      }
+      LOG.info("Installing schema " + SCHEMA_RESOURCE + " on host " + host
+          + (binaryIds ? " with binary IDs" : ""));
+      try {
+        String ddl = readSqlFile(SCHEMA_RESOURCE);
+        executeAdHoc(client, binaryIds ? binaryIds(ddl) : ddl);
+        migrator.reset();
+        install = true;
+      } catch (Exception e1) {
+        LOG.log(Level.SEVERE, e.getMessage(), e1);
+        return;
+      }
+    } catch (Exception e) {
+      LOG.log(Level.SEVERE, e.getMessage(), e);
+      return;
+    }
+    try {
+      if (!migrator.migrate()) return;
+      if (install) {
+        migrator.installAll(procedures(client, binaryIds), "");
+        if (jar != null) recordStamp(client, jar.stamp);
+        LOG.info("Installed schema in " + (System.currentTimeMillis() - startMillis) + "ms");
+      } else if (jar != null) {
+        ensureCurrent(client, host, jar);
       }
     } catch (Exception e) {
       LOG.log(Level.SEVERE, e.getMessage(), e);
     }
   }
 
-  static void applySqlFile(Client client, String resource) throws Exception {
+  /** Replaces procedure classes when the packaged jar differs from the one last installed. */
+  static void ensureCurrent(Client client, String host, ProcedureJar jar) throws Exception {
+    String installed = installedStamp(client);
+    if (jar.stamp.equals(installed)) return;
+    LOG.info("Updating procedures from " + installed + " to " + jar.stamp + " on host " + host);
+    InstallJavaProcedure.updateClasses(client, jar.bytes, ProcedureJar.RESOURCE);
+    recordStamp(client, jar.stamp);
+  }
+
+  /** Returns null if no packaged jar was installed, or if it was before stamps were recorded. */
+  @Nullable static String installedStamp(Client client) throws Exception {
+    VoltTable result;
+    try {
+      result = executeAdHoc(client,
+          "SELECT stamp FROM " + TABLE_PROCEDURE_JAR + " WHERE name = ?", PROCEDURE_JAR_NAME)
+          .getResults()[0];
+    } catch (ProcCallException e) {
+      if (e.getMessage().contains("object not found")) return null;
+      throw e;
+    }
+    return result.advanceRow() ? result.getString(0) : null;
+  }
+
+  static void recordStamp(Client client, String stamp) throws Exception {
+    executeAdHoc(client, "UPSERT INTO " + TABLE_PROCEDURE_JAR + " VALUES (?, ?)",
+        PROCEDURE_JAR_NAME, stamp);
+  }
+
+  // Note: we intentionally don't reference the types
+  // If we did, we'd depend on the very large voltdb server jar at runtime.
+  static List<InstallJavaProcedure> procedures(Client client, boolean binaryIds) {
+    return Arrays.asList(
+        new InstallJavaProcedure(client, PROCEDURE_GET_SERVICE_NAMES),
+        new InstallJavaProcedure(client, PROCEDURE_RESOLVE_NAME),
+        new InstallJavaProcedure(client, PROCEDURE_GET_SPANS)
+            .withSupportType("Ids"),
+        new InstallJavaProcedure(client, procedure(PROCEDURE_GET_TRACE, binaryIds))
+            .withPartition("TABLE " + Schema.TABLE_SPAN + " COLUMN trace_id")
+            .withSuperType("BaseGetTrace"),
+        new InstallJavaProcedure(client, procedure(PROCEDURE_GET_TRACE_LOW, binaryIds))
+            .withSuperType("BaseGetTraceByTraceIdLow"),
+        new InstallJavaProcedure(client, procedure(PROCEDURE_STORE_SPAN, binaryIds))
+            .withPartition("TABLE " + Schema.TABLE_SPAN + " COLUMN trace_id")
+            .withSuperType("BaseStoreSpans")
+            .withSupportType("Ids"),
+        new InstallJavaProcedure(client, procedure(PROCEDURE_STORE_SPAN_UNCAPPED, binaryIds))
+            .withPartition("TABLE " + Schema.TABLE_SPAN + " COLUMN trace_id")
+            .withSuperType("BaseStoreSpans")
+            .withSupportType("Ids"),
+        new InstallJavaProcedure(client, procedure(PROCEDURE_LINK_TRACE, binaryIds))
+            .withPartition("TABLE " + Schema.TABLE_DEPENDENCY_LINK + " COLUMN trace_id")
+            .withSuperType("BaseLinkTrace")
+            .withSupportType("RowDependencyLinker")
+            .withSupportType("TraceBlob")
+            .withSupportType("Ids")
+            .addZipkin(),
+        new InstallJavaProcedure(client, procedure(PROCEDURE_COMPLETE_PENDING_TRACES, binaryIds))
+            .withPartition("TABLE " + Schema.TABLE_PENDING_TRACE + " COLUMN trace_id")
+            .withSuperType("BaseCompletePendingTraces")
+            .withSupportType("Ids")
+            .addZipkin(),
+        new InstallJavaProcedure(client, procedure(PROCEDURE_LINK_COMPLETE_TRACES, binaryIds))
+            .withPartition("TABLE " + Schema.TABLE_COMPLETE_TRACE + " COLUMN trace_id")
+            .withSuperType("BaseLinkCompleteTraces")
+            .withSuperType("BaseLinkTrace")
+            .withSupportType("RowDependencyLinker")
+            .withSupportType("TraceBlob")
+            .withSupportType("Ids")
+            .addZipkin(),
+        new InstallJavaProcedure(client,
+            procedure(PROCEDURE_DOWNSAMPLE_COMPLETE_TRACES, binaryIds))
+            .withPartition("TABLE " + Schema.TABLE_COMPLETE_TRACE + " COLUMN trace_id")
+            .withSuperType("BaseDownsampleCompleteTraces")
+            .withSuperType("BaseLinkCompleteTraces")
+            .withSuperType("BaseLinkTrace")
+            .withSupportType("RowDependencyLinker")
+            .withSupportType("TraceBlob")
+            .withSupportType("Ids")
+            .addZipkin(),
+        new InstallJavaProcedure(client, procedure(PROCEDURE_COMPACT_TRACES, binaryIds))
+            .withPartition("TABLE " + Schema.TABLE_PENDING_COMPACTION + " COLUMN trace_id")
+            .withSuperType("BaseCompactTraces")
+            .withSupportType("TraceBlob")
+            .withSupportType("Ids")
+            .addZipkin(),
+        new InstallJavaProcedure(client, procedure(PROCEDURE_GET_COLD_TRACES, binaryIds))
+            .withPartition("TABLE " + Schema.TABLE_COMPACTED_TRACE + " COLUMN trace_id")
+            .withSuperType("BaseGetColdTraces")
+            .withSupportType("Ids"),
+        new InstallJavaProcedure(client, procedure(PROCEDURE_DELETE_SPILLED_TRACES, binaryIds))
+            .withPartition("TABLE " + Schema.TABLE_COMPACTED_TRACE + " COLUMN trace_id")
+            .withSuperType("BaseDeleteSpilledTraces")
+            .withSupportType("Ids"),
+        new InstallJavaProcedure(client, procedure(PROCEDURE_GET_BACKLOG, binaryIds))
+            .withPartition("TABLE " + Schema.TABLE_PENDING_TRACE + " COLUMN trace_id")
+            .withSuperType("BaseGetBacklog"),
+        new InstallJavaProcedure(client, procedure(PROCEDURE_BACKFILL_TRACE_ID_LOW, binaryIds))
+            .withPartition("TABLE " + Schema.TABLE_SPAN + " COLUMN trace_id")
+            .withSuperType("BaseBackfillTraceIdLow")
+            .withSupportType("Ids"),
+        new InstallJavaProcedure(client, PROCEDURE_ACQUIRE_LEASE)
+    );
+  }
+
+  /** Procedures only installed while migrations that use them apply, then dropped. */
+  static List<InstallJavaProcedure> migrationProcedures(Client client, boolean binaryIds) {
+    return Arrays.asList(
+        new InstallJavaProcedure(client, PROCEDURE_BACKFILL_NAME_DICTIONARY),
+        new InstallJavaProcedure(client, procedure(PROCEDURE_BACKFILL_NAME_IDS, binaryIds))
+            .withPartition("TABLE " + Schema.TABLE_SPAN + " COLUMN trace_id")
+            .withSuperType("BaseBackfillNameIds")
+            .withSupportType("Ids")
+    );
+  }
+
+  /**
+   * Returns the name of the procedure installed for the ID mode. Procedures partitioned on a trace
+   * ID have a variant for binary IDs, as VoltDB requires the partition parameter to be of the same
+   * type as the partition column.
+   */
+  public static String procedure(String name, boolean binaryIds) {
+    if (!binaryIds) return name;
+    switch (name) {
+      case PROCEDURE_STORE_SPAN:
+      case PROCEDURE_STORE_SPAN_UNCAPPED:
+      case PROCEDURE_LINK_TRACE:
+      case PROCEDURE_COMPLETE_PENDING_TRACES:
+      case PROCEDURE_LINK_COMPLETE_TRACES:
+      case PROCEDURE_DOWNSAMPLE_COMPLETE_TRACES:
+      case PROCEDURE_COMPACT_TRACES:
+      case PROCEDURE_GET_COLD_TRACES:
+      case PROCEDURE_DELETE_SPILLED_TRACES:
+      case PROCEDURE_GET_TRACE:
+      case PROCEDURE_GET_TRACE_LOW:
+      case PROCEDURE_GET_BACKLOG:
+      case PROCEDURE_BACKFILL_TRACE_ID_LOW:
+      case PROCEDURE_BACKFILL_NAME_IDS:
+        return name + "Binary";
+      default:
+        return name;
+    }
+  }
+
+  /**
+   * Rewrites ID columns declared in the statements as VARBINARY, holding the bytes of the ID
+   * instead of its hex. For example, a 128-bit trace ID needs 16 bytes instead of 32.
+   */
+  static String binaryIds(String statements) {
+    Matcher matcher = ID_COLUMN.matcher(statements);
+    StringBuffer result = new StringBuffer();
+    while (matcher.find()) {
+      int bytes = Integer.parseInt(matcher.group(2)) / 2;
+      matcher.appendReplacement(result, matcher.group(1) + " VARBINARY(" + bytes + ")");
+    }
+    return matcher.appendTail(result).toString();
+  }
+
+  /** Returns the statements in the file, which VoltDB can apply as one batch. */
+  static String readSqlFile(String resource) {
     try (Scanner scanner = new Scanner(Schema.class.getResourceAsStream(resource), "UTF-8")) {
-      for (String cmd : scanner.useDelimiter("\\A").next().split(";", -1)) {
-        if (cmd.trim().isEmpty()) continue;
-        executeAdHoc(client, cmd);
-      }
+      return scanner.useDelimiter("\\A").next();
     }
   }
 
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.logging.Logger;
+import org.voltdb.VoltTable;
+import org.voltdb.client.Client;
+import org.voltdb.client.ProcCallException;
+import zipkin2.internal.Nullable;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static zipkin2.storage.voltdb.Schema.PROCEDURE_ACQUIRE_LEASE;
+import static zipkin2.storage.voltdb.Schema.PROCEDURE_RELEASE_LEASE;
+import static zipkin2.storage.voltdb.Schema.TABLE_SCHEMA_VERSION;
+import static zipkin2.storage.voltdb.VoltDBStorage.executeAdHoc;
+
+/**
+ * Applies {@link Migration migrations} newer than the version recorded in the cluster. Only the
+ * zipkin server holding the "schema" lease applies them. Others wait for it to finish, so that
+ * they don't invoke procedures that aren't yet installed.
+ *
+ * <p>The version table is created on demand, as it is needed to know which migrations apply. When
+ * it is missing, the cluster is at version zero: what {@link Schema#SCHEMA_RESOURCE} installs.
+ * That doesn't include the lease, so steps that create it are applied before taking it.
+ */
+final class SchemaMigrator {
+  static final Logger LOG = Logger.getLogger(SchemaMigrator.class.getName());
+  static final String LEASE_NAME = "schema", VERSION_NAME = "zipkin",
+      EXPANDED_NAME = "zipkin-expanded";
+
+  final Client client;
+  final List<Migration> migrations;
+  final boolean binaryIds;
+  @Nullable final ProcedureJar jar;
+  final String holder;
+  final long leaseMillis, waitMillis, pollMillis;
+  boolean newInstall;
+
+  SchemaMigrator(Client client, List<Migration> migrations, boolean binaryIds) {
+    this(client, migrations, binaryIds, null);
+  }
+
+  SchemaMigrator(Client client, List<Migration> migrations, boolean binaryIds,
+      @Nullable ProcedureJar jar) {
+    this(client, migrations, binaryIds, jar, ManagementFactory.getRuntimeMXBean().getName(),
+        60_000L, 120_000L, 1_000L);
+  }
+
+  /**
+   * @param binaryIds whether the schema was installed with binary IDs, which applies to ID columns
+   * added by migrations, too
+   * @param jar the packaged procedure jar, or null to assemble one at runtime
+   * @param leaseMillis how long another server waits to take over if this one stops mid-migration
+   * @param waitMillis how long to wait for another server to finish migrating
+   */
+  SchemaMigrator(Client client, List<Migration> migrations, boolean binaryIds,
+      @Nullable ProcedureJar jar, String holder, long leaseMillis, long waitMillis,
+      long pollMillis) {
+    int lastVersion = 0;
+    for (Migration migration : migrations) {
+      if (migration.version <= lastVersion) {
+        throw new IllegalArgumentException("migration " + migration + " is out of order");
+      }
+      lastVersion = migration.version;
+    }
+    this.client = client;
+    this.migrations = migrations;
+    this.binaryIds = binaryIds;
+    this.jar = jar;
+    this.holder = holder;
+    this.leaseMillis = leaseMillis;
+    this.waitMillis = waitMillis;
+    this.pollMillis = pollMillis;
+  }
+
+  int latestVersion() {
+    return migrations.isEmpty() ? 0 : migrations.get(migrations.size() - 1).version;
+  }
+
+  /** Returns false if the schema isn't current, as another server is still migrating it. */
+  boolean migrate() throws Exception {
+    int latest = latestVersion();
+    int current = currentVersion();
+    if (current >= latest) return true;
+    createLease(current);
+    long deadlineNanos = System.nanoTime() + MILLISECONDS.toNanos(waitMillis);
+    while (true) {
+      if (acquire()) {
+        try {
+          apply(currentVersion()); // re-read, as the last holder may have finished
+          return true;
+        } finally {
+          release();
+        }
+      }
+      if (System.nanoTime() - deadlineNanos > 0) {
+        LOG.warning("Gave up waiting for another server to migrate the schema to " + latest);
+        return false;
+      }
+      Thread.sleep(pollMillis);
+      if (currentVersion() >= latest) return true;
+    }
+  }
+
+  /**
+   * Applies pending steps that {@link Migration#precedesLease() create the lease}, as a cluster
+   * installed from {@link Schema#SCHEMA_RESOURCE} doesn't have it yet. Their versions are recorded
+   * in order, by the server that acquires the lease.
+   */
+  void createLease(int current) throws Exception {
+    for (Migration migration : migrations) {
+      if (migration.version <= current || !migration.precedesLease()) continue;
+      if (newInstall && !migration.appliesToNewInstall()) continue;
+      LOG.info("Applying schema migration " + migration);
+      migration.apply(client, this);
+    }
+  }
+
+  /**
+   * Applies pending steps that {@link Migration#expands() only add} to the schema, then the others
+   * in order. The version only advances past steps that were applied in order, so the highest
+   * step that expanded the schema is recorded separately, in case this is interrupted.
+   */
+  void apply(int current) throws Exception {
+    int expanded = Math.max(current, expandedVersion());
+    for (Migration migration : migrations) {
+      if (migration.version <= expanded || !migration.expands()) continue;
+      apply(migration);
+      setVersion(EXPANDED_NAME, migration.version);
+    }
+    boolean replacedProcedures = false;
+    for (Migration migration : migrations) {
+      if (migration.version <= current) continue;
+      if (migration.replacesProcedures()) {
+        // Each installs current classes, so later ones would install the same
+        if (!replacedProcedures) apply(migration);
+        replacedProcedures = true;
+      } else if (!migration.expands()) {
+        apply(migration);
+      }
+      setVersion(migration.version);
+    }
+  }
+
+  void apply(Migration migration) throws Exception {
+    if (migration.precedesLease()) return; // applied by createLease
+    renew();
+    if (newInstall && !migration.appliesToNewInstall()) return;
+    LOG.info("Applying schema migration " + migration);
+    long startMillis = System.currentTimeMillis();
+    migration.apply(client, this);
+    LOG.info("Applied schema migration " + migration.version + " in "
+        + (System.currentTimeMillis() - startMillis) + "ms");
+  }
+
+  /**
+   * Installs the procedures from the packaged jar, or from one assembled at runtime when there is
+   * none.
+   */
+  void installAll(List<InstallJavaProcedure> procedures, String ddl) throws Exception {
+    InstallJavaProcedure.installAll(client, procedures, ddl, jar != null ? jar.bytes : null);
+  }
+
+  /** Renews the lease, or throws if another server took it over. */
+  void renew() throws Exception {
+    if (!acquire()) throw new IllegalStateException(holder + " lost the schema lease");
+  }
+
+  boolean acquire() throws Exception {
+    VoltTable result = client.callProcedure(PROCEDURE_ACQUIRE_LEASE, LEASE_NAME, holder,
+        leaseMillis).getResults()[0];
+    return result.advanceRow() && holder.equals(result.getString(0));
+  }
+
+  void release() {
+    try {
+      client.callProcedure(PROCEDURE_RELEASE_LEASE, LEASE_NAME, holder);
+    } catch (Exception e) {
+      LOG.fine("failed to release schema lease: " + e.getMessage());
+    }
+  }
+
+  int currentVersion() throws Exception {
+    return version(VERSION_NAME);
+  }
+
+  /** Returns the highest step applied that expanded the schema, or zero if there is none. */
+  int expandedVersion() throws Exception {
+    return version(EXPANDED_NAME);
+  }
+
+  int version(String name) throws Exception {
+    VoltTable result;
+    try {
+      result = executeAdHoc(client,
+          "SELECT version FROM " + TABLE_SCHEMA_VERSION + " WHERE name = ?", name)
+          .getResults()[0];
+    } catch (ProcCallException e) {
+      if (!e.getMessage().contains("object not found")) throw e;
+      createVersionTable();
+      return 0;
+    }
+    return result.advanceRow() ? (int) result.getLong(0) : 0;
+  }
+
+  /**
+   * Records version zero, after installing {@link Schema#SCHEMA_RESOURCE}. Migrations this applies
+   * afterwards are only those that {@link Migration#appliesToNewInstall() apply to a new install}.
+   */
+  void reset() throws Exception {
+    createVersionTable();
+    setVersion(0);
+    setVersion(EXPANDED_NAME, 0);
+    newInstall = true;
+  }
+
+  void createVersionTable() throws Exception {
+    try {
+      executeAdHoc(client, "CREATE TABLE " + TABLE_SCHEMA_VERSION + " ("
+          + "name VARCHAR(64) NOT NULL, version INTEGER NOT NULL, PRIMARY KEY (name));");
+    } catch (ProcCallException e) {
+      if (!e.getMessage().contains("already exists")) throw e; // created concurrently
+    }
+  }
+
+  void setVersion(int version) throws Exception {
+    setVersion(VERSION_NAME, version);
+  }
+
+  void setVersion(String name, int version) throws Exception {
+    executeAdHoc(client, "UPSERT INTO " + TABLE_SCHEMA_VERSION + " VALUES (?, ?)", name, version);
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.voltdb.VoltTable;
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.client.ProcedureCallback;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Logs a warning when a procedure call, including conversion of its results, exceeds a threshold.
+ * The message includes parameters, result size and the query plan of the procedure.
+ *
+ * <p>The plan is read with {@code @ExplainProc} the first time a procedure is slow, then reused.
+ * Plans only change when procedures are re-installed, and this avoids adding load to a cluster
+ * that is already slow.
+ */
+final class SlowProcedureLog extends ProcedureListener {
+  static final Logger LOG = Logger.getLogger(SlowProcedureLog.class.getName());
+  static final String PLAN_PENDING = "pending";
+
+  final Client client;
+  final long thresholdNanos;
+  final ProcedureListener delegate;
+  final ConcurrentMap<String, String> plans = new ConcurrentHashMap<>();
+
+  SlowProcedureLog(Client client, long thresholdMillis, ProcedureListener delegate) {
+    this.client = client;
+    this.thresholdNanos = MILLISECONDS.toNanos(thresholdMillis);
+    this.delegate = delegate;
+  }
+
+  @Override public void onResponse(String procedure, Object[] parameters, ClientResponse response,
+      long convertNanos) {
+    delegate.onResponse(procedure, parameters, response, convertNanos);
+
+    long durationNanos = response.getClientRoundtripNanos() + convertNanos;
+    if (durationNanos < thresholdNanos || !LOG.isLoggable(Level.WARNING)) return;
+
+    String message = message(procedure, parameters, response, convertNanos);
+    String plan = plans.get(procedure);
+    if (plan == null && plans.putIfAbsent(procedure, PLAN_PENDING) == null) {
+      explain(procedure, message); // logs once the plan is available
+      return;
+    }
+    log(message, plan != null ? plan : PLAN_PENDING);
+  }
+
+  @Override public void onCanceled(String procedure, Object[] parameters,
+      ClientResponse response) {
+    delegate.onCanceled(procedure, parameters, response);
+  }
+
+  void explain(String procedure, String message) {
+    ExplainCallback callback = new ExplainCallback(procedure, message);
+    try {
+      if (!client.callProcedure(callback, "@ExplainProc", procedure)) {
+        callback.onPlanUnavailable("not queued");
+      }
+    } catch (Exception e) {
+      callback.onPlanUnavailable(e.getMessage());
+    }
+  }
+
+  final class ExplainCallback implements ProcedureCallback {
+    final String procedure, message;
+
+    ExplainCallback(String procedure, String message) {
+      this.procedure = procedure;
+      this.message = message;
+    }
+
+    @Override public void clientCallback(ClientResponse response) {
+      if (response.getStatus() != ClientResponse.SUCCESS) {
+        onPlanUnavailable(response.getStatusString());
+        return;
+      }
+      StringBuilder plan = new StringBuilder();
+      for (VoltTable table : response.getResults()) {
+        while (table.advanceRow()) { // SQL statement, then its execution plan
+          for (int i = 0, length = table.getColumnCount(); i < length; i++) {
+            plan.append('\n').append(table.getString(i));
+          }
+        }
+      }
+      String result = plan.toString();
+      plans.put(procedure, result);
+      log(message, result);
+    }
+
+    void onPlanUnavailable(String reason) {
+      plans.remove(procedure); // try again next time
+      log(message, "unavailable: " + reason);
+    }
+  }
+
+  static void log(String message, String plan) {
+    LOG.warning(message + "; plan: " + plan);
+  }
+
+  static String message(String procedure, Object[] parameters, ClientResponse response,
+      long convertNanos) {
+    long clusterMillis = response.getClusterRoundtrip();
+    long clientMillis = NANOSECONDS.toMillis(response.getClientRoundtripNanos());
+    long rows = 0, bytes = 0;
+    VoltTable[] results = response.getResults();
+    if (results != null) {
+      for (VoltTable table : results) {
+        rows += table.getRowCount();
+        bytes += table.getSerializedSize();
+      }
+    }
+    StringBuilder result = new StringBuilder(procedure).append('(');
+    for (int i = 0; i < parameters.length; i++) {
+      if (i > 0) result.append(", ");
+      Object parameter = parameters[i];
+      if (parameter instanceof byte[]) { // ex. json or md5
+        result.append(((byte[]) parameter).length).append(" bytes");
+      } else {
+        result.append(parameter);
+      }
+    }
+    return result.append(") ").append(status(response))
+        .append(" in ").append(clientMillis + NANOSECONDS.toMillis(convertNanos)).append("ms")
+        .append(" (cluster ").append(clusterMillis).append("ms")
+        .append(", queue ").append(Math.max(0L, clientMillis - clusterMillis)).append("ms")
+        .append(", convert ").append(NANOSECONDS.toMillis(convertNanos)).append("ms)")
+        .append(", returned ").append(rows).append(" rows, ").append(bytes).append(" bytes")
+        .toString();
+  }
+
+  static String status(ClientResponse response) {
+    if (response.getStatusString() != null) return response.getStatusString();
+    return response.getStatus() == ClientResponse.SUCCESS ? "succeeded" : "failed";
+  }
+}
@@ -23,49 +23,118 @@ import zipkin2.Call;
 import zipkin2.Callback;
 
 abstract class VoltDBCall<V> extends Call.Base<V> {
+  final ClientPool lane;
   final Client client;
+  final ProcedureListener listener;
   final String procName;
   final Object[] parameters;
+  final int timeoutMillis;
 
-  VoltDBCall(Client client, String procName, Object... parameters) {
+  /**
+   * @param lane the pool the client was chosen from, which counts the calls outstanding
+   * @param client a client of the lane, chosen for these parameters
+   */
+  VoltDBCall(ClientPool lane, Client client, ProcedureListener listener, String procName,
+      Object... parameters) {
+    this.lane = lane;
     this.client = client;
+    this.listener = listener;
     this.procName = procName;
     this.parameters = parameters;
+    this.timeoutMillis = lane.timeoutMillis(procName);
+  }
+
+  /**
+   * Replaces parameters that need a lookup before the call, such as names queried by ID. This
+   * blocks on a cache miss.
+   */
+  void resolveParameters() throws IOException {
   }
 
   @Override protected final V doExecute() throws IOException {
+    resolveParameters();
+    ClientResponse response;
+    if (!lane.tryAcquire(client)) throw new IOException(notQueued());
     try {
-      ClientResponse response = client.callProcedure(procName, parameters);
-      if (response.getStatus() != ClientResponse.SUCCESS) {
-        throw new RuntimeException(procName + " " +
-            Arrays.toString(parameters) + " resulted in " + response.getStatus());
-      }
-      return convert(response);
-    } catch (ProcCallException e) {
+      response = client.callProcedureWithTimeout(timeoutMillis, procName, parameters);
+    } catch (ProcCallException e) { // includes timeouts
+      ClientResponse failed = e.getClientResponse();
+      if (failed != null) listener.onResponse(procName, parameters, failed, 0L);
       throw new IOException(e);
+    } finally {
+      lane.release(client);
+    }
+    if (response.getStatus() != ClientResponse.SUCCESS) {
+      listener.onResponse(procName, parameters, response, 0L);
+      throw new RuntimeException(procName + " " +
+          Arrays.toString(parameters) + " resulted in " + response.getStatus());
+    }
+    if (isCanceled()) {
+      notifyCanceled(response);
+      throw new IOException("Canceled");
     }
+    return convertAndNotify(response);
+  }
+
+  /** Skips conversion, as nothing will read the result. */
+  final void notifyCanceled(ClientResponse response) {
+    listener.onResponse(procName, parameters, response, 0L);
+    listener.onCanceled(procName, parameters, response);
   }
 
   abstract V convert(ClientResponse response);
 
+  /** Only reads the clock when there's a listener, so that instrumentation is free when off. */
+  final V convertAndNotify(ClientResponse response) {
+    if (listener == ProcedureListener.NOOP) return convert(response);
+    long startNanos = System.nanoTime();
+    try {
+      return convert(response);
+    } finally {
+      listener.onResponse(procName, parameters, response, System.nanoTime() - startNanos);
+    }
+  }
+
   @Override protected void doEnqueue(Callback<V> callback) {
     class ProcedureCallbackAdapter implements ProcedureCallback {
       @Override public void clientCallback(ClientResponse response) {
+        lane.release(client);
+        if (isCanceled()) {
+          notifyCanceled(response);
+          callback.onError(new IOException("Canceled"));
+          return;
+        }
         if (response.getStatus() == ClientResponse.SUCCESS) {
-          callback.onSuccess(convert(response));
+          callback.onSuccess(convertAndNotify(response));
           return;
         }
+        listener.onResponse(procName, parameters, response, 0L);
         callback.onError(
             new RuntimeException(procName + " returned " + response.getStatusString()));
       }
     }
 
     try {
-      if (!client.callProcedure(new ProcedureCallbackAdapter(), procName, parameters)) {
-        throw new RuntimeException(procName + " not queued");
-      }
+      resolveParameters();
+    } catch (IOException e) {
+      callback.onError(e);
+      return;
+    }
+    if (!lane.tryAcquire(client)) throw new RuntimeException(notQueued());
+    boolean queued = false;
+    try {
+      queued = client.callProcedureWithTimeout(
+          new ProcedureCallbackAdapter(), timeoutMillis, procName, parameters);
     } catch (IOException e) {
       throw new RuntimeException(e);
+    } finally {
+      if (!queued) lane.release(client);
     }
+    // When the lane doesn't block, this means the cluster applied backpressure
+    if (!queued) throw new RuntimeException(procName + " not queued");
+  }
+
+  String notQueued() {
+    return procName + " not queued: " + lane.maxOutstandingTxns + " calls outstanding";
   }
 }
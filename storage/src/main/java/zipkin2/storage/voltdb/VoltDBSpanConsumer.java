@@ -13,10 +13,16 @@
  */
 package zipkin2.storage.voltdb;
 
+import java.io.IOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
 import org.voltdb.client.Client;
 import org.voltdb.client.ClientResponse;
 import zipkin2.Call;
@@ -24,8 +30,10 @@ import zipkin2.Callback;
 import zipkin2.Span;
 import zipkin2.codec.SpanBytesEncoder;
 import zipkin2.internal.AggregateCall;
+import zipkin2.internal.Nullable;
 import zipkin2.storage.SpanConsumer;
 
+import static zipkin2.storage.voltdb.Schema.PROCEDURE_RESOLVE_NAME;
 import static zipkin2.storage.voltdb.Schema.PROCEDURE_STORE_SPAN;
 
 final class VoltDBSpanConsumer implements SpanConsumer {
@@ -39,35 +47,176 @@ final class VoltDBSpanConsumer implements SpanConsumer {
     }
   };
 
-  final Client client;
+  final VoltDBStorage storage;
+  final ClientPool writes;
+  final ProcedureListener listener;
+  final String procedure;
+  @Nullable final IngestRateLimiter rateLimiter;
+  final IngestListener ingestListener;
 
   VoltDBSpanConsumer(VoltDBStorage storage) {
-    client = storage.client;
+    this.storage = storage;
+    writes = storage.writes;
+    listener = storage.procedureListener;
+    rateLimiter = storage.ingestRateLimiter;
+    ingestListener = storage.ingestListener;
+    procedure = Schema.procedure(PROCEDURE_STORE_SPAN, storage.binaryIds);
   }
 
   @Override public Call<Void> accept(List<Span> spans) {
     if (spans.isEmpty()) return Call.create(null);
-    List<Call<Void>> calls = new ArrayList<>();
-    for (Span span : spans) calls.add(StoreSpanJsonCall.create(client, span));
-    return AggregateCall.newVoidCall(calls);
+    List<StoreSpanJsonCall> calls = new ArrayList<>();
+    long nowNanos = rateLimiter != null ? System.nanoTime() : 0L;
+    for (Span span : spans) {
+      if (rateLimiter != null && !tryAdmit(span, nowNanos)) continue;
+      calls.add(StoreSpanJsonCall.create(this, span));
+    }
+    if (calls.isEmpty()) return Call.create(null);
+    if (unresolvedNames(calls).isEmpty()) return storeAll(calls);
+    return new ResolveNamesCall(this, calls);
+  }
+
+  static Call<Void> storeAll(List<StoreSpanJsonCall> calls) {
+    List<Call<Void>> result = new ArrayList<>(calls.size());
+    for (StoreSpanJsonCall call : calls) result.add(call.handleError(call));
+    return AggregateCall.newVoidCall(result);
+  }
+
+  /** Returns service and span names the calls have instead of an ID, as it wasn't cached. */
+  static Set<String> unresolvedNames(List<StoreSpanJsonCall> calls) {
+    Set<String> result = new LinkedHashSet<>();
+    for (StoreSpanJsonCall call : calls) {
+      for (int i = FIRST_NAME_INDEX; i <= LAST_NAME_INDEX; i++) {
+        if (call.parameters[i] instanceof String) result.add((String) call.parameters[i]);
+      }
+    }
+    return result;
+  }
+
+  static void setNameIds(List<StoreSpanJsonCall> calls, Map<String, Integer> ids) {
+    for (StoreSpanJsonCall call : calls) {
+      for (int i = FIRST_NAME_INDEX; i <= LAST_NAME_INDEX; i++) {
+        if (call.parameters[i] instanceof String) call.parameters[i] = ids.get(call.parameters[i]);
+      }
+    }
+  }
+
+  /** Checks the ingest rate limit before the span is encoded, so that dropping it is cheap. */
+  boolean tryAdmit(Span span, long nowNanos) {
+    String serviceName = span.localServiceName();
+    if (rateLimiter.tryAdmit(span.traceId(), serviceName, nowNanos)) {
+      ingestListener.onAdmitted(serviceName);
+      return true;
+    }
+    ingestListener.onDropped(serviceName);
+    return false;
+  }
+
+  static final int FIRST_NAME_INDEX = 4, LAST_NAME_INDEX = 6;
+
+  /**
+   * Resolves names missing from the dictionary with one call each, then stores the spans. When
+   * enqueued, neither step blocks the caller, as resolving a name is a multi-partition transaction.
+   */
+  static final class ResolveNamesCall extends Call.Base<Void> {
+    final VoltDBSpanConsumer consumer;
+    final List<StoreSpanJsonCall> calls;
+    volatile Call<Void> store; // set once names are resolved, so that it can be canceled
+
+    ResolveNamesCall(VoltDBSpanConsumer consumer, List<StoreSpanJsonCall> calls) {
+      this.consumer = consumer;
+      this.calls = calls;
+    }
+
+    @Override protected Void doExecute() throws IOException {
+      Map<String, Integer> ids = new LinkedHashMap<>();
+      Client client = consumer.writes.next();
+      for (String name : unresolvedNames(calls)) {
+        ids.put(name, consumer.storage.names.resolve(client, name));
+      }
+      setNameIds(calls, ids);
+      return (store = storeAll(calls)).execute();
+    }
+
+    @Override protected void doEnqueue(Callback<Void> callback) {
+      NameDictionary names = consumer.storage.names;
+      names.resolveAll(consumer.writes.next(),
+          consumer.writes.timeoutMillis(PROCEDURE_RESOLVE_NAME), unresolvedNames(calls),
+          new Callback<Map<String, Integer>>() {
+            @Override public void onSuccess(Map<String, Integer> ids) {
+              setNameIds(calls, ids);
+              try {
+                // Storing may block on backpressure, which the network thread can't wait for
+                names.storeExecutor.execute(() -> enqueueStore(callback));
+              } catch (RejectedExecutionException e) { // closed, or too many waiting
+                callback.onError(e);
+              }
+            }
+
+            @Override public void onError(Throwable t) {
+              callback.onError(t);
+            }
+          });
+    }
+
+    void enqueueStore(Callback<Void> callback) {
+      if (isCanceled()) {
+        callback.onError(new IOException("Canceled"));
+        return;
+      }
+      try {
+        (store = storeAll(calls)).enqueue(callback);
+      } catch (RuntimeException e) {
+        callback.onError(e);
+      }
+    }
+
+    @Override protected void doCancel() {
+      Call<Void> store = this.store;
+      if (store != null) store.cancel();
+    }
+
+    @Override public Call<Void> clone() {
+      List<StoreSpanJsonCall> result = new ArrayList<>(calls.size());
+      for (StoreSpanJsonCall call : calls) result.add(call.clone());
+      return new ResolveNamesCall(consumer, result);
+    }
+
+    @Override public String toString() {
+      return "ResolveNamesCall(" + calls + ")";
+    }
   }
 
   static final class StoreSpanJsonCall extends VoltDBCall<Void> implements Call.ErrorHandler<Void> {
-    static Call<Void> create(Client client, Span span) {
+    static StoreSpanJsonCall create(VoltDBSpanConsumer consumer, Span span) {
+      VoltDBStorage storage = consumer.storage;
       byte[] json = SpanBytesEncoder.JSON_V2.encode(span);
       byte[] md5 = MD5.get().digest(json);
       String kind = span.kind() != null ? span.kind().name() : null;
-      StoreSpanJsonCall result = new StoreSpanJsonCall(
-          client, span.traceId(), span.parentId(), span.id(), kind,
-          span.localServiceName(), span.remoteServiceName(), span.name(),
+      return new StoreSpanJsonCall(consumer.writes, consumer.listener, consumer.procedure,
+          span.traceId(), storage.id(span.traceId()),
+          storage.id(span.parentId()), storage.id(span.id()), kind,
+          nameOrId(storage.names, span.localServiceName()),
+          nameOrId(storage.names, span.remoteServiceName()),
+          nameOrId(storage.names, span.name()),
           span.timestamp(), span.duration(),
           span.tags().containsKey("error") ? 1 : 0,
-          md5, json);
-      return result.handleError(result);
+          md5, json, storage.maxSpansPerTrace);
     }
 
-    StoreSpanJsonCall(Client client, Object... parameters) {
-      super(client, PROCEDURE_STORE_SPAN, parameters);
+    /** Returns the cached ID of the name, or the name itself until {@link ResolveNamesCall}. */
+    @Nullable static Object nameOrId(NameDictionary names, @Nullable String name) {
+      Integer id = names.get(name);
+      return id != null ? id : name;
+    }
+
+    final String traceId; // hex, as the first parameter is bytes in binary mode
+
+    StoreSpanJsonCall(ClientPool lane, ProcedureListener listener, String procedure,
+        String traceId, Object... parameters) {
+      // spans of the same trace use the same client, so that they are stored in order
+      super(lane, lane.forTraceId(traceId), listener, procedure, parameters);
+      this.traceId = traceId;
     }
 
     @Override public void onErrorReturn(Throwable error, Callback<Void> callback) {
@@ -82,8 +231,8 @@ final class VoltDBSpanConsumer implements SpanConsumer {
       return null;
     }
 
-    @Override public Call<Void> clone() {
-      return new StoreSpanJsonCall(client, procName, parameters);
+    @Override public StoreSpanJsonCall clone() {
+      return new StoreSpanJsonCall(lane, listener, procName, traceId, parameters.clone());
     }
   }
 }
@@ -13,57 +13,88 @@
  */
 package zipkin2.storage.voltdb;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.RejectedExecutionException;
 import org.voltdb.VoltTable;
 import org.voltdb.VoltType;
-import org.voltdb.client.Client;
 import org.voltdb.client.ClientResponse;
 import zipkin2.Call;
+import zipkin2.Callback;
 import zipkin2.DependencyLink;
 import zipkin2.Span;
 import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.internal.Nullable;
+import zipkin2.internal.Trace;
 import zipkin2.storage.GroupByTraceId;
 import zipkin2.storage.QueryRequest;
 import zipkin2.storage.SpanStore;
+import zipkin2.storage.voltdb.procedure.TraceBlob;
 
 import static zipkin2.storage.voltdb.Schema.PROCEDURE_GET_DEPENDENCY_LINKS;
 import static zipkin2.storage.voltdb.Schema.PROCEDURE_GET_SERVICE_NAMES;
-import static zipkin2.storage.voltdb.Schema.PROCEDURE_GET_SPAN;
 import static zipkin2.storage.voltdb.Schema.PROCEDURE_GET_SPANS;
 import static zipkin2.storage.voltdb.Schema.PROCEDURE_GET_SPAN_NAMES;
+import static zipkin2.storage.voltdb.Schema.PROCEDURE_GET_TRACE;
+import static zipkin2.storage.voltdb.Schema.PROCEDURE_GET_TRACE_LOW;
 
 final class VoltDBSpanStore implements SpanStore {
 
-  final Client client;
+  final VoltDBStorage storage;
+  final ClientPool reads;
+  final ProcedureListener listener;
+  @Nullable final ColdTier coldTier;
   final boolean searchEnabled = true;
 
   VoltDBSpanStore(VoltDBStorage storage) {
-    client = storage.client;
+    this.storage = storage;
+    reads = storage.reads;
+    listener = storage.procedureListener;
+    coldTier = storage.coldTier;
   }
 
   @Override public Call<List<List<Span>>> getTraces(QueryRequest request) {
     if (!searchEnabled) return Call.emptyList();
-    return new GetSpansJsonCall(client, request);
+    GetSpansJsonCall result =
+        new GetSpansJsonCall(reads, listener, storage.names, request, storage.strictTraceId);
+    if (coldTier == null) return result;
+    return new AddColdTraces(result, coldTier);
   }
 
   static final class GetSpansJsonCall extends VoltDBCall<List<List<Span>>> {
+    final NameDictionary names;
     final QueryRequest request;
-    final Mapper<List<Span>, List<List<Span>>> groupByTraceId = GroupByTraceId.create(false);
-
-    GetSpansJsonCall(Client client, QueryRequest request) {
-      super(client, PROCEDURE_GET_SPANS, request.serviceName(), request.spanName(),
-          request.endTs(), request.lookback(), request.limit());
+    final boolean strictTraceId;
+    final Mapper<List<Span>, List<List<Span>>> groupByTraceId;
+
+    GetSpansJsonCall(ClientPool lane, ProcedureListener listener, NameDictionary names,
+        QueryRequest request, boolean strictTraceId) {
+      super(lane, lane.next(), listener, PROCEDURE_GET_SPANS, request.serviceName(),
+          request.spanName(), request.endTs(), request.lookback(), request.limit(),
+          (byte) (strictTraceId ? 1 : 0));
+      this.names = names;
       this.request = request;
+      this.strictTraceId = strictTraceId;
+      this.groupByTraceId = GroupByTraceId.create(strictTraceId);
+    }
+
+    /** Spans store the dictionary ID of names, so the query is by ID. */
+    @Override void resolveParameters() throws IOException {
+      parameters[0] = names.find(client, request.serviceName());
+      parameters[1] = names.find(client, request.spanName());
     }
 
     @Override List<List<Span>> convert(ClientResponse response) {
-      return groupByTraceId.map(decodeSpanJson(response));
+      return groupByTraceId.map(decodeSpans(response));
     }
 
-    @Override public Call<List<List<Span>>> clone() {
-      return new GetSpansJsonCall(client, request);
+    @Override public GetSpansJsonCall clone() {
+      return new GetSpansJsonCall(lane, listener, names, request, strictTraceId);
     }
 
     @Override public String toString() {
@@ -73,39 +104,190 @@ final class VoltDBSpanStore implements SpanStore {
 
   @Override public Call<List<Span>> getTrace(String hexTraceId) {
     // make sure we have a 16 or 32 character trace ID
-    return new GetSpanJsonCall(client, Span.normalizeTraceId(hexTraceId));
+    String traceId = Span.normalizeTraceId(hexTraceId);
+    Call<List<Span>> result;
+    if (storage.strictTraceId) {
+      result = new GetTraceCall(reads, listener,
+          Schema.procedure(PROCEDURE_GET_TRACE, storage.binaryIds()), traceId,
+          storage.id(traceId));
+    } else {
+      // Spans of a trace with mixed ID widths are in different partitions, but share the lower 64
+      // bits, which are indexed.
+      String traceIdLow = traceId.length() == 32 ? traceId.substring(16) : traceId;
+      result = new GetTraceCall(reads, listener,
+          Schema.procedure(PROCEDURE_GET_TRACE_LOW, storage.binaryIds()), traceId,
+          storage.id(traceIdLow));
+    }
+    if (coldTier == null) return result;
+    return new AddColdSpans(result, coldTier, traceId, storage.strictTraceId);
   }
 
-  static final class GetSpanJsonCall extends VoltDBCall<List<Span>> {
+  static final class GetTraceCall extends VoltDBCall<List<Span>> {
     final String traceId;
 
-    GetSpanJsonCall(Client client, String traceId) {
-      super(client, PROCEDURE_GET_SPAN, traceId);
+    /** @param id the trace ID parameter, which is bytes instead of hex in binary mode */
+    GetTraceCall(ClientPool lane, ProcedureListener listener, String procedure,
+        String traceId, Object id) {
+      super(lane, lane.next(), listener, procedure, id);
       this.traceId = traceId;
     }
 
     @Override List<Span> convert(ClientResponse response) {
-      return decodeSpanJson(response);
+      return decodeSpans(response);
+    }
+
+    @Override public Call<List<Span>> clone() {
+      return new GetTraceCall(lane, listener, procName, traceId, parameters[0]);
+    }
+
+    @Override public String toString() {
+      return procName + "(" + traceId + ")";
+    }
+  }
+
+  /**
+   * Adds results of the {@link ColdTier} to those of a call to the cluster. Enqueued calls read
+   * its files on {@link ColdTier#readExecutor}, instead of the client's callback thread.
+   */
+  abstract static class AddColdTier<V> extends Call.Base<V> {
+    final Call<V> delegate;
+    final ColdTier coldTier;
+
+    AddColdTier(Call<V> delegate, ColdTier coldTier) {
+      this.delegate = delegate;
+      this.coldTier = coldTier;
+    }
+
+    abstract V addCold(V hot) throws IOException;
+
+    @Override protected final V doExecute() throws IOException {
+      return addCold(delegate.execute());
+    }
+
+    @Override protected final void doEnqueue(Callback<V> callback) {
+      delegate.enqueue(new Callback<V>() {
+        @Override public void onSuccess(V hot) {
+          try {
+            coldTier.readExecutor.execute(() -> {
+              V result;
+              try {
+                result = addCold(hot);
+              } catch (IOException | RuntimeException e) {
+                callback.onError(e);
+                return;
+              }
+              callback.onSuccess(result);
+            });
+          } catch (RejectedExecutionException e) { // closed concurrently
+            callback.onError(e);
+          }
+        }
+
+        @Override public void onError(Throwable t) {
+          callback.onError(t);
+        }
+      });
+    }
+
+    @Override protected final void doCancel() {
+      delegate.cancel();
+    }
+  }
+
+  /**
+   * Adds spans of the trace in the {@link ColdTier}. When a trace has spans in both, such as one
+   * compacted again after it was moved, they are merged as the same spans may be in both.
+   */
+  static final class AddColdSpans extends AddColdTier<List<Span>> {
+    final String traceId;
+    final boolean strictTraceId;
+
+    AddColdSpans(Call<List<Span>> delegate, ColdTier coldTier, String traceId,
+        boolean strictTraceId) {
+      super(delegate, coldTier);
+      this.traceId = traceId;
+      this.strictTraceId = strictTraceId;
+    }
+
+    @Override List<Span> addCold(List<Span> spans) throws IOException {
+      List<Span> cold = coldTier.getTrace(traceId, strictTraceId);
+      if (cold.isEmpty()) return spans;
+      if (spans.isEmpty()) return cold;
+      List<Span> result = new ArrayList<>(spans);
+      result.addAll(cold);
+      return Trace.merge(result);
     }
 
     @Override public Call<List<Span>> clone() {
-      return new GetSpanJsonCall(client, traceId);
+      return new AddColdSpans(delegate.clone(), coldTier, traceId, strictTraceId);
+    }
+
+    @Override public String toString() {
+      return "AddColdSpans(" + delegate + ")";
+    }
+  }
+
+  /**
+   * Adds traces in the {@link ColdTier} until there are as many as the request's limit. Those in
+   * the cluster come first, as traces are only moved once older than them.
+   */
+  static final class AddColdTraces extends AddColdTier<List<List<Span>>> {
+    final GetSpansJsonCall query;
+
+    AddColdTraces(GetSpansJsonCall query, ColdTier coldTier) {
+      super(query, coldTier);
+      this.query = query;
+    }
+
+    @Override List<List<Span>> addCold(List<List<Span>> traces) throws IOException {
+      QueryRequest request = query.request;
+      if (traces.size() >= request.limit()) return traces;
+      // The query resolved name IDs before it was sent, so they are read without a lookup
+      int serviceNameId = (Integer) query.parameters[0], spanNameId = (Integer) query.parameters[1];
+      List<List<Span>> cold = coldTier.getTraces(serviceNameId, spanNameId, request.endTs(),
+          request.lookback(), request.limit(), query.strictTraceId);
+      if (cold.isEmpty()) return traces;
+
+      Map<String, List<Span>> result = new LinkedHashMap<>();
+      for (List<Span> trace : traces) result.put(traceKey(trace), trace);
+      for (List<Span> trace : cold) {
+        String key = traceKey(trace);
+        List<Span> hot = result.get(key);
+        if (hot != null) {
+          List<Span> merged = new ArrayList<>(hot);
+          merged.addAll(trace);
+          result.put(key, Trace.merge(merged));
+        } else if (result.size() < request.limit()) {
+          result.put(key, trace);
+        }
+      }
+      return new ArrayList<>(result.values());
+    }
+
+    /** Traces are grouped by the lower 64 bits of their ID unless strict. */
+    String traceKey(List<Span> trace) {
+      String traceId = trace.get(0).traceId();
+      return query.strictTraceId ? traceId : traceId.substring(traceId.length() - 16);
+    }
+
+    @Override public Call<List<List<Span>>> clone() {
+      return new AddColdTraces(query.clone(), coldTier);
     }
 
     @Override public String toString() {
-      return "GetSpanJson(" + traceId + ")";
+      return "AddColdTraces(" + query.request + ")";
     }
   }
 
   @Override public Call<List<String>> getServiceNames() {
     if (!searchEnabled) return Call.emptyList();
-    return new GetServiceNamesCall(client);
+    return new GetServiceNamesCall(reads, listener);
   }
 
   static final class GetServiceNamesCall extends VoltDBCall<List<String>> {
 
-    GetServiceNamesCall(Client client) {
-      super(client, PROCEDURE_GET_SERVICE_NAMES);
+    GetServiceNamesCall(ClientPool lane, ProcedureListener listener) {
+      super(lane, lane.next(), listener, PROCEDURE_GET_SERVICE_NAMES);
     }
 
     @Override List<String> convert(ClientResponse response) {
@@ -113,7 +295,7 @@ final class VoltDBSpanStore implements SpanStore {
     }
 
     @Override public Call<List<String>> clone() {
-      return new GetServiceNamesCall(client);
+      return new GetServiceNamesCall(lane, listener);
     }
 
     @Override public String toString() {
@@ -123,23 +305,33 @@ final class VoltDBSpanStore implements SpanStore {
 
   @Override public Call<List<String>> getSpanNames(String serviceName) {
     if (!searchEnabled) return Call.emptyList();
-    return new GetSpanNamesCall(client, serviceName.toLowerCase(Locale.ROOT));
+    return new GetSpanNamesCall(reads, listener, storage.names,
+        serviceName.toLowerCase(Locale.ROOT));
   }
 
   static final class GetSpanNamesCall extends VoltDBCall<List<String>> {
+    final NameDictionary names;
     final String serviceName;
 
-    GetSpanNamesCall(Client client, String serviceName) {
-      super(client, PROCEDURE_GET_SPAN_NAMES, serviceName, serviceName);
+    GetSpanNamesCall(ClientPool lane, ProcedureListener listener, NameDictionary names,
+        String serviceName) {
+      super(lane, lane.next(), listener, PROCEDURE_GET_SPAN_NAMES, serviceName, serviceName,
+          serviceName, serviceName);
+      this.names = names;
       this.serviceName = serviceName;
     }
 
+    @Override void resolveParameters() throws IOException {
+      int serviceNameId = names.find(client, serviceName);
+      for (int i = 0; i < parameters.length; i++) parameters[i] = serviceNameId;
+    }
+
     @Override List<String> convert(ClientResponse response) {
       return decodeStrings(response);
     }
 
     @Override public Call<List<String>> clone() {
-      return new GetSpanNamesCall(client, serviceName);
+      return new GetSpanNamesCall(lane, listener, names, serviceName);
     }
 
     @Override public String toString() {
@@ -151,14 +343,16 @@ final class VoltDBSpanStore implements SpanStore {
     if (endTs <= 0) throw new IllegalArgumentException("endTs <= 0");
     if (lookback <= 0) throw new IllegalArgumentException("lookback <= 0");
 
-    return new GetDependencyLinksCall(client, endTs, lookback);
+    return new GetDependencyLinksCall(reads, listener, endTs, lookback);
   }
 
   static final class GetDependencyLinksCall extends VoltDBCall<List<DependencyLink>> {
     final long endTs, lookback;
 
-    GetDependencyLinksCall(Client client, long endTs, long lookback) {
-      super(client, PROCEDURE_GET_DEPENDENCY_LINKS, endTs - lookback, endTs);
+    GetDependencyLinksCall(ClientPool lane, ProcedureListener listener, long endTs,
+        long lookback) {
+      super(lane, lane.next(), listener, PROCEDURE_GET_DEPENDENCY_LINKS, endTs - lookback,
+          endTs);
       this.endTs = endTs;
       this.lookback = lookback;
     }
@@ -179,7 +373,7 @@ final class VoltDBSpanStore implements SpanStore {
     }
 
     @Override public Call<List<DependencyLink>> clone() {
-      return new GetDependencyLinksCall(client, endTs, lookback);
+      return new GetDependencyLinksCall(lane, listener, endTs, lookback);
     }
 
     @Override public String toString() {
@@ -187,25 +381,31 @@ final class VoltDBSpanStore implements SpanStore {
     }
   }
 
-  static List<Span> decodeSpanJson(ClientResponse response) {
+  /** Decodes rows of span json, or of {@link TraceBlob}s when the column is binary. */
+  static List<Span> decodeSpans(ClientResponse response) {
     List<Span> result = new ArrayList<>();
     for (VoltTable table : response.getResults()) {
+      boolean blob = table.getColumnType(0) == VoltType.VARBINARY;
       while (table.advanceRow()) {
-        byte[] json = table.getStringAsBytes(0);
-        SpanBytesDecoder.JSON_V2.decode(json, result);
+        if (blob) {
+          TraceBlob.decode(table.getVarbinary(0), result);
+        } else {
+          SpanBytesDecoder.JSON_V2.decode(table.getStringAsBytes(0), result);
+        }
       }
     }
     return result;
   }
 
+  /** Returns the distinct strings of all tables in order, as each table may be one source. */
   static List<String> decodeStrings(ClientResponse response) {
-    List<String> result = new ArrayList<>();
+    TreeSet<String> result = new TreeSet<>();
     for (VoltTable table : response.getResults()) {
       while (table.advanceRow()) {
         String string = (String) table.get(0, VoltType.STRING);
         if (string != null) result.add(string);
       }
     }
-    return result;
+    return new ArrayList<>(result);
   }
 }
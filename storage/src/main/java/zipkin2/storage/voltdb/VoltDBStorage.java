@@ -13,23 +13,33 @@
  */
 package zipkin2.storage.voltdb;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.voltdb.client.Client;
-import org.voltdb.client.ClientConfig;
-import org.voltdb.client.ClientFactory;
 import org.voltdb.client.ClientResponse;
 import org.voltdb.client.ProcCallException;
 import zipkin2.CheckResult;
+import zipkin2.internal.Nullable;
 import zipkin2.storage.SpanConsumer;
 import zipkin2.storage.SpanStore;
 import zipkin2.storage.StorageComponent;
+import zipkin2.storage.voltdb.procedure.Ids;
 
 public final class VoltDBStorage extends StorageComponent {
   static final Logger LOG = Logger.getLogger(VoltDBStorage.class.getName());
+  static final int DEFAULT_PORT = Client.VOLTDB_SERVER_PORT;
+  /** Bounds the client-side cache of service and span name IDs. */
+  static final int NAME_DICTIONARY_MAX_SIZE = 10_000;
+  static final long INITIAL_RECONNECT_BACKOFF_MILLIS = 1000L, MAX_RECONNECT_BACKOFF_MILLIS = 30000L;
 
   public static Builder newBuilder() {
     return new Builder();
@@ -37,10 +47,29 @@ public final class VoltDBStorage extends StorageComponent {
 
   public static final class Builder extends StorageComponent.Builder {
     String host = "localhost:21212";
-    boolean ensureSchema = true;
+    boolean strictTraceId = true, ensureSchema = true, binaryIds;
+    ProcedureListener procedureListener = ProcedureListener.NOOP;
+    long slowProcedureThresholdMillis = 0L;
+    int clientPoolSize = 1, maxOutstandingTxns = 3000;
+    int readClientPoolSize = 1, readMaxOutstandingTxns = 1000;
+    int writeTimeoutMillis = 120_000, readTimeoutMillis = 30_000;
+    int maxSpansPerTrace = 0;
+    long ingestSpansPerSecond = 0L;
+    Map<String, Long> serviceIngestSpansPerSecond = new LinkedHashMap<>();
+    IngestListener ingestListener = IngestListener.NOOP;
+    Map<String, Integer> procedureTimeouts = new LinkedHashMap<>();
+    String coldTierDirectory;
+    long coldTierMinAgeMillis = 86_400_000L, coldTierRetentionMillis = 7 * 86_400_000L;
+    long coldTierSegmentBytes = 64 * 1024 * 1024;
 
+    /**
+     * When false, queries match spans whose trace ID is the same in the lower 64 bits, for
+     * example when instrumentation is mid-migration to 128-bit trace IDs. These are read across
+     * partitions using an index on the lower 64 bits, as spans are partitioned on the full trace
+     * ID. Defaults to true.
+     */
     @Override public Builder strictTraceId(boolean strictTraceId) {
-      if (!strictTraceId) throw new IllegalArgumentException("unstrict trace ID not supported");
+      this.strictTraceId = strictTraceId;
       return this;
     }
 
@@ -56,11 +85,15 @@ public final class VoltDBStorage extends StorageComponent {
     }
 
     /**
-     * Hostname or IP of the host to connect to including optional port in the hostname:port
-     * format.
+     * Comma-separated list of hosts to connect to, each a hostname or IP including optional port
+     * in the hostname:port format. Defaults to "localhost:21212".
+     *
+     * <p>Other members of the cluster are discovered from these, so only one needs to be up at
+     * startup. Listing more allows the server to start when that one is down.
      */
     public Builder host(String host) {
       if (host == null) throw new NullPointerException("host == null");
+      if (parseHosts(host).isEmpty()) throw new IllegalArgumentException("host is empty");
       this.host = host;
       return this;
     }
@@ -73,6 +106,214 @@ public final class VoltDBStorage extends StorageComponent {
       return this;
     }
 
+    /**
+     * When true, trace and span IDs are stored as bytes instead of lower-hex, which halves the
+     * size of ID columns and the indexes on them. Defaults to false.
+     *
+     * <p>This only affects installing the schema: an existing cluster keeps the ID type it was
+     * installed with, and a mismatch is logged. All servers sharing a cluster must use the same
+     * setting.
+     */
+    public Builder binaryIds(boolean binaryIds) {
+      this.binaryIds = binaryIds;
+      return this;
+    }
+
+    /**
+     * Receives the response of each procedure invoked by the span store or consumer. Defaults to
+     * {@link ProcedureListener#NOOP}.
+     */
+    public Builder procedureListener(ProcedureListener procedureListener) {
+      if (procedureListener == null) throw new NullPointerException("procedureListener == null");
+      this.procedureListener = procedureListener;
+      return this;
+    }
+
+    /**
+     * When positive, procedure calls that take at least this long log a warning including their
+     * parameters, result size and query plan. Defaults to zero, which disables the log.
+     */
+    public Builder slowProcedureThresholdMillis(long slowProcedureThresholdMillis) {
+      if (slowProcedureThresholdMillis < 0) {
+        throw new IllegalArgumentException("slowProcedureThresholdMillis < 0");
+      }
+      this.slowProcedureThresholdMillis = slowProcedureThresholdMillis;
+      return this;
+    }
+
+    /**
+     * Count of clients that store spans, each with its own network thread and connections. Spans
+     * of the same trace are always stored by the same client. Defaults to 1.
+     */
+    public Builder clientPoolSize(int clientPoolSize) {
+      if (clientPoolSize <= 0) throw new IllegalArgumentException("clientPoolSize <= 0");
+      this.clientPoolSize = clientPoolSize;
+      return this;
+    }
+
+    /**
+     * Limit of procedure calls each client that stores spans sends before waiting for responses.
+     * Callers block when the limit is reached, which applies backpressure to collectors. Defaults
+     * to 3000.
+     */
+    public Builder maxOutstandingTxns(int maxOutstandingTxns) {
+      if (maxOutstandingTxns <= 0) throw new IllegalArgumentException("maxOutstandingTxns <= 0");
+      this.maxOutstandingTxns = maxOutstandingTxns;
+      return this;
+    }
+
+    /** How long until a call to store spans fails with a timeout. Defaults to two minutes. */
+    public Builder writeTimeoutMillis(int writeTimeoutMillis) {
+      if (writeTimeoutMillis <= 0) throw new IllegalArgumentException("writeTimeoutMillis <= 0");
+      this.writeTimeoutMillis = writeTimeoutMillis;
+      return this;
+    }
+
+    /**
+     * Count of clients that query spans and dependency links, separate from those that store
+     * spans, so that queries can't delay ingest. Defaults to 1.
+     */
+    public Builder readClientPoolSize(int readClientPoolSize) {
+      if (readClientPoolSize <= 0) throw new IllegalArgumentException("readClientPoolSize <= 0");
+      this.readClientPoolSize = readClientPoolSize;
+      return this;
+    }
+
+    /**
+     * Limit of queries each reading client sends before waiting for responses. When reached,
+     * further queries fail immediately, instead of queuing behind slow ones. Defaults to 1000.
+     */
+    public Builder readMaxOutstandingTxns(int readMaxOutstandingTxns) {
+      if (readMaxOutstandingTxns <= 0) {
+        throw new IllegalArgumentException("readMaxOutstandingTxns <= 0");
+      }
+      this.readMaxOutstandingTxns = readMaxOutstandingTxns;
+      return this;
+    }
+
+    /** How long until a query fails with a timeout. Defaults to 30 seconds. */
+    public Builder readTimeoutMillis(int readTimeoutMillis) {
+      if (readTimeoutMillis <= 0) throw new IllegalArgumentException("readTimeoutMillis <= 0");
+      this.readTimeoutMillis = readTimeoutMillis;
+      return this;
+    }
+
+    /**
+     * When positive, spans of a trace past this count are dropped, except root spans and spans
+     * with an error. This protects the partition of a runaway trace, such as a batch job that
+     * retries in a loop, as all spans of a trace are stored and linked there. Defaults to zero,
+     * which stores all spans.
+     *
+     * <p>Spans are counted until the trace completes, so those arriving later are counted anew.
+     * Each dropped span responds with {@link Schema#APP_STATUS_SPAN_DROPPED}, or {@link
+     * Schema#APP_STATUS_TRACE_CAPPED} for the first dropped from a pending trace.
+     */
+    public Builder maxSpansPerTrace(int maxSpansPerTrace) {
+      if (maxSpansPerTrace < 0) throw new IllegalArgumentException("maxSpansPerTrace < 0");
+      this.maxSpansPerTrace = maxSpansPerTrace;
+      return this;
+    }
+
+    /**
+     * When positive, limits the spans stored per second from each local service name, so that one
+     * service sampling at 100% can't push the cluster into backpressure. Spans over the limit are
+     * dropped before they are encoded. Defaults to zero, which is unlimited.
+     *
+     * <p>The first span of a trace decides whether all of its spans are stored, so traces aren't
+     * stored partially. This is decided per server, as is the limit.
+     *
+     * @see #ingestSpansPerSecond(String, long)
+     */
+    public Builder ingestSpansPerSecond(long ingestSpansPerSecond) {
+      if (ingestSpansPerSecond < 0) throw new IllegalArgumentException("ingestSpansPerSecond < 0");
+      this.ingestSpansPerSecond = ingestSpansPerSecond;
+      return this;
+    }
+
+    /**
+     * Overrides {@link #ingestSpansPerSecond(long)} for a service, for example a lower limit for a
+     * batch job, or zero to never limit a critical service.
+     */
+    public Builder ingestSpansPerSecond(String serviceName, long spansPerSecond) {
+      if (serviceName == null) throw new NullPointerException("serviceName == null");
+      if (spansPerSecond < 0) throw new IllegalArgumentException("spansPerSecond < 0");
+      // zipkin lowercases service names of spans
+      serviceIngestSpansPerSecond.put(serviceName.toLowerCase(Locale.ROOT), spansPerSecond);
+      return this;
+    }
+
+    /**
+     * Receives whether each span was admitted or dropped by the ingest rate limit of its service.
+     * Defaults to {@link IngestListener#NOOP}.
+     */
+    public Builder ingestListener(IngestListener ingestListener) {
+      if (ingestListener == null) throw new NullPointerException("ingestListener == null");
+      this.ingestListener = ingestListener;
+      return this;
+    }
+
+    /**
+     * Overrides the read or write timeout for a procedure, for example a shorter one for
+     * "GetDependencyLinks" than for "GetSpanJson".
+     */
+    public Builder procedureTimeoutMillis(String procedure, int timeoutMillis) {
+      if (procedure == null) throw new NullPointerException("procedure == null");
+      if (timeoutMillis <= 0) throw new IllegalArgumentException("timeoutMillis <= 0");
+      procedureTimeouts.put(procedure, timeoutMillis);
+      return this;
+    }
+
+    /**
+     * Directory of the cold tier, where compacted traces older than {@link #coldTierMinAgeMillis}
+     * are moved, so that they no longer use memory in the cluster. Queries read it, too. Defaults
+     * to null, which disables the cold tier.
+     *
+     * <p>Traces are moved by {@link VoltDBStorage#spillColdTraces(int)}, and only by the process
+     * that holds a lock on the directory. Other servers only see traces in the cold tier if they
+     * share the directory, for example on a network mount.
+     */
+    public Builder coldTierDirectory(String coldTierDirectory) {
+      this.coldTierDirectory = coldTierDirectory;
+      return this;
+    }
+
+    /** How old a compacted trace is before it is moved to the cold tier. Defaults to one day. */
+    public Builder coldTierMinAgeMillis(long coldTierMinAgeMillis) {
+      if (coldTierMinAgeMillis <= 0) {
+        throw new IllegalArgumentException("coldTierMinAgeMillis <= 0");
+      }
+      this.coldTierMinAgeMillis = coldTierMinAgeMillis;
+      return this;
+    }
+
+    /**
+     * Size at which a segment file of the cold tier is sealed and a new one started. Segments are
+     * deleted whole, so smaller ones delete expired traces sooner. Defaults to 64 MiB.
+     */
+    public Builder coldTierSegmentBytes(long coldTierSegmentBytes) {
+      if (coldTierSegmentBytes <= 0) {
+        throw new IllegalArgumentException("coldTierSegmentBytes <= 0");
+      }
+      // sealed segments are memory-mapped, which is limited to 2 GiB per file
+      if (coldTierSegmentBytes > 1024 * 1024 * 1024) {
+        throw new IllegalArgumentException("coldTierSegmentBytes > 1 GiB");
+      }
+      this.coldTierSegmentBytes = coldTierSegmentBytes;
+      return this;
+    }
+
+    /**
+     * How old the newest trace of a cold tier segment is before the segment is deleted. Defaults
+     * to seven days.
+     */
+    public Builder coldTierRetentionMillis(long coldTierRetentionMillis) {
+      if (coldTierRetentionMillis <= 0) {
+        throw new IllegalArgumentException("coldTierRetentionMillis <= 0");
+      }
+      this.coldTierRetentionMillis = coldTierRetentionMillis;
+      return this;
+    }
+
     @Override public VoltDBStorage build() {
       return new VoltDBStorage(this);
     }
@@ -81,23 +322,105 @@ public final class VoltDBStorage extends StorageComponent {
     }
   }
 
+  final ClientPool writes, reads;
   final Client client;
   final String host;
-  final boolean ensureSchema;
+  final List<String> hosts;
+  final boolean strictTraceId, ensureSchema, binaryIds;
+  final int maxSpansPerTrace;
+  final ProcedureListener procedureListener;
+  @Nullable final IngestRateLimiter ingestRateLimiter;
+  final IngestListener ingestListener;
+  final NameDictionary names = new NameDictionary(NAME_DICTIONARY_MAX_SIZE);
+  @Nullable final ColdTier coldTier;
 
   VoltDBStorage(VoltDBStorage.Builder builder) {
-    client = ClientFactory.createClient(new ClientConfig());
+    Map<String, Integer> procedureTimeouts =
+        Collections.unmodifiableMap(new LinkedHashMap<>(builder.procedureTimeouts));
+    writes = new ClientPool(this, builder.clientPoolSize, builder.maxOutstandingTxns,
+        builder.writeTimeoutMillis, procedureTimeouts, true);
+    reads = new ClientPool(this, builder.readClientPoolSize, builder.readMaxOutstandingTxns,
+        builder.readTimeoutMillis, procedureTimeouts, false);
+    client = writes.first();
     host = builder.host;
+    hosts = parseHosts(builder.host);
+    strictTraceId = builder.strictTraceId;
     ensureSchema = builder.ensureSchema;
+    binaryIds = builder.binaryIds;
+    maxSpansPerTrace = builder.maxSpansPerTrace;
+    ingestRateLimiter = IngestRateLimiter.create(builder.ingestSpansPerSecond,
+        new LinkedHashMap<>(builder.serviceIngestSpansPerSecond), NAME_DICTIONARY_MAX_SIZE);
+    ingestListener = builder.ingestListener;
+    procedureListener = builder.slowProcedureThresholdMillis > 0L
+        ? new SlowProcedureLog(client, builder.slowProcedureThresholdMillis,
+        builder.procedureListener)
+        : builder.procedureListener;
+    coldTier = builder.coldTierDirectory != null
+        ? new ColdTier(new File(builder.coldTierDirectory), builder.coldTierSegmentBytes,
+        builder.coldTierMinAgeMillis, builder.coldTierRetentionMillis)
+        : null;
   }
 
   volatile boolean connected, closeCalled;
 
+  /** Returns the client used for administrative calls, such as schema installation. */
   public Client client() {
     connect();
     return client;
   }
 
+  /** Returns true if trace and span IDs are stored as bytes. See {@link Builder#binaryIds}. */
+  public boolean binaryIds() {
+    return binaryIds;
+  }
+
+  /** Returns all clients, those that store spans first, for example to read statistics. */
+  public List<Client> clients() {
+    connect();
+    List<Client> result = new ArrayList<>(writes.asList());
+    result.addAll(reads.asList());
+    return Collections.unmodifiableList(result);
+  }
+
+  /** Returns the count of calls to store spans that haven't yet completed. */
+  public int outstandingWrites() {
+    return writes.outstanding.get();
+  }
+
+  /** Returns the count of queries that haven't yet completed. */
+  public int outstandingReads() {
+    return reads.outstanding.get();
+  }
+
+  /**
+   * Returns how long the ingest rate limit last remembered trace decisions for, which is shorter
+   * than usual under a high rate of new traces, or zero when there is no rate limit.
+   */
+  public long ingestDecisionWindowMillis() {
+    return ingestRateLimiter != null ? ingestRateLimiter.lastWindowNanos / 1_000_000L : 0L;
+  }
+
+  /**
+   * Moves compacted traces older than {@link Builder#coldTierMinAgeMillis} to the cold tier, up
+   * to maxPerPartition from each partition, then deletes cold tier segments past retention.
+   * Returns the count of traces moved, which is zero when there is no cold tier or another
+   * process writes it.
+   */
+  public int spillColdTraces(int maxPerPartition) throws IOException {
+    if (maxPerPartition <= 0) throw new IllegalArgumentException("maxPerPartition <= 0");
+    if (coldTier == null) return 0;
+    connect();
+    long nowMillis = System.currentTimeMillis();
+    int result = coldTier.spill(client, binaryIds, maxPerPartition, nowMillis);
+    coldTier.deleteExpired(nowMillis);
+    return result;
+  }
+
+  /** Returns true if any client, reading or writing, has a connection. */
+  boolean anyClientConnected() {
+    return writes.anyConnected() || reads.anyConnected();
+  }
+
   void connect() {
     if (closeCalled) throw new IllegalStateException("closed");
     if (!connected) {
@@ -113,13 +436,10 @@ public final class VoltDBStorage extends StorageComponent {
   }
 
   void doConnect() { // guarded by this
-    try {
-      client.createConnection(host);
-    } catch (Exception e) {
-      throw new RuntimeException("Unable to establish connection to VoltDB server", e);
-    }
+    writes.connect(hosts);
+    reads.connect(hosts);
     if (ensureSchema) {
-      Schema.ensureExists(client, host);
+      Schema.ensureExists(client, host, binaryIds);
     } else {
       LOG.fine("Skipping schema check as ensureSchema was false");
     }
@@ -135,10 +455,17 @@ public final class VoltDBStorage extends StorageComponent {
     return new VoltDBSpanConsumer(this);
   }
 
+  /**
+   * Uses {@code @Ping}, which only checks that a cluster node is responsive. Unlike a query, this
+   * isn't planned or routed to partitions, so is cheap enough for frequent health probes.
+   */
   @Override public CheckResult check() {
-    connect();
     try {
-      executeAdHoc(client, "Select count(*) from " + Schema.TABLE_SPAN);
+      connect();
+      ClientResponse response = client.callProcedure("@Ping");
+      if (response.getStatus() != ClientResponse.SUCCESS) {
+        throw new RuntimeException("@Ping resulted in " + response.getStatusString());
+      }
     } catch (Exception e) {
       return CheckResult.failed(e);
     }
@@ -150,23 +477,61 @@ public final class VoltDBStorage extends StorageComponent {
     // blocking to prevent access while initializing
     synchronized (this) {
       if (!closeCalled) {
+        closeCalled = true; // before closing, so that lost connections aren't retried
         doClose();
-        closeCalled = true;
       }
     }
   }
 
   void doClose() { // guarded by this
+    names.close();
+    writes.close();
+    reads.close();
+    if (coldTier == null) return;
     try {
-      // block until all outstanding txns return
-      client.drain();
-      // close down the client connections
-      client.close();
-    } catch (Exception | Error e) {
-      LOG.log(Level.WARNING, "error closing client " + e.getMessage(), e);
+      coldTier.close();
+    } catch (IOException e) {
+      LOG.log(Level.FINE, "failed to close the cold tier: " + e.getMessage(), e);
     }
   }
 
+  /** Splits a comma-separated host list, adding the default port where absent. */
+  static List<String> parseHosts(String host) {
+    List<String> result = new ArrayList<>();
+    for (int start = 0, end; start <= host.length(); start = end + 1) {
+      end = host.indexOf(',', start);
+      if (end == -1) end = host.length();
+      String next = host.substring(start, end).trim();
+      if (next.isEmpty()) continue;
+      next = withPort(next);
+      if (!result.contains(next)) result.add(next);
+    }
+    return Collections.unmodifiableList(result);
+  }
+
+  /**
+   * Adds the default port to a host when absent. IPv6 literals are bracketed, as in {@code
+   * [::1]:21212}, so that their colons aren't read as a port.
+   */
+  static String withPort(String host) {
+    if (host.startsWith("[")) return host.endsWith("]") ? host + ":" + DEFAULT_PORT : host;
+    int colon = host.indexOf(':');
+    if (colon == -1) return host + ":" + DEFAULT_PORT;
+    if (host.indexOf(':', colon + 1) != -1) return hostAndPort(host, DEFAULT_PORT); // IPv6
+    return host;
+  }
+
+  /** Formats a host as {@link #parseHosts(String)} does, bracketing IPv6 literals. */
+  static String hostAndPort(String hostname, int port) {
+    if (hostname.indexOf(':') != -1) return "[" + hostname + "]:" + port;
+    return hostname + ":" + port;
+  }
+
+  /** Returns the procedure parameter for a lower-hex ID, which is its bytes in binary mode. */
+  Object id(String hex) {
+    return Ids.parse(hex, binaryIds);
+  }
+
   static ClientResponse executeAdHoc(Client client, Object... parameters)
       throws IOException, ProcCallException {
     ClientResponse response = client.callProcedure("@AdHoc", parameters);
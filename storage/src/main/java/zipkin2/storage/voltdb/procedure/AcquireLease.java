@@ -0,0 +1,66 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb.procedure;
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+import org.voltdb.types.TimestampType;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static zipkin2.storage.voltdb.Schema.TABLE_SCHEDULER_LEASE;
+
+/**
+ * Acquires or renews the named lease, unless another holder has it and it hasn't expired. Returns
+ * one row with the holder and expiration of the lease after this call.
+ *
+ * <p>Time is that of the transaction, so all servers agree on expiration regardless of their
+ * clocks.
+ */
+public final class AcquireLease extends VoltProcedure {
+
+  final SQLStmt getLease = new SQLStmt(
+      "SELECT holder, expire_ts FROM " + TABLE_SCHEDULER_LEASE + " WHERE name = ?");
+
+  final SQLStmt upsertLease = new SQLStmt(
+      "UPSERT INTO " + TABLE_SCHEDULER_LEASE + " (name, holder, expire_ts) VALUES (?, ?, ?)");
+
+  public VoltTable run(String name, String holder, long leaseMillis) {
+    if (leaseMillis < 1) throw new VoltAbortException("leaseMillis < 1");
+
+    long nowMillis = getTransactionTime().getTime();
+    voltQueueSQL(getLease, name);
+    VoltTable current = voltExecuteSQL()[0];
+
+    VoltTable result = new VoltTable(
+        new VoltTable.ColumnInfo("holder", VoltType.STRING),
+        new VoltTable.ColumnInfo("expire_ts", VoltType.TIMESTAMP));
+    if (current.advanceRow()) {
+      String currentHolder = current.getString(0);
+      TimestampType currentExpiration = current.getTimestampAsTimestamp(1);
+      if (!holder.equals(currentHolder)
+          && currentExpiration.getTime() > MILLISECONDS.toMicros(nowMillis)) {
+        result.addRow(currentHolder, currentExpiration);
+        return result; // someone else holds an unexpired lease
+      }
+    }
+
+    TimestampType expiration = new TimestampType(MILLISECONDS.toMicros(nowMillis + leaseMillis));
+    voltQueueSQL(upsertLease, EXPECT_SCALAR_MATCH(1), name, holder, expiration);
+    voltExecuteSQL(true);
+    result.addRow(holder, expiration);
+    return result;
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb.procedure;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+
+import static zipkin2.storage.voltdb.Schema.TABLE_NAME_DICTIONARY;
+import static zipkin2.storage.voltdb.Schema.TABLE_SPAN;
+
+/**
+ * Adds names of spans stored before the dictionary existed. Returns the count added, so that the
+ * caller can stop when none are left. Only installed while migrating the schema.
+ */
+public final class BackfillNameDictionary extends VoltProcedure {
+
+  final SQLStmt missingServiceNames = new SQLStmt(missingNames("service_name"));
+  final SQLStmt missingRemoteServiceNames = new SQLStmt(missingNames("remote_service_name"));
+  final SQLStmt missingSpanNames = new SQLStmt(missingNames("name"));
+  final SQLStmt getMaxId = new SQLStmt("SELECT MAX(id) FROM " + TABLE_NAME_DICTIONARY);
+  final SQLStmt insertName =
+      new SQLStmt("INSERT INTO " + TABLE_NAME_DICTIONARY + " (id, name) VALUES (?, ?)");
+
+  static String missingNames(String column) {
+    return "SELECT DISTINCT s." + column + " FROM " + TABLE_SPAN + " s LEFT JOIN "
+        + TABLE_NAME_DICTIONARY + " d ON d.name = s." + column
+        + " WHERE s." + column + " IS NOT NULL AND d.id IS NULL LIMIT ?";
+  }
+
+  public VoltTable run(int maxNames) throws VoltAbortException {
+    voltQueueSQL(missingServiceNames, maxNames);
+    voltQueueSQL(missingRemoteServiceNames, maxNames);
+    voltQueueSQL(missingSpanNames, maxNames);
+    voltQueueSQL(getMaxId, EXPECT_ONE_ROW);
+    VoltTable[] tables = voltExecuteSQL();
+
+    Set<String> names = new LinkedHashSet<>();
+    for (int i = 0; i < 3; i++) {
+      while (tables[i].advanceRow()) names.add(tables[i].getString(0));
+    }
+    long id = ResolveName.nextId(tables[3]);
+    int queued = 0;
+    for (String name : names) {
+      if (queued == Ids.MAX_BATCH_SIZE) {
+        voltExecuteSQL();
+        queued = 0;
+      }
+      voltQueueSQL(insertName, id++, name);
+      queued++;
+    }
+    if (queued > 0) voltExecuteSQL(true);
+
+    VoltTable result = new VoltTable(new VoltTable.ColumnInfo("changed", VoltType.BIGINT));
+    result.addRow(names.size());
+    return result;
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb.procedure;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+
+import static zipkin2.storage.voltdb.Schema.TABLE_NAME_DICTIONARY;
+import static zipkin2.storage.voltdb.Schema.TABLE_SPAN;
+
+/**
+ * Sets name IDs on spans stored before the dictionary existed, from names already added by {@link
+ * BackfillNameDictionary}, and clears their names. Returns the count of spans changed, so that the
+ * caller can stop when none are left. Only installed while migrating the schema.
+ */
+abstract class BaseBackfillNameIds extends VoltProcedure {
+
+  final SQLStmt missingIds = new SQLStmt(
+      "SELECT trace_id, id, md5, service_name, remote_service_name, name FROM " + TABLE_SPAN
+          + " WHERE service_name IS NOT NULL OR remote_service_name IS NOT NULL"
+          + " OR name IS NOT NULL LIMIT ?");
+  final SQLStmt getId = new SQLStmt("SELECT id FROM " + TABLE_NAME_DICTIONARY + " WHERE name = ?");
+  final SQLStmt updateSpan = new SQLStmt("UPDATE " + TABLE_SPAN
+      + " SET service_name_id = ?, remote_service_name_id = ?, name_id = ?,"
+      + " service_name = NULL, remote_service_name = NULL, name = NULL"
+      + " WHERE trace_id = ? AND id = ? AND md5 = ?");
+
+  VoltTable backfill(int maxSpans) {
+    voltQueueSQL(missingIds, maxSpans);
+    VoltTable spans = voltExecuteSQL()[0];
+
+    Map<String, Integer> ids = new LinkedHashMap<>();
+    while (spans.advanceRow()) {
+      for (int i = 3; i < 6; i++) {
+        String name = spans.getString(i);
+        if (!spans.wasNull()) ids.put(name, null);
+      }
+    }
+    lookupIds(ids);
+
+    spans.resetRowPosition();
+    int queued = 0;
+    while (spans.advanceRow()) {
+      if (queued == Ids.MAX_BATCH_SIZE) {
+        voltExecuteSQL();
+        queued = 0;
+      }
+      voltQueueSQL(updateSpan, id(ids, spans, 3), id(ids, spans, 4), id(ids, spans, 5),
+          Ids.get(spans, 0), Ids.get(spans, 1), spans.getVarbinary(2));
+      queued++;
+    }
+    if (queued > 0) voltExecuteSQL(true);
+
+    VoltTable result = new VoltTable(new VoltTable.ColumnInfo("changed", VoltType.BIGINT));
+    result.addRow(spans.getRowCount());
+    return result;
+  }
+
+  void lookupIds(Map<String, Integer> ids) {
+    String[] names = ids.keySet().toArray(new String[0]);
+    for (int start = 0; start < names.length; start += Ids.MAX_BATCH_SIZE) {
+      int end = Math.min(names.length, start + Ids.MAX_BATCH_SIZE);
+      for (int i = start; i < end; i++) voltQueueSQL(getId, EXPECT_ONE_ROW, names[i]);
+      VoltTable[] tables = voltExecuteSQL();
+      for (int i = start; i < end; i++) {
+        tables[i - start].advanceRow();
+        ids.put(names[i], (int) tables[i - start].getLong(0));
+      }
+    }
+  }
+
+  static Integer id(Map<String, Integer> ids, VoltTable spans, int index) {
+    String name = spans.getString(index);
+    return spans.wasNull() ? null : ids.get(name);
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb.procedure;
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+
+import static zipkin2.storage.voltdb.Schema.TABLE_SPAN;
+
+/**
+ * Sets the lower 64 bits of the trace ID on spans stored before the column existed. Returns the
+ * count of spans changed, so that the caller can stop when none are left.
+ */
+abstract class BaseBackfillTraceIdLow extends VoltProcedure {
+
+  final SQLStmt missingTraceIds = new SQLStmt(
+      "SELECT DISTINCT trace_id FROM " + TABLE_SPAN + " WHERE trace_id_low IS NULL LIMIT ?");
+  final SQLStmt updateTrace = new SQLStmt(
+      "UPDATE " + TABLE_SPAN + " SET trace_id_low = ? WHERE trace_id = ? AND trace_id_low IS NULL");
+
+  VoltTable backfill(int maxTraces) {
+    voltQueueSQL(missingTraceIds, maxTraces);
+    VoltTable traceIds = voltExecuteSQL()[0];
+
+    long changed = 0L;
+    int queued = 0;
+    while (traceIds.advanceRow()) {
+      if (queued == Ids.MAX_BATCH_SIZE) {
+        changed += sum(voltExecuteSQL());
+        queued = 0;
+      }
+      Object traceId = Ids.get(traceIds, 0);
+      voltQueueSQL(updateTrace, Ids.low(traceId), traceId);
+      queued++;
+    }
+    if (queued > 0) changed += sum(voltExecuteSQL(true));
+
+    VoltTable result = new VoltTable(new VoltTable.ColumnInfo("changed", VoltType.BIGINT));
+    result.addRow(changed);
+    return result;
+  }
+
+  static long sum(VoltTable[] modifiedCounts) {
+    long result = 0L;
+    for (VoltTable modifiedCount : modifiedCounts) result += modifiedCount.asScalarLong();
+    return result;
+  }
+}
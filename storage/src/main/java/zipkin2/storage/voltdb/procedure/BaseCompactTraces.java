@@ -0,0 +1,164 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb.procedure;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.internal.Trace;
+
+import static zipkin2.storage.voltdb.Schema.TABLE_COMPACTED_SPAN_NAME;
+import static zipkin2.storage.voltdb.Schema.TABLE_COMPACTED_TRACE;
+import static zipkin2.storage.voltdb.Schema.TABLE_PENDING_COMPACTION;
+import static zipkin2.storage.voltdb.Schema.TABLE_SPAN;
+
+/**
+ * Merges the span rows of linked traces into one {@link TraceBlob} row, then deletes them. Each
+ * distinct combination of service and span name is kept in a row of its own, so compacted traces
+ * can still be searched.
+ *
+ * <p>Spans stored after a trace was compacted are linked again, which queues it to be compacted
+ * again. They are then merged with the spans already in the blob.
+ */
+abstract class BaseCompactTraces extends VoltProcedure {
+
+  final SQLStmt pendingTraceIds = new SQLStmt(
+      "SELECT trace_id FROM " + TABLE_PENDING_COMPACTION + " ORDER BY trace_id LIMIT ?");
+  final SQLStmt spanRows = new SQLStmt(
+      "SELECT json, service_name_id, remote_service_name_id, name_id, ts FROM " + TABLE_SPAN
+          + " WHERE trace_id = ?");
+  final SQLStmt compactedTrace = new SQLStmt(
+      "SELECT ts, spans FROM " + TABLE_COMPACTED_TRACE + " WHERE trace_id = ?");
+  final SQLStmt compactedNames = new SQLStmt(
+      "SELECT service_name_id, remote_service_name_id, name_id FROM " + TABLE_COMPACTED_SPAN_NAME
+          + " WHERE trace_id = ?");
+  final SQLStmt upsertCompactedTrace = new SQLStmt(
+      "UPSERT INTO " + TABLE_COMPACTED_TRACE + " (trace_id, trace_id_low, ts, spans)"
+          + " VALUES (?, ?, TO_TIMESTAMP(Micros, ?), ?)");
+  final SQLStmt insertCompactedName = new SQLStmt(
+      "INSERT INTO " + TABLE_COMPACTED_SPAN_NAME
+          + " (trace_id, service_name_id, remote_service_name_id, name_id, ts)"
+          + " VALUES (?, ?, ?, ?, TO_TIMESTAMP(Micros, ?))");
+  final SQLStmt deleteSpans = new SQLStmt("DELETE FROM " + TABLE_SPAN + " WHERE trace_id = ?");
+  final SQLStmt deletePendingCompaction = new SQLStmt(
+      "DELETE FROM " + TABLE_PENDING_COMPACTION + " WHERE trace_id = ?");
+
+  /** Returns the lower-hex trace IDs compacted. */
+  VoltTable compactTraces(int maxTraces) {
+    if (maxTraces < 1) throw new VoltAbortException("maxTraces < 1");
+
+    voltQueueSQL(pendingTraceIds, maxTraces);
+    VoltTable pendingTraceIdTable = voltExecuteSQL()[0];
+
+    VoltTable result = new VoltTable(new VoltTable.ColumnInfo("trace_id", VoltType.STRING));
+    if (pendingTraceIdTable.getRowCount() == 0) return result; // no rows
+
+    List<Object> traceIds = new ArrayList<>();
+    while (pendingTraceIdTable.advanceRow()) {
+      traceIds.add(Ids.get(pendingTraceIdTable, 0));
+    }
+
+    for (Object trace_id : traceIds) {
+      if (compactTrace(trace_id)) result.addRow(Ids.hex(trace_id));
+      voltQueueSQL(deletePendingCompaction, trace_id);
+      voltExecuteSQL(false);
+    }
+    return result;
+  }
+
+  /**
+   * Returns false when there was nothing to compact, or when the merged trace is too large for a
+   * blob, in which case its spans are left as rows.
+   */
+  boolean compactTrace(Object trace_id) {
+    voltQueueSQL(spanRows, trace_id);
+    voltQueueSQL(compactedTrace, EXPECT_ZERO_OR_ONE_ROW, trace_id);
+    voltQueueSQL(compactedNames, trace_id);
+    VoltTable[] tables = voltExecuteSQL();
+    VoltTable spanRowsTable = tables[0], compactedTraceTable = tables[1];
+    if (spanRowsTable.getRowCount() == 0) return false;
+
+    List<Span> spans = new ArrayList<>();
+    long ts = Long.MAX_VALUE;
+    if (compactedTraceTable.advanceRow()) {
+      long compactedTs = compactedTraceTable.getTimestampAsLong(0);
+      if (!compactedTraceTable.wasNull()) ts = compactedTs;
+      TraceBlob.decode(compactedTraceTable.getVarbinary(1), spans);
+    }
+
+    Set<List<Integer>> existingNames = new LinkedHashSet<>();
+    for (VoltTable namesTable = tables[2]; namesTable.advanceRow(); ) {
+      existingNames.add(names(namesTable, 0));
+    }
+
+    // names not yet searchable, with the earliest timestamp of a span that has them
+    Map<List<Integer>, Long> newNames = new LinkedHashMap<>();
+    while (spanRowsTable.advanceRow()) {
+      SpanBytesDecoder.JSON_V2.decode(spanRowsTable.getStringAsBytes(0), spans);
+      long spanTs = spanRowsTable.getTimestampAsLong(4);
+      if (spanRowsTable.wasNull()) spanTs = Long.MAX_VALUE;
+      ts = Math.min(ts, spanTs);
+
+      List<Integer> names = names(spanRowsTable, 1);
+      if (existingNames.contains(names)) continue;
+      Long namesTs = newNames.get(names);
+      if (namesTs == null || spanTs < namesTs) newNames.put(names, spanTs);
+    }
+
+    byte[] blob = TraceBlob.encode(Trace.merge(spans));
+    if (blob.length > TraceBlob.MAX_BYTES) {
+      setAppStatusString("trace " + Ids.hex(trace_id) + " is too large to compact");
+      return false;
+    }
+
+    voltQueueSQL(upsertCompactedTrace, trace_id, Ids.low(trace_id),
+        ts == Long.MAX_VALUE ? null : ts, blob);
+    int queued = 1;
+    for (Map.Entry<List<Integer>, Long> entry : newNames.entrySet()) {
+      if (queued == Ids.MAX_BATCH_SIZE) {
+        voltExecuteSQL();
+        queued = 0;
+      }
+      List<Integer> names = entry.getKey();
+      Long namesTs = entry.getValue();
+      voltQueueSQL(insertCompactedName, trace_id, names.get(0), names.get(1), names.get(2),
+          namesTs == Long.MAX_VALUE ? null : namesTs);
+      queued++;
+    }
+    voltQueueSQL(deleteSpans, trace_id);
+    voltExecuteSQL();
+    return true;
+  }
+
+  /** Returns the service, remote service and span name IDs starting at the index. */
+  static List<Integer> names(VoltTable table, int index) {
+    return Arrays.asList(nullableInt(table, index), nullableInt(table, index + 1),
+        nullableInt(table, index + 2));
+  }
+
+  static Integer nullableInt(VoltTable table, int index) {
+    int result = (int) table.getLong(index);
+    return table.wasNull() ? null : result;
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb.procedure;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+import org.voltdb.types.TimestampType;
+import zipkin2.Span;
+import zipkin2.internal.SpanNode;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static zipkin2.storage.voltdb.Schema.TABLE_COMPLETE_TRACE;
+import static zipkin2.storage.voltdb.Schema.TABLE_PENDING_TRACE;
+import static zipkin2.storage.voltdb.Schema.TABLE_SPAN;
+
+abstract class BaseCompletePendingTraces extends VoltProcedure {
+  static final Logger LOG = Logger.getLogger(BaseCompletePendingTraces.class.getName());
+
+  // Traces whose root span finished are likely complete, so we check them without waiting for
+  // the update window to pass. If they aren't complete, we fall back to polling oldTraceIds.
+  final SQLStmt rootFinishedTraceIds = new SQLStmt(
+      "SELECT update_ts, trace_id FROM " + TABLE_PENDING_TRACE
+          + " WHERE root_finished = 1 ORDER BY update_ts LIMIT ?");
+
+  // A range on update_ts, as opposed to a function of it, can use the index on that column. This
+  // means we only read the oldest rows, regardless of how many traces are pending.
+  final SQLStmt oldTraceIds = new SQLStmt(
+      "SELECT update_ts, trace_id FROM " + TABLE_PENDING_TRACE
+          + " WHERE root_finished = 0 AND update_ts < ? ORDER BY update_ts LIMIT ?");
+
+  final SQLStmt minimalSpanFields = new SQLStmt(
+      "SELECT MAX(parent_id), id, MIN(ts), MIN(duration) FROM " + TABLE_SPAN + " WHERE trace_id = ?"
+          + " GROUP BY id");
+
+  final SQLStmt clearRootFinished = new SQLStmt(
+      "UPDATE " + TABLE_PENDING_TRACE + " SET root_finished = 0 WHERE trace_id = ?;");
+
+  final SQLStmt deletePendingTrace = new SQLStmt(
+      "DELETE FROM " + TABLE_PENDING_TRACE + " WHERE trace_id = ?;");
+
+  final SQLStmt updateCompleteTrace = new SQLStmt( // unset the process timestamp
+      "UPSERT INTO " + TABLE_COMPLETE_TRACE + " VALUES (?, NULL)");
+
+  /** Returns the lower-hex trace IDs completed. */
+  VoltTable completePendingTraces(int maxTraces, long minAgeSeconds, long maxAgeSeconds) {
+    if (maxTraces < 1) throw new VoltAbortException("maxTraces < 1");
+    if (minAgeSeconds < 0) throw new VoltAbortException("minAgeSeconds < 0");
+    if (maxAgeSeconds < minAgeSeconds) throw new VoltAbortException("maxAgeSeconds < minAgeSeconds");
+
+    // Ages are in whole seconds, so a trace updated any time in the cutoff second is too new
+    long nowSeconds = MILLISECONDS.toSeconds(getTransactionTime().getTime());
+    TimestampType cutoff = new TimestampType(SECONDS.toMicros(nowSeconds - minAgeSeconds + 1));
+    voltQueueSQL(rootFinishedTraceIds, maxTraces);
+    voltQueueSQL(oldTraceIds, cutoff, maxTraces);
+    VoltTable[] candidateTables = voltExecuteSQL();
+
+    VoltTable result = new VoltTable(new VoltTable.ColumnInfo("trace_id", VoltType.STRING));
+    if (candidateTables[0].getRowCount() == 0 && candidateTables[1].getRowCount() == 0) {
+      return result; // no rows
+    }
+
+    SpanNode.Builder nodeBuilder = SpanNode.newBuilder(LOG);
+
+    List<Object> traceIds = new ArrayList<>(), incompleteRootFinishedTraceIds = new ArrayList<>();
+    int remaining = maxTraces; // root finished traces are checked first
+    for (int i = 0; i < candidateTables.length; i++) {
+      VoltTable candidates = candidateTables[i];
+      while (remaining > 0 && candidates.advanceRow()) {
+        remaining--;
+        long age_seconds =
+            nowSeconds - MICROSECONDS.toSeconds(candidates.getTimestampAsLong(0));
+        Object trace_id = Ids.get(candidates, 1);
+
+        if (age_seconds >= maxAgeSeconds || isComplete(nodeBuilder, trace_id)) {
+          traceIds.add(trace_id);
+        } else if (i == 0) {
+          incompleteRootFinishedTraceIds.add(trace_id);
+        }
+      }
+    }
+    for (Object trace_id : incompleteRootFinishedTraceIds) {
+      voltQueueSQL(clearRootFinished, EXPECT_SCALAR_MATCH(1), trace_id);
+    }
+    for (Object trace_id : traceIds) {
+      voltQueueSQL(deletePendingTrace, EXPECT_SCALAR_MATCH(1), trace_id);
+      voltQueueSQL(updateCompleteTrace, EXPECT_SCALAR_MATCH(1), trace_id);
+      result.addRow(Ids.hex(trace_id));
+    }
+    voltExecuteSQL(true);
+    return result;
+  }
+
+  boolean isComplete(SpanNode.Builder nodeBuilder, Object trace_id) {
+    voltQueueSQL(minimalSpanFields, trace_id);
+    String traceId = Ids.hex(trace_id);
+
+    VoltTable spansTable = voltExecuteSQL()[0];
+    List<Span> spans = new ArrayList<>();
+    String missingTimestamp = null, missingDuration = null;
+    while (spansTable.advanceRow()) {
+      Span span = Span.newBuilder()
+          .traceId(traceId)
+          .parentId(Ids.hex(spansTable, 0))
+          .id(Ids.hex(spansTable, 1)).build();
+
+      spansTable.getTimestampAsLong(2);
+      if (spansTable.wasNull()) {
+        missingTimestamp = span.id();
+        break;
+      }
+      spansTable.getLong(3);
+      if (spansTable.wasNull()) {
+        missingDuration = span.id();
+        break;
+      }
+
+      spans.add(span);
+    }
+
+    if (missingTimestamp != null) {
+      if (LOG.isLoggable(Level.FINE)) {
+        LOG.fine(traceId + "/" + missingTimestamp + " is missing its timestamp");
+      }
+      return false;
+    }
+
+    if (missingDuration != null) {
+      if (LOG.isLoggable(Level.FINE)) {
+        LOG.fine(traceId + "/" + missingDuration + " is missing its duration");
+      }
+      return false;
+    }
+
+    if (spans.isEmpty()) {
+      if (LOG.isLoggable(Level.FINE)) {
+        LOG.fine(traceId + " had no valid spans");
+      }
+      return false;
+    }
+
+    SpanNode node = nodeBuilder.build(spans);
+
+    if (node.span() == null) {
+      if (LOG.isLoggable(Level.FINE)) {
+        LOG.fine(traceId + " missing a root span");
+      }
+      return false;
+    }
+
+    String rootSpanId = node.span().id();
+    String missingParent = null;
+    for (SpanNode child : node.children()) {
+      if (!rootSpanId.equals(child.span().parentId())) {
+        missingParent = child.span().id();
+        break;
+      }
+    }
+
+    if (missingParent != null) {
+      if (LOG.isLoggable(Level.FINE)) {
+        LOG.fine(traceId + "/" + missingParent + " is missing its parent");
+      }
+      return false;
+    }
+
+    // TODO: check for messaging spans as this isn't quite correct, but good enough for now
+    return true;
+  }
+}
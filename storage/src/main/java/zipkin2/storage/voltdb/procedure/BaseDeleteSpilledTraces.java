@@ -0,0 +1,83 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb.procedure;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+
+import static zipkin2.storage.voltdb.Schema.TABLE_COMPACTED_SPAN_NAME;
+import static zipkin2.storage.voltdb.Schema.TABLE_COMPACTED_TRACE;
+
+/**
+ * Deletes compacted traces once they were written to the cold tier. This is invoked on all
+ * partitions with the same IDs, and each deletes those it has.
+ *
+ * <p>A trace is only deleted if its {@link TraceBlob} has the MD5 of the one written, as it may
+ * have been compacted again with late spans since it was read.
+ */
+abstract class BaseDeleteSpilledTraces extends VoltProcedure {
+
+  final SQLStmt compactedSpans = new SQLStmt(
+      "SELECT spans FROM " + TABLE_COMPACTED_TRACE + " WHERE trace_id = ?");
+  final SQLStmt deleteCompactedTrace = new SQLStmt(
+      "DELETE FROM " + TABLE_COMPACTED_TRACE + " WHERE trace_id = ?");
+  final SQLStmt deleteCompactedNames = new SQLStmt(
+      "DELETE FROM " + TABLE_COMPACTED_SPAN_NAME + " WHERE trace_id = ?");
+
+  final MessageDigest md5 = md5();
+
+  /**
+   * @param traceIds lower-hex trace IDs written to the cold tier
+   * @param md5s lower-hex MD5 of the blob written for each trace ID
+   * @param binary whether ID columns hold bytes instead of hex
+   * @return the lower-hex trace IDs deleted from this partition
+   */
+  VoltTable deleteSpilledTraces(String[] traceIds, String[] md5s, boolean binary) {
+    if (traceIds.length != md5s.length) throw new VoltAbortException("traceIds != md5s");
+
+    VoltTable result = new VoltTable(new VoltTable.ColumnInfo("trace_id", VoltType.STRING));
+    for (int i = 0; i < traceIds.length; i += Ids.MAX_BATCH_SIZE / 2) {
+      int end = Math.min(traceIds.length, i + Ids.MAX_BATCH_SIZE / 2);
+      for (int j = i; j < end; j++) {
+        voltQueueSQL(compactedSpans, EXPECT_ZERO_OR_ONE_ROW, Ids.parse(traceIds[j], binary));
+      }
+      VoltTable[] tables = voltExecuteSQL();
+      int queued = 0;
+      for (int j = i; j < end; j++) {
+        VoltTable spansTable = tables[j - i];
+        if (!spansTable.advanceRow()) continue; // in another partition, or already deleted
+        if (!md5s[j].equals(Ids.hex(md5.digest(spansTable.getVarbinary(0))))) continue;
+        Object trace_id = Ids.parse(traceIds[j], binary);
+        voltQueueSQL(deleteCompactedTrace, trace_id);
+        voltQueueSQL(deleteCompactedNames, trace_id);
+        queued += 2;
+        result.addRow(traceIds[j]);
+      }
+      if (queued > 0) voltExecuteSQL();
+    }
+    return result;
+  }
+
+  static MessageDigest md5() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e); // all JREs support MD5
+    }
+  }
+}
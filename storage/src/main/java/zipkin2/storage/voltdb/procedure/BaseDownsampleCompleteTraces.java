@@ -0,0 +1,118 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb.procedure;
+
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltTable;
+import zipkin2.internal.HexCodec;
+
+import static zipkin2.storage.voltdb.Schema.TABLE_COMPACTED_TRACE;
+import static zipkin2.storage.voltdb.Schema.TABLE_NAME_DICTIONARY;
+import static zipkin2.storage.voltdb.Schema.TABLE_SPAN;
+
+/**
+ * Links complete traces like {@link BaseLinkCompleteTraces}, then deletes the spans of those that
+ * aren't interesting, except a fraction of them. A trace is kept when any span has an error, lasts
+ * at least the duration threshold, or is from one of the services to keep. It is also kept when
+ * its compacted form already is, as late spans shouldn't orphan it.
+ *
+ * <p>The fraction kept is decided by the lower 64 bits of the trace ID, so the decision is the same
+ * when late spans of a trace are linked again, regardless of ID width.
+ */
+abstract class BaseDownsampleCompleteTraces extends BaseLinkCompleteTraces {
+  static final long PRECISION = 10_000L;
+
+  final SQLStmt getNameId =
+      new SQLStmt("SELECT id FROM " + TABLE_NAME_DICTIONARY + " WHERE name = ?");
+  final SQLStmt serviceSummary = new SQLStmt(
+      "SELECT service_name_id, MAX(is_error), MAX(duration) FROM " + TABLE_SPAN
+          + " WHERE trace_id = ? GROUP BY service_name_id");
+  final SQLStmt compactedTraceCount = new SQLStmt(
+      "SELECT COUNT(*) FROM " + TABLE_COMPACTED_TRACE + " WHERE trace_id = ?");
+
+  // policy of the current invocation, as a procedure instance is only used by one site
+  long boundary, keepDurationMicros;
+  final Set<Integer> keepServiceIds = new LinkedHashSet<>();
+
+  /**
+   * Returns the lower-hex trace IDs linked, whether or not their spans were kept.
+   *
+   * @param sampleRate fraction of uninteresting traces to keep, from 0.0 to 1.0
+   * @param keepDurationMicros traces with a span at least this long are kept. Zero disables.
+   * @param keepServiceNames traces with a span from any of these services are kept
+   */
+  VoltTable downsampleCompleteTraces(int maxTraces, double sampleRate, long keepDurationMicros,
+      String[] keepServiceNames) {
+    if (sampleRate < 0.0 || sampleRate > 1.0) {
+      throw new VoltAbortException("sampleRate should be between 0.0 and 1.0");
+    }
+    if (keepDurationMicros < 0) throw new VoltAbortException("keepDurationMicros < 0");
+    if (keepServiceNames.length > Ids.MAX_BATCH_SIZE) {
+      throw new VoltAbortException("keepServiceNames > " + Ids.MAX_BATCH_SIZE);
+    }
+
+    this.boundary = (long) (sampleRate * PRECISION);
+    this.keepDurationMicros = keepDurationMicros;
+    keepServiceIds.clear();
+    if (keepServiceNames.length > 0) {
+      for (String name : keepServiceNames) {
+        voltQueueSQL(getNameId, EXPECT_ZERO_OR_ONE_ROW, name.toLowerCase(Locale.ROOT));
+      }
+      // a service not yet in the dictionary has no spans to keep
+      for (VoltTable idTable : voltExecuteSQL()) {
+        if (idTable.advanceRow()) keepServiceIds.add((int) idTable.getLong(0));
+      }
+    }
+    return linkCompleteTraces(maxTraces);
+  }
+
+  @Override boolean keep(Object trace_id) {
+    if (isSampled(trace_id, boundary)) return true;
+
+    voltQueueSQL(serviceSummary, trace_id);
+    voltQueueSQL(compactedTraceCount, trace_id);
+    VoltTable[] tables = voltExecuteSQL();
+    if (tables[1].asScalarLong() > 0) return true;
+
+    for (VoltTable summary = tables[0]; summary.advanceRow(); ) {
+      int serviceNameId = (int) summary.getLong(0);
+      if (!summary.wasNull() && keepServiceIds.contains(serviceNameId)) return true;
+      long isError = summary.getLong(1);
+      if (!summary.wasNull() && isError != 0) return true;
+      long duration = summary.getLong(2);
+      if (keepDurationMicros > 0 && !summary.wasNull() && duration >= keepDurationMicros) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Returns true if the lower 64 bits of the trace ID fall below the sampling boundary. */
+  static boolean isSampled(Object trace_id, long boundary) {
+    if (boundary >= PRECISION) return true;
+    if (boundary <= 0L) return false;
+    return ((lowBits(trace_id) >>> 1) % PRECISION) < boundary;
+  }
+
+  static long lowBits(Object trace_id) {
+    Object low = Ids.low(trace_id);
+    if (low instanceof String) return HexCodec.lowerHexToUnsignedLong((String) low);
+    long result = 0L;
+    for (byte b : (byte[]) low) result = (result << 8) | (b & 0xff);
+    return result;
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb.procedure;
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static zipkin2.storage.voltdb.Schema.TABLE_COMPLETE_TRACE;
+import static zipkin2.storage.voltdb.Schema.TABLE_PENDING_TRACE;
+
+/**
+ * Returns one row describing the work left for the background procedures on this partition: the
+ * count of pending traces, the age of the oldest one, and the count of complete traces not yet
+ * linked.
+ */
+abstract class BaseGetBacklog extends VoltProcedure {
+  final SQLStmt pendingTraces = new SQLStmt("SELECT COUNT(*) FROM " + TABLE_PENDING_TRACE);
+
+  // MIN(update_ts) would scan, as update_ts isn't the leading column of the only index. Instead,
+  // read the oldest of each root_finished value, which is the first row of its index range.
+  final SQLStmt oldestPendingTrace = new SQLStmt("SELECT update_ts FROM " + TABLE_PENDING_TRACE
+      + " WHERE root_finished = ? ORDER BY update_ts LIMIT 1");
+
+  final SQLStmt unlinkedTraces = new SQLStmt(
+      "SELECT COUNT(*) FROM " + TABLE_COMPLETE_TRACE + " WHERE process_ts IS NULL");
+
+  VoltTable backlog() {
+    voltQueueSQL(pendingTraces, EXPECT_SCALAR_LONG);
+    voltQueueSQL(oldestPendingTrace, EXPECT_ZERO_OR_ONE_ROW, 0);
+    voltQueueSQL(oldestPendingTrace, EXPECT_ZERO_OR_ONE_ROW, 1);
+    voltQueueSQL(unlinkedTraces, EXPECT_SCALAR_LONG);
+    VoltTable[] tables = voltExecuteSQL(true);
+
+    long oldestPendingMicros = Long.MAX_VALUE;
+    for (int i = 1; i < 3; i++) {
+      if (tables[i].advanceRow()) {
+        oldestPendingMicros = Math.min(oldestPendingMicros, tables[i].getTimestampAsLong(0));
+      }
+    }
+    long oldestPendingAgeMillis = oldestPendingMicros == Long.MAX_VALUE ? 0L
+        : getTransactionTime().getTime() - MICROSECONDS.toMillis(oldestPendingMicros);
+
+    VoltTable result = new VoltTable(
+        new VoltTable.ColumnInfo("pending_traces", VoltType.BIGINT),
+        new VoltTable.ColumnInfo("oldest_pending_age_millis", VoltType.BIGINT),
+        new VoltTable.ColumnInfo("unlinked_traces", VoltType.BIGINT));
+    result.addRow(tables[0].asScalarLong(), Math.max(0L, oldestPendingAgeMillis),
+        tables[3].asScalarLong());
+    return result;
+  }
+}
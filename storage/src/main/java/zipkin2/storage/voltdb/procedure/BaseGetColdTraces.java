@@ -0,0 +1,100 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb.procedure;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+
+import static zipkin2.storage.voltdb.Schema.TABLE_COMPACTED_SPAN_NAME;
+import static zipkin2.storage.voltdb.Schema.TABLE_COMPACTED_TRACE;
+
+/**
+ * Returns the oldest compacted traces, so that they can be moved to the cold tier. Nothing is
+ * deleted until the caller has written them, with {@link BaseDeleteSpilledTraces}.
+ *
+ * <p>The first table has the lower-hex trace ID, timestamp and {@link TraceBlob} of each trace.
+ * The second has the service and span name IDs of each, so that the cold tier can be searched.
+ */
+abstract class BaseGetColdTraces extends VoltProcedure {
+  /** Bounds the response, as each blob can be up to {@link TraceBlob#MAX_BYTES}. */
+  static final int MAX_RESULT_BYTES = 4 * 1024 * 1024;
+
+  final SQLStmt oldestTraces = new SQLStmt(
+      "SELECT trace_id, ts, OCTET_LENGTH(spans) FROM " + TABLE_COMPACTED_TRACE
+          + " WHERE ts < TO_TIMESTAMP(Micros, ?) ORDER BY ts LIMIT ?");
+  final SQLStmt compactedSpans = new SQLStmt(
+      "SELECT spans FROM " + TABLE_COMPACTED_TRACE + " WHERE trace_id = ?");
+  final SQLStmt compactedNames = new SQLStmt(
+      "SELECT service_name_id, remote_service_name_id, name_id FROM " + TABLE_COMPACTED_SPAN_NAME
+          + " WHERE trace_id = ?");
+
+  /** @param maxTs epoch microseconds before which traces are returned */
+  VoltTable[] getColdTraces(int maxTraces, long maxTs) {
+    if (maxTraces < 1) throw new VoltAbortException("maxTraces < 1");
+
+    voltQueueSQL(oldestTraces, maxTs, maxTraces);
+    VoltTable oldestTracesTable = voltExecuteSQL()[0];
+
+    VoltTable traces = new VoltTable(
+        new VoltTable.ColumnInfo("trace_id", VoltType.STRING),
+        new VoltTable.ColumnInfo("ts", VoltType.BIGINT),
+        new VoltTable.ColumnInfo("spans", VoltType.VARBINARY));
+    VoltTable names = new VoltTable(
+        new VoltTable.ColumnInfo("trace_id", VoltType.STRING),
+        new VoltTable.ColumnInfo("service_name_id", VoltType.INTEGER),
+        new VoltTable.ColumnInfo("remote_service_name_id", VoltType.INTEGER),
+        new VoltTable.ColumnInfo("name_id", VoltType.INTEGER));
+
+    // at least one trace is returned, so that a large one doesn't block those after it
+    List<Object> traceIds = new ArrayList<>();
+    List<Long> timestamps = new ArrayList<>();
+    long bytes = 0L;
+    while (oldestTracesTable.advanceRow()) {
+      long length = oldestTracesTable.getLong(2);
+      if (!traceIds.isEmpty() && bytes + length > MAX_RESULT_BYTES) break;
+      bytes += length;
+      traceIds.add(Ids.get(oldestTracesTable, 0));
+      timestamps.add(oldestTracesTable.getTimestampAsLong(1));
+    }
+
+    for (int i = 0; i < traceIds.size(); i += Ids.MAX_BATCH_SIZE / 2) {
+      int end = Math.min(traceIds.size(), i + Ids.MAX_BATCH_SIZE / 2);
+      for (int j = i; j < end; j++) {
+        voltQueueSQL(compactedSpans, EXPECT_ONE_ROW, traceIds.get(j));
+        voltQueueSQL(compactedNames, traceIds.get(j));
+      }
+      VoltTable[] tables = voltExecuteSQL();
+      for (int j = i; j < end; j++) {
+        String traceId = Ids.hex(traceIds.get(j));
+        VoltTable spansTable = tables[(j - i) * 2], namesTable = tables[(j - i) * 2 + 1];
+        spansTable.advanceRow();
+        traces.addRow(traceId, timestamps.get(j), spansTable.getVarbinary(0));
+        while (namesTable.advanceRow()) {
+          names.addRow(traceId, nullableInt(namesTable, 0), nullableInt(namesTable, 1),
+              nullableInt(namesTable, 2));
+        }
+      }
+    }
+    return new VoltTable[] {traces, names};
+  }
+
+  static Integer nullableInt(VoltTable table, int index) {
+    int result = (int) table.getLong(index);
+    return table.wasNull() ? null : result;
+  }
+}
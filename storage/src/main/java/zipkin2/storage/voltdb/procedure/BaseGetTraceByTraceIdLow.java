@@ -0,0 +1,38 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb.procedure;
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+
+import static zipkin2.storage.voltdb.Schema.TABLE_COMPACTED_TRACE;
+import static zipkin2.storage.voltdb.Schema.TABLE_SPAN;
+
+/**
+ * Like {@link BaseGetTrace}, except spans are those whose trace ID has the lower 64 bits, which
+ * are indexed. They may be in different partitions, when instrumentation disagrees on ID width.
+ */
+abstract class BaseGetTraceByTraceIdLow extends VoltProcedure {
+  final SQLStmt spans =
+      new SQLStmt("SELECT json FROM " + TABLE_SPAN + " WHERE trace_id_low = ? ORDER BY ts");
+  final SQLStmt compactedSpans =
+      new SQLStmt("SELECT spans FROM " + TABLE_COMPACTED_TRACE + " WHERE trace_id_low = ?");
+
+  VoltTable[] getTrace(Object trace_id_low) {
+    voltQueueSQL(spans, trace_id_low);
+    voltQueueSQL(compactedSpans, trace_id_low);
+    return voltExecuteSQL(true);
+  }
+}
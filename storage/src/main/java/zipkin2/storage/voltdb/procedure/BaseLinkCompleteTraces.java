@@ -0,0 +1,183 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb.procedure;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.internal.Trace;
+
+import static zipkin2.storage.voltdb.Schema.TABLE_COMPLETE_TRACE;
+import static zipkin2.storage.voltdb.Schema.TABLE_PENDING_COMPACTION;
+import static zipkin2.storage.voltdb.Schema.TABLE_SPAN;
+
+/**
+ * Links traces that are complete. Before that, fragments of the same span, such as late
+ * annotations, are merged into one row. They are stored as separate rows, as the json of each
+ * differs. Client and server halves of a shared span have the same ID, too, but stay separate.
+ */
+abstract class BaseLinkCompleteTraces extends BaseLinkTrace {
+
+  final SQLStmt pendingTraceIds = new SQLStmt(
+      "SELECT trace_id from "
+          + TABLE_COMPLETE_TRACE
+          + " WHERE process_ts IS NULL ORDER BY trace_id LIMIT ?");
+
+  final SQLStmt updateCompleteTrace =
+      new SQLStmt("UPDATE " + TABLE_COMPLETE_TRACE + " SET process_ts = NOW WHERE trace_id = ?");
+
+  // Once linked, a trace is queued for CompactTraces
+  final SQLStmt updatePendingCompaction =
+      new SQLStmt("UPSERT INTO " + TABLE_PENDING_COMPACTION + " (trace_id) VALUES (?)");
+
+  final SQLStmt deleteSpans = new SQLStmt("DELETE FROM " + TABLE_SPAN + " WHERE trace_id = ?");
+
+  final SQLStmt fragmentedSpanIds = new SQLStmt(
+      "SELECT id FROM " + TABLE_SPAN + " WHERE trace_id = ? GROUP BY id HAVING COUNT(*) > 1");
+  final SQLStmt spanFragments = new SQLStmt(
+      "SELECT json, service_name_id, remote_service_name_id, name_id FROM " + TABLE_SPAN
+          + " WHERE trace_id = ? AND id = ?");
+  final SQLStmt deleteSpanFragments =
+      new SQLStmt("DELETE FROM " + TABLE_SPAN + " WHERE trace_id = ? AND id = ?");
+  final SQLStmt insertMergedSpan = new SQLStmt("INSERT INTO " + TABLE_SPAN
+      + " (trace_id, parent_id, id, kind, service_name_id, remote_service_name_id, name_id, ts, duration, is_error, md5, json, trace_id_low)"
+      + " VALUES"
+      + " (?, ?, ?, ?, ?, ?, ?, TO_TIMESTAMP(Micros, ?), ?, ?, ?, ?, ?)");
+
+  // reused across invocations as a procedure instance is only used by one site
+  final MessageDigest md5 = md5();
+
+  /** Returns the lower-hex trace IDs linked. */
+  VoltTable linkCompleteTraces(int maxTraces) {
+    if (maxTraces < 1) throw new VoltAbortException("maxTraces < 1");
+
+    voltQueueSQL(pendingTraceIds, maxTraces);
+    VoltTable pendingTraceIdTable = voltExecuteSQL()[0];
+
+    VoltTable result = new VoltTable(new VoltTable.ColumnInfo("trace_id", VoltType.STRING));
+    if (pendingTraceIdTable.getRowCount() == 0) return result; // no rows
+
+    List<Object> traceIds = new ArrayList<>();
+    while (pendingTraceIdTable.advanceRow()) {
+      traceIds.add(Ids.get(pendingTraceIdTable, 0));
+    }
+
+    for (Object trace_id : traceIds) {
+      mergeSpanFragments(trace_id);
+      linkTrace(trace_id, false);
+      boolean keep = keep(trace_id);
+      voltQueueSQL(updateCompleteTrace, EXPECT_SCALAR_MATCH(1), trace_id);
+      voltQueueSQL(keep ? updatePendingCompaction : deleteSpans, trace_id);
+      voltExecuteSQL(false);
+      result.addRow(Ids.hex(trace_id));
+    }
+
+    return result;
+  }
+
+  /**
+   * Returns false to delete the spans of a trace once linked, instead of queueing it for
+   * compaction. Dependency links of the trace are already stored either way.
+   */
+  boolean keep(Object trace_id) {
+    return true;
+  }
+
+  /** Replaces rows of the same span ID with those merged, and returns the count removed. */
+  int mergeSpanFragments(Object trace_id) {
+    voltQueueSQL(fragmentedSpanIds, trace_id);
+    VoltTable idsTable = voltExecuteSQL()[0];
+    List<Object> ids = new ArrayList<>();
+    while (idsTable.advanceRow()) ids.add(Ids.get(idsTable, 0));
+
+    boolean binary = trace_id instanceof byte[];
+    int removed = 0, queued = 0;
+    for (Object id : ids) {
+      // Writes for the last span ID execute with this read, whose result is last
+      voltQueueSQL(spanFragments, trace_id, id);
+      VoltTable[] tables = voltExecuteSQL();
+      VoltTable fragmentsTable = tables[tables.length - 1];
+      queued = 0;
+
+      List<Span> fragments = new ArrayList<>();
+      Map<String, Integer> nameIds = new LinkedHashMap<>();
+      while (fragmentsTable.advanceRow()) {
+        int before = fragments.size();
+        SpanBytesDecoder.JSON_V2.decode(fragmentsTable.getStringAsBytes(0), fragments);
+        if (fragments.size() == before) continue;
+        Span fragment = fragments.get(before);
+        putNameId(nameIds, fragment.localServiceName(), fragmentsTable, 1);
+        putNameId(nameIds, fragment.remoteServiceName(), fragmentsTable, 2);
+        putNameId(nameIds, fragment.name(), fragmentsTable, 3);
+      }
+
+      int rowCount = fragmentsTable.getRowCount();
+      if (fragments.size() != rowCount) continue; // don't delete rows that didn't decode
+      List<Span> merged = Trace.merge(fragments);
+      if (merged.size() >= rowCount) continue; // ex. client and server halves
+      if (merged.size() + 1 > Ids.MAX_BATCH_SIZE || !hasNameIds(nameIds, merged)) continue;
+
+      voltQueueSQL(deleteSpanFragments, trace_id, id);
+      for (Span span : merged) {
+        byte[] json = SpanBytesEncoder.JSON_V2.encode(span);
+        voltQueueSQL(insertMergedSpan, trace_id, Ids.parse(span.parentId(), binary), id,
+            span.kind() != null ? span.kind().name() : null,
+            nameIds.get(span.localServiceName()), nameIds.get(span.remoteServiceName()),
+            nameIds.get(span.name()), span.timestamp(), span.duration(),
+            (byte) (span.tags().containsKey("error") ? 1 : 0), md5.digest(json), json,
+            Ids.low(trace_id));
+      }
+      queued = merged.size() + 1;
+      removed += rowCount - merged.size();
+    }
+    if (queued > 0) voltExecuteSQL(); // so that results of the caller's next batch are its own
+    return removed;
+  }
+
+  static void putNameId(Map<String, Integer> nameIds, String name, VoltTable table, int index) {
+    int id = (int) table.getLong(index);
+    if (name != null && !table.wasNull()) nameIds.put(name, id);
+  }
+
+  /** False if a merged span has a name whose ID wasn't in any fragment, so can't be stored. */
+  static boolean hasNameIds(Map<String, Integer> nameIds, List<Span> merged) {
+    for (Span span : merged) {
+      if (span.localServiceName() != null && !nameIds.containsKey(span.localServiceName())) {
+        return false;
+      }
+      if (span.remoteServiceName() != null && !nameIds.containsKey(span.remoteServiceName())) {
+        return false;
+      }
+      if (span.name() != null && !nameIds.containsKey(span.name())) return false;
+    }
+    return true;
+  }
+
+  static MessageDigest md5() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e); // all JREs support MD5
+    }
+  }
+}
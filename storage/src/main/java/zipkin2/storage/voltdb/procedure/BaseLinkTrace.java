@@ -19,75 +19,99 @@ import org.voltdb.SQLStmt;
 import org.voltdb.VoltProcedure;
 import org.voltdb.VoltTable;
 import org.voltdb.VoltType;
-import zipkin2.DependencyLink;
-import zipkin2.Endpoint;
 import zipkin2.Span;
-import zipkin2.internal.DependencyLinker;
 
+import static zipkin2.storage.voltdb.Schema.TABLE_COMPACTED_TRACE;
 import static zipkin2.storage.voltdb.Schema.TABLE_DEPENDENCY_LINK;
+import static zipkin2.storage.voltdb.Schema.TABLE_NAME_DICTIONARY;
 import static zipkin2.storage.voltdb.Schema.TABLE_SPAN;
 
+/**
+ * The trace ID is a hex string or bytes, depending on the type of ID columns. See {@link Ids}.
+ *
+ * <p>Spans of a trace may be both rows and in a {@link TraceBlob}, when some were stored after it
+ * was compacted. Links are derived from all of them, as they replace those previously derived.
+ */
 abstract class BaseLinkTrace extends VoltProcedure {
   final SQLStmt getMinimumTimestamp = new SQLStmt(
       "SELECT MIN(ts) from " + TABLE_SPAN + " where trace_id = ?");
+  // Service names are translated from their IDs with the dictionary, which is replicated
   final SQLStmt getDependencyLinkFields = new SQLStmt(
-      "SELECT parent_id, id, kind, service_name, remote_service_name, is_error from "
-          + TABLE_SPAN + " where trace_id = ?");
+      "SELECT s.parent_id, s.id, s.kind, l.name, r.name, s.is_error from " + TABLE_SPAN + " s"
+          + " LEFT JOIN " + TABLE_NAME_DICTIONARY + " l ON l.id = s.service_name_id"
+          + " LEFT JOIN " + TABLE_NAME_DICTIONARY + " r ON r.id = s.remote_service_name_id"
+          + " where s.trace_id = ?");
+  final SQLStmt getCompactedTrace = new SQLStmt(
+      "SELECT ts, spans from " + TABLE_COMPACTED_TRACE + " where trace_id = ?");
   final SQLStmt insertDependencyLink = new SQLStmt(
       "UPSERT INTO " + TABLE_DEPENDENCY_LINK
           + " (trace_id, ts, parent, child, call_count, error_count)"
           + " VALUES"
           + " (?, TO_TIMESTAMP(Micros, ?), ?, ?, ?, ?)");
 
-  VoltTable[] linkTrace(String trace_id, boolean isFinalSQL) {
+  // reused across invocations as a procedure instance is only used by one site
+  final RowDependencyLinker linker = new RowDependencyLinker();
+
+  VoltTable[] linkTrace(Object trace_id, boolean isFinalSQL) {
     voltQueueSQL(getMinimumTimestamp, EXPECT_ZERO_OR_ONE_ROW, trace_id);
-    voltQueueSQL(getDependencyLinkFields, EXPECT_NON_EMPTY, trace_id);
+    voltQueueSQL(getDependencyLinkFields, trace_id);
+    voltQueueSQL(getCompactedTrace, EXPECT_ZERO_OR_ONE_ROW, trace_id);
     VoltTable[] tables = voltExecuteSQL();
 
     VoltTable getMinimumTimestampTable = tables[0];
     if (!getMinimumTimestampTable.advanceRow()) {
-      setAppStatusString("no timestamp for trace " + trace_id);
+      setAppStatusString("no timestamp for trace " + Ids.hex(trace_id));
       return new VoltTable[0];
     }
     long ts = getMinimumTimestampTable.getTimestampAsLong(0);
-    if (getMinimumTimestampTable.wasNull()) {
-      setAppStatusString("null timestamp for trace " + trace_id);
+    boolean hasTs = !getMinimumTimestampTable.wasNull();
+
+    List<Span> compactedSpans = new ArrayList<>();
+    VoltTable compactedTraceTable = tables[2];
+    if (compactedTraceTable.advanceRow()) {
+      long compactedTs = compactedTraceTable.getTimestampAsLong(0);
+      if (!compactedTraceTable.wasNull()) {
+        ts = hasTs ? Math.min(ts, compactedTs) : compactedTs;
+        hasTs = true;
+      }
+      TraceBlob.decode(compactedTraceTable.getVarbinary(1), compactedSpans);
+    }
+    if (!hasTs) {
+      setAppStatusString("null timestamp for trace " + Ids.hex(trace_id));
       return new VoltTable[0];
     }
 
     VoltTable spansTable = tables[1];
-    DependencyLinker linker = new DependencyLinker();
-    List<Span> spans = new ArrayList<>();
+    linker.clear();
     while (spansTable.advanceRow()) {
-      Span.Builder builder = Span.newBuilder()
-          .traceId(trace_id)
-          .parentId(maybeNull(spansTable, 0))
-          .id(spansTable.getString(1));
-
-      String kind = maybeNull(spansTable, 2);
-      if (kind != null) builder.kind(Span.Kind.valueOf(kind));
-
-      String service = maybeNull(spansTable, 3);
-      if (service != null) {
-        builder.localEndpoint(Endpoint.newBuilder().serviceName(service).build());
-      }
-
-      String remote_service = maybeNull(spansTable, 4);
-      if (remote_service != null) {
-        builder.remoteEndpoint(Endpoint.newBuilder().serviceName(remote_service).build());
-      }
-
-      if ((byte) spansTable.get(5, VoltType.TINYINT) != 0) {
-        builder.putTag("error", "");
-      }
-      spans.add(builder.build());
+      linker.addRow(
+          Ids.hex(spansTable, 0),
+          Ids.hex(spansTable, 1),
+          maybeNull(spansTable, 2),
+          maybeNull(spansTable, 3),
+          maybeNull(spansTable, 4),
+          (byte) spansTable.get(5, VoltType.TINYINT) != 0
+      );
+    }
+    for (Span span : compactedSpans) {
+      linker.addRow(
+          span.parentId(),
+          span.id(),
+          span.kind() != null ? span.kind().name() : null,
+          span.localServiceName(),
+          span.remoteServiceName(),
+          span.tags().containsKey("error")
+      );
     }
+    linker.link();
 
-    for (DependencyLink link : linker.putTrace(spans).link()) {
+    for (int i = 0, length = linker.linkCount(); i < length; i++) {
       voltQueueSQL(insertDependencyLink, trace_id, ts,
-          link.parent(), link.child(), link.callCount(), link.errorCount()
+          linker.linkParent(i), linker.linkChild(i), linker.linkCallCount(i),
+          linker.linkErrorCount(i)
       );
     }
+    linker.clear(); // don't retain strings between invocations
     return voltExecuteSQL(isFinalSQL);
   }
 
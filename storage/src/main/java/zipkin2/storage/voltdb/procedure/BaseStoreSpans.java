@@ -0,0 +1,101 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb.procedure;
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+
+import static zipkin2.storage.voltdb.Schema.APP_STATUS_SPAN_DROPPED;
+import static zipkin2.storage.voltdb.Schema.APP_STATUS_TRACE_CAPPED;
+import static zipkin2.storage.voltdb.Schema.TABLE_PENDING_TRACE;
+import static zipkin2.storage.voltdb.Schema.TABLE_SPAN;
+
+/**
+ * IDs are hex strings or bytes, depending on the type of ID columns. See {@link Ids}. Service and
+ * span names are stored as their ID in the dictionary. See {@link ResolveName}.
+ *
+ * <p>When there is a span cap, spans of a pending trace are counted. Once the count reaches the
+ * cap, further spans are dropped, except root spans and those with an error, as these are what a
+ * trimmed trace is most often found by. Dropped spans don't update the trace, so that it completes
+ * without waiting for a runaway producer to stop.
+ */
+abstract class BaseStoreSpans extends VoltProcedure {
+
+  final SQLStmt insertSpan = new SQLStmt("INSERT INTO " + TABLE_SPAN
+      + " (trace_id, parent_id, id, kind, service_name_id, remote_service_name_id, name_id, ts, duration, is_error, md5, json, trace_id_low)"
+      + " VALUES"
+      + " (?, ?, ?, ?, ?, ?, ?, TO_TIMESTAMP(Micros, ?), ?, ?, ?, ?, ?)");
+  // Upsert only updates the listed columns, so a late child doesn't unset root_finished
+  final SQLStmt updateTrace = new SQLStmt(
+      "UPSERT INTO " + TABLE_PENDING_TRACE + " (trace_id, update_ts) VALUES (?, NOW())");
+  final SQLStmt updateTraceRootFinished = new SQLStmt(
+      "UPSERT INTO " + TABLE_PENDING_TRACE
+          + " (trace_id, update_ts, root_finished) VALUES (?, NOW(), 1)");
+
+  final SQLStmt pendingSpanCount = new SQLStmt(
+      "SELECT span_count, dropped_span_count FROM " + TABLE_PENDING_TRACE + " WHERE trace_id = ?");
+  final SQLStmt insertCountedTrace = new SQLStmt("INSERT INTO " + TABLE_PENDING_TRACE
+      + " (trace_id, update_ts, root_finished, span_count) VALUES (?, NOW(), ?, 1)");
+  final SQLStmt updateCountedTrace = new SQLStmt("UPDATE " + TABLE_PENDING_TRACE
+      + " SET update_ts = NOW(), span_count = span_count + 1 WHERE trace_id = ?");
+  final SQLStmt updateCountedTraceRootFinished = new SQLStmt("UPDATE " + TABLE_PENDING_TRACE
+      + " SET update_ts = NOW(), root_finished = 1, span_count = span_count + 1"
+      + " WHERE trace_id = ?");
+  final SQLStmt updateDroppedSpanCount = new SQLStmt("UPDATE " + TABLE_PENDING_TRACE
+      + " SET dropped_span_count = dropped_span_count + 1 WHERE trace_id = ?");
+
+  /** @param maxSpans spans of a pending trace stored before others are dropped. Zero disables. */
+  VoltTable[] storeSpan(Object trace_id, Object parent_id, Object id, String kind,
+      Integer service_name_id, Integer remote_service_name_id, Integer name_id,
+      Long ts, Long duration, byte is_error, byte[] md5, byte[] json, int maxSpans) {
+    // A root span with duration hints the trace is complete, so CompletePendingTraces checks early
+    boolean rootFinished = parent_id == null && duration != null;
+    if (maxSpans <= 0) {
+      queueInsertSpan(trace_id, parent_id, id, kind, service_name_id, remote_service_name_id,
+          name_id, ts, duration, is_error, md5, json);
+      voltQueueSQL(rootFinished ? updateTraceRootFinished : updateTrace, trace_id);
+      return voltExecuteSQL(true);
+    }
+
+    voltQueueSQL(pendingSpanCount, EXPECT_ZERO_OR_ONE_ROW, trace_id);
+    VoltTable countTable = voltExecuteSQL()[0];
+    if (!countTable.advanceRow()) {
+      queueInsertSpan(trace_id, parent_id, id, kind, service_name_id, remote_service_name_id,
+          name_id, ts, duration, is_error, md5, json);
+      voltQueueSQL(insertCountedTrace, trace_id, rootFinished ? 1 : 0);
+      return voltExecuteSQL(true);
+    }
+
+    if (countTable.getLong(0) >= maxSpans && parent_id != null && is_error == 0) {
+      setAppStatusCode(countTable.getLong(1) == 0 ? APP_STATUS_TRACE_CAPPED
+          : APP_STATUS_SPAN_DROPPED);
+      voltQueueSQL(updateDroppedSpanCount, EXPECT_SCALAR_MATCH(1), trace_id);
+      return voltExecuteSQL(true);
+    }
+
+    queueInsertSpan(trace_id, parent_id, id, kind, service_name_id, remote_service_name_id,
+        name_id, ts, duration, is_error, md5, json);
+    voltQueueSQL(rootFinished ? updateCountedTraceRootFinished : updateCountedTrace,
+        EXPECT_SCALAR_MATCH(1), trace_id);
+    return voltExecuteSQL(true);
+  }
+
+  void queueInsertSpan(Object trace_id, Object parent_id, Object id, String kind,
+      Integer service_name_id, Integer remote_service_name_id, Integer name_id,
+      Long ts, Long duration, byte is_error, byte[] md5, byte[] json) {
+    voltQueueSQL(insertSpan, trace_id, parent_id, id, kind, service_name_id,
+        remote_service_name_id, name_id, ts, duration, is_error, md5, json, Ids.low(trace_id));
+  }
+}
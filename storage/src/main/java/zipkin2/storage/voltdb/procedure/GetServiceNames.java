@@ -17,18 +17,34 @@ import org.voltdb.SQLStmt;
 import org.voltdb.VoltProcedure;
 import org.voltdb.VoltTable;
 
+import static zipkin2.storage.voltdb.Schema.TABLE_COMPACTED_SPAN_NAME;
+import static zipkin2.storage.voltdb.Schema.TABLE_NAME_DICTIONARY;
 import static zipkin2.storage.voltdb.Schema.TABLE_SPAN;
 
 public final class GetServiceNames extends VoltProcedure {
 
-  final SQLStmt serviceNames = new SQLStmt(
-      "SELECT distinct(service_name) from " + TABLE_SPAN + " order by service_name");
-  final SQLStmt remoteServiceNames = new SQLStmt(
-      "SELECT distinct(remote_service_name) from " + TABLE_SPAN + " order by remote_service_name");
+  final SQLStmt serviceNames = new SQLStmt(names(TABLE_SPAN, "service_name_id"));
+  final SQLStmt remoteServiceNames = new SQLStmt(names(TABLE_SPAN, "remote_service_name_id"));
+  final SQLStmt compactedServiceNames =
+      new SQLStmt(names(TABLE_COMPACTED_SPAN_NAME, "service_name_id"));
+  final SQLStmt compactedRemoteServiceNames =
+      new SQLStmt(names(TABLE_COMPACTED_SPAN_NAME, "remote_service_name_id"));
 
+  /**
+   * Spans store the ID of names, so this translates them with the dictionary. Names of compacted
+   * spans are in their own table.
+   */
+  static String names(String table, String idColumn) {
+    return "SELECT distinct(d.name) from " + table + " s INNER JOIN " + TABLE_NAME_DICTIONARY
+        + " d ON d.id = s." + idColumn + " order by d.name";
+  }
+
+  /** Returns a table of names per query, which may have names in common. */
   public VoltTable[] run() throws VoltAbortException {
     voltQueueSQL(serviceNames);
     voltQueueSQL(remoteServiceNames);
+    voltQueueSQL(compactedServiceNames);
+    voltQueueSQL(compactedRemoteServiceNames);
     return voltExecuteSQL(true);
   }
 }
@@ -13,62 +13,148 @@
  */
 package zipkin2.storage.voltdb.procedure;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import org.voltdb.SQLStmt;
 import org.voltdb.VoltProcedure;
 import org.voltdb.VoltTable;
 import org.voltdb.VoltType;
 
+import static zipkin2.storage.voltdb.Schema.TABLE_COMPACTED_SPAN_NAME;
+import static zipkin2.storage.voltdb.Schema.TABLE_COMPACTED_TRACE;
 import static zipkin2.storage.voltdb.Schema.TABLE_SPAN;
 
+/**
+ * Returns the json of matching spans stored as rows, followed by {@link TraceBlob}s of matching
+ * traces that were compacted. Names of compacted spans are searched in their own table.
+ */
 public final class GetSpansJson extends VoltProcedure {
-  static final String TRACE_IDS_HEADER =
-      "SELECT trace_id from " + TABLE_SPAN + " where ";
   static final String TRACE_IDS_FOOTER =
       "ts BETWEEN TO_TIMESTAMP(Millis, ?) AND TO_TIMESTAMP(Millis, ?) ORDER BY trace_id LIMIT ?;";
 
   // TODO: It seems we need to explicitly make statements, as they have to be declared as final.
   // this means things like tag queries could be brutal to declare (ex 1 tag, 2 tags, 3 tags).
   // there's probably a better way
-  final SQLStmt basicStatement = new SQLStmt(TRACE_IDS_HEADER + TRACE_IDS_FOOTER);
-  final SQLStmt serviceNameStatement =
-      new SQLStmt(TRACE_IDS_HEADER + "service_name = ? AND " + TRACE_IDS_FOOTER);
-  final SQLStmt spanNameStatement =
-      new SQLStmt(TRACE_IDS_HEADER + "name = ? AND " + TRACE_IDS_FOOTER);
+  final SQLStmt basicStatement = new SQLStmt(spanTraceIds(""));
+  final SQLStmt serviceNameStatement = new SQLStmt(spanTraceIds("service_name_id = ? AND "));
+  final SQLStmt spanNameStatement = new SQLStmt(spanTraceIds("name_id = ? AND "));
   final SQLStmt serviceNameSpanNameStatement =
-      new SQLStmt(TRACE_IDS_HEADER + "service_name = ? AND name = ? AND " + TRACE_IDS_FOOTER);
+      new SQLStmt(spanTraceIds("service_name_id = ? AND name_id = ? AND "));
+  final SQLStmt compactedBasicStatement = new SQLStmt(compactedTraceIds(""));
+  final SQLStmt compactedServiceNameStatement =
+      new SQLStmt(compactedTraceIds("service_name_id = ? AND "));
+  final SQLStmt compactedSpanNameStatement = new SQLStmt(compactedTraceIds("name_id = ? AND "));
+  final SQLStmt compactedServiceNameSpanNameStatement =
+      new SQLStmt(compactedTraceIds("service_name_id = ? AND name_id = ? AND "));
 
   final SQLStmt spans = new SQLStmt("SELECT json from " + TABLE_SPAN + " where trace_id in ?;");
+  // IN lists can't be VARBINARY, so binary IDs are read one trace per statement
+  final SQLStmt traceSpans = new SQLStmt("SELECT json from " + TABLE_SPAN + " where trace_id = ?;");
+  // When trace IDs aren't strict, spans are read by the lower 64 bits, which are indexed
+  final SQLStmt spansLow =
+      new SQLStmt("SELECT json from " + TABLE_SPAN + " where trace_id_low in ?;");
+  final SQLStmt traceSpansLow =
+      new SQLStmt("SELECT json from " + TABLE_SPAN + " where trace_id_low = ?;");
+  final SQLStmt compactedSpans =
+      new SQLStmt("SELECT spans from " + TABLE_COMPACTED_TRACE + " where trace_id in ?;");
+  final SQLStmt compactedTraceSpans =
+      new SQLStmt("SELECT spans from " + TABLE_COMPACTED_TRACE + " where trace_id = ?;");
+  final SQLStmt compactedSpansLow =
+      new SQLStmt("SELECT spans from " + TABLE_COMPACTED_TRACE + " where trace_id_low in ?;");
+  final SQLStmt compactedTraceSpansLow =
+      new SQLStmt("SELECT spans from " + TABLE_COMPACTED_TRACE + " where trace_id_low = ?;");
+
+  static String spanTraceIds(String criteria) {
+    return "SELECT trace_id, trace_id_low from " + TABLE_SPAN + " where " + criteria
+        + TRACE_IDS_FOOTER;
+  }
+
+  /** Compacted names don't include the lower 64 bits, so they are derived from the trace ID. */
+  static String compactedTraceIds(String criteria) {
+    return "SELECT trace_id from " + TABLE_COMPACTED_SPAN_NAME + " where " + criteria
+        + TRACE_IDS_FOOTER;
+  }
 
-  public VoltTable[] run(String serviceName, String spanName, long endTs,
-      long lookback, int limit)
+  /**
+   * @param serviceNameId dictionary ID of the service name, or zero for any
+   * @param spanNameId dictionary ID of the span name, or zero for any
+   * @param strictTraceId 0 to include spans whose trace ID only matches in the lower 64 bits
+   */
+  public VoltTable[] run(int serviceNameId, int spanNameId, long endTs,
+      long lookback, int limit, byte strictTraceId)
       throws VoltAbortException {
-    if (serviceName != null && spanName != null) {
-      voltQueueSQL(serviceNameSpanNameStatement, serviceName, spanName, endTs - lookback, endTs,
-          limit);
-    } else if (serviceName != null) {
-      voltQueueSQL(serviceNameStatement, serviceName, endTs - lookback, endTs, limit);
-    } else if (spanName != null) {
-      voltQueueSQL(spanNameStatement, spanName, endTs - lookback, endTs, limit);
+    if (serviceNameId != 0 && spanNameId != 0) {
+      queueTraceIds(serviceNameSpanNameStatement, limit, endTs, lookback, serviceNameId,
+          spanNameId);
+      queueTraceIds(compactedServiceNameSpanNameStatement, limit, endTs, lookback,
+          serviceNameId, spanNameId);
+    } else if (serviceNameId != 0) {
+      queueTraceIds(serviceNameStatement, limit, endTs, lookback, serviceNameId);
+      queueTraceIds(compactedServiceNameStatement, limit, endTs, lookback, serviceNameId);
+    } else if (spanNameId != 0) {
+      queueTraceIds(spanNameStatement, limit, endTs, lookback, spanNameId);
+      queueTraceIds(compactedSpanNameStatement, limit, endTs, lookback, spanNameId);
     } else {
-      voltQueueSQL(basicStatement, endTs - lookback, endTs, limit);
+      queueTraceIds(basicStatement, limit, endTs, lookback);
+      queueTraceIds(compactedBasicStatement, limit, endTs, lookback);
     }
-    String[] traceIds = getStrings(voltExecuteSQL());
-    if (traceIds.length == 0) return new VoltTable[0];
+    VoltTable[] traceIds = voltExecuteSQL();
+    boolean strict = strictTraceId != 0;
+    Collection<Object> ids = distinctIds(Arrays.asList(traceIds), strict, limit);
+    if (ids.isEmpty()) return new VoltTable[0];
 
-    voltQueueSQL(spans, (Object) traceIds);
-    return voltExecuteSQL(true);
+    if (traceIds[0].getColumnType(0) == VoltType.STRING) {
+      Object idArray = ids.toArray(new String[0]);
+      voltQueueSQL(strict ? spans : spansLow, idArray);
+      voltQueueSQL(strict ? compactedSpans : compactedSpansLow, idArray);
+      return voltExecuteSQL(true);
+    }
+
+    List<VoltTable> result = new ArrayList<>();
+    int queued = 0;
+    for (Object id : ids) {
+      if (queued + 2 > Ids.MAX_BATCH_SIZE) {
+        result.addAll(Arrays.asList(voltExecuteSQL()));
+        queued = 0;
+      }
+      voltQueueSQL(strict ? traceSpans : traceSpansLow, id);
+      voltQueueSQL(strict ? compactedTraceSpans : compactedTraceSpansLow, id);
+      queued += 2;
+    }
+    result.addAll(Arrays.asList(voltExecuteSQL(true)));
+    return result.toArray(new VoltTable[0]);
   }
 
-  static String[] getStrings(VoltTable[] response) {
-    int length = response.length == 0 ? 0 : response[0].getRowCount();
-    if (length == 0) return new String[0];
+  /** Queues a trace ID statement, whose name criteria precede the timestamp range and limit. */
+  void queueTraceIds(SQLStmt statement, int limit, long endTs, long lookback, Object... names) {
+    Object[] parameters = Arrays.copyOf(names, names.length + 3);
+    parameters[names.length] = endTs - lookback;
+    parameters[names.length + 1] = endTs;
+    parameters[names.length + 2] = limit;
+    voltQueueSQL(statement, parameters);
+  }
 
-    VoltTable table = response[0];
-    String[] result = new String[length];
-    int i = 0;
-    while (table.advanceRow()) {
-      result[i++] = (String) table.get(0, VoltType.STRING);
+  /**
+   * Returns up to limit distinct trace IDs, or their lower 64 bits, as there is a row per matching
+   * span or name.
+   */
+  static Collection<Object> distinctIds(List<VoltTable> traceIdTables, boolean strict,
+      int limit) {
+    Map<String, Object> result = new LinkedHashMap<>();
+    for (VoltTable traceIds : traceIdTables) {
+      while (traceIds.advanceRow() && result.size() < limit) {
+        Object id = Ids.get(traceIds, 0);
+        if (!strict) {
+          Object low = traceIds.getColumnCount() > 1 ? Ids.get(traceIds, 1) : null;
+          id = low != null ? low : Ids.low(id); // stored before the column existed
+        }
+        result.put(Ids.hex(id), id);
+      }
     }
-    return result;
+    return result.values();
   }
 }
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb.procedure;
+
+import java.util.Arrays;
+import org.voltdb.VoltTable;
+
+/**
+ * Reads trace and span IDs regardless of how the schema stores them: lower-hex in VARCHAR columns,
+ * or their bytes in VARBINARY columns when installed with binary IDs.
+ *
+ * <p>Values are a {@link String} or a {@code byte[]}, matching the column type, so they can be
+ * passed back as statement parameters as-is.
+ */
+public final class Ids {
+  static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+  /** Statements a procedure queues before {@code voltExecuteSQL}, which limits a batch. */
+  public static final int MAX_BATCH_SIZE = 200;
+
+  /** Returns the ID in the column, or null. */
+  static Object get(VoltTable table, int index) {
+    Object result = table.get(index, table.getColumnType(index));
+    return table.wasNull() ? null : result;
+  }
+
+  /**
+   * Returns the lower 64 bits of a trace ID, which is the ID itself unless it is 128-bit. This is
+   * what spans of a trace have in common when instrumentation disagrees on the ID width.
+   */
+  static Object low(Object traceId) {
+    if (traceId instanceof String) {
+      String hex = (String) traceId;
+      return hex.length() > 16 ? hex.substring(hex.length() - 16) : hex;
+    }
+    byte[] bytes = (byte[]) traceId;
+    return bytes.length > 8 ? Arrays.copyOfRange(bytes, bytes.length - 8, bytes.length) : bytes;
+  }
+
+  /** Returns the lower-hex form of the ID in the column, or null. */
+  static String hex(VoltTable table, int index) {
+    return hex(get(table, index));
+  }
+
+  /** Returns the lower-hex form of an ID, or of other bytes such as a digest, or null. */
+  public static String hex(Object id) {
+    if (id == null || id instanceof String) return (String) id;
+    byte[] bytes = (byte[]) id;
+    char[] result = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      result[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+      result[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+    }
+    return new String(result);
+  }
+
+  /** Returns the ID as it is stored: lower-hex, or its bytes when binary. Null returns null. */
+  public static Object parse(String hex, boolean binary) {
+    if (hex == null || !binary) return hex;
+    byte[] result = new byte[hex.length() / 2];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = (byte) ((Character.digit(hex.charAt(i * 2), 16) << 4)
+          | Character.digit(hex.charAt(i * 2 + 1), 16));
+    }
+    return result;
+  }
+
+  Ids() {
+  }
+}
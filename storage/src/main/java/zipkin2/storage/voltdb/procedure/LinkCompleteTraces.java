@@ -13,44 +13,10 @@
  */
 package zipkin2.storage.voltdb.procedure;
 
-import java.util.ArrayList;
-import java.util.List;
-import org.voltdb.SQLStmt;
 import org.voltdb.VoltTable;
-import org.voltdb.VoltType;
-
-import static zipkin2.storage.voltdb.Schema.TABLE_COMPLETE_TRACE;
-
-public class LinkCompleteTraces extends BaseLinkTrace {
-  final SQLStmt pendingTraceIds = new SQLStmt(
-      "SELECT trace_id from "
-          + TABLE_COMPLETE_TRACE
-          + " WHERE process_ts IS NULL ORDER BY trace_id LIMIT ?");
-
-  final SQLStmt updateCompleteTrace =
-      new SQLStmt("UPDATE " + TABLE_COMPLETE_TRACE + " SET process_ts = NOW WHERE trace_id = ?");
 
+public class LinkCompleteTraces extends BaseLinkCompleteTraces {
   public VoltTable run(String partitionKey, int maxTraces) {
-    if (maxTraces < 1) throw new VoltAbortException("maxTraces < 1");
-
-    voltQueueSQL(pendingTraceIds, maxTraces);
-    VoltTable pendingTraceIdTable = voltExecuteSQL()[0];
-
-    VoltTable result = new VoltTable(new VoltTable.ColumnInfo("trace_id", VoltType.STRING));
-    if (pendingTraceIdTable.getRowCount() == 0) return result; // no rows
-
-    List<String> traceIds = new ArrayList<>();
-    while (pendingTraceIdTable.advanceRow()) {
-      traceIds.add(pendingTraceIdTable.getString(0));
-    }
-
-    for (String trace_id : traceIds) {
-      linkTrace(trace_id, false);
-      voltQueueSQL(updateCompleteTrace, EXPECT_SCALAR_MATCH(1), trace_id);
-      voltExecuteSQL(false);
-      result.addRow(trace_id);
-    }
-
-    return result;
+    return linkCompleteTraces(maxTraces);
   }
 }
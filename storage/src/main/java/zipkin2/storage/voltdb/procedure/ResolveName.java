@@ -0,0 +1,50 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb.procedure;
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+
+import static zipkin2.storage.voltdb.Schema.TABLE_NAME_DICTIONARY;
+
+/**
+ * Returns the ID of a service or span name, adding it to the dictionary if absent. This writes a
+ * replicated table, so is a multi-partition transaction: clients cache the result.
+ */
+public final class ResolveName extends VoltProcedure {
+  final SQLStmt getId = new SQLStmt("SELECT id FROM " + TABLE_NAME_DICTIONARY + " WHERE name = ?");
+  final SQLStmt getMaxId = new SQLStmt("SELECT MAX(id) FROM " + TABLE_NAME_DICTIONARY);
+  final SQLStmt insertName =
+      new SQLStmt("INSERT INTO " + TABLE_NAME_DICTIONARY + " (id, name) VALUES (?, ?)");
+
+  public long run(String name) throws VoltAbortException {
+    voltQueueSQL(getId, EXPECT_ZERO_OR_ONE_ROW, name);
+    voltQueueSQL(getMaxId, EXPECT_ONE_ROW);
+    VoltTable[] tables = voltExecuteSQL();
+    if (tables[0].advanceRow()) return tables[0].getLong(0);
+
+    long id = nextId(tables[1]);
+    voltQueueSQL(insertName, EXPECT_SCALAR_MATCH(1), id, name);
+    voltExecuteSQL(true);
+    return id;
+  }
+
+  /** IDs start at one, so that zero can mean no name in queries. */
+  static long nextId(VoltTable maxId) {
+    maxId.advanceRow();
+    long result = maxId.getLong(0);
+    return maxId.wasNull() ? 1L : result + 1L;
+  }
+}
@@ -0,0 +1,445 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb.procedure;
+
+import java.util.Arrays;
+
+/**
+ * Computes the same links as {@code zipkin2.internal.DependencyLinker}, but directly from the
+ * columns selected by {@link BaseLinkTrace}: parent_id, id, kind, service_name,
+ * remote_service_name and is_error.
+ *
+ * <p>This runs inside the VoltDB server, so it avoids building {@code zipkin2.Span}, endpoints,
+ * tag maps or a {@code SpanNode} tree per row. Instead, rows are kept in parallel arrays which
+ * are reused across invocations. This type is not thread safe, which is fine as a procedure
+ * instance is only used by its own site.
+ *
+ * <p>The steps mirror the reference implementation: rows are sorted and same-ID fragments merged
+ * as in {@code Trace.merge}, parents are resolved as in {@code SpanNode.Builder}, then each node
+ * reachable from the root is linked as in {@code DependencyLinker.putTrace}. Order of the
+ * resulting links is undefined.
+ *
+ * <p>Note: IDs are expected to be normalized as they are when stored by {@link StoreSpansJson}.
+ */
+final class RowDependencyLinker {
+  static final byte KIND_NONE = 0, KIND_CLIENT = 1, KIND_SERVER = 2, KIND_PRODUCER = 3,
+      KIND_CONSUMER = 4;
+  static final int NO_PARENT = -1, DUMMY_ROOT = -2;
+  static final byte UNKNOWN = 0, VISITING = 1, REACHABLE = 2, UNREACHABLE = 3;
+
+  // input rows
+  int rowCount;
+  String[] parentIds = new String[16], ids = new String[16], services = new String[16],
+      remoteServices = new String[16];
+  byte[] kinds = new byte[16];
+  boolean[] errors = new boolean[16];
+  int[] order = new int[16], scratch = new int[16];
+
+  // rows after merging fragments with the same ID, in sorted order
+  int nodeCount;
+  String[] nodeParentIds = new String[16], nodeIds = new String[16],
+      nodeServices = new String[16], nodeRemoteServices = new String[16];
+  byte[] nodeKinds = new byte[16];
+  boolean[] nodeErrors = new boolean[16], nodeShared = new boolean[16];
+  int[] nodeParents = new int[16], childCounts = new int[16], path = new int[16];
+  byte[] reachability = new byte[16];
+  int root;
+
+  // aggregated links
+  int linkCount;
+  String[] linkParents = new String[8], linkChildren = new String[8];
+  long[] callCounts = new long[8], errorCounts = new long[8];
+
+  /** Resets state, so that this can be used for the next trace. */
+  void clear() {
+    Arrays.fill(parentIds, 0, rowCount, null);
+    Arrays.fill(ids, 0, rowCount, null);
+    Arrays.fill(services, 0, rowCount, null);
+    Arrays.fill(remoteServices, 0, rowCount, null);
+    Arrays.fill(nodeParentIds, 0, nodeCount, null);
+    Arrays.fill(nodeIds, 0, nodeCount, null);
+    Arrays.fill(nodeServices, 0, nodeCount, null);
+    Arrays.fill(nodeRemoteServices, 0, nodeCount, null);
+    Arrays.fill(linkParents, 0, linkCount, null);
+    Arrays.fill(linkChildren, 0, linkCount, null);
+    rowCount = nodeCount = linkCount = 0;
+  }
+
+  /** Adds a row of the {@link BaseLinkTrace#getDependencyLinkFields} query */
+  void addRow(String parentId, String id, String kind, String service, String remoteService,
+      boolean isError) {
+    if (rowCount == ids.length) growRows();
+    int i = rowCount++;
+    parentIds[i] = id.equals(parentId) ? null : parentId;
+    ids[i] = id;
+    kinds[i] = parseKind(kind);
+    services[i] = service;
+    remoteServices[i] = remoteService;
+    errors[i] = isError;
+  }
+
+  /** Links the rows added since {@link #clear()}. Read results with {@link #linkCount()} */
+  void link() {
+    linkCount = 0;
+    if (rowCount == 0) return;
+    for (int i = 0; i < rowCount; i++) order[i] = i;
+    sort(0, rowCount);
+    mergeFragments();
+    resolveParents();
+    for (int i = 0; i < nodeCount; i++) {
+      if (isReachable(i)) linkNode(i);
+    }
+  }
+
+  int linkCount() {
+    return linkCount;
+  }
+
+  String linkParent(int i) {
+    return linkParents[i];
+  }
+
+  String linkChild(int i) {
+    return linkChildren[i];
+  }
+
+  long linkCallCount(int i) {
+    return callCounts[i];
+  }
+
+  long linkErrorCount(int i) {
+    return errorCounts[i];
+  }
+
+  /** Stable merge sort of {@link #order}, as {@code Trace.merge} relies on a stable sort. */
+  void sort(int from, int to) {
+    if (to - from < 8) { // insertion sort is stable and cheap for small ranges
+      for (int i = from + 1; i < to; i++) {
+        int value = order[i], j = i;
+        for (; j > from && compareRows(order[j - 1], value) > 0; j--) order[j] = order[j - 1];
+        order[j] = value;
+      }
+      return;
+    }
+    int middle = (from + to) >>> 1;
+    sort(from, middle);
+    sort(middle, to);
+    if (compareRows(order[middle - 1], order[middle]) <= 0) return; // already ordered
+    System.arraycopy(order, from, scratch, from, to - from);
+    int left = from, right = middle;
+    for (int i = from; i < to; i++) {
+      if (right >= to || (left < middle && compareRows(scratch[left], scratch[right]) <= 0)) {
+        order[i] = scratch[left++];
+      } else {
+        order[i] = scratch[right++];
+      }
+    }
+  }
+
+  /** Same order as {@code Trace.CLEANUP_COMPARATOR} when only the service name is known */
+  int compareRows(int left, int right) {
+    int byId = ids[left].compareTo(ids[right]);
+    if (byId != 0) return byId;
+    boolean leftClient = kinds[left] == KIND_CLIENT, rightClient = kinds[right] == KIND_CLIENT;
+    if (leftClient != rightClient) return leftClient ? -1 : 1;
+    String leftService = services[left], rightService = services[right];
+    if (leftService == null) return rightService == null ? 0 : -1;
+    if (rightService == null) return 1;
+    return leftService.compareTo(rightService);
+  }
+
+  /** Merges adjacent rows with the same ID and compatible service, as {@code Trace.merge} */
+  void mergeFragments() {
+    if (nodeIds.length < rowCount) growNodes(rowCount);
+    nodeCount = 0;
+    for (int i = 0; i < rowCount; ) {
+      int row = order[i++], node = nodeCount++;
+      String id = ids[row], parentId = parentIds[row], service = services[row],
+          remoteService = remoteServices[row];
+      byte kind = kinds[row];
+      boolean error = errors[row];
+
+      for (; i < rowCount && ids[order[i]].equals(id); i++) {
+        int next = order[i];
+        String nextService = services[next];
+        if (service != null && nextService != null && !service.equals(nextService)) break;
+        if (service == null) service = nextService;
+        if (parentId == null) parentId = parentIds[next];
+        if (kind == KIND_NONE) kind = kinds[next];
+        if (remoteService == null) remoteService = remoteServices[next];
+        error |= errors[next];
+      }
+
+      boolean shared = false;
+      int last = node - 1;
+      if (last >= 0 && nodeIds[last].equals(id)) {
+        // the server side of a client span, which uses the original (unmerged) fields
+        if (nodeKinds[last] == KIND_CLIENT && kinds[row] == KIND_SERVER) shared = true;
+        if (shared && parentIds[row] == null && nodeParentIds[last] != null) {
+          parentId = nodeParentIds[last];
+        }
+      }
+
+      nodeIds[node] = id;
+      nodeParentIds[node] = parentId;
+      nodeKinds[node] = kind;
+      nodeServices[node] = service;
+      nodeRemoteServices[node] = remoteService;
+      nodeErrors[node] = error;
+      nodeShared[node] = shared;
+    }
+  }
+
+  /**
+   * Assigns each node its parent as {@code SpanNode.Builder.build} would. Notably, when multiple
+   * unshared nodes have the same ID, only the last one is attached to the tree.
+   */
+  void resolveParents() {
+    root = NO_PARENT;
+    for (int i = 0; i < nodeCount; i++) {
+      nodeParents[i] = NO_PARENT;
+      childCounts[i] = 0;
+      reachability[i] = UNKNOWN;
+      if (root == NO_PARENT && !nodeShared[i] && nodeParentIds[i] == null) root = i;
+    }
+
+    for (int from = 0; from < nodeCount; ) {
+      String id = nodeIds[from];
+      int to = from + 1;
+      while (to < nodeCount && nodeIds[to].equals(id)) to++;
+
+      // Replay puts and removes against the parent entry keyed by this (unshared) span ID
+      boolean hasEntry = false;
+      int child = NO_PARENT, sharedParent = NO_PARENT;
+      String parentId = null;
+      for (int i = from; i < to; i++) {
+        if (nodeShared[i]) continue;
+        hasEntry = true;
+        parentId = nodeParentIds[i];
+      }
+      for (int i = from; i < to; i++) {
+        if (nodeShared[i]) continue;
+        if (i == root) {
+          hasEntry = false;
+          continue;
+        }
+        child = i;
+        int shared = nodeParentIds[i] != null
+            ? findShared(nodeParentIds[i], nodeServices[i])
+            : NO_PARENT;
+        if (shared != NO_PARENT) {
+          hasEntry = true;
+          sharedParent = shared;
+        }
+      }
+      if (hasEntry && child != NO_PARENT) {
+        attach(child, sharedParent != NO_PARENT ? sharedParent : findUnshared(parentId));
+      }
+
+      // A shared span is always the child of the unshared span with the same ID.
+      for (int i = from; i < to; i++) {
+        if (nodeShared[i]) attach(i, findUnshared(id));
+      }
+      from = to;
+    }
+  }
+
+  void attach(int child, int parent) {
+    if (parent == NO_PARENT) parent = root != NO_PARENT ? root : DUMMY_ROOT;
+    nodeParents[child] = parent;
+    if (parent >= 0) childCounts[parent]++;
+  }
+
+  /** Returns the node that owns the key of an unshared span ID or {@link #NO_PARENT} */
+  int findUnshared(String id) {
+    if (id == null) return NO_PARENT;
+    int result = NO_PARENT;
+    for (int i = firstNode(id); i < nodeCount && nodeIds[i].equals(id); i++) {
+      if (!nodeShared[i] && i != root) result = i;
+    }
+    return result;
+  }
+
+  /** Returns the shared node with the given ID and service or {@link #NO_PARENT} */
+  int findShared(String id, String service) {
+    int result = NO_PARENT;
+    for (int i = firstNode(id); i < nodeCount && nodeIds[i].equals(id); i++) {
+      if (!nodeShared[i]) continue;
+      if (service == null ? nodeServices[i] == null : service.equals(nodeServices[i])) result = i;
+    }
+    return result;
+  }
+
+  /** Binary search for the first node with the given ID, or the insertion point if absent */
+  int firstNode(String id) {
+    int low = 0, high = nodeCount;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (nodeIds[middle].compareTo(id) < 0) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /** Nodes not reachable from the root, such as cycles, are not traversed by the linker. */
+  boolean isReachable(int node) {
+    int depth = 0, current = node;
+    byte state;
+    while (true) {
+      if (current == NO_PARENT) { // detached
+        state = UNREACHABLE;
+        break;
+      }
+      if (current == root || current == DUMMY_ROOT) {
+        state = REACHABLE;
+        break;
+      }
+      state = reachability[current];
+      if (state == REACHABLE || state == UNREACHABLE) break;
+      if (state == VISITING) { // cycle
+        state = UNREACHABLE;
+        break;
+      }
+      reachability[current] = VISITING;
+      path[depth++] = current;
+      current = nodeParents[current];
+    }
+    while (depth > 0) reachability[path[--depth]] = state;
+    return node == root || reachability[node] == REACHABLE;
+  }
+
+  /** Adds links for a node, as {@code DependencyLinker.putTrace} does for a span in the tree */
+  void linkNode(int node) {
+    byte kind = nodeKinds[node];
+    // When processing links to a client span, we prefer the server's name. If we have no child
+    // spans, we proceed to use the name the client chose.
+    if (kind == KIND_CLIENT && childCounts[node] > 0) return;
+
+    String service = nodeServices[node], remoteService = nodeRemoteServices[node];
+    if (kind == KIND_NONE) {
+      // Treat unknown type of span as a client span if we know both sides
+      if (service == null || remoteService == null) return;
+      kind = KIND_CLIENT;
+    }
+
+    String parent, child;
+    if (kind == KIND_SERVER || kind == KIND_CONSUMER) {
+      child = service;
+      parent = remoteService;
+      if (node == root && parent == null) return; // root's client is unknown
+    } else {
+      parent = service;
+      child = remoteService;
+    }
+
+    boolean isError = nodeErrors[node];
+    if (kind == KIND_PRODUCER || kind == KIND_CONSUMER) {
+      if (parent != null && child != null) addLink(parent, child, isError);
+      return;
+    }
+
+    // Local spans may be between the current node and its remote parent
+    int remoteAncestor = firstRemoteAncestor(node);
+    String remoteAncestorName;
+    if (remoteAncestor >= 0 && (remoteAncestorName = nodeServices[remoteAncestor]) != null) {
+      if (kind == KIND_CLIENT && service != null && !remoteAncestorName.equals(service)) {
+        addLink(remoteAncestorName, service, false); // missing link to client span
+      }
+      if (kind == KIND_SERVER || parent == null) parent = remoteAncestorName;
+      if (!isError && nodeKinds[remoteAncestor] == KIND_CLIENT
+          && nodeIds[remoteAncestor].equals(nodeParentIds[node])) {
+        isError = nodeErrors[remoteAncestor];
+      }
+    }
+    if (parent == null || child == null) return; // cannot find remote ancestor
+    addLink(parent, child, isError);
+  }
+
+  int firstRemoteAncestor(int node) {
+    for (int ancestor = nodeParents[node]; ancestor >= 0; ancestor = nodeParents[ancestor]) {
+      if (nodeKinds[ancestor] != KIND_NONE) return ancestor;
+    }
+    return NO_PARENT;
+  }
+
+  void addLink(String parent, String child, boolean isError) {
+    int i = 0;
+    for (; i < linkCount; i++) { // distinct links per trace are few, so scan instead of hashing
+      if (linkParents[i].equals(parent) && linkChildren[i].equals(child)) break;
+    }
+    if (i == linkCount) {
+      if (linkCount == linkParents.length) growLinks();
+      linkCount++;
+      linkParents[i] = parent;
+      linkChildren[i] = child;
+      callCounts[i] = errorCounts[i] = 0L;
+    }
+    callCounts[i]++;
+    if (isError) errorCounts[i]++;
+  }
+
+  static byte parseKind(String kind) {
+    if (kind == null) return KIND_NONE;
+    switch (kind) {
+      case "CLIENT":
+        return KIND_CLIENT;
+      case "SERVER":
+        return KIND_SERVER;
+      case "PRODUCER":
+        return KIND_PRODUCER;
+      case "CONSUMER":
+        return KIND_CONSUMER;
+      default:
+        return KIND_NONE;
+    }
+  }
+
+  void growRows() {
+    int length = ids.length * 2;
+    parentIds = Arrays.copyOf(parentIds, length);
+    ids = Arrays.copyOf(ids, length);
+    kinds = Arrays.copyOf(kinds, length);
+    services = Arrays.copyOf(services, length);
+    remoteServices = Arrays.copyOf(remoteServices, length);
+    errors = Arrays.copyOf(errors, length);
+    order = new int[length];
+    scratch = new int[length];
+  }
+
+  void growNodes(int minLength) {
+    int length = Math.max(minLength, nodeIds.length * 2);
+    nodeParentIds = Arrays.copyOf(nodeParentIds, length);
+    nodeIds = Arrays.copyOf(nodeIds, length);
+    nodeKinds = Arrays.copyOf(nodeKinds, length);
+    nodeServices = Arrays.copyOf(nodeServices, length);
+    nodeRemoteServices = Arrays.copyOf(nodeRemoteServices, length);
+    nodeErrors = Arrays.copyOf(nodeErrors, length);
+    nodeShared = Arrays.copyOf(nodeShared, length);
+    nodeParents = new int[length];
+    childCounts = new int[length];
+    path = new int[length];
+    reachability = new byte[length];
+  }
+
+  void growLinks() {
+    int length = linkParents.length * 2;
+    linkParents = Arrays.copyOf(linkParents, length);
+    linkChildren = Arrays.copyOf(linkChildren, length);
+    callCounts = Arrays.copyOf(callCounts, length);
+    errorCounts = Arrays.copyOf(errorCounts, length);
+  }
+}
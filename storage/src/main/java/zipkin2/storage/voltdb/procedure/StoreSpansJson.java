@@ -13,28 +13,18 @@
  */
 package zipkin2.storage.voltdb.procedure;
 
-import org.voltdb.SQLStmt;
-import org.voltdb.VoltProcedure;
 import org.voltdb.VoltTable;
 
-import static zipkin2.storage.voltdb.Schema.TABLE_SPAN;
-import static zipkin2.storage.voltdb.Schema.TABLE_PENDING_TRACE;
-
-public final class StoreSpansJson extends VoltProcedure {
-
-  final SQLStmt insertSpan = new SQLStmt("INSERT INTO " + TABLE_SPAN
-      + " (trace_id, parent_id, id, kind, service_name, remote_service_name, name, ts, duration, is_error, md5, json)"
-      + " VALUES"
-      + " (?, ?, ?, ?, ?, ?, ?, TO_TIMESTAMP(Micros, ?), ?, ?, ?, ?)");
-  final SQLStmt updateTrace = new SQLStmt(
-      "UPSERT INTO " + TABLE_PENDING_TRACE + " VALUES (?, NOW())");
+/**
+ * Stores spans without a span cap. This is called by servers that predate {@link
+ * StoreSpansJsonCapped}, so its parameters must not change.
+ */
+public final class StoreSpansJson extends BaseStoreSpans {
 
   public VoltTable[] run(String trace_id, String parent_id, String id, String kind,
-      String service_name, String remote_service_name, String name,
+      Integer service_name_id, Integer remote_service_name_id, Integer name_id,
       Long ts, Long duration, byte is_error, byte[] md5, byte[] json) throws VoltAbortException {
-    voltQueueSQL(insertSpan, trace_id, parent_id, id, kind, service_name, remote_service_name, name,
-        ts, duration, is_error, md5, json);
-    voltQueueSQL(updateTrace, trace_id);
-    return voltExecuteSQL(true);
+    return storeSpan(trace_id, parent_id, id, kind, service_name_id, remote_service_name_id,
+        name_id, ts, duration, is_error, md5, json, 0);
   }
 }
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb.procedure;
+
+import org.voltdb.VoltTable;
+
+/**
+ * Stores spans, dropping those of a pending trace over the span cap. This has a name of its own,
+ * so that servers that predate the cap keep calling {@link StoreSpansJson} while others upgrade.
+ */
+public final class StoreSpansJsonCapped extends BaseStoreSpans {
+
+  public VoltTable[] run(String trace_id, String parent_id, String id, String kind,
+      Integer service_name_id, Integer remote_service_name_id, Integer name_id,
+      Long ts, Long duration, byte is_error, byte[] md5, byte[] json, int maxSpans)
+      throws VoltAbortException {
+    return storeSpan(trace_id, parent_id, id, kind, service_name_id, remote_service_name_id,
+        name_id, ts, duration, is_error, md5, json, maxSpans);
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb.procedure;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.codec.SpanBytesEncoder;
+
+/**
+ * The spans of a compacted trace, stored in one row: gzipped proto3, which is smaller than the
+ * json of each span. See {@link BaseCompactTraces}.
+ */
+public final class TraceBlob {
+  /** The largest value of a VARBINARY column */
+  static final int MAX_BYTES = 1048576;
+  static final int BUF_SIZE = 0x800;
+
+  static byte[] encode(List<Span> spans) {
+    byte[] proto3 = SpanBytesEncoder.PROTO3.encodeList(spans);
+    ByteArrayOutputStream result = new ByteArrayOutputStream(proto3.length / 4);
+    try {
+      GZIPOutputStream gzip = new GZIPOutputStream(result);
+      gzip.write(proto3);
+      gzip.close();
+    } catch (IOException e) {
+      throw new AssertionError(e); // in-memory streams don't throw
+    }
+    return result.toByteArray();
+  }
+
+  /** Adds the spans in the blob to the collection. */
+  public static void decode(byte[] blob, Collection<Span> out) {
+    ByteArrayOutputStream proto3 = new ByteArrayOutputStream(blob.length * 4);
+    try {
+      GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(blob));
+      byte[] buf = new byte[BUF_SIZE];
+      int length;
+      while ((length = gzip.read(buf)) != -1) {
+        proto3.write(buf, 0, length);
+      }
+    } catch (IOException e) {
+      throw new IllegalArgumentException("malformed compacted trace: " + e.getMessage(), e);
+    }
+    out.addAll(SpanBytesDecoder.PROTO3.decodeList(proto3.toByteArray()));
+  }
+
+  TraceBlob() {
+  }
+}
@@ -1,3 +1,6 @@
+-- Version zero of the schema, installed when the Span table is missing. Changes go in
+-- Schema.MIGRATIONS instead of here, so that running clusters receive them, too.
+
 CREATE TABLE Span
 (
   trace_id VARCHAR(32) NOT NULL,
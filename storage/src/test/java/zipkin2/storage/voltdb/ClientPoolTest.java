@@ -0,0 +1,69 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Test;
+import org.voltdb.client.Client;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ClientPoolTest {
+  VoltDBStorage storage = VoltDBStorage.newBuilder().clientPoolSize(4).build();
+  ClientPool pool = storage.writes;
+
+  @After public void close() {
+    storage.close();
+  }
+
+  @Test public void firstIsStorageClient() {
+    assertThat(pool.first()).isSameAs(storage.client);
+  }
+
+  @Test public void forTraceId_consistent() {
+    assertThat(pool.forTraceId("463ac35c9f6413ad48485a3953bb6124"))
+        .isSameAs(pool.forTraceId("463ac35c9f6413ad48485a3953bb6124"));
+  }
+
+  @Test public void forTraceId_spreadsTraces() {
+    Set<Client> used = new LinkedHashSet<>();
+    for (int i = 0; i < 100; i++) used.add(pool.forTraceId(Long.toHexString(i * 31L + 1)));
+
+    assertThat(used).hasSize(4);
+  }
+
+  @Test public void next_roundRobin() {
+    Set<Client> used = new LinkedHashSet<>();
+    for (int i = 0; i < 4; i++) used.add(pool.next());
+
+    assertThat(used).hasSize(4);
+  }
+
+  @Test public void clientPoolSize_positive() {
+    assertThatThrownBy(() -> VoltDBStorage.newBuilder().clientPoolSize(0))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test public void lanes_separateClients() {
+    assertThat(storage.reads.clients).doesNotContain(storage.writes.clients);
+  }
+
+  @Test public void lanes_onlyWritesBlock() {
+    assertThat(storage.writes.first().blocking()).isTrue();
+    assertThat(storage.reads.first().blocking()).isFalse();
+  }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.internal.Trace;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin2.TestObjects.DAY;
+import static zipkin2.TestObjects.TODAY;
+import static zipkin2.TestObjects.TRACE;
+
+public class ColdTierTest {
+  static final String TRACE_ID = TRACE.get(0).traceId();
+  static final long TS = TRACE.get(0).timestampAsLong();
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  File directory;
+  ColdTier coldTier;
+
+  @Before public void open() throws IOException {
+    directory = folder.newFolder();
+    coldTier = new ColdTier(directory, 1024 * 1024, DAY, 7 * DAY);
+  }
+
+  @After public void close() throws IOException {
+    coldTier.close();
+  }
+
+  @Test public void getTrace_appended() throws IOException {
+    coldTier.append(Arrays.asList(spilled(TRACE_ID, TS, TRACE, 1, 2, 3)));
+
+    assertThat(coldTier.getTrace(TRACE_ID, true)).containsExactlyInAnyOrderElementsOf(TRACE);
+    assertThat(coldTier.getTrace("1", true)).isEmpty();
+  }
+
+  @Test public void getTrace_sealed() throws IOException {
+    coldTier.append(Arrays.asList(
+        spilled("3", TS, TRACE, 1, 2, 3),
+        spilled(TRACE_ID, TS, TRACE, 1, 2, 3),
+        spilled("1", TS, TRACE, 1, 2, 3)));
+    coldTier.sealActive();
+
+    assertThat(coldTier.segments()).hasSize(1);
+    assertThat(coldTier.segments().get(0).isSealed()).isTrue();
+    assertThat(coldTier.getTrace(TRACE_ID, true)).containsExactlyInAnyOrderElementsOf(TRACE);
+    assertThat(coldTier.getTrace("2", true)).isEmpty();
+  }
+
+  @Test public void getTrace_spansInMultipleSegments() throws IOException {
+    coldTier.append(Arrays.asList(spilled(TRACE_ID, TS, TRACE.subList(0, 1), 1, 2, 3)));
+    coldTier.sealActive();
+    coldTier.append(Arrays.asList(spilled(TRACE_ID, TS, TRACE.subList(1, TRACE.size()), 1, 2, 3)));
+
+    assertThat(coldTier.segments()).hasSize(2);
+    assertThat(coldTier.getTrace(TRACE_ID, true)).containsExactlyInAnyOrderElementsOf(TRACE);
+  }
+
+  @Test public void getTrace_appendedTwice() throws IOException {
+    // as if deleting the spilled trace from the cluster failed, so the next spill appends it again
+    coldTier.append(Arrays.asList(spilled(TRACE_ID, TS, TRACE, 1, 2, 3)));
+    coldTier.sealActive();
+    coldTier.append(Arrays.asList(spilled(TRACE_ID, TS, TRACE, 1, 2, 3)));
+
+    assertThat(coldTier.getTrace(TRACE_ID, true)).containsExactlyInAnyOrderElementsOf(TRACE);
+    assertThat(getTraces(0, 0)).hasSize(1);
+    assertThat(getTraces(0, 0).get(0)).containsExactlyInAnyOrderElementsOf(TRACE);
+  }
+
+  @Test public void getTrace_notStrictMatchesLower64Bits() throws IOException {
+    String traceIdLow = TRACE_ID.substring(TRACE_ID.length() - 16);
+    String traceId = "463ac35c9f6413ad" + traceIdLow;
+    coldTier.append(Arrays.asList(spilled(traceId, TS, TRACE, 1, 2, 3)));
+    coldTier.sealActive();
+
+    assertThat(coldTier.getTrace(traceIdLow, true)).isEmpty();
+    assertThat(coldTier.getTrace(traceIdLow, false)).hasSize(TRACE.size());
+    assertThat(coldTier.getTrace(traceId, true)).hasSize(TRACE.size());
+  }
+
+  @Test public void getTraces_matchesNamesAndTimestamps() throws IOException {
+    coldTier.append(Arrays.asList(spilled(TRACE_ID, TS, TRACE, 1, 2, 3)));
+
+    assertThat(getTraces(0, 0)).hasSize(1);
+    assertThat(getTraces(1, 0)).hasSize(1);
+    assertThat(getTraces(1, 3)).hasSize(1);
+    assertThat(getTraces(2, 0)).isEmpty(); // remote service names aren't searched
+    assertThat(getTraces(1, 4)).isEmpty();
+    assertThat(coldTier.getTraces(0, 0, TODAY - DAY, DAY, 10, true)).isEmpty();
+
+    coldTier.sealActive();
+
+    assertThat(getTraces(1, 3)).hasSize(1);
+    assertThat(coldTier.getTraces(0, 0, TODAY - DAY, DAY, 10, true)).isEmpty();
+  }
+
+  @Test public void getTraces_newestFirstUpToLimit() throws IOException {
+    coldTier.append(Arrays.asList(spilled("1", TS, TRACE, 1, 2, 3)));
+    coldTier.sealActive();
+    coldTier.append(Arrays.asList(spilled("2", TS, TRACE, 1, 2, 3)));
+
+    assertThat(coldTier.getTraces(1, 0, TODAY + DAY, DAY * 2, 1, true)).hasSize(1)
+        .flatExtracting(l -> l).extracting(Span::traceId).containsOnly(TRACE_ID);
+  }
+
+  @Test public void append_sealsFullSegment() throws IOException {
+    coldTier.close();
+    coldTier = new ColdTier(directory, 1, DAY, 7 * DAY);
+
+    coldTier.append(Arrays.asList(spilled("1", TS, TRACE, 1, 2, 3)));
+    coldTier.append(Arrays.asList(spilled("2", TS, TRACE, 1, 2, 3)));
+
+    assertThat(coldTier.segments()).hasSize(2)
+        .allSatisfy(segment -> assertThat(segment.isSealed()).isTrue());
+  }
+
+  @Test public void append_resumesSegmentOfStoppedProcess() throws IOException {
+    coldTier.append(Arrays.asList(spilled("1", TS, TRACE, 1, 2, 3)));
+    coldTier.close();
+
+    coldTier = new ColdTier(directory, 1024 * 1024, DAY, 7 * DAY);
+    coldTier.append(Arrays.asList(spilled("2", TS, TRACE, 1, 2, 3)));
+
+    assertThat(coldTier.segments()).hasSize(1);
+    assertThat(coldTier.getTrace("1", true)).isNotEmpty();
+    assertThat(coldTier.getTrace("2", true)).isNotEmpty();
+  }
+
+  @Test public void tryLock_oneWriter() throws IOException {
+    assertThat(coldTier.tryLock()).isTrue();
+
+    ColdTier other = new ColdTier(directory, 1024 * 1024, DAY, 7 * DAY);
+    try {
+      assertThat(other.tryLock()).isFalse();
+    } finally {
+      other.close();
+    }
+  }
+
+  @Test public void deleteExpired() throws IOException {
+    coldTier.append(Arrays.asList(spilled("1", TS, TRACE, 1, 2, 3)));
+    coldTier.sealActive();
+    coldTier.append(Arrays.asList(spilled("2", TS + DAY * 1000L, TRACE, 1, 2, 3)));
+
+    // only the first segment's newest trace is past retention
+    assertThat(coldTier.deleteExpired(TS / 1000L + 7 * DAY + DAY / 2)).isEqualTo(1);
+    assertThat(coldTier.getTrace("1", true)).isEmpty();
+    assertThat(coldTier.getTrace("2", true)).isNotEmpty();
+
+    // including the segment being appended
+    assertThat(coldTier.deleteExpired(TS / 1000L + 9 * DAY)).isEqualTo(1);
+    assertThat(coldTier.segments()).isEmpty();
+    assertThat(directory.list()).containsOnly(ColdTier.LOCK_FILE);
+  }
+
+  @Test public void addColdSpans_readsOffCallbackThread() throws Exception {
+    coldTier.append(Arrays.asList(spilled(TRACE_ID, TS, TRACE, 1, 2, 3)));
+    Call<List<Span>> call = new VoltDBSpanStore.AddColdSpans(
+        Call.<List<Span>>create(Collections.<Span>emptyList()), coldTier, TRACE_ID, true);
+
+    final AtomicReference<String> thread = new AtomicReference<>();
+    final LinkedBlockingQueue<Object> result = new LinkedBlockingQueue<>();
+    call.enqueue(new Callback<List<Span>>() {
+      @Override public void onSuccess(List<Span> value) {
+        thread.set(Thread.currentThread().getName());
+        result.add(value);
+      }
+
+      @Override public void onError(Throwable t) {
+        result.add(t);
+      }
+    });
+
+    assertThat(result.poll(5, TimeUnit.SECONDS)).isEqualTo(Trace.merge(TRACE));
+    assertThat(thread.get()).isEqualTo("zipkin-voltdb-cold-tier");
+    assertThat(call.clone().execute()).isEqualTo(Trace.merge(TRACE));
+  }
+
+  List<List<Span>> getTraces(int serviceNameId, int spanNameId) throws IOException {
+    return coldTier.getTraces(serviceNameId, spanNameId, TODAY + DAY, DAY * 2, 10, true);
+  }
+
+  /** The trace ID is only written to the index, so the spans needn't have it. */
+  static ColdTier.SpilledTrace spilled(String traceId, long ts, List<Span> spans, int... names) {
+    ColdTier.SpilledTrace result = new ColdTier.SpilledTrace(traceId, ts, blob(spans));
+    result.names.add(names);
+    return result;
+  }
+
+  static byte[] blob(List<Span> spans) {
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    try {
+      GZIPOutputStream gzip = new GZIPOutputStream(result);
+      gzip.write(SpanBytesEncoder.PROTO3.encodeList(spans));
+      gzip.close();
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+    return result.toByteArray();
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin2.storage.voltdb.ITCompletePendingTraces.getStrings;
+import static zipkin2.storage.voltdb.Schema.PROCEDURE_ACQUIRE_LEASE;
+import static zipkin2.storage.voltdb.Schema.PROCEDURE_RELEASE_LEASE;
+import static zipkin2.storage.voltdb.Schema.TABLE_SCHEDULER_LEASE;
+import static zipkin2.storage.voltdb.VoltDBStorage.executeAdHoc;
+
+abstract class ITAcquireLease {
+  String name = "scheduler";
+  long leaseMillis = 10_000L;
+
+  abstract VoltDBStorage storage();
+
+  @Test public void acquiresUnheldLease() throws Exception {
+    assertThat(acquireLease("zipkin1")).isEqualTo("zipkin1");
+  }
+
+  @Test public void renewsOwnLease() throws Exception {
+    acquireLease("zipkin1");
+
+    assertThat(acquireLease("zipkin1")).isEqualTo("zipkin1");
+  }
+
+  @Test public void doesntAcquireLeaseHeldByOther() throws Exception {
+    acquireLease("zipkin1");
+
+    assertThat(acquireLease("zipkin2")).isEqualTo("zipkin1");
+  }
+
+  @Test public void acquiresExpiredLease() throws Exception {
+    acquireLease("zipkin1");
+
+    executeAdHoc(storage().client, "UPDATE " + TABLE_SCHEDULER_LEASE
+        + " SET expire_ts = dateadd(second, -1, NOW)");
+
+    assertThat(acquireLease("zipkin2")).isEqualTo("zipkin2");
+    assertThat(acquireLease("zipkin1")).isEqualTo("zipkin2");
+  }
+
+  @Test public void acquiresReleasedLease() throws Exception {
+    acquireLease("zipkin1");
+
+    storage().client.callProcedure(PROCEDURE_RELEASE_LEASE, name, "zipkin2");
+    assertThat(acquireLease("zipkin2")).isEqualTo("zipkin1"); // can't release another's lease
+
+    storage().client.callProcedure(PROCEDURE_RELEASE_LEASE, name, "zipkin1");
+    assertThat(acquireLease("zipkin2")).isEqualTo("zipkin2");
+  }
+
+  String acquireLease(String holder) throws Exception {
+    return getStrings(
+        storage().client.callProcedure(PROCEDURE_ACQUIRE_LEASE, name, holder, leaseMillis)).get(0);
+  }
+}
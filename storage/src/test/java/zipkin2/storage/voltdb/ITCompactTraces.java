@@ -0,0 +1,115 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientResponseWithPartitionKey;
+import zipkin2.Span;
+import zipkin2.storage.QueryRequest;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin2.TestObjects.DAY;
+import static zipkin2.TestObjects.TODAY;
+import static zipkin2.TestObjects.TRACE;
+import static zipkin2.storage.voltdb.ITCompletePendingTraces.getStrings;
+import static zipkin2.storage.voltdb.Schema.PROCEDURE_COMPACT_TRACES;
+import static zipkin2.storage.voltdb.Schema.PROCEDURE_LINK_COMPLETE_TRACES;
+import static zipkin2.storage.voltdb.Schema.TABLE_COMPLETE_TRACE;
+import static zipkin2.storage.voltdb.Schema.TABLE_SPAN;
+import static zipkin2.storage.voltdb.VoltDBStorage.executeAdHoc;
+
+abstract class ITCompactTraces {
+  int maxTraces = 5;
+
+  abstract VoltDBStorage storage();
+
+  @Test public void compactsLinkedTrace() throws Exception {
+    String traceId = TRACE.get(0).traceId();
+    storage().spanConsumer().accept(TRACE).execute();
+    link(traceId);
+
+    assertThat(callCompactTraces()).flatExtracting(l -> l).containsExactly(traceId);
+
+    assertThat(spanRowCount()).isZero();
+    assertThat(storage().spanStore().getTrace(traceId).execute())
+        .containsExactlyInAnyOrderElementsOf(TRACE);
+  }
+
+  @Test public void searchesCompactedTrace() throws Exception {
+    String traceId = TRACE.get(0).traceId();
+    storage().spanConsumer().accept(TRACE).execute();
+    link(traceId);
+    callCompactTraces();
+
+    String serviceName = TRACE.get(0).localServiceName();
+    assertThat(storage().spanStore().getServiceNames().execute()).contains(serviceName);
+    assertThat(storage().spanStore().getSpanNames(serviceName).execute())
+        .contains(TRACE.get(0).name());
+    assertThat(storage().spanStore().getTraces(QueryRequest.newBuilder()
+        .serviceName(serviceName).endTs(TODAY + DAY).lookback(DAY * 2).limit(10).build())
+        .execute()).flatExtracting(l -> l).containsExactlyInAnyOrderElementsOf(TRACE);
+  }
+
+  @Test public void mergesSpansStoredAfterCompaction() throws Exception {
+    String traceId = TRACE.get(0).traceId();
+    storage().spanConsumer().accept(TRACE).execute();
+    link(traceId);
+    callCompactTraces();
+
+    // a late fragment of the root span
+    Span late = Span.newBuilder().traceId(traceId).id(TRACE.get(0).id())
+        .putTag("late", "true").build();
+    List<Span> lateTrace = new ArrayList<>();
+    lateTrace.add(late);
+    storage().spanConsumer().accept(lateTrace).execute();
+    link(traceId);
+
+    assertThat(callCompactTraces()).flatExtracting(l -> l).containsExactly(traceId);
+
+    assertThat(spanRowCount()).isZero();
+    List<Span> trace = storage().spanStore().getTrace(traceId).execute();
+    assertThat(trace).hasSize(TRACE.size());
+    assertThat(trace).filteredOn(s -> s.id().equals(late.id()))
+        .extracting(s -> s.tags().get("late"))
+        .containsExactly("true");
+  }
+
+  void link(String traceId) throws Exception {
+    executeAdHoc(client(), "UPSERT INTO " + TABLE_COMPLETE_TRACE
+        + " VALUES ('" + traceId + "', NULL)");
+    client().callAllPartitionProcedure(PROCEDURE_LINK_COMPLETE_TRACES, maxTraces);
+  }
+
+  long spanRowCount() throws Exception {
+    return executeAdHoc(client(), "SELECT COUNT(*) FROM " + TABLE_SPAN)
+        .getResults()[0].asScalarLong();
+  }
+
+  List<List<String>> callCompactTraces() throws Exception {
+    ClientResponseWithPartitionKey[] responses =
+        client().callAllPartitionProcedure(PROCEDURE_COMPACT_TRACES, maxTraces);
+    List<List<String>> result = new ArrayList<>();
+    for (ClientResponseWithPartitionKey response : responses) {
+      result.add(getStrings(response.response));
+    }
+    return result;
+  }
+
+  Client client() {
+    return storage().client;
+  }
+}
@@ -39,11 +39,30 @@ abstract class ITCompletePendingTraces {
 
   abstract VoltDBStorage storage();
 
-  @Test public void doesntCompleteWhenInUpdateWindow() throws Exception {
+  @Test public void completesWhenRootFinishedInUpdateWindow() throws Exception {
     String traceId = TRACE.get(0).traceId();
     storage().spanConsumer().accept(TRACE).execute();
 
+    // doesn't need to age, as the root span has a duration
+    expectCompletePendingTraces(traceId);
+  }
+
+  @Test public void doesntCompleteWhenInUpdateWindow() throws Exception {
+    String traceId = TRACE.get(0).traceId();
+    Span unfinished = TRACE.get(3).toBuilder().duration(null).build();
+    storage().spanConsumer().accept(asList(TRACE.get(0), TRACE.get(1), TRACE.get(2), unfinished))
+        .execute();
+
+    // the root finished, but its trace is incomplete: this falls back to the update window
     expectNoopOnCompletePendingTraces(traceId);
+
+    storage().spanConsumer().accept(asList(TRACE.get(3))).execute();
+
+    expectNoopOnCompletePendingTraces(traceId);
+
+    agePendingTraces(minAgeSeconds);
+
+    expectCompletePendingTraces(traceId);
   }
 
   @Test public void completesPendingTraceWhenOutsideWindow() throws Exception {
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb;
+
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.Test;
+import org.voltdb.client.Client;
+import zipkin2.Span;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin2.TestObjects.TRACE;
+import static zipkin2.storage.voltdb.ITLinkTrace.assertLinksTableConsistentWith;
+import static zipkin2.storage.voltdb.Schema.PROCEDURE_DOWNSAMPLE_COMPLETE_TRACES;
+import static zipkin2.storage.voltdb.Schema.TABLE_COMPLETE_TRACE;
+import static zipkin2.storage.voltdb.Schema.TABLE_PENDING_COMPACTION;
+import static zipkin2.storage.voltdb.Schema.TABLE_SPAN;
+import static zipkin2.storage.voltdb.VoltDBStorage.executeAdHoc;
+
+abstract class ITDownsampleCompleteTraces {
+  static final String[] NO_SERVICES = {};
+  // TRACE has an error on its db span, which this removes
+  static final List<Span> UNINTERESTING_TRACE = TRACE.stream()
+      .map(s -> s.toBuilder().clearTags().build())
+      .collect(Collectors.toList());
+
+  String traceId = TRACE.get(0).traceId();
+
+  abstract VoltDBStorage storage();
+
+  @Test public void dropsUninterestingTrace_keepsLinks() throws Exception {
+    accept(UNINTERESTING_TRACE);
+
+    callDownsampleCompleteTraces(0.0, 0L, NO_SERVICES);
+
+    assertThat(spanCount()).isZero();
+    assertThat(pendingCompactionCount()).isZero();
+    assertLinksTableConsistentWith(client(), UNINTERESTING_TRACE);
+  }
+
+  @Test public void keepsTraceWithError() throws Exception {
+    accept(TRACE);
+
+    callDownsampleCompleteTraces(0.0, 0L, NO_SERVICES);
+
+    assertThat(spanCount()).isEqualTo(TRACE.size());
+    assertThat(pendingCompactionCount()).isOne();
+  }
+
+  @Test public void keepsSlowTrace() throws Exception {
+    accept(UNINTERESTING_TRACE);
+
+    callDownsampleCompleteTraces(0.0, TRACE.get(0).durationAsLong(), NO_SERVICES);
+
+    assertThat(pendingCompactionCount()).isOne();
+  }
+
+  @Test public void keepsTraceOfService() throws Exception {
+    accept(UNINTERESTING_TRACE);
+
+    callDownsampleCompleteTraces(0.0, 0L, new String[] {"unknown", "DB"});
+
+    assertThat(pendingCompactionCount()).isOne();
+  }
+
+  @Test public void keepsAllAtRateOne() throws Exception {
+    accept(UNINTERESTING_TRACE);
+
+    callDownsampleCompleteTraces(1.0, 0L, NO_SERVICES);
+
+    assertThat(pendingCompactionCount()).isOne();
+  }
+
+  @Test public void rejectsInvalidRate() throws Exception {
+    assertThat(client().callAllPartitionProcedure(PROCEDURE_DOWNSAMPLE_COMPLETE_TRACES, 5, 1.5,
+        0L, NO_SERVICES)).allSatisfy(r -> assertThat(r.response.getStatusString())
+        .contains("sampleRate should be between 0.0 and 1.0"));
+  }
+
+  void accept(List<Span> trace) throws Exception {
+    storage().spanConsumer().accept(trace).execute();
+    executeAdHoc(client(), "UPSERT INTO " + TABLE_COMPLETE_TRACE
+        + " VALUES ('" + traceId + "', NULL)");
+  }
+
+  void callDownsampleCompleteTraces(double sampleRate, long keepDurationMicros,
+      String[] keepServiceNames) throws Exception {
+    client().callAllPartitionProcedure(PROCEDURE_DOWNSAMPLE_COMPLETE_TRACES, 5, sampleRate,
+        keepDurationMicros, keepServiceNames);
+  }
+
+  long spanCount() throws Exception {
+    return executeAdHoc(client(), "SELECT COUNT(*) FROM " + TABLE_SPAN)
+        .getResults()[0].asScalarLong();
+  }
+
+  long pendingCompactionCount() throws Exception {
+    return executeAdHoc(client(), "SELECT COUNT(*) FROM " + TABLE_PENDING_COMPACTION)
+        .getResults()[0].asScalarLong();
+  }
+
+  Client client() {
+    return storage().client;
+  }
+}
@@ -13,32 +13,131 @@
  */
 package zipkin2.storage.voltdb;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 import org.junit.Test;
+import org.voltdb.VoltTable;
 import org.voltdb.client.Client;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
 import static zipkin2.storage.voltdb.VoltDBStorage.executeAdHoc;
 
 abstract class ITEnsureSchema {
+  /** {@link Schema#SCHEMA_RESOURCE} as released before migrations, with no comment header. */
+  static final String VERSION_ZERO_RESOURCE = "/ddl-v0.sql";
 
   abstract Client client();
 
   @Test public void installsTablesWhenMissing() throws Exception {
-    executeAdHoc(client(), "Drop procedure " + Schema.PROCEDURE_STORE_SPAN);
-    executeAdHoc(client(), "Drop procedure " + Schema.PROCEDURE_GET_SPAN);
-    executeAdHoc(client(), "Drop procedure " + Schema.PROCEDURE_GET_SPANS);
-    executeAdHoc(client(), "Drop procedure " + Schema.PROCEDURE_GET_SERVICE_NAMES);
-    executeAdHoc(client(), "Drop procedure " + Schema.PROCEDURE_GET_SPAN_NAMES);
-    executeAdHoc(client(), "Drop procedure " + Schema.PROCEDURE_GET_DEPENDENCY_LINKS);
-    executeAdHoc(client(), "Drop procedure " + Schema.PROCEDURE_LINK_TRACE);
-    executeAdHoc(client(), "Drop procedure " + Schema.PROCEDURE_COMPLETE_PENDING_TRACES);
-    executeAdHoc(client(), "Drop procedure " + Schema.PROCEDURE_LINK_COMPLETE_TRACES);
-    executeAdHoc(client(), "Drop table " + Schema.TABLE_SPAN);
-    executeAdHoc(client(), "Drop table " + Schema.TABLE_DEPENDENCY_LINK);
-    executeAdHoc(client(), "Drop table " + Schema.TABLE_PENDING_TRACE);
-    executeAdHoc(client(), "Drop table " + Schema.TABLE_COMPLETE_TRACE);
-
-    Schema.ensureExists(client(), "localhost");
+    dropSchema();
+
+    Schema.ensureExists(client(), "localhost", false);
 
     executeAdHoc(client(), "Select count(*) from " + Schema.TABLE_SPAN);
+    assertThat(new SchemaMigrator(client(), Schema.MIGRATIONS, false).currentVersion())
+        .isEqualTo(new SchemaMigrator(client(), Schema.MIGRATIONS, false).latestVersion());
+  }
+
+  /** Installs the schema as released before migrations, with spans stored with names. */
+  @Test public void upgradesFromVersionZero() throws Exception {
+    dropSchema();
+    executeAdHoc(client(), Schema.readSqlFile(VERSION_ZERO_RESOURCE));
+    executeAdHoc(client(), "Insert into " + Schema.TABLE_SPAN
+            + " (trace_id, id, service_name, remote_service_name, name, is_error, md5, json)"
+            + " values (?, ?, 'frontend', 'backend', 'get', 0, ?, '{}')",
+        "48485a3953bb6124463ac35c9f6413ad", "463ac35c9f6413ad", new byte[16]);
+    executeAdHoc(client(), "Insert into " + Schema.TABLE_PENDING_TRACE
+        + " (trace_id, update_ts) values (?, NOW())", "48485a3953bb6124463ac35c9f6413ad");
+
+    Schema.ensureExists(client(), "localhost", false);
+
+    SchemaMigrator migrator = new SchemaMigrator(client(), Schema.MIGRATIONS, false);
+    assertThat(migrator.currentVersion()).isEqualTo(migrator.latestVersion());
+    VoltTable span = executeAdHoc(client(), "Select s.trace_id_low, d.name from "
+        + Schema.TABLE_SPAN + " s inner join " + Schema.TABLE_NAME_DICTIONARY
+        + " d on d.id = s.service_name_id").getResults()[0];
+    assertThat(span.advanceRow()).isTrue();
+    assertThat(span.getString(0)).isEqualTo("463ac35c9f6413ad");
+    assertThat(span.getString(1)).isEqualTo("frontend");
+    assertThat(executeAdHoc(client(), "Select count(*) from " + Schema.TABLE_SPAN
+        + " where service_name is not null or name is not null").getResults()[0].asScalarLong())
+        .isZero(); // cleared by the backfill
+    assertThat(client().callProcedure(Schema.PROCEDURE_GET_SPAN_NAMES,
+        nameId("frontend"), nameId("frontend")).getResults()[0].fetchRow(0).getString(0))
+        .isEqualTo("get");
+
+    // Procedures installed by the migration store spans on the migrated schema
+    client().callProcedure(Schema.PROCEDURE_STORE_SPAN, "48485a3953bb6124463ac35c9f6413ad", null,
+        "48485a3953bb6124", "SERVER", nameId("frontend"), null, nameId("get"), 1L, 1L,
+        (byte) 0, new byte[] {1}, "{}".getBytes(UTF_8), 100);
+    // as do servers that predate the span cap
+    client().callProcedure(Schema.PROCEDURE_STORE_SPAN_UNCAPPED,
+        "48485a3953bb6124463ac35c9f6413ad", "48485a3953bb6124", "463ac35c9f6413ae", "CLIENT",
+        nameId("frontend"), null, nameId("get"), 1L, 1L, (byte) 0, new byte[] {2},
+        "{}".getBytes(UTF_8));
+    assertThat(executeAdHoc(client(), "Select count(*) from " + Schema.TABLE_SPAN)
+        .getResults()[0].asScalarLong()).isEqualTo(3L);
+    assertThat(indexNames())
+        .contains("PENDINGTRACE_ROOT_FINISHED_UPDATE_TS", "COMPLETETRACE_UNLINKED");
+
+    executeAdHoc(client(), "Truncate table " + Schema.TABLE_SPAN);
+    executeAdHoc(client(), "Truncate table " + Schema.TABLE_PENDING_TRACE);
+  }
+
+  @Test public void backfillsTraceIdLow() throws Exception {
+    SchemaMigrator migrator = new SchemaMigrator(client(), Schema.MIGRATIONS, false);
+    executeAdHoc(client(), "Insert into " + Schema.TABLE_SPAN
+            + " (trace_id, id, is_error, md5, json) values (?, ?, 0, ?, '{}')",
+        "48485a3953bb6124463ac35c9f6413ad", "463ac35c9f6413ad", new byte[16]);
+    assertThat(migrator.acquire()).isTrue();
+    try {
+      migration(10).apply(client(), migrator);
+    } finally {
+      migrator.release();
+    }
+
+    assertThat(executeAdHoc(client(), "Select trace_id_low from " + Schema.TABLE_SPAN)
+        .getResults()[0].fetchRow(0).getString(0)).isEqualTo("463ac35c9f6413ad");
+    executeAdHoc(client(), "Truncate table " + Schema.TABLE_SPAN);
+  }
+
+  List<String> indexNames() throws Exception {
+    VoltTable indexes = client().callProcedure("@SystemCatalog", "INDEXINFO").getResults()[0];
+    List<String> result = new ArrayList<>();
+    while (indexes.advanceRow()) {
+      result.add(indexes.getString("INDEX_NAME").toUpperCase(Locale.ROOT));
+    }
+    return result;
+  }
+
+  int nameId(String name) throws Exception {
+    return (int) client().callProcedure(Schema.PROCEDURE_GET_NAME_ID, name).getResults()[0]
+        .asScalarLong();
+  }
+
+  /** Drops all procedures and tables, including those that record the schema version. */
+  void dropSchema() throws Exception {
+    StringBuilder ddl = new StringBuilder();
+    VoltTable procedures = client().callProcedure("@SystemCatalog", "PROCEDURES").getResults()[0];
+    while (procedures.advanceRow()) {
+      String name = procedures.getString("PROCEDURE_NAME");
+      if (name.contains(".")) continue; // default procedures are dropped with their table
+      ddl.append("DROP PROCEDURE ").append(name).append(";\n");
+    }
+    VoltTable tables = client().callProcedure("@SystemCatalog", "TABLES").getResults()[0];
+    while (tables.advanceRow()) {
+      if (!"TABLE".equals(tables.getString("TABLE_TYPE"))) continue; // views are cascaded
+      ddl.append("DROP TABLE ").append(tables.getString("TABLE_NAME")).append(" CASCADE;\n");
+    }
+    executeAdHoc(client(), ddl.toString());
+  }
+
+  static Migration migration(int version) {
+    for (Migration migration : Schema.MIGRATIONS) {
+      if (migration.version == version) return migration;
+    }
+    throw new AssertionError("no migration " + version);
   }
 }
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb;
+
+import org.junit.Test;
+import org.voltdb.VoltTable;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.client.ClientResponseWithPartitionKey;
+
+import static java.util.Arrays.asList;
+import static java.util.Arrays.copyOfRange;
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin2.TestObjects.LOTS_OF_SPANS;
+import static zipkin2.storage.voltdb.Schema.PROCEDURE_GET_BACKLOG;
+import static zipkin2.storage.voltdb.Schema.TABLE_COMPLETE_TRACE;
+import static zipkin2.storage.voltdb.Schema.TABLE_PENDING_TRACE;
+import static zipkin2.storage.voltdb.VoltDBStorage.executeAdHoc;
+
+abstract class ITGetBacklog {
+
+  abstract VoltDBStorage storage();
+
+  @Test public void emptyWhenNoTraces() throws Exception {
+    assertThat(sumBacklog()).containsExactly(0L, 0L, 0L);
+  }
+
+  @Test public void countsPendingAndUnlinkedTraces() throws Exception {
+    int traceCount = 10;
+    storage().spanConsumer().accept(asList(copyOfRange(LOTS_OF_SPANS, 0, traceCount))).execute();
+
+    executeAdHoc(storage().client, "UPDATE " + TABLE_PENDING_TRACE
+        + " SET update_ts = dateadd(second, -5, NOW)");
+    executeAdHoc(storage().client, "UPSERT INTO " + TABLE_COMPLETE_TRACE + " VALUES ('a', NULL)");
+
+    long[] backlog = sumBacklog();
+    assertThat(backlog[0]).isEqualTo(traceCount);
+    assertThat(backlog[1]).isGreaterThanOrEqualTo(5000L); // max age
+    assertThat(backlog[2]).isEqualTo(1L);
+  }
+
+  @Test public void oldestPendingAge_includesTracesWithRootFinished() throws Exception {
+    storage().spanConsumer().accept(asList(copyOfRange(LOTS_OF_SPANS, 0, 2))).execute();
+
+    executeAdHoc(storage().client, "UPDATE " + TABLE_PENDING_TRACE
+        + " SET update_ts = dateadd(second, -5, NOW), root_finished = 1");
+
+    assertThat(sumBacklog()[1]).isGreaterThanOrEqualTo(5000L);
+  }
+
+  /** Returns the sum of pending traces, max oldest pending age and sum of unlinked traces */
+  long[] sumBacklog() throws Exception {
+    long[] result = new long[3];
+    for (ClientResponseWithPartitionKey resp
+        : storage().client.callAllPartitionProcedure(PROCEDURE_GET_BACKLOG)) {
+      assertThat(resp.response.getStatus()).isEqualTo(ClientResponse.SUCCESS);
+      VoltTable table = resp.response.getResults()[0];
+      assertThat(table.advanceRow()).isTrue();
+      result[0] += table.getLong(0);
+      result[1] = Math.max(result[1], table.getLong(1));
+      result[2] += table.getLong(2);
+    }
+    return result;
+  }
+}
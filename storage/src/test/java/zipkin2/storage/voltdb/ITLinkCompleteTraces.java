@@ -29,6 +29,7 @@ import static zipkin2.storage.voltdb.ITCompletePendingTraces.getStrings;
 import static zipkin2.storage.voltdb.ITLinkTrace.assertLinksTableConsistentWith;
 import static zipkin2.storage.voltdb.Schema.TABLE_COMPLETE_TRACE;
 import static zipkin2.storage.voltdb.Schema.TABLE_DEPENDENCY_LINK;
+import static zipkin2.storage.voltdb.Schema.TABLE_SPAN;
 import static zipkin2.storage.voltdb.VoltDBStorage.executeAdHoc;
 
 abstract class ITLinkCompleteTraces {
@@ -50,6 +51,30 @@ abstract class ITLinkCompleteTraces {
     assertLinksTableConsistentWith(storage().client, TRACE);
   }
 
+  @Test public void mergesSpanFragments() throws Exception {
+    String traceId = TRACE.get(0).traceId();
+    Span root = TRACE.get(0);
+    List<Span> spans = new ArrayList<>(TRACE);
+    // a late annotation is stored as a separate row of the root span
+    spans.add(Span.newBuilder().traceId(traceId).id(root.id())
+        .localEndpoint(root.localEndpoint()).addAnnotation(root.timestampAsLong() + 1, "late")
+        .build());
+    storage().spanConsumer().accept(spans).execute();
+
+    markComplete(traceId);
+    callLinkCompleteTraces(maxTraces);
+
+    assertThat(executeAdHoc(client(), "SELECT COUNT(*) FROM " + TABLE_SPAN + " WHERE id = ?",
+        storage().id(root.id())).getResults()[0].asScalarLong()).isOne();
+    assertThat(storage().spanStore().getTrace(traceId).execute())
+        .hasSize(TRACE.size())
+        .filteredOn(s -> s.id().equals(root.id()))
+        .flatExtracting(Span::annotations)
+        .extracting(a -> a.value())
+        .contains("late");
+    assertLinksTableConsistentWith(storage().client, TRACE);
+  }
+
   void markComplete(String traceId) throws Exception {
     executeAdHoc(client(), "UPSERT INTO " + TABLE_COMPLETE_TRACE
         + " VALUES ('" + traceId + "', NULL)");
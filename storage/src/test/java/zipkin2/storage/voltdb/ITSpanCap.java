@@ -0,0 +1,81 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.voltdb.client.ClientResponse;
+import zipkin2.Span;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin2.TestObjects.TRACE;
+import static zipkin2.storage.voltdb.Schema.APP_STATUS_SPAN_DROPPED;
+import static zipkin2.storage.voltdb.Schema.APP_STATUS_TRACE_CAPPED;
+import static zipkin2.storage.voltdb.Schema.TABLE_PENDING_TRACE;
+import static zipkin2.storage.voltdb.VoltDBStorage.executeAdHoc;
+
+abstract class ITSpanCap {
+  VoltDBStorage storage;
+  List<Byte> appStatuses = new CopyOnWriteArrayList<>();
+
+  abstract VoltDBStorageRule voltdb();
+
+  @Before public void connect() {
+    storage = voltdb().computeStorageBuilder()
+        .maxSpansPerTrace(1)
+        .procedureListener(new ProcedureListener() {
+          @Override public void onResponse(String procedure, Object[] parameters,
+              ClientResponse response, long convertNanos) {
+            if (procedure.startsWith(Schema.PROCEDURE_STORE_SPAN)) {
+              appStatuses.add(response.getAppStatus());
+            }
+          }
+        })
+        .build();
+  }
+
+  @After public void close() {
+    storage.close();
+  }
+
+  @Test public void keepsRootAndErrorSpansOverCap() throws Exception {
+    for (Span span : TRACE) storage.spanConsumer().accept(Collections.singletonList(span)).execute();
+
+    List<Span> kept = TRACE.stream()
+        .filter(s -> s.parentId() == null || s.tags().containsKey("error"))
+        .collect(Collectors.toList());
+    assertThat(storage.spanStore().getTrace(TRACE.get(0).traceId()).execute())
+        .containsExactlyInAnyOrderElementsOf(kept);
+
+    int dropped = TRACE.size() - kept.size();
+    assertThat(executeAdHoc(storage.client, "SELECT span_count, dropped_span_count FROM "
+        + TABLE_PENDING_TRACE).getResults()[0].fetchRow(0).getLong(1)).isEqualTo(dropped);
+    assertThat(appStatuses)
+        .containsOnlyOnce(APP_STATUS_TRACE_CAPPED)
+        .filteredOn(s -> s == APP_STATUS_SPAN_DROPPED).hasSize(dropped - 1);
+  }
+
+  @Test public void storesAllSpansUnderCap() throws Exception {
+    storage.spanConsumer().accept(TRACE.subList(0, 1)).execute();
+
+    assertThat(storage.spanStore().getTrace(TRACE.get(0).traceId()).execute())
+        .containsExactly(TRACE.get(0));
+    assertThat(appStatuses).doesNotContain(APP_STATUS_TRACE_CAPPED, APP_STATUS_SPAN_DROPPED);
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb;
+
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import zipkin2.Span;
+import zipkin2.storage.QueryRequest;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin2.TestObjects.DAY;
+import static zipkin2.TestObjects.TODAY;
+import static zipkin2.TestObjects.TRACE;
+import static zipkin2.storage.voltdb.Schema.PROCEDURE_COMPACT_TRACES;
+import static zipkin2.storage.voltdb.Schema.PROCEDURE_LINK_COMPLETE_TRACES;
+import static zipkin2.storage.voltdb.Schema.TABLE_COMPACTED_SPAN_NAME;
+import static zipkin2.storage.voltdb.Schema.TABLE_COMPACTED_TRACE;
+import static zipkin2.storage.voltdb.Schema.TABLE_COMPLETE_TRACE;
+import static zipkin2.storage.voltdb.VoltDBStorage.executeAdHoc;
+
+abstract class ITSpillColdTraces {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  VoltDBStorage storage;
+
+  abstract VoltDBStorageRule voltdb();
+
+  @Before public void connect() throws Exception {
+    storage = voltdb().computeStorageBuilder()
+        .coldTierDirectory(folder.newFolder().getPath())
+        .coldTierMinAgeMillis(1L)
+        .build();
+  }
+
+  @After public void close() {
+    storage.close();
+  }
+
+  @Test public void movesCompactedTraceToColdTier() throws Exception {
+    String traceId = TRACE.get(0).traceId();
+    storage.spanConsumer().accept(TRACE).execute();
+    compact(traceId);
+
+    assertThat(storage.spillColdTraces(10)).isEqualTo(1);
+
+    assertThat(rowCount(TABLE_COMPACTED_TRACE)).isZero();
+    assertThat(rowCount(TABLE_COMPACTED_SPAN_NAME)).isZero();
+    assertThat(storage.spanStore().getTrace(traceId).execute())
+        .containsExactlyInAnyOrderElementsOf(TRACE);
+  }
+
+  @Test public void searchesColdTier() throws Exception {
+    String traceId = TRACE.get(0).traceId();
+    storage.spanConsumer().accept(TRACE).execute();
+    compact(traceId);
+    storage.spillColdTraces(10);
+
+    String serviceName = TRACE.get(0).localServiceName();
+    assertThat(storage.spanStore().getTraces(QueryRequest.newBuilder()
+        .serviceName(serviceName).endTs(TODAY + DAY).lookback(DAY * 2).limit(10).build())
+        .execute()).flatExtracting(l -> l).containsExactlyInAnyOrderElementsOf(TRACE);
+    assertThat(storage.spanStore().getTraces(QueryRequest.newBuilder()
+        .serviceName("unknown").endTs(TODAY + DAY).lookback(DAY * 2).limit(10).build())
+        .execute()).isEmpty();
+  }
+
+  @Test public void mergesSpansStoredAfterSpill() throws Exception {
+    String traceId = TRACE.get(0).traceId();
+    storage.spanConsumer().accept(TRACE).execute();
+    compact(traceId);
+    storage.spillColdTraces(10);
+
+    Span late = Span.newBuilder().traceId(traceId).id(TRACE.get(0).id())
+        .putTag("late", "true").build();
+    storage.spanConsumer().accept(Collections.singletonList(late)).execute();
+
+    List<Span> trace = storage.spanStore().getTrace(traceId).execute();
+    assertThat(trace).hasSize(TRACE.size());
+    assertThat(trace).filteredOn(s -> s.id().equals(late.id()))
+        .extracting(s -> s.tags().get("late"))
+        .containsExactly("true");
+  }
+
+  void compact(String traceId) throws Exception {
+    executeAdHoc(storage.client(), "UPSERT INTO " + TABLE_COMPLETE_TRACE
+        + " VALUES ('" + traceId + "', NULL)");
+    storage.client().callAllPartitionProcedure(PROCEDURE_LINK_COMPLETE_TRACES, 10);
+    storage.client().callAllPartitionProcedure(PROCEDURE_COMPACT_TRACES, 10);
+  }
+
+  long rowCount(String table) throws Exception {
+    return executeAdHoc(storage.client(), "SELECT COUNT(*) FROM " + table)
+        .getResults()[0].asScalarLong();
+  }
+}
@@ -14,6 +14,7 @@
 package zipkin2.storage.voltdb;
 
 import java.util.List;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.ClassRule;
 import org.junit.Ignore;
@@ -100,6 +101,35 @@ public class ITVoltDBStorage {
     }
   }
 
+  public static class ITStrictTraceIdFalse extends zipkin2.storage.ITStrictTraceIdFalse {
+    @ClassRule public static VoltDBStorageRule voltdb = classRule();
+
+    VoltDBStorage storage;
+
+    @Before public void connect() {
+      storage = voltdb.computeStorageBuilder().strictTraceId(false).build();
+    }
+
+    @Override protected VoltDBStorage storage() {
+      return storage;
+    }
+
+    @Override @Before public void clear() throws Exception {
+      voltdb.clear();
+    }
+
+    @After public void close() {
+      storage.close();
+    }
+
+    // GetSpansJson doesn't yet support annotation queries, which these use
+    @Override @Test @Ignore("TODO") public void getTraces_128BitTraceId() {
+    }
+
+    @Override @Test @Ignore("TODO") public void getTraces_128BitTraceId_mixed() {
+    }
+  }
+
   public static class ITEnsureSchema extends zipkin2.storage.voltdb.ITEnsureSchema {
     @ClassRule public static VoltDBStorageRule voltdb = classRule();
 
@@ -157,4 +187,77 @@ public class ITVoltDBStorage {
       voltdb.clear();
     }
   }
+
+  public static class ITDownsampleCompleteTraces
+      extends zipkin2.storage.voltdb.ITDownsampleCompleteTraces {
+    @ClassRule public static VoltDBStorageRule voltdb = classRule();
+
+    @Override VoltDBStorage storage() {
+      return voltdb.storage;
+    }
+
+    @Before public void clear() throws Exception {
+      voltdb.clear();
+    }
+  }
+
+  public static class ITCompactTraces extends zipkin2.storage.voltdb.ITCompactTraces {
+    @ClassRule public static VoltDBStorageRule voltdb = classRule();
+
+    @Override VoltDBStorage storage() {
+      return voltdb.storage;
+    }
+
+    @Before public void clear() throws Exception {
+      voltdb.clear();
+    }
+  }
+
+  public static class ITSpillColdTraces extends zipkin2.storage.voltdb.ITSpillColdTraces {
+    @ClassRule public static VoltDBStorageRule voltdb = classRule();
+
+    @Override VoltDBStorageRule voltdb() {
+      return voltdb;
+    }
+
+    @Before public void clear() throws Exception {
+      voltdb.clear();
+    }
+  }
+
+  public static class ITSpanCap extends zipkin2.storage.voltdb.ITSpanCap {
+    @ClassRule public static VoltDBStorageRule voltdb = classRule();
+
+    @Override VoltDBStorageRule voltdb() {
+      return voltdb;
+    }
+
+    @Before public void clear() throws Exception {
+      voltdb.clear();
+    }
+  }
+
+  public static class ITAcquireLease extends zipkin2.storage.voltdb.ITAcquireLease {
+    @ClassRule public static VoltDBStorageRule voltdb = classRule();
+
+    @Override VoltDBStorage storage() {
+      return voltdb.storage;
+    }
+
+    @Before public void clear() throws Exception {
+      voltdb.clear();
+    }
+  }
+
+  public static class ITGetBacklog extends zipkin2.storage.voltdb.ITGetBacklog {
+    @ClassRule public static VoltDBStorageRule voltdb = classRule();
+
+    @Override VoltDBStorage storage() {
+      return voltdb.storage;
+    }
+
+    @Before public void clear() throws Exception {
+      voltdb.clear();
+    }
+  }
 }
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class IngestRateLimiterTest {
+  Map<String, Long> spansPerSecond = new LinkedHashMap<>();
+
+  @Test public void create_nullWhenUnlimited() {
+    spansPerSecond.put("batch-job", 0L);
+
+    assertThat(IngestRateLimiter.create(0L, spansPerSecond, 10)).isNull();
+  }
+
+  @Test public void create_serviceLimitOnly() {
+    spansPerSecond.put("batch-job", 10L);
+
+    assertThat(IngestRateLimiter.create(0L, spansPerSecond, 10)).isNotNull();
+  }
+
+  @Test public void limitsEachService() {
+    IngestRateLimiter limiter = limiter(2L);
+
+    assertThat(limiter.tryAdmit("1", "frontend", 0L)).isTrue();
+    assertThat(limiter.tryAdmit("2", "frontend", 0L)).isTrue();
+    assertThat(limiter.tryAdmit("3", "frontend", 0L)).isFalse();
+    assertThat(limiter.tryAdmit("4", "backend", 0L)).isTrue();
+  }
+
+  @Test public void refillsAtRate() {
+    IngestRateLimiter limiter = limiter(2L);
+    limiter.tryAdmit("1", "frontend", 0L);
+    limiter.tryAdmit("2", "frontend", 0L);
+
+    assertThat(limiter.tryAdmit("3", "frontend", MILLISECONDS.toNanos(100))).isFalse();
+    assertThat(limiter.tryAdmit("4", "frontend", MILLISECONDS.toNanos(500))).isTrue();
+  }
+
+  @Test public void decidesPerTrace() {
+    IngestRateLimiter limiter = limiter(1L);
+
+    assertThat(limiter.tryAdmit("1", "frontend", 0L)).isTrue();
+    assertThat(limiter.tryAdmit("2", "frontend", 0L)).isFalse();
+
+    // later spans follow the first, regardless of service or tokens left
+    assertThat(limiter.tryAdmit("1", "frontend", 0L)).isTrue();
+    assertThat(limiter.tryAdmit("2", "backend", 0L)).isFalse();
+  }
+
+  @Test public void decidesPerTrace_lower64Bits() {
+    IngestRateLimiter limiter = limiter(1L);
+
+    assertThat(limiter.tryAdmit("463ac35c9f6413ad", "frontend", 0L)).isTrue();
+    assertThat(limiter.tryAdmit("48485a3953bb6124463ac35c9f6413ad", "backend", 0L)).isTrue();
+  }
+
+  @Test public void decisionsRememberedForNextWindow() {
+    IngestRateLimiter limiter = limiter(1L);
+    limiter.tryAdmit("1", "frontend", 0L);
+    limiter.tryAdmit("2", "frontend", 0L);
+
+    assertThat(limiter.tryAdmit("2", "backend", SECONDS.toNanos(15))).isFalse();
+  }
+
+  @Test public void decisionsExpire() {
+    IngestRateLimiter limiter = limiter(1L);
+    limiter.tryAdmit("1", "frontend", 0L);
+    limiter.tryAdmit("2", "frontend", 0L);
+    limiter.tryAdmit("3", "backend", SECONDS.toNanos(10));
+
+    // forgotten after a window without spans
+    assertThat(limiter.tryAdmit("2", "frontend", SECONDS.toNanos(20))).isTrue();
+  }
+
+  @Test public void serviceOverridesDefault() {
+    spansPerSecond.put("batch-job", 1L);
+    spansPerSecond.put("frontend", 0L);
+    IngestRateLimiter limiter = limiter(2L);
+
+    assertThat(limiter.tryAdmit("1", "batch-job", 0L)).isTrue();
+    assertThat(limiter.tryAdmit("2", "batch-job", 0L)).isFalse();
+    for (int i = 3; i < 100; i++) {
+      assertThat(limiter.tryAdmit(Integer.toHexString(i), "frontend", 0L)).isTrue();
+    }
+  }
+
+  @Test public void servicesOverMaxShareBucket() {
+    IngestRateLimiter limiter = new IngestRateLimiter(1L, Collections.<String, Long>emptyMap(),
+        1, 100, SECONDS.toNanos(10), 0L);
+
+    assertThat(limiter.tryAdmit("1", "frontend", 0L)).isTrue();
+    assertThat(limiter.tryAdmit("2", "backend", 0L)).isTrue();
+    assertThat(limiter.tryAdmit("3", "db", 0L)).isFalse();
+  }
+
+  @Test public void servicesOverMaxKeepOverrides() {
+    spansPerSecond.put("batch-job", 1L);
+    spansPerSecond.put("frontend", 0L);
+    IngestRateLimiter limiter = new IngestRateLimiter(1L, spansPerSecond, 1, 100,
+        SECONDS.toNanos(10), 0L);
+    limiter.tryAdmit("1", "backend", 0L);
+
+    assertThat(limiter.tryAdmit("2", "batch-job", 0L)).isTrue();
+    assertThat(limiter.tryAdmit("3", "batch-job", 0L)).isFalse();
+    for (int i = 4; i < 100; i++) {
+      assertThat(limiter.tryAdmit(Integer.toHexString(i), "frontend", 0L)).isTrue();
+    }
+  }
+
+  @Test public void lastWindowNanos_rotatedEarly() {
+    IngestRateLimiter limiter = new IngestRateLimiter(0L, spansPerSecond, 10, 2,
+        SECONDS.toNanos(10), 0L);
+    assertThat(limiter.lastWindowNanos).isEqualTo(SECONDS.toNanos(10));
+
+    limiter.tryAdmit("1", "frontend", 0L);
+    limiter.tryAdmit("2", "frontend", SECONDS.toNanos(1));
+    limiter.tryAdmit("3", "frontend", SECONDS.toNanos(2));
+
+    assertThat(limiter.lastWindowNanos).isEqualTo(SECONDS.toNanos(2));
+  }
+
+  IngestRateLimiter limiter(long defaultSpansPerSecond) {
+    return new IngestRateLimiter(defaultSpansPerSecond, spansPerSecond, 10, 100,
+        SECONDS.toNanos(10), 0L);
+  }
+}
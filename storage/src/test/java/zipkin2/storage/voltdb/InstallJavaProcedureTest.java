@@ -0,0 +1,75 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
+import org.junit.Test;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class InstallJavaProcedureTest {
+
+  @Test public void createStatement() {
+    assertThat(new InstallJavaProcedure(null, "GetBacklog")
+        .withPartition("TABLE PendingTrace COLUMN trace_id")
+        .createStatement())
+        .isEqualTo("CREATE PROCEDURE  PARTITION ON TABLE PendingTrace COLUMN trace_id"
+            + " FROM CLASS zipkin2.storage.voltdb.procedure.GetBacklog;");
+  }
+
+  @Test public void jar_sharesDirectoriesAndTypes() throws Exception {
+    Set<String> typeNames = new LinkedHashSet<>(asList(
+        "zipkin2.storage.voltdb.procedure.BaseLinkTrace",
+        "zipkin2.storage.voltdb.procedure.LinkTrace",
+        "zipkin2.storage.voltdb.procedure.LinkCompleteTraces"
+    ));
+
+    assertThat(entries(InstallJavaProcedure.jar(false, typeNames))).containsExactly(
+        "zipkin2/",
+        "zipkin2/storage/",
+        "zipkin2/storage/voltdb/",
+        "zipkin2/storage/voltdb/procedure/",
+        "zipkin2/storage/voltdb/procedure/BaseLinkTrace.class",
+        "zipkin2/storage/voltdb/procedure/LinkTrace.class",
+        "zipkin2/storage/voltdb/procedure/LinkCompleteTraces.class"
+    );
+  }
+
+  @Test public void jar_addZipkin() throws Exception {
+    Set<String> typeNames = new LinkedHashSet<>(asList(
+        "zipkin2.storage.voltdb.procedure.CompletePendingTraces"
+    ));
+
+    List<String> entries = entries(InstallJavaProcedure.jar(true, typeNames));
+    assertThat(entries)
+        .contains("zipkin2/Span.class", "zipkin2/storage/voltdb/procedure/")
+        .doesNotHaveDuplicates();
+  }
+
+  static List<String> entries(byte[] jar) throws Exception {
+    List<String> result = new ArrayList<>();
+    try (JarInputStream in = new JarInputStream(new ByteArrayInputStream(jar))) {
+      JarEntry entry;
+      while ((entry = in.getNextJarEntry()) != null) result.add(entry.getName());
+    }
+    return result;
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import org.voltdb.ClientResponseImpl;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.client.ProcedureCallback;
+import zipkin2.Callback;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin2.storage.voltdb.Schema.PROCEDURE_RESOLVE_NAME;
+
+public class NameDictionaryTest {
+  // state of the fake cluster
+  Map<String, Integer> dictionary = new LinkedHashMap<>();
+  List<String> calls = new ArrayList<>();
+
+  // Calls back before returning when called asynchronously. The name "bad" fails.
+  Client client = (Client) Proxy.newProxyInstance(getClass().getClassLoader(),
+      new Class[] {Client.class}, (proxy, method, args) -> {
+        boolean async = args[0] instanceof ProcedureCallback;
+        String procedure = (String) args[async ? 2 : 0];
+        String name = (String) ((Object[]) args[async ? 3 : 1])[0];
+        calls.add(procedure);
+        ClientResponse response;
+        if (name.equals("bad")) {
+          response = new ClientResponseImpl(ClientResponse.GRACEFUL_FAILURE, new VoltTable[0],
+              "bad name");
+        } else {
+          if (procedure.equals(PROCEDURE_RESOLVE_NAME)) {
+            if (!dictionary.containsKey(name)) dictionary.put(name, dictionary.size() + 1);
+          }
+          VoltTable result = new VoltTable(new VoltTable.ColumnInfo("id", VoltType.BIGINT));
+          if (dictionary.containsKey(name)) result.addRow(dictionary.get(name));
+          response = new ClientResponseImpl(ClientResponse.SUCCESS, new VoltTable[] {result}, null);
+        }
+        if (!async) return response;
+        ((ProcedureCallback) args[0]).clientCallback(response);
+        return true;
+      });
+
+  NameDictionary names = new NameDictionary(2);
+
+  @Test public void resolve_cachesIds() throws Exception {
+    assertThat(names.resolve(client, "frontend")).isEqualTo(1);
+    assertThat(names.resolve(client, "backend")).isEqualTo(2);
+    assertThat(names.resolve(client, "frontend")).isEqualTo(1);
+
+    assertThat(calls).hasSize(2);
+  }
+
+  @Test public void resolve_null() throws Exception {
+    assertThat(names.resolve(client, null)).isNull();
+
+    assertThat(calls).isEmpty();
+  }
+
+  @Test public void find_unknownIsntCached() throws Exception {
+    assertThat(names.find(client, "frontend")).isEqualTo(NameDictionary.UNKNOWN_ID);
+    names.resolve(client, "frontend"); // a span is stored with the name
+
+    assertThat(names.find(client, "frontend")).isEqualTo(1);
+  }
+
+  @Test public void find_nullMatchesAny() throws Exception {
+    assertThat(names.find(client, null)).isZero();
+
+    assertThat(calls).isEmpty();
+  }
+
+  @Test public void evictsLeastRecentlyUsed() throws Exception {
+    names.resolve(client, "frontend");
+    names.resolve(client, "backend");
+    names.resolve(client, "frontend");
+    names.resolve(client, "db");
+    calls.clear();
+
+    names.resolve(client, "frontend");
+
+    assertThat(names.ids).containsOnlyKeys("frontend", "db");
+    assertThat(calls).isEmpty();
+  }
+
+  @Test public void resolveAll_cachesIds() {
+    AtomicReference<Object> result = new AtomicReference<>();
+
+    names.resolveAll(client, 1000, asList("frontend", "backend"), callback(result));
+
+    assertThat(result.get()).isEqualTo(dictionary);
+    assertThat(names.get("backend")).isEqualTo(2);
+  }
+
+  @Test public void resolveAll_failsOnce() {
+    AtomicReference<Object> result = new AtomicReference<>();
+
+    names.resolveAll(client, 1000, asList("bad", "frontend", "bad"), callback(result));
+
+    assertThat((Throwable) result.get()).isInstanceOf(IOException.class)
+        .hasMessage("ResolveName(bad) returned bad name");
+  }
+
+  static <V> Callback<V> callback(AtomicReference<Object> result) {
+    return new Callback<V>() {
+      @Override public void onSuccess(V value) {
+        assertThat(result.getAndSet(value)).isNull();
+      }
+
+      @Override public void onError(Throwable t) {
+        assertThat(result.getAndSet(t)).isNull();
+      }
+    };
+  }
+}
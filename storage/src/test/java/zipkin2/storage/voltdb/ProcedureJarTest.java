@@ -0,0 +1,87 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import org.junit.Test;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ProcedureJarTest {
+  @Test public void load_nullWhenNotPackaged() throws IOException {
+    assertThat(ProcedureJar.load()).isNull();
+  }
+
+  @Test public void load_stampsVersionAndContents() throws IOException {
+    byte[] jar = jar(manifest("0.1.0"), "Foo.class", "foo");
+
+    ProcedureJar result = ProcedureJar.load(new ByteArrayInputStream(jar));
+
+    assertThat(result.bytes).isEqualTo(jar);
+    assertThat(result.stamp).matches("0\\.1\\.0@[0-9a-f]{64}");
+  }
+
+  @Test public void stamp_sameContentsSameStamp() throws IOException {
+    Manifest rebuilt = manifest("0.1.0");
+    rebuilt.getMainAttributes().putValue("Build-Timestamp", "2019-03-01T00:00:00Z");
+
+    assertThat(ProcedureJar.stamp(jar(rebuilt, "Foo.class", "foo")))
+        .isEqualTo(ProcedureJar.stamp(jar(manifest("0.1.0"), "Foo.class", "foo")));
+  }
+
+  @Test public void stamp_differentContentsDifferentStamp() throws IOException {
+    assertThat(ProcedureJar.stamp(jar(manifest("0.1.0"), "Foo.class", "bar")))
+        .isNotEqualTo(ProcedureJar.stamp(jar(manifest("0.1.0"), "Foo.class", "foo")));
+    assertThat(ProcedureJar.stamp(jar(manifest("0.1.0"), "Bar.class", "foo")))
+        .isNotEqualTo(ProcedureJar.stamp(jar(manifest("0.1.0"), "Foo.class", "foo")));
+  }
+
+  @Test public void load_failsWithoutStamp() throws IOException {
+    byte[] jar = jar(null);
+
+    assertThatThrownBy(() -> ProcedureJar.load(new ByteArrayInputStream(jar)))
+        .isInstanceOf(IOException.class)
+        .hasMessageContaining("missing version attributes");
+  }
+
+  static Manifest manifest(String version) {
+    Manifest manifest = new Manifest();
+    Attributes attributes = manifest.getMainAttributes();
+    attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+    attributes.put(Attributes.Name.IMPLEMENTATION_VERSION, version);
+    return manifest;
+  }
+
+  static byte[] jar(Manifest manifest, String... namesAndContents) throws IOException {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    try (JarOutputStream out =
+             manifest != null ? new JarOutputStream(bout, manifest) : new JarOutputStream(bout)) {
+      for (int i = 0; i < namesAndContents.length; i += 2) {
+        JarEntry entry = new JarEntry(namesAndContents[i]);
+        out.putNextEntry(entry);
+        out.write(namesAndContents[i + 1].getBytes(UTF_8));
+        out.closeEntry();
+      }
+    }
+    return bout.toByteArray();
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import org.junit.After;
+import org.junit.Test;
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientStatusListenerExt.AutoConnectionStatus;
+import org.voltdb.client.ClientStatusListenerExt.DisconnectCause;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ReconnectorTest {
+  List<String> attempts = new ArrayList<>();
+
+  // Only connects to hosts named "up"
+  Client client = (Client) Proxy.newProxyInstance(getClass().getClassLoader(),
+      new Class[] {Client.class}, (proxy, method, args) -> {
+        String host = (String) args[0];
+        attempts.add(host);
+        if (!host.startsWith("up:")) throw new IOException("connection refused");
+        return null;
+      });
+
+  VoltDBStorage storage = VoltDBStorage.newBuilder().build();
+  // long backoff, so that retries don't run during the test
+  Reconnector reconnector = new Reconnector(storage, 60_000L, 60_000L);
+
+  @After public void close() {
+    reconnector.close();
+    storage.close();
+  }
+
+  @Test public void connect_toleratesDownHosts() {
+    reconnector.connect(client, asList("down:21212", "up:21212"));
+
+    assertThat(reconnector.connectedHosts).containsExactly("up:21212");
+    assertThat(reconnector.retryingHosts).containsExactly("down:21212");
+  }
+
+  @Test public void connect_skipsConnectedHosts() {
+    reconnector.connect(client, asList("up:21212"));
+    reconnector.connect(client, asList("up:21212"));
+
+    assertThat(attempts).containsExactly("up:21212");
+  }
+
+  @Test public void connect_throwsWhenNoHostsUp() {
+    assertThatThrownBy(() -> reconnector.connect(client, asList("down:21212")))
+        .hasMessage("Unable to establish connection to VoltDB server")
+        .hasRootCauseInstanceOf(IOException.class);
+  }
+
+  @Test public void connectionLost_retriesConfiguredHost() {
+    reconnector.connect(client, asList("up:21212"));
+    storage.connected = true;
+
+    reconnector.connectionLost("up", 21212, 1, DisconnectCause.CONNECTION_CLOSED);
+
+    assertThat(storage.connected).isTrue();
+    assertThat(reconnector.connectedHosts).isEmpty();
+    assertThat(reconnector.retryingHosts).containsExactly("up:21212");
+  }
+
+  @Test public void connectionLost_resetsConnectedWhenNoneLeft() {
+    storage.connected = true;
+
+    reconnector.connectionLost("discovered", 21212, 0, DisconnectCause.CONNECTION_CLOSED);
+
+    assertThat(storage.connected).isFalse();
+    assertThat(reconnector.retryingHosts).isEmpty(); // left to topology awareness
+  }
+
+  @Test public void close_cancelsRetries() {
+    reconnector.connect(client, asList("down:21212", "up:21212"));
+    ScheduledFuture<?> retry = reconnector.scheduled.get("down:21212");
+
+    reconnector.close();
+
+    assertThat(retry.isCancelled()).isTrue();
+    assertThat(reconnector.scheduled).isEmpty();
+  }
+
+  @Test public void connectionLost_matchesIpv6Host() {
+    reconnector.connectedHosts.add("[::1]:21212");
+
+    reconnector.connectionLost("::1", 21212, 1, DisconnectCause.CONNECTION_CLOSED);
+
+    assertThat(reconnector.connectedHosts).isEmpty();
+    assertThat(reconnector.retryingHosts).containsExactly("[::1]:21212");
+  }
+
+  @Test public void connectionLost_staysConnectedWhileAnotherClientIs() {
+    reconnector.connect(client, asList("up:21212"));
+    storage.connected = true;
+    storage.reads.reconnectors[0].clientConnected = true;
+
+    reconnector.connectionLost("up", 21212, 0, DisconnectCause.CONNECTION_CLOSED);
+
+    assertThat(reconnector.clientConnected).isFalse();
+    assertThat(storage.connected).isTrue();
+
+    storage.reads.reconnectors[0].connectionLost("up", 21212, 0,
+        DisconnectCause.CONNECTION_CLOSED);
+
+    assertThat(storage.connected).isFalse();
+  }
+
+  @Test public void connectionCreated_marksClientConnected() {
+    reconnector.connectionCreated("discovered", 21212, AutoConnectionStatus.SUCCESS);
+
+    assertThat(reconnector.clientConnected).isTrue();
+  }
+
+  @Test public void parseHosts() {
+    assertThat(VoltDBStorage.parseHosts(" a, b:21213,,a:21212"))
+        .containsExactly("a:21212", "b:21213");
+  }
+
+  @Test public void parseHosts_ipv6() {
+    assertThat(VoltDBStorage.parseHosts("::1,[::2],[::3]:21213,[::1]:21212"))
+        .containsExactly("[::1]:21212", "[::2]:21212", "[::3]:21213");
+  }
+
+  @Test public void host_rejectsEmpty() {
+    assertThatThrownBy(() -> VoltDBStorage.newBuilder().host(" , "))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+}
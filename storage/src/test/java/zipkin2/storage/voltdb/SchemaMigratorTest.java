@@ -0,0 +1,207 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import org.voltdb.ClientResponseImpl;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientResponse;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static zipkin2.storage.voltdb.Schema.PROCEDURE_ACQUIRE_LEASE;
+import static zipkin2.storage.voltdb.Schema.PROCEDURE_RELEASE_LEASE;
+
+public class SchemaMigratorTest {
+  // state of the fake cluster
+  int version, expandedVersion;
+  String leaseHolder;
+  int leaseCalls;
+  List<Integer> applied = new ArrayList<>();
+
+  Client client = (Client) Proxy.newProxyInstance(getClass().getClassLoader(),
+      new Class[] {Client.class}, (proxy, method, args) -> {
+        String procedure = (String) args[0];
+        Object[] parameters = (Object[]) args[1];
+        VoltTable result = new VoltTable(new VoltTable.ColumnInfo("result", VoltType.STRING));
+        if (procedure.equals(PROCEDURE_ACQUIRE_LEASE)) {
+          leaseCalls++;
+          if (leaseHolder == null) leaseHolder = (String) parameters[1];
+          result.addRow(leaseHolder);
+        } else if (procedure.equals(PROCEDURE_RELEASE_LEASE)) {
+          if (parameters[1].equals(leaseHolder)) leaseHolder = null;
+        } else if (((String) parameters[0]).startsWith("SELECT version")) {
+          result = new VoltTable(new VoltTable.ColumnInfo("version", VoltType.INTEGER));
+          result.addRow(parameters[1].equals(SchemaMigrator.VERSION_NAME) ? version
+              : expandedVersion);
+        } else if (((String) parameters[0]).startsWith("UPSERT")) {
+          if (parameters[1].equals(SchemaMigrator.VERSION_NAME)) {
+            version = (Integer) parameters[2];
+          } else {
+            expandedVersion = (Integer) parameters[2];
+          }
+        }
+        return new ClientResponseImpl(ClientResponse.SUCCESS, new VoltTable[] {result}, null);
+      });
+
+  @Test public void rejectsMigrationsOutOfOrder() {
+    assertThatThrownBy(() -> migrator(migration(2), migration(1)))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("migration 1: test is out of order");
+  }
+
+  @Test public void appliesNewerMigrationsInOrder() throws Exception {
+    version = 1;
+
+    assertThat(migrator(migration(1), migration(2), migration(3)).migrate()).isTrue();
+
+    assertThat(applied).containsExactly(2, 3);
+    assertThat(version).isEqualTo(3);
+    assertThat(leaseHolder).isNull(); // released
+  }
+
+  @Test public void skipsLeaseWhenCurrent() throws Exception {
+    version = 2;
+
+    assertThat(migrator(migration(1), migration(2)).migrate()).isTrue();
+
+    assertThat(applied).isEmpty();
+    assertThat(leaseCalls).isZero();
+  }
+
+  @Test public void givesUpWhenOtherServerMigrates() throws Exception {
+    leaseHolder = "zipkin2";
+
+    assertThat(migrator(migration(1)).migrate()).isFalse();
+
+    assertThat(applied).isEmpty();
+    assertThat(version).isZero();
+  }
+
+  @Test public void stopsWhenLeaseLost() {
+    Migration takeover = new Migration(1, "test") {
+      @Override void apply(Client client, SchemaMigrator lease) {
+        leaseHolder = "zipkin2";
+      }
+    };
+
+    assertThatThrownBy(() -> migrator(takeover, migration(2)).migrate())
+        .isInstanceOf(IllegalStateException.class)
+        .hasMessage("zipkin1 lost the schema lease");
+    assertThat(version).isEqualTo(1);
+  }
+
+  @Test public void createsLeaseBeforeTakingIt() throws Exception {
+    Migration lease = new Migration(1, "test") {
+      @Override void apply(Client client, SchemaMigrator lease) {
+        assertThat(leaseCalls).isZero();
+        applied.add(version);
+      }
+
+      @Override boolean precedesLease() {
+        return true;
+      }
+    };
+
+    assertThat(migrator(lease, migration(2)).migrate()).isTrue();
+
+    assertThat(applied).containsExactly(1, 2);
+    assertThat(version).isEqualTo(2);
+  }
+
+  @Test public void newInstallRecordsStepsThatDontApply() throws Exception {
+    Migration backfill = new Migration(2, "test") {
+      @Override void apply(Client client, SchemaMigrator lease) {
+        applied.add(version);
+      }
+
+      @Override boolean appliesToNewInstall() {
+        return false;
+      }
+    };
+    SchemaMigrator migrator = migrator(migration(1), backfill, migration(3));
+    migrator.reset();
+
+    assertThat(migrator.migrate()).isTrue();
+
+    assertThat(applied).containsExactly(1, 3);
+    assertThat(version).isEqualTo(3);
+  }
+
+  @Test public void appliesExpandingStepsFirst() throws Exception {
+    assertThat(migrator(migration(1), expanding(2), migration(3)).migrate()).isTrue();
+
+    assertThat(applied).containsExactly(2, 1, 3);
+    assertThat(version).isEqualTo(3);
+  }
+
+  @Test public void resumesAfterExpandingSteps() throws Exception {
+    expandedVersion = 2; // interrupted after applying step 2
+
+    assertThat(migrator(migration(1), expanding(2), expanding(3)).migrate()).isTrue();
+
+    assertThat(applied).containsExactly(3, 1);
+    assertThat(version).isEqualTo(3);
+  }
+
+  @Test public void replacesProceduresOnce() throws Exception {
+    assertThat(migrator(procedures(1), migration(2), procedures(3)).migrate()).isTrue();
+
+    assertThat(applied).containsExactly(1, 2);
+    assertThat(version).isEqualTo(3);
+  }
+
+  SchemaMigrator migrator(Migration... migrations) {
+    return new SchemaMigrator(client, Arrays.asList(migrations), false, null, "zipkin1", 1000L, 0L,
+        1L);
+  }
+
+  Migration migration(int version) {
+    return new Migration(version, "test") {
+      @Override void apply(Client client, SchemaMigrator lease) {
+        applied.add(version);
+      }
+    };
+  }
+
+  Migration expanding(int version) {
+    return new Migration(version, "test") {
+      @Override void apply(Client client, SchemaMigrator lease) {
+        applied.add(version);
+      }
+
+      @Override boolean expands() {
+        return true;
+      }
+    };
+  }
+
+  Migration procedures(int version) {
+    return new Migration(version, "test") {
+      @Override void apply(Client client, SchemaMigrator lease) {
+        applied.add(version);
+      }
+
+      @Override boolean replacesProcedures() {
+        return true;
+      }
+    };
+  }
+}
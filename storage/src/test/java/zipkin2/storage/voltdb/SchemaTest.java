@@ -0,0 +1,60 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin2.storage.voltdb.Schema.PROCEDURE_GET_SPAN_NAMES;
+import static zipkin2.storage.voltdb.Schema.PROCEDURE_STORE_SPAN;
+
+public class SchemaTest {
+  /** Changes to the schema go in migrations, as ddl.sql isn't applied to existing clusters. */
+  @Test public void schemaResource_isVersionZero() {
+    assertThat(Schema.readSqlFile(Schema.SCHEMA_RESOURCE))
+        .endsWith(Schema.readSqlFile(ITEnsureSchema.VERSION_ZERO_RESOURCE));
+  }
+
+  @Test public void binaryIds_rewritesIdColumns() {
+    assertThat(Schema.binaryIds("CREATE TABLE Span (\n"
+        + "  trace_id VARCHAR(32) NOT NULL,\n"
+        + "  parent_id VARCHAR(16),\n"
+        + "  id VARCHAR(16) NOT NULL,\n"
+        + "  service_name VARCHAR(255),\n"
+        + "  md5 VARBINARY(16) NOT NULL,\n"
+        + "  trace_id_low VARCHAR(16)\n"
+        + ");")).isEqualTo("CREATE TABLE Span (\n"
+        + "  trace_id VARBINARY(16) NOT NULL,\n"
+        + "  parent_id VARBINARY(8),\n"
+        + "  id VARBINARY(8) NOT NULL,\n"
+        + "  service_name VARCHAR(255),\n"
+        + "  md5 VARBINARY(16) NOT NULL,\n"
+        + "  trace_id_low VARBINARY(8)\n"
+        + ");");
+  }
+
+  @Test public void binaryIds_ignoresOtherColumns() {
+    String ddl = "CREATE TABLE SchedulerLease (name VARCHAR(64) NOT NULL, holder VARCHAR(16));";
+
+    assertThat(Schema.binaryIds(ddl)).isEqualTo(ddl);
+  }
+
+  @Test public void procedure_variantWhenPartitionedOnBinaryId() {
+    assertThat(Schema.procedure(PROCEDURE_STORE_SPAN, false)).isEqualTo("StoreSpansJsonCapped");
+    assertThat(Schema.procedure(PROCEDURE_STORE_SPAN, true))
+        .isEqualTo("StoreSpansJsonCappedBinary");
+    // SQL procedures take the type of the partition column, so don't need a variant
+    assertThat(Schema.procedure(PROCEDURE_GET_SPAN_NAMES, true)).isEqualTo("GetSpanNames");
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.voltdb.ClientResponseImpl;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.client.ProcedureCallback;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SlowProcedureLogTest {
+  List<String> explained = new ArrayList<>(), messages = new ArrayList<>();
+  Handler handler = new Handler() {
+    @Override public void publish(LogRecord record) {
+      messages.add(record.getMessage());
+    }
+
+    @Override public void flush() {
+    }
+
+    @Override public void close() {
+    }
+  };
+
+  // Answers @ExplainProc immediately
+  Client client = (Client) Proxy.newProxyInstance(getClass().getClassLoader(),
+      new Class[] {Client.class}, (proxy, method, args) -> {
+        String procedure = (String) ((Object[]) args[2])[0];
+        explained.add(procedure);
+        VoltTable plan = new VoltTable(
+            new VoltTable.ColumnInfo("SQL_STATEMENT", VoltType.STRING),
+            new VoltTable.ColumnInfo("EXECUTION_PLAN", VoltType.STRING));
+        plan.addRow("SELECT json from Span where trace_id = ?", "INDEX SCAN of \"SPAN\"");
+        ((ProcedureCallback) args[0]).clientCallback(
+            new ClientResponseImpl(ClientResponse.SUCCESS, new VoltTable[] {plan}, null));
+        return true;
+      });
+
+  SlowProcedureLog log = new SlowProcedureLog(client, 100L, ProcedureListener.NOOP);
+
+  @Before public void addHandler() {
+    SlowProcedureLog.LOG.addHandler(handler);
+  }
+
+  @After public void removeHandler() {
+    SlowProcedureLog.LOG.removeHandler(handler);
+  }
+
+  @Test public void ignoresFastCalls() {
+    log.onResponse("GetSpanJson", new Object[] {"a"}, response(50, 40), 0L);
+
+    assertThat(explained).isEmpty();
+    assertThat(messages).isEmpty();
+  }
+
+  @Test public void includesConvertTime() {
+    log.onResponse("GetSpanJson", new Object[] {"a"}, response(50, 40), MILLISECONDS.toNanos(50));
+
+    assertThat(messages).hasSize(1);
+  }
+
+  @Test public void logsWithPlan() {
+    log.onResponse("GetSpanJson", new Object[] {"a", new byte[16]}, response(150, 140), 0L);
+
+    assertThat(messages).containsExactly("GetSpanJson(a, 16 bytes) succeeded in 150ms"
+        + " (cluster 140ms, queue 10ms, convert 0ms), returned 0 rows, 0 bytes; plan: "
+        + "\nSELECT json from Span where trace_id = ?"
+        + "\nINDEX SCAN of \"SPAN\"");
+  }
+
+  @Test public void explainsOncePerProcedure() {
+    log.onResponse("GetSpanJson", new Object[] {"a"}, response(150, 140), 0L);
+    log.onResponse("GetSpanJson", new Object[] {"b"}, response(150, 140), 0L);
+    log.onResponse("GetSpansJson", new Object[] {"c"}, response(150, 140), 0L);
+
+    assertThat(explained).containsExactly("GetSpanJson", "GetSpansJson");
+    assertThat(messages).hasSize(3).allSatisfy(m -> assertThat(m).contains("INDEX SCAN"));
+  }
+
+  static ClientResponse response(long clientMillis, int clusterMillis) {
+    ClientResponseImpl response =
+        new ClientResponseImpl(ClientResponse.SUCCESS, new VoltTable[0], null);
+    response.setClientRoundtrip(MILLISECONDS.toNanos(clientMillis));
+    response.setClusterRoundtrip(clusterMillis);
+    return response;
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.voltdb.ClientResponseImpl;
+import org.voltdb.VoltTable;
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.client.ProcedureCallback;
+import zipkin2.Call;
+import zipkin2.Callback;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class VoltDBCallTest {
+  List<Integer> timeouts = new ArrayList<>();
+  List<String> events = new ArrayList<>();
+  AtomicReference<ProcedureCallback> pending = new AtomicReference<>();
+
+  // Holds the callback of callProcedureWithTimeout until the test responds
+  Client client = (Client) Proxy.newProxyInstance(getClass().getClassLoader(),
+      new Class[] {Client.class}, (proxy, method, args) -> {
+        pending.set((ProcedureCallback) args[0]);
+        timeouts.add((Integer) args[1]);
+        return true;
+      });
+
+  ProcedureListener listener = new ProcedureListener() {
+    @Override public void onResponse(String procedure, Object[] parameters,
+        ClientResponse response, long convertNanos) {
+      events.add("onResponse");
+    }
+
+    @Override public void onCanceled(String procedure, Object[] parameters,
+        ClientResponse response) {
+      events.add("onCanceled");
+    }
+  };
+
+  VoltDBStorage storage = VoltDBStorage.newBuilder()
+      .readTimeoutMillis(1000)
+      .readMaxOutstandingTxns(2)
+      .procedureTimeoutMillis("GetDependencyLinks", 500)
+      .build();
+  Client readClient = storage.reads.clients[0];
+
+  /** Makes calls through the fake client, so that the read lane counts them. */
+  @Before public void replaceReadClient() {
+    storage.reads.clients[0] = client;
+  }
+
+  @After public void close() {
+    storage.reads.clients[0] = readClient;
+    storage.close();
+  }
+
+  @Test public void timeout_byLane() {
+    new FakeCall(storage.reads, "GetSpanJson").enqueue(new RecordingCallback());
+
+    assertThat(timeouts).containsExactly(1000);
+  }
+
+  @Test public void timeout_byProcedure() {
+    new FakeCall(storage.reads, "GetDependencyLinks").enqueue(new RecordingCallback());
+
+    assertThat(timeouts).containsExactly(500);
+  }
+
+  @Test public void converts() throws Exception {
+    RecordingCallback callback = new RecordingCallback();
+    new FakeCall(storage.reads, "GetSpanJson").enqueue(callback);
+
+    pending.get().clientCallback(success());
+
+    assertThat(events).containsExactly("convert", "onResponse", "onSuccess");
+    assertThat(storage.outstandingReads()).isZero();
+  }
+
+  @Test public void cancel_skipsConvert() throws Exception {
+    RecordingCallback callback = new RecordingCallback();
+    Call<String> call = new FakeCall(storage.reads, "GetSpanJson");
+    call.enqueue(callback);
+
+    call.cancel();
+    pending.get().clientCallback(success());
+
+    assertThat(events).containsExactly("onResponse", "onCanceled", "onError: Canceled");
+    assertThat(storage.outstandingReads()).isZero();
+  }
+
+  @Test public void readLane_failsFastWhenFull() throws Exception {
+    new FakeCall(storage.reads, "GetSpanJson").enqueue(new RecordingCallback());
+    new FakeCall(storage.reads, "GetSpanJson").enqueue(new RecordingCallback());
+
+    assertThatThrownBy(() -> new FakeCall(storage.reads, "GetSpanJson").enqueue(
+        new RecordingCallback()))
+        .hasMessage("GetSpanJson not queued: 2 calls outstanding");
+    assertThatThrownBy(() -> new FakeCall(storage.reads, "GetSpanJson").execute())
+        .hasMessage("GetSpanJson not queued: 2 calls outstanding");
+    assertThat(timeouts).hasSize(2); // the client wasn't called
+    assertThat(storage.outstandingReads()).isEqualTo(2);
+
+    pending.get().clientCallback(success());
+    new FakeCall(storage.reads, "GetSpanJson").enqueue(new RecordingCallback());
+
+    assertThat(timeouts).hasSize(3);
+    assertThat(storage.outstandingReads()).isEqualTo(2);
+  }
+
+  @Test public void resolveParametersError_toCallback() {
+    RecordingCallback callback = new RecordingCallback();
+    new FakeCall(storage.reads, "GetSpanJson") {
+      @Override void resolveParameters() throws IOException {
+        throw new IOException("GetNameId(frontend) failed");
+      }
+    }.enqueue(callback);
+
+    assertThat(events).containsExactly("onError: GetNameId(frontend) failed");
+    assertThat(timeouts).isEmpty(); // the client wasn't called
+  }
+
+  static ClientResponse success() {
+    return new ClientResponseImpl(ClientResponse.SUCCESS, new VoltTable[0], null);
+  }
+
+  class FakeCall extends VoltDBCall<String> {
+    FakeCall(ClientPool lane, String procName) {
+      super(lane, VoltDBCallTest.this.client, VoltDBCallTest.this.listener, procName);
+    }
+
+    @Override String convert(ClientResponse response) {
+      events.add("convert");
+      return "";
+    }
+
+    @Override public Call<String> clone() {
+      return new FakeCall(lane, procName);
+    }
+  }
+
+  final class RecordingCallback implements Callback<String> {
+    @Override public void onSuccess(String value) {
+      events.add("onSuccess");
+    }
+
+    @Override public void onError(Throwable t) {
+      events.add("onError: " + t.getMessage());
+    }
+  }
+}
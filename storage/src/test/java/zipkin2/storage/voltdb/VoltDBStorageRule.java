@@ -94,6 +94,10 @@ final class VoltDBStorageRule extends ExternalResource {
     executeAdHoc(storage.client, "Truncate table " + Schema.TABLE_PENDING_TRACE);
     executeAdHoc(storage.client, "Truncate table " + Schema.TABLE_COMPLETE_TRACE);
     executeAdHoc(storage.client, "Truncate table " + Schema.TABLE_DEPENDENCY_LINK);
+    executeAdHoc(storage.client, "Truncate table " + Schema.TABLE_SCHEDULER_LEASE);
+    executeAdHoc(storage.client, "Truncate table " + Schema.TABLE_PENDING_COMPACTION);
+    executeAdHoc(storage.client, "Truncate table " + Schema.TABLE_COMPACTED_TRACE);
+    executeAdHoc(storage.client, "Truncate table " + Schema.TABLE_COMPACTED_SPAN_NAME);
   }
 
   @Override protected void after() {
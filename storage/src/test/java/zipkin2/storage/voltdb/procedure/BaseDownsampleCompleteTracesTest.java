@@ -0,0 +1,48 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb.procedure;
+
+import java.util.Random;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin2.storage.voltdb.procedure.BaseDownsampleCompleteTraces.PRECISION;
+import static zipkin2.storage.voltdb.procedure.BaseDownsampleCompleteTraces.isSampled;
+import static zipkin2.storage.voltdb.procedure.BaseDownsampleCompleteTraces.lowBits;
+
+public class BaseDownsampleCompleteTracesTest {
+  @Test public void lowBits_sameRegardlessOfWidthOrType() {
+    assertThat(lowBits("48485a3953bb6124463ac35c9f6413ad")).isEqualTo(0x463ac35c9f6413adL);
+    assertThat(lowBits("463ac35c9f6413ad")).isEqualTo(0x463ac35c9f6413adL);
+    assertThat(lowBits(new byte[] {
+        0x48, 0x48, 0x5a, 0x39, 0x53, (byte) 0xbb, 0x61, 0x24,
+        0x46, 0x3a, (byte) 0xc3, 0x5c, (byte) 0x9f, 0x64, 0x13, (byte) 0xad
+    })).isEqualTo(0x463ac35c9f6413adL);
+  }
+
+  @Test public void isSampled_bounds() {
+    assertThat(isSampled("463ac35c9f6413ad", 0L)).isFalse();
+    assertThat(isSampled("463ac35c9f6413ad", PRECISION)).isTrue();
+  }
+
+  @Test public void isSampled_approximatesRate() {
+    long boundary = PRECISION / 10; // 10%
+    int sampled = 0;
+    Random random = new Random(1L);
+    for (int i = 0; i < 100_000; i++) {
+      if (isSampled(Long.toHexString(random.nextLong()), boundary)) sampled++;
+    }
+    assertThat(sampled).isBetween(9_500, 10_500);
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb.procedure;
+
+import java.util.Arrays;
+import org.junit.Test;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class GetSpansJsonTest {
+  VoltTable spanTraceIds = new VoltTable(
+      new VoltTable.ColumnInfo("trace_id", VoltType.STRING),
+      new VoltTable.ColumnInfo("trace_id_low", VoltType.STRING));
+  VoltTable compactedTraceIds = new VoltTable(
+      new VoltTable.ColumnInfo("trace_id", VoltType.STRING));
+
+  @Test public void distinctIds_acrossTables() {
+    spanTraceIds.addRow("48485a3953bb6124463ac35c9f6413ad", "463ac35c9f6413ad");
+    spanTraceIds.addRow("48485a3953bb6124463ac35c9f6413ad", "463ac35c9f6413ad");
+    compactedTraceIds.addRow("48485a3953bb6124463ac35c9f6413ad");
+    compactedTraceIds.addRow("0000000000000001");
+
+    assertThat(GetSpansJson.distinctIds(Arrays.asList(spanTraceIds, compactedTraceIds), true, 10))
+        .containsExactly("48485a3953bb6124463ac35c9f6413ad", "0000000000000001");
+  }
+
+  @Test public void distinctIds_lowerBitsWhenNotStrict() {
+    spanTraceIds.addRow("48485a3953bb6124463ac35c9f6413ad", "463ac35c9f6413ad");
+    compactedTraceIds.addRow("463ac35c9f6413ad");
+    compactedTraceIds.addRow("00000000000000020000000000000001");
+
+    assertThat(GetSpansJson.distinctIds(Arrays.asList(spanTraceIds, compactedTraceIds), false, 10))
+        .containsExactly("463ac35c9f6413ad", "0000000000000001");
+  }
+
+  @Test public void distinctIds_limit() {
+    spanTraceIds.addRow("0000000000000001", "0000000000000001");
+    compactedTraceIds.addRow("0000000000000002");
+
+    assertThat(GetSpansJson.distinctIds(Arrays.asList(spanTraceIds, compactedTraceIds), true, 1))
+        .containsExactly("0000000000000001");
+  }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb.procedure;
+
+import org.junit.Test;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class IdsTest {
+  @Test public void hex_bytes() {
+    assertThat(Ids.hex(new byte[] {0x00, 0x0f, (byte) 0xa0, (byte) 0xff}))
+        .isEqualTo("000fa0ff");
+  }
+
+  @Test public void hex_passesStringsAndNull() {
+    assertThat(Ids.hex("463ac35c9f6413ad")).isEqualTo("463ac35c9f6413ad");
+    assertThat(Ids.hex((Object) null)).isNull();
+  }
+
+  @Test public void low() {
+    assertThat(Ids.low("48485a3953bb6124463ac35c9f6413ad")).isEqualTo("463ac35c9f6413ad");
+    assertThat(Ids.low("463ac35c9f6413ad")).isEqualTo("463ac35c9f6413ad");
+    assertThat(Ids.low(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16}))
+        .isEqualTo(new byte[] {9, 10, 11, 12, 13, 14, 15, 16});
+  }
+
+  @Test public void parse() {
+    assertThat(Ids.parse("000fa0ff", true))
+        .isEqualTo(new byte[] {0x00, 0x0f, (byte) 0xa0, (byte) 0xff});
+    assertThat(Ids.parse("000fa0ff", false)).isEqualTo("000fa0ff");
+    assertThat(Ids.parse(null, true)).isNull();
+  }
+
+  @Test public void get_matchesColumnType() {
+    VoltTable table = new VoltTable(
+        new VoltTable.ColumnInfo("trace_id", VoltType.VARBINARY),
+        new VoltTable.ColumnInfo("parent_id", VoltType.VARBINARY));
+    table.addRow(new byte[] {0x46, 0x3a}, null);
+    table.advanceRow();
+
+    assertThat(Ids.get(table, 0)).isEqualTo(new byte[] {0x46, 0x3a});
+    assertThat(Ids.hex(table, 0)).isEqualTo("463a");
+    assertThat(Ids.get(table, 1)).isNull();
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb.procedure;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import zipkin2.DependencyLink;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+import zipkin2.internal.DependencyLinker;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin2.TestObjects.TRACE;
+
+public class RowDependencyLinkerTest {
+  static final String[] IDS = {"a", "b", "c", "d", "e", "f", "10", "11"};
+  static final String[] SERVICES = {"frontend", "backend", "db", "kafka"};
+
+  RowDependencyLinker linker = new RowDependencyLinker();
+
+  @Test public void empty() {
+    linker.link();
+
+    assertThat(links(linker)).isEmpty();
+  }
+
+  @Test public void sameAsDependencyLinker_testTrace() {
+    assertSameLinks(TRACE);
+  }
+
+  /** Small ID and service pools force shared spans, fragments, orphans and cycles. */
+  @Test public void sameAsDependencyLinker_randomTraces() {
+    Random random = new Random(1234L);
+    for (int i = 0; i < 20_000; i++) {
+      assertSameLinks(randomTrace(random, 1 + random.nextInt(12)));
+    }
+  }
+
+  @Test public void sameAsDependencyLinker_largeRandomTraces() {
+    Random random = new Random(5678L);
+    for (int i = 0; i < 100; i++) {
+      assertSameLinks(randomTrace(random, 100 + random.nextInt(900)));
+    }
+  }
+
+  /** Ensures state from a prior trace doesn't leak into the next */
+  @Test public void reusable() {
+    Random random = new Random(42L);
+    List<Span> first = randomTrace(random, 50);
+    addRows(linker, first);
+    linker.link();
+    linker.clear();
+
+    assertSameLinks(TRACE);
+  }
+
+  void assertSameLinks(List<Span> trace) {
+    linker.clear();
+    addRows(linker, trace);
+    linker.link();
+
+    assertThat(links(linker))
+        .withFailMessage("different links for %s", trace)
+        .containsExactlyInAnyOrderElementsOf(new DependencyLinker().putTrace(trace).link());
+  }
+
+  /** Mirrors the columns read by {@link BaseLinkTrace} */
+  static void addRows(RowDependencyLinker linker, List<Span> trace) {
+    for (Span span : trace) {
+      linker.addRow(span.parentId(), span.id(), span.kind() != null ? span.kind().name() : null,
+          span.localServiceName(), span.remoteServiceName(), span.tags().containsKey("error"));
+    }
+  }
+
+  static List<DependencyLink> links(RowDependencyLinker linker) {
+    List<DependencyLink> result = new ArrayList<>();
+    for (int i = 0; i < linker.linkCount(); i++) {
+      result.add(DependencyLink.newBuilder()
+          .parent(linker.linkParent(i))
+          .child(linker.linkChild(i))
+          .callCount(linker.linkCallCount(i))
+          .errorCount(linker.linkErrorCount(i))
+          .build());
+    }
+    return result;
+  }
+
+  /** Builds spans the same way {@link BaseLinkTrace} used to before it read rows directly */
+  static List<Span> randomTrace(Random random, int spanCount) {
+    String[] ids = spanCount > 50 ? randomIds(random, spanCount) : IDS;
+    List<Span> result = new ArrayList<>();
+    for (int i = 0; i < spanCount; i++) {
+      Span.Builder builder = Span.newBuilder().traceId("1").id(pick(random, ids));
+      if (random.nextInt(4) != 0) builder.parentId(pick(random, ids));
+
+      int kind = random.nextInt(Span.Kind.values().length + 1);
+      if (kind < Span.Kind.values().length) builder.kind(Span.Kind.values()[kind]);
+
+      if (random.nextInt(5) != 0) {
+        builder.localEndpoint(Endpoint.newBuilder().serviceName(pick(random, SERVICES)).build());
+      }
+      if (random.nextInt(3) != 0) {
+        builder.remoteEndpoint(Endpoint.newBuilder().serviceName(pick(random, SERVICES)).build());
+      }
+      if (random.nextInt(4) == 0) builder.putTag("error", "");
+      result.add(builder.build());
+    }
+    return result;
+  }
+
+  static String[] randomIds(Random random, int spanCount) {
+    String[] result = new String[spanCount / 2];
+    for (int i = 0; i < result.length; i++) result[i] = Long.toHexString(random.nextLong() | 1L);
+    return result;
+  }
+
+  static String pick(Random random, String[] values) {
+    return values[random.nextInt(values.length)];
+  }
+}
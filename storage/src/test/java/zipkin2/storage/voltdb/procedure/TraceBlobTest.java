@@ -0,0 +1,45 @@
+/*
+ * Copyright 2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.voltdb.procedure;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesEncoder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static zipkin2.TestObjects.TRACE;
+
+public class TraceBlobTest {
+  @Test public void roundTrip() {
+    List<Span> decoded = new ArrayList<>();
+    TraceBlob.decode(TraceBlob.encode(TRACE), decoded);
+
+    assertThat(decoded).containsExactlyElementsOf(TRACE);
+  }
+
+  @Test public void smallerThanJson() {
+    int jsonBytes = 0;
+    for (Span span : TRACE) jsonBytes += SpanBytesEncoder.JSON_V2.encode(span).length;
+
+    assertThat(TraceBlob.encode(TRACE).length).isLessThan(jsonBytes);
+  }
+
+  @Test public void decode_malformed() {
+    assertThatThrownBy(() -> TraceBlob.decode(new byte[] {1, 2, 3}, new ArrayList<>()))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+}